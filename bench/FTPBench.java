@@ -0,0 +1,13 @@
+import ftp.ProtocolBench;
+import ftp.TransferBench;
+import ftp.server.DispatchBench;
+
+public class FTPBench {
+
+    public static void main(String[] args) throws Exception {
+        ProtocolBench.runAll();
+        TransferBench.runAll();
+        DispatchBench.runAll();
+    }
+
+}
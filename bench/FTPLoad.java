@@ -0,0 +1,51 @@
+import ftp.load.LoadGenerator;
+import ftp.load.Weighted;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Load generator. Runs concurrent sessions against a server, like
+ * {@code java -Dload.sessions=32 -cp out FTPLoad 127.0.0.1 2020 2021}, and reports latency
+ * percentiles per command, throughput and errors. The result is also written as JSON.
+ *
+ * It is configured with system properties:
+ * {@code load.sessions}, {@code load.duration} in seconds, {@code load.mix} like {@code get=50,put=20,list=20,cd=10},
+ * {@code load.sizes} like {@code 4k=60,256k=30,4m=10}, {@code load.seed}, {@code load.binary} to use binary
+ * framing of the command channel, and {@code load.out} for the JSON file.
+ */
+public class FTPLoad {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String host = "127.0.0.1";
+        int cmdPort = 2020;
+        int dataPort = 2021;
+        try {
+            host = args[0];
+            cmdPort = Integer.parseInt(args[1]);
+            dataPort = Integer.parseInt(args[2]);
+        } catch (ArrayIndexOutOfBoundsException ignored) {
+        }
+
+        LoadGenerator generator = new LoadGenerator(
+                host, cmdPort, dataPort,
+                Integer.getInteger("load.sessions", 8),
+                Long.getLong("load.duration", 30) * 1000,
+                new Weighted<>(System.getProperty("load.mix", "get=50,put=20,list=20,cd=10"),
+                        name -> LoadGenerator.Command.valueOf(name.toUpperCase())),
+                new Weighted<>(System.getProperty("load.sizes", "4k=60,256k=30,4m=10"), LoadGenerator::parseSize),
+                Long.getLong("load.seed", 1)
+        );
+        generator.setBinaryControl(Boolean.getBoolean("load.binary"));
+        generator.run();
+        generator.printSummary(System.out);
+
+        String out = System.getProperty("load.out", "load-result.json");
+        try (PrintStream json = new PrintStream(new FileOutputStream(out))) {
+            generator.writeJson(json);
+        }
+        System.out.println("Result written to " + out);
+    }
+
+}
@@ -0,0 +1,91 @@
+package ftp;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Minimal microbenchmark harness. Runs a benchmark body for a warmup period,
+ * then for a measurement period, and reports average time and heap allocation per operation.
+ * Allocation is measured with per-thread allocation counters, like JMH's {@code gc.alloc.rate.norm}.
+ *
+ * Durations can be adjusted with {@code -Dbench.warmup=<ms>} and {@code -Dbench.time=<ms>}.
+ */
+public final class Microbench {
+
+    /**
+     * A benchmark body. Returns a value derived from its work,
+     * so that JIT cannot eliminate the work as dead code.
+     */
+    public interface Body {
+        long run() throws Exception;
+    }
+
+    /**
+     * Result of a single benchmark.
+     */
+    public static final class Result {
+        public final String name;
+        public final long ops;
+        public final double nsPerOp;
+        public final double bytesPerOp;
+
+        Result(String name, long ops, double nsPerOp, double bytesPerOp) {
+            this.name = name;
+            this.ops = ops;
+            this.nsPerOp = nsPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        public String toString() {
+            return String.format("%-40s %12.1f ns/op %12.1f B/op %14d ops", name, nsPerOp, bytesPerOp, ops);
+        }
+    }
+
+    private static final int batchSize = 1024;
+    private static final long warmupMillis = Long.getLong("bench.warmup", 1000);
+    private static final long measureMillis = Long.getLong("bench.time", 2000);
+    private static final com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static volatile long sink;       // Consumes results of benchmark bodies.
+
+    private Microbench() {
+    }
+
+    /**
+     * Run a benchmark, and print its result to standard output.
+     *
+     * @param name Name of the benchmark.
+     * @param body Benchmark body, called once per operation.
+     * @return Result of the benchmark.
+     * @throws Exception If the benchmark body has thrown an exception.
+     */
+    public static Result run(String name, Body body) throws Exception {
+        loop(body, warmupMillis);
+
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long ops = loop(body, measureMillis);
+        long elapsed = System.nanoTime() - start;
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        Result result = new Result(name, ops, (double) elapsed / ops, (double) allocated / ops);
+        System.out.println(result);
+        return result;
+    }
+
+    private static long loop(Body body, long millis) throws Exception {
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        long ops = 0;
+        long acc = 0;
+        do {
+            for (int i = 0; i < batchSize; i++) {
+                acc += body.run();
+            }
+            ops += batchSize;
+        } while (System.nanoTime() < deadline);
+        sink = acc;
+        return ops;
+    }
+
+}
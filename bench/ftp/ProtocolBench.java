@@ -0,0 +1,161 @@
+package ftp;
+
+import ftp.net.GatheringOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Benchmarks of the protocol hot path: chunk codec, SR window arithmetic, sending chunks and response codec.
+ */
+public class ProtocolBench {
+
+    public static void runAll() throws Exception {
+        byte[] data = new byte[DataChunkC2S.maxDataSize];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(DataChunkS2C.maxChunkSize);
+        DataOutputStream dataOutputStream = new DataOutputStream(byteStream);
+
+        // Chunk codec.
+        Microbench.run("DataChunkC2S.encode", () -> {
+            byteStream.reset();
+            new DataChunkC2S((byte) 3, data).writeBytes(dataOutputStream);
+            return byteStream.size();
+        });
+        byteStream.reset();
+        new DataChunkC2S((byte) 3, data).writeBytes(dataOutputStream);
+        byte[] c2sHeader = java.util.Arrays.copyOf(byteStream.toByteArray(), DataChunkC2S.headerSize);
+        Microbench.run("DataChunkC2S.decodeHeader", () -> {
+            DataChunkC2S chunk = new DataChunkC2S(c2sHeader);
+            return chunk.getSeqNo() + chunk.getSize();
+        });
+
+        Microbench.run("DataChunkS2C.encode", () -> {
+            byteStream.reset();
+            new DataChunkS2C((byte) 3, data).writeBytes(dataOutputStream);
+            return byteStream.size();
+        });
+        byteStream.reset();
+        new DataChunkS2C((byte) 3, data).writeBytes(dataOutputStream);
+        byte[] s2cBytes = byteStream.toByteArray();
+        Microbench.run("DataChunkS2C.decode", () -> new DataChunkS2C(s2cBytes).data.length);
+
+        // SR window arithmetic, as done per ACK and per received chunk.
+        int[] counter = {0};
+        Microbench.run("window.sender", () -> {
+            int i = counter[0]++;
+            int relative = DataChunkC2S.relativeSeqNo(i & 0xf, (i >> 4) & 0xf);
+            return DataChunkC2S.windowIndex(i % DataChunkC2S.winSize, relative);
+        });
+        Microbench.run("window.receiver", () -> {
+            int i = counter[0]++;
+            int logical = DataChunkC2S.logicalSeqNo(i & 0xf, (i >> 4) & 0xf);
+            return logical + DataChunkC2S.nextSeqNo(i);
+        });
+
+        // Steady state of a transfer with recycled chunks: fill, send, receive and ACK.
+        ByteArrayInputStream fileStream = new ByteArrayInputStream(data);
+        DataChunkC2S sent = new DataChunkC2S();
+        sent.fill((byte) 3, fileStream);
+        byteStream.reset();
+        sent.writeBytes(dataOutputStream);
+        ByteArrayInputStream frameStream = new ByteArrayInputStream(byteStream.toByteArray());
+        DataInputStream dataInputStream = new DataInputStream(frameStream);
+        DataChunkC2S received = new DataChunkC2S();
+        ByteArrayOutputStream ackStream = new ByteArrayOutputStream(4);
+        byte[] ackBuffer = new byte[4];
+        Microbench.Result steadyState = Microbench.run("transfer.steadyState", () -> {
+            fileStream.reset();
+            sent.fill((byte) 3, fileStream);
+            byteStream.reset();
+            sent.writeBytes(dataOutputStream);
+            frameStream.reset();
+            received.readFrom(dataInputStream);
+            ackStream.reset();
+            ACKListener.writeACK(ackStream, ackBuffer, received.getSeqNo());
+            return ackStream.size() + (received.isError() ? 1 : 0);
+        });
+        if (steadyState.bytesPerOp >= 1) {
+            throw new IllegalStateException("Transfer hot path allocates " + steadyState.bytesPerOp + " B/chunk");
+        }
+
+        // Sending chunks over a socket: flushed one by one through a buffer, or batched into gathering writes.
+        // Each write to the socket is a system call, so count them per MB.
+        long[] writes = {0, 0};
+        OutputStream socketStream = new OutputStream() {
+            @Override
+            public void write(int b) {
+                writes[0]++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                writes[0]++;
+            }
+        };
+        GatheringByteChannel socketChannel = new GatheringByteChannel() {
+            @Override
+            public long write(ByteBuffer[] srcs, int offset, int length) {
+                writes[1]++;
+                long written = 0;
+                for (int i = offset; i < offset + length; i++) {
+                    written += srcs[i].remaining();
+                    srcs[i].position(srcs[i].limit());
+                }
+                return written;
+            }
+
+            @Override
+            public long write(ByteBuffer[] srcs) {
+                return write(srcs, 0, srcs.length);
+            }
+
+            @Override
+            public int write(ByteBuffer src) {
+                return (int) write(new ByteBuffer[]{src}, 0, 1);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        DataOutputStream flushedStream = new DataOutputStream(new BufferedOutputStream(socketStream, 64 * 1024));
+        DataOutputStream gatheringStream = new DataOutputStream(
+                new GatheringOutputStream(socketChannel, DataChunkS2C.maxChunkSize, 32));
+        DataChunkS2C s2c = new DataChunkS2C((byte) 3, data);
+        Microbench.run("send.flushedPerChunk", () -> {
+            s2c.writeBytes(flushedStream);
+            return writes[0];
+        });
+        Microbench.run("send.gathering", () -> {
+            s2c.writeBytes(gatheringStream);
+            return writes[1];
+        });
+        writes[0] = writes[1] = 0;
+        for (int bytes = 0; bytes < 1024 * 1024; bytes += DataChunkS2C.maxDataSize) {
+            s2c.writeBytes(flushedStream);
+            s2c.writeBytes(gatheringStream);
+        }
+        gatheringStream.close();
+        System.out.printf("%-40s %12d writes/MB flushed per chunk %12d writes/MB gathering%n",
+                "send.syscalls", writes[0], writes[1]);
+
+        // Response codec.
+        String responseStr = new Response(ReturnCode.SUCCESS, "Comprising 2 entries\na.txt, 10\nb, -\n").toString();
+        Microbench.run("Response.parse", () -> new Response(responseStr).message.length());
+        Response response = new Response(ReturnCode.SUCCESS, "Containing 123456 bytes in total");
+        Microbench.run("Response.toString", () -> response.toString().length());
+    }
+
+}
@@ -0,0 +1,219 @@
+package ftp;
+
+import ftp.net.GatheringOutputStream;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+
+/**
+ * Benchmarks of whole transfers over a loopback data connection, through the same classes sessions use:
+ * an upload by {@code SRSender} to {@code SRReceiver} with ACKs flowing back, and a download of chunks
+ * batched into gathering writes, as the server sends them. Unlike {@code ProtocolBench}, it measures
+ * the transfer path as a whole, with heap allocation summed over every thread taking part.
+ *
+ * Sizes can be adjusted with {@code -Dbench.transferMB=<MB>}, which is measured after as much of warmup.
+ */
+public class TransferBench {
+
+    private static final long measureBytes = Long.getLong("bench.transferMB", 16) * 1024 * 1024;
+    private static final com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void runAll() throws Exception {
+        if (Settings.logChunks) {
+            System.out.println("transfer.*: skipped, as -Dftp.logChunks=true logs every chunk");
+            return;
+        }
+        Result upload = upload();
+        Result download = download();
+        System.out.println(upload);
+        System.out.println(download);
+        if (upload.bytesPerChunk >= 1 || download.bytesPerChunk >= 1) {
+            throw new IllegalStateException("Transfer path allocates per chunk: " + upload + ", " + download);
+        }
+    }
+
+    /**
+     * Upload with Selective Repeat, as {@code Session.put} sends and the server receives.
+     */
+    static Result upload() throws Exception {
+        Source source = new Source(2 * measureBytes);
+        try (Loopback loopback = new Loopback()) {
+            Thread receiverThread = new Thread(() -> {
+                try {
+                    SRReceiver receiver = new SRReceiver(loopback.server.in, loopback.server.openOutput());
+                    receiver.receive(OutputStream.nullOutputStream(), -1);
+                    ACKListener.writeEnd(loopback.server.out);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "Bench receiver");
+            receiverThread.start();
+
+            GatheringOutputStream batched = loopback.client.openBatchedOutput();
+            DataOutputStream dataOutputStream = new DataOutputStream(
+                    batched != null ? batched : loopback.client.openOutput());
+            SRSender sender = new SRSender(dataOutputStream, 1000,
+                    Collections.emptyList(), Collections.emptyList(), Collections.emptyList());
+            if (batched != null) sender.setIdleAction(batched::send);
+            Thread ackListenerThread = new Thread(new ACKListener(loopback.client.in, sender), "Bench ACK listener");
+            ackListenerThread.start();
+
+            sender.send(source);
+            dataOutputStream.close();
+            DataChunkC2S.writeEnd(loopback.client.out);
+            ackListenerThread.join();
+            receiverThread.join();
+        }
+        return source.result("transfer.upload", DataChunkC2S.maxDataSize);
+    }
+
+    /**
+     * Download of chunks batched into gathering writes, as the server's send loop sends and {@code Session} receives.
+     */
+    static Result download() throws Exception {
+        Source source = new Source(2 * measureBytes);
+        try (Loopback loopback = new Loopback()) {
+            Thread receiverThread = new Thread(() -> {
+                try {
+                    DataChunkS2C chunk = new DataChunkS2C();
+                    OutputStream out = OutputStream.nullOutputStream();
+                    while (true) {
+                        chunk.readFrom(loopback.client.in);
+                        if (chunk.isEnd()) break;
+                        out.write(chunk.data, 0, chunk.getSize());
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "Bench receiver");
+            receiverThread.start();
+
+            GatheringOutputStream batched = loopback.server.openBatchedOutput();
+            DataOutputStream dataOutputStream = new DataOutputStream(
+                    batched != null ? batched : loopback.server.openOutput());
+            DataChunkS2C chunk = new DataChunkS2C();
+            byte seqNo = 0;
+            while (chunk.fill(seqNo, source) > 0) {
+                chunk.writeBytes(dataOutputStream);
+                seqNo++;
+            }
+            dataOutputStream.close();
+            chunk.end(seqNo);
+            chunk.writeBytes(loopback.server.out);
+            loopback.server.out.flush();
+            receiverThread.join();
+        }
+        return source.result("transfer.download", DataChunkS2C.maxDataSize);
+    }
+
+    /**
+     * Data connection over loopback, as seen from both ends.
+     */
+    static class Loopback implements AutoCloseable {
+        final DataConnection client;
+        final DataConnection server;
+
+        Loopback() throws IOException {
+            try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+                listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                client = new DataConnection(SocketChannel.open(listener.getLocalAddress()).socket());
+                server = new DataConnection(listener.accept().socket());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            client.close();
+            server.close();
+        }
+    }
+
+    /**
+     * Stream of bytes which are never zero, so that no chunk is sent as a zero run. The first half is warmup.
+     * Time and allocation of every thread are sampled where the second half starts, and at the end,
+     * while every thread of the transfer is still alive.
+     */
+    static class Source extends InputStream {
+        final long length;
+        long position = 0;
+        boolean started = false;
+        long startNanos;
+        long startAllocated;
+        long endNanos;
+        long endAllocated;
+
+        Source(long length) {
+            this.length = length;
+        }
+
+        @Override
+        public int read() {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!started && position >= length / 2) {
+                startNanos = System.nanoTime();
+                startAllocated = allocated();
+                started = true;
+            }
+            if (position == length) {
+                if (endNanos == 0) {
+                    endNanos = System.nanoTime();
+                    endAllocated = allocated();
+                }
+                return -1;
+            }
+            len = (int) Math.min(len, (started ? length : length / 2) - position);
+            for (int i = 0; i < len; i++) b[off + i] = (byte) ((position + i) | 1);
+            position += len;
+            return len;
+        }
+
+        Result result(String name, int chunkSize) {
+            long chunks = (length - length / 2) / chunkSize;
+            return new Result(name, (double) (endNanos - startNanos) / chunks,
+                    (double) (endAllocated - startAllocated) / chunks,
+                    (length - length / 2) * 1e9 / (endNanos - startNanos) / 1024 / 1024);
+        }
+
+        static long allocated() {
+            long sum = 0;
+            for (long bytes : threadBean.getThreadAllocatedBytes(threadBean.getAllThreadIds())) {
+                if (bytes > 0) sum += bytes;
+            }
+            return sum;
+        }
+    }
+
+    static class Result {
+        final String name;
+        final double nsPerChunk;
+        final double bytesPerChunk;
+        final double mbPerSecond;
+
+        Result(String name, double nsPerChunk, double bytesPerChunk, double mbPerSecond) {
+            this.name = name;
+            this.nsPerChunk = nsPerChunk;
+            this.bytesPerChunk = bytesPerChunk;
+            this.mbPerSecond = mbPerSecond;
+        }
+
+        public String toString() {
+            return String.format("%-40s %12.1f ns/chunk %9.1f B/chunk %12.1f MB/s", name, nsPerChunk, bytesPerChunk,
+                    mbPerSecond);
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+package ftp.load;
+
+/**
+ * Histogram of latencies with log-linear buckets, like HdrHistogram. Values below 128 have
+ * a bucket each, and every power of two above is split into 64 buckets, so a recorded value
+ * is off by less than 1/64 of itself. It covers any positive {@code long} in a fixed array,
+ * and recording is a few shifts without allocation.
+ *
+ * Not thread-safe. Each thread records into its own histogram, and they are merged afterwards.
+ */
+public class Histogram {
+
+    protected static final int subBucketBits = 6;
+    protected static final int subBucketCount = 1 << subBucketBits;     // Buckets per power of two.
+    protected static final int numBuckets = (64 - subBucketBits) * subBucketCount;
+
+    protected final long[] counts = new long[numBuckets];
+    protected long totalCount = 0;
+    protected long sum = 0;
+    protected long max = 0;
+
+
+    /**
+     * Record a value.
+     *
+     * @param value Non-negative value, like nanoseconds.
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts[index(value)]++;
+        totalCount++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Add all values recorded in another histogram.
+     */
+    public void merge(Histogram other) {
+        for (int i = 0; i < numBuckets; i++) counts[i] += other.counts[i];
+        totalCount += other.totalCount;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    public long getTotalCount() { return totalCount; }
+    public long getMax() { return max; }
+    public double getMean() { return totalCount == 0 ? 0 : (double) sum / totalCount; }
+
+    /**
+     * Value at a percentile, which is the highest value equivalent to the one at that rank.
+     *
+     * @param percentile Percentile in range of [0, 100].
+     * @return Value, or 0 if nothing is recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < numBuckets; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(highestEquivalentValue(i), max);
+        }
+        return max;
+    }
+
+    protected static int index(long value) {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - subBucketBits);
+        return subBucketCount * shift + (int) (value >>> shift);
+    }
+
+    protected static long highestEquivalentValue(int index) {
+        int shift = Math.max(0, index / subBucketCount - 1);
+        long lowest = (long) (index - subBucketCount * shift) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+}
@@ -0,0 +1,326 @@
+package ftp.load;
+
+import ftp.client.ResponseException;
+import ftp.client.Session;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Drives many concurrent sessions against a server with a mix of commands, and measures
+ * latency of each command and aggregate throughput.
+ *
+ * Before the run, it uploads a fixture file per file size, which {@code GET}s download.
+ * {@code PUT}s upload under new names, as the server refuses to overwrite, so the directory
+ * of the server grows with the run. Run it against a scratch directory.
+ */
+public class LoadGenerator {
+
+    public enum Command { LIST, CD, GET, PUT }
+
+    /**
+     * Measurements of a command, by a session or merged across them.
+     */
+    public static class Stats {
+        public final Histogram latencies = new Histogram();     // Of successful commands, in nanoseconds.
+        public long errors = 0;
+        public long bytes = 0;
+
+        void merge(Stats other) {
+            latencies.merge(other.latencies);
+            errors += other.errors;
+            bytes += other.bytes;
+        }
+    }
+
+    protected final String host;
+    protected final int cmdPort;
+    protected final int dataPort;
+    protected final int numSessions;
+    protected final long durationMillis;
+    protected final Weighted<Command> mix;
+    protected final Weighted<Long> sizes;       // Of files to GET and PUT, in bytes.
+    protected final long seed;
+    protected boolean binaryControl = false;    // Sessions switch command channel to binary framing.
+
+    protected final String runId = Long.toString(System.currentTimeMillis(), 36);
+    protected final Map<Long, File> localFiles = new HashMap<>();  // Uploaded by PUT, per size.
+    protected final EnumMap<Command, Stats> total = new EnumMap<>(Command.class);
+    protected long elapsedNanos = 0;
+
+
+    /**
+     * Create new load generator.
+     *
+     * @param host           Host name of server.
+     * @param cmdPort        Port number of command channel.
+     * @param dataPort       Port number of data channel.
+     * @param numSessions    Number of concurrent sessions.
+     * @param durationMillis How long to run.
+     * @param mix            Mix of commands.
+     * @param sizes          Distribution of file sizes.
+     * @param seed           Seed of random choices. Sessions derive their own from it.
+     */
+    public LoadGenerator(String host, int cmdPort, int dataPort, int numSessions, long durationMillis,
+                         Weighted<Command> mix, Weighted<Long> sizes, long seed) {
+        this.host = host;
+        this.cmdPort = cmdPort;
+        this.dataPort = dataPort;
+        this.numSessions = numSessions;
+        this.durationMillis = durationMillis;
+        this.mix = mix;
+        this.sizes = sizes;
+        this.seed = seed;
+        for (Command command : Command.values()) total.put(command, new Stats());
+    }
+
+    /**
+     * Make sessions switch their command channel to binary framing, to measure it against text.
+     */
+    public void setBinaryControl(boolean binaryControl) {
+        this.binaryControl = binaryControl;
+    }
+
+    /**
+     * Parse a size like {@code 512}, {@code 64k}, {@code 10m} or {@code 1g}.
+     *
+     * @throws IllegalArgumentException If malformed.
+     */
+    public static long parseSize(String size) {
+        String lower = size.toLowerCase();
+        long unit = 1;
+        switch (lower.isEmpty() ? ' ' : lower.charAt(lower.length() - 1)) {
+            case 'k': unit = 1024; break;
+            case 'm': unit = 1024 * 1024; break;
+            case 'g': unit = 1024 * 1024 * 1024; break;
+        }
+        try {
+            return Long.parseLong(unit == 1 ? lower : lower.substring(0, lower.length() - 1)) * unit;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected size like 64k: " + size);
+        }
+    }
+
+    /**
+     * Prepare files, run sessions until the duration is over, and merge their measurements.
+     *
+     * @throws IOException          If failed preparing files.
+     * @throws InterruptedException If interrupted while waiting for sessions.
+     */
+    public void run() throws IOException, InterruptedException {
+        prepare();
+
+        List<Worker> workers = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        CountDownLatch ready = new CountDownLatch(numSessions);
+        CountDownLatch start = new CountDownLatch(1);
+        for (int i = 0; i < numSessions; i++) {
+            Worker worker = new Worker(i, ready, start);
+            Thread thread = new Thread(worker, "Load session " + i);
+            thread.setDaemon(true);
+            workers.add(worker);
+            threads.add(thread);
+            thread.start();
+        }
+
+        ready.await();          // All sessions connected, so connecting isn't measured.
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) thread.join();
+        elapsedNanos = System.nanoTime() - startNanos;
+
+        for (Worker worker : workers) {
+            for (Command command : Command.values()) total.get(command).merge(worker.stats.get(command));
+        }
+        for (File file : localFiles.values()) file.delete();
+    }
+
+    /**
+     * Create a local file per size, and upload each of them as a fixture for {@code GET}s.
+     */
+    protected void prepare() throws IOException {
+        Random random = new Random(seed);
+        byte[] block = new byte[64 * 1024];
+        for (long size : sizes.choices()) {
+            File file = Files.createTempFile("ftpload-" + size + "-", ".bin").toFile();
+            file.deleteOnExit();
+            try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                for (long left = size; left > 0; left -= block.length) {
+                    random.nextBytes(block);
+                    out.write(block, 0, (int) Math.min(left, block.length));
+                }
+            }
+            localFiles.put(size, file);
+        }
+
+        if (!mix.choices().contains(Command.GET)) return;
+        try (Session session = new Session(host, cmdPort, dataPort)) {
+            for (long size : sizes.choices()) session.put(localFiles.get(size), fixtureName(size));
+        }
+    }
+
+    protected String fixtureName(long size) {
+        return "load-" + runId + "-fixture-" + size;
+    }
+
+    /**
+     * A session issuing commands one after another until the duration is over.
+     * A session which failed, other than by server refusing a command, is reconnected.
+     */
+    protected class Worker implements Runnable {
+
+        protected final int id;
+        protected final CountDownLatch ready;
+        protected final CountDownLatch start;
+        protected final SplittableRandom random;
+        protected final EnumMap<Command, Stats> stats = new EnumMap<>(Command.class);
+        protected Session session;
+        protected int numPuts = 0;
+
+        Worker(int id, CountDownLatch ready, CountDownLatch start) {
+            this.id = id;
+            this.ready = ready;
+            this.start = start;
+            this.random = new SplittableRandom(seed + id);
+            for (Command command : Command.values()) stats.put(command, new Stats());
+        }
+
+        @Override
+        public void run() {
+            try {
+                try {
+                    session = connect();
+                } catch (IOException e) {
+                    session = null;
+                }
+                ready.countDown();
+                start.await();
+
+                long deadline = System.nanoTime() + durationMillis * 1_000_000;
+                while (System.nanoTime() < deadline) {
+                    Command command = mix.pick(random);
+                    long size = sizes.pick(random);
+                    Stats commandStats = stats.get(command);
+                    long begin = System.nanoTime();
+                    try {
+                        if (session == null) session = connect();
+                        long bytes = issue(command, size);
+                        commandStats.latencies.record(System.nanoTime() - begin);
+                        commandStats.bytes += bytes;
+                    } catch (ResponseException e) {
+                        commandStats.errors++;
+                    } catch (IOException e) {
+                        commandStats.errors++;
+                        if (session != null) session.close();
+                        session = null;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (session != null) session.close();
+            }
+        }
+
+        protected Session connect() throws IOException {
+            Session connected = new Session(host, cmdPort, dataPort);
+            if (binaryControl) connected.binary();
+            return connected;
+        }
+
+        /**
+         * Issue a command.
+         *
+         * @return Number of bytes transferred.
+         */
+        protected long issue(Command command, long size) throws IOException {
+            switch (command) {
+                case LIST:
+                    session.list(".");
+                    return 0;
+                case CD:
+                    session.cd(".");
+                    return 0;
+                case GET:
+                    return session.get(fixtureName(size), OutputStream.nullOutputStream());
+                case PUT:
+                    session.put(localFiles.get(size), "load-" + runId + "-" + id + "-" + numPuts++);
+                    return size;
+                default:
+                    throw new IllegalArgumentException(command.toString());
+            }
+        }
+    }
+
+    /**
+     * Print a summary table.
+     */
+    public void printSummary(PrintStream out) {
+        double seconds = elapsedNanos / 1e9;
+        long ops = 0;
+        long bytes = 0;
+        long errors = 0;
+        out.printf("%-6s %10s %8s %10s %10s %10s %10s %10s%n",
+                "", "count", "errors", "mean ms", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Command command : Command.values()) {
+            Stats stats = total.get(command);
+            Histogram h = stats.latencies;
+            if (h.getTotalCount() == 0 && stats.errors == 0) continue;
+            out.printf("%-6s %10d %8d %10.3f %10.3f %10.3f %10.3f %10.3f%n",
+                    command, h.getTotalCount(), stats.errors, h.getMean() / 1e6,
+                    millis(h, 50), millis(h, 99), millis(h, 99.9), h.getMax() / 1e6);
+            ops += h.getTotalCount();
+            bytes += stats.bytes;
+            errors += stats.errors;
+        }
+        out.printf("%d sessions, %.1f s: %.1f ops/s, %.2f MB/s, %d errors%n",
+                numSessions, seconds, ops / seconds, bytes / seconds / (1024 * 1024), errors);
+    }
+
+    /**
+     * Write the result as JSON, for tools comparing runs.
+     */
+    public void writeJson(PrintStream out) {
+        double seconds = elapsedNanos / 1e9;
+        long ops = 0;
+        long bytes = 0;
+        StringBuilder commands = new StringBuilder();
+        for (Command command : Command.values()) {
+            Stats stats = total.get(command);
+            Histogram h = stats.latencies;
+            ops += h.getTotalCount();
+            bytes += stats.bytes;
+            if (commands.length() > 0) commands.append(",\n");
+            commands.append(String.format(Locale.ROOT,
+                    "    \"%s\": {\"count\": %d, \"errors\": %d, \"bytes\": %d, \"meanMs\": %.3f, "
+                            + "\"p50Ms\": %.3f, \"p99Ms\": %.3f, \"p999Ms\": %.3f, \"maxMs\": %.3f}",
+                    command, h.getTotalCount(), stats.errors, stats.bytes, h.getMean() / 1e6,
+                    millis(h, 50), millis(h, 99), millis(h, 99.9), h.getMax() / 1e6));
+        }
+        out.printf(Locale.ROOT, "{%n"
+                        + "  \"sessions\": %d,%n"
+                        + "  \"seconds\": %.3f,%n"
+                        + "  \"mix\": \"%s\",%n"
+                        + "  \"sizes\": \"%s\",%n"
+                        + "  \"binaryControl\": %b,%n"
+                        + "  \"seed\": %d,%n"
+                        + "  \"operations\": %d,%n"
+                        + "  \"opsPerSecond\": %.1f,%n"
+                        + "  \"bytes\": %d,%n"
+                        + "  \"bytesPerSecond\": %.1f,%n"
+                        + "  \"commands\": {%n%s%n  }%n"
+                        + "}%n",
+                numSessions, seconds, mix, sizes, binaryControl, seed, ops, ops / seconds, bytes, bytes / seconds, commands);
+    }
+
+    protected static double millis(Histogram h, double percentile) {
+        return h.getValueAtPercentile(percentile) / 1e6;
+    }
+
+}
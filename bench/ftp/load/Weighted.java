@@ -0,0 +1,68 @@
+package ftp.load;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.function.Function;
+
+/**
+ * Weighted random choice, parsed from a specification like {@code get=50,put=20,list=30}.
+ *
+ * @param <T> Type of choices.
+ */
+public class Weighted<T> {
+
+    protected final List<T> choices = new ArrayList<>();
+    protected final List<Double> cumulative = new ArrayList<>();   // Running sums of weights.
+    protected final String spec;
+
+
+    /**
+     * Parse a specification.
+     *
+     * @param spec  Comma-separated {@code choice=weight} pairs.
+     * @param parse Parses a choice.
+     * @throws IllegalArgumentException If specification is malformed, or weights don't add up to more than 0.
+     */
+    public Weighted(String spec, Function<String, T> parse) {
+        this.spec = spec;
+        double total = 0;
+        for (String pair : spec.split(",")) {
+            String[] split = pair.trim().split("=");
+            if (split.length != 2) throw new IllegalArgumentException("Expected choice=weight: " + pair);
+            double weight;
+            try {
+                weight = Double.parseDouble(split[1]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Expected number as weight: " + pair);
+            }
+            if (weight < 0) throw new IllegalArgumentException("Negative weight: " + pair);
+            if (weight == 0) continue;
+            total += weight;
+            choices.add(parse.apply(split[0].trim()));
+            cumulative.add(total);
+        }
+        if (total <= 0) throw new IllegalArgumentException("Nothing to choose from: " + spec);
+    }
+
+    /**
+     * @return Choices of positive weight.
+     */
+    public List<T> choices() {
+        return choices;
+    }
+
+    public T pick(SplittableRandom random) {
+        double r = random.nextDouble() * cumulative.get(cumulative.size() - 1);
+        for (int i = 0; i < choices.size() - 1; i++) {
+            if (r < cumulative.get(i)) return choices.get(i);
+        }
+        return choices.get(choices.size() - 1);
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+
+}
@@ -0,0 +1,36 @@
+package ftp.server;
+
+import ftp.Microbench;
+
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Benchmarks reflective dispatch of requests in {@code Server.ClientHandler.handleRequest}.
+ */
+public class DispatchBench {
+
+    public static void runAll() throws Exception {
+        Server server = new Server(System.getProperty("java.io.tmpdir"));
+        Server.ClientHandler handler = server.new ClientHandler();
+        handler.cmdOutStream = new DataOutputStream(OutputStream.nullOutputStream());   // Responses are dropped.
+        String[] request = {"get"};         // Refused for a missing argument, without touching disk or network.
+        String[] unknown = {"nop"};
+
+        // Server logs each response to standard output, which would cost more than dispatch itself.
+        PrintStream stdout = System.out;
+        Microbench.Result dispatch;
+        Microbench.Result unrecognized;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            dispatch = Microbench.run("ClientHandler.handleRequest", () -> handler.handleRequest(request));
+            unrecognized = Microbench.run("ClientHandler.handleRequest.unknown", () -> handler.handleRequest(unknown));
+        } finally {
+            System.setOut(stdout);
+        }
+        System.out.println(dispatch);
+        System.out.println(unrecognized);
+    }
+
+}
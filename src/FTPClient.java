@@ -1,9 +1,18 @@
 import ftp.client.Client;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.net.ConnectException;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Interactive client, like {@code java -cp out FTPClient 127.0.0.1 2020 2021}.
+ *
+ * A command after the ports is run alone, and then the client quits with a non-zero status if it failed.
+ * Then messages go to standard error, so that {@code get <name> -} writes only the file to standard output,
+ * and {@code put - <name>} uploads standard input, like {@code tar c dir | gzip | FTPClient ... put - dir.tgz}.
+ */
 public class FTPClient {
 
     public static void main(String[] args) throws IOException {
@@ -18,9 +27,15 @@ public class FTPClient {
         }
 
         Client client = new Client();
+        if (args.length > 3) {
+            PrintStream stdout = System.out;
+            System.setOut(System.err);
+            client.setSingleCommand(Arrays.copyOfRange(args, 3, args.length), System.in, stdout);
+        }
         while (true) {
             try {
-                client.start(host, cmdPort, dataPort);
+                int result = client.start(host, cmdPort, dataPort);
+                if (args.length > 3) System.exit(result);
                 break;
             } catch (ConnectException exception) {
                 System.out.println("Failed to connect server. Retrying.. ");
@@ -1,5 +1,10 @@
+import ftp.net.NetEmulator;
+import ftp.server.DedupStorage;
+import ftp.server.PlainStorage;
 import ftp.server.Server;
+import ftp.server.Upstream;
 
+import java.io.File;
 import java.io.IOException;
 
 public class FTPServer {
@@ -13,7 +18,27 @@ public class FTPServer {
         } catch (ArrayIndexOutOfBoundsException ignored) {
         }
 
-        Server server = new Server(System.getProperty("user.dir"));
+        String chunkStore = System.getProperty("ftp.chunkStore");  // e.g. -Dftp.chunkStore=/var/ftp-chunks
+        Server server;
+        try {
+            server = new Server(System.getProperty("user.dir"),
+                    chunkStore != null ? new DedupStorage(new File(chunkStore)) : new PlainStorage());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        String impairment = System.getProperty("ftp.impair");     // e.g. -Dftp.impair=loss=0.01,delay=40
+        if (impairment != null) {
+            server.setNetEmulator(new NetEmulator(impairment));
+        }
+        String index = System.getProperty("ftp.index");           // e.g. -Dftp.index=/var/cache/ftp-index
+        if (index != null) {
+            server.setIndexFile(new File(index));
+        }
+        String upstream = System.getProperty("ftp.upstream");     // e.g. -Dftp.upstream=origin:2020:2021
+        if (upstream != null) {
+            server.setUpstream(Upstream.parse(upstream));
+        }
         try {
             server.start(cmdPort, dataPort);
         } catch (IOException e) {
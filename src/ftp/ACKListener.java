@@ -1,71 +1,99 @@
 package ftp;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.util.Timer;
-import java.util.concurrent.locks.ReentrantLock;
+import java.io.InputStream;
+import java.io.OutputStream;
 
+/**
+ * Reads ACKs from the data channel, and posts them to {@code SRSender}, until the end-of-transfer marker.
+ */
 public class ACKListener implements Runnable {
 
-    final BufferedReader dataInputStream;
-    final String[] exceptionMsg;
-    volatile int[] winBase;
-    volatile int[] numBuffered;
-    volatile byte[] firstSeqNo;
-    final ReentrantLock windowLock;
-    final ReentrantLock logLock;
-    volatile Timer[] timers;
+    public static final int endOfTransfer = -2;
 
-    public ACKListener(BufferedReader dataInputStream,
-                       String[] exceptionMsg,
-                       int[] winBase,
-                       int[] numBuffered,
-                       byte[] firstSeqNo,
-                       ReentrantLock windowLock,
-                       ReentrantLock logLock,
-                       Timer[] timers) {
+    final InputStream dataInputStream;
+    final SRSender sender;
+
+    public ACKListener(InputStream dataInputStream, SRSender sender) {
         this.dataInputStream = dataInputStream;
-        this.exceptionMsg = exceptionMsg;
-        this.winBase = winBase;
-        this.numBuffered = numBuffered;
-        this.firstSeqNo = firstSeqNo;
-        this.windowLock = windowLock;
-        this.logLock = logLock;
-        this.timers = timers;
+        this.sender = sender;
     }
 
     @Override
     public void run() {
-        while (true) {
-            try {
-                String line = dataInputStream.readLine();
-                if (line == null) continue;
-                int ACKed = Integer.parseInt(line);
-                int idx;
-                boolean isValidRange;
+        try {
+            while (true) {
+                int ACKed = readACK(dataInputStream);
+                if (ACKed == -1) {
+                    sender.onFailure(new IOException("Data channel closed"));
+                    break;
+                }
+                if (ACKed == endOfTransfer) break;
+                sender.onACK(ACKed);
+            }
+        } catch (IOException e) {
+            sender.onFailure(e);
+        }
+    }
 
-                try {
-                    windowLock.lock();
-                    int relativeACKed = (ACKed - firstSeqNo[0] + DataChunkC2S.numSeqNo) % DataChunkC2S.numSeqNo;
-                    idx = (winBase[0] + relativeACKed) % DataChunkC2S.winSize;
-                    isValidRange = relativeACKed < numBuffered[0];
-                    if (isValidRange && timers[idx] != null) {
-                        timers[idx].cancel();
-                        timers[idx] = null;
-                    }
-                    logLock.lock();
-                    System.out.println("ACKed: " + ACKed + " <-- Server");
+    /**
+     * Write an ACK, which is a sequence number in decimal followed by a newline, and flush it.
+     *
+     * @param out    Stream to write to.
+     * @param buffer Scratch buffer of at least 4 bytes, reused across ACKs.
+     * @param seqNo  Sequence number to ACK.
+     * @throws IOException If failed writing to the stream.
+     */
+    public static void writeACK(OutputStream out, byte[] buffer, int seqNo) throws IOException {
+        putACK(out, buffer, seqNo);
+        out.flush();
+    }
 
+    /**
+     * Write an ACK like {@code writeACK}, but without flushing, so that ACKs can be sent together.
+     */
+    public static void putACK(OutputStream out, byte[] buffer, int seqNo) throws IOException {
+        int len = 0;
+        if (seqNo >= 100) buffer[len++] = (byte) ('0' + seqNo / 100);
+        if (seqNo >= 10) buffer[len++] = (byte) ('0' + seqNo / 10 % 10);
+        buffer[len++] = (byte) ('0' + seqNo % 10);
+        buffer[len++] = '\n';
+        out.write(buffer, 0, len);
+    }
 
-                } finally {
-                    windowLock.unlock();
-                    logLock.unlock();
-                }
+    /**
+     * Write an end-of-transfer marker, which is a dash followed by a newline, and flush it.
+     * No ACK of the transfer follows it.
+     */
+    public static void writeEnd(OutputStream out) throws IOException {
+        out.write('-');
+        out.write('\n');
+        out.flush();
+    }
 
-            } catch (IOException e) {
-                exceptionMsg[0] = e.getMessage();
-                break;
-            }
+    /**
+     * Read an ACK written by {@code writeACK}, or a marker written by {@code writeEnd}.
+     *
+     * @param in Stream to read from. It is better to be buffered.
+     * @return Sequence number ACKed, {@code endOfTransfer}, or -1 at the end of stream.
+     * @throws IOException If failed reading from the stream, or the ACK is malformed.
+     */
+    public static int readACK(InputStream in) throws IOException {
+        int seqNo = 0;
+        int c = in.read();
+        if (c == -1) return -1;
+        if (c == '-') {
+            c = in.read();
+            if (c == -1) return -1;
+            if (c != '\n') throw new IOException("Malformed ACK");
+            return endOfTransfer;
+        }
+        while (c != '\n') {
+            if (c < '0' || c > '9') throw new IOException("Malformed ACK");
+            seqNo = seqNo * 10 + (c - '0');
+            c = in.read();
+            if (c == -1) return -1;
         }
+        return seqNo;
     }
 }
@@ -0,0 +1,35 @@
+package ftp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output which can be given up halfway, like when a transfer fails. Aborting releases what the output holds,
+ * like its threads, buffers and files, without completing what was written, which closing would.
+ * Receivers abort in {@code finally}, so that a failed transfer never leaves them behind.
+ */
+public interface Abortable {
+
+    /**
+     * Give up writing, and release what is held. It does nothing once closed or aborted.
+     */
+    void abort();
+
+    /**
+     * Abort a stream if it can be, or close it otherwise, ignoring failures as it is given up anyway.
+     * It does nothing to a stream which is closed already.
+     *
+     * @param out Stream to give up.
+     */
+    static void abort(OutputStream out) {
+        if (out instanceof Abortable) {
+            ((Abortable) out).abort();
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+}
@@ -0,0 +1,196 @@
+package ftp;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary framing of the command channel, which a session switches to with {@code binary}.
+ *
+ * A frame is a 4-byte length of what follows, an opcode, a 2-byte status code and a payload.
+ * A request has status 0, and its payload is the arguments, each of which is a 2-byte length
+ * followed by UTF-8 bytes. A response has the numeric return code as status, and its payload is
+ * the message in UTF-8. Frames are built in a buffer reused across frames, and written at once,
+ * so nothing is split or joined as text, and only the strings themselves are allocated.
+ */
+public class ControlCodec {
+
+    public static final byte opRequest = 1;
+    public static final byte opResponse = 2;
+
+    protected static final int frameHeaderSize = 3;             // Opcode and status, after the length.
+    protected static final int maxFrameSize = 1024 * 1024;
+
+    protected static final ReturnCode[] codes = ReturnCode.values();
+
+    protected final DataInputStream in;
+    protected final OutputStream out;
+    protected byte[] buffer = new byte[512];                    // Reused for every frame, grown as needed.
+    protected int length = 0;
+
+
+    /**
+     * Create new codec.
+     *
+     * @param in  Stream to read frames from. It is better to be buffered.
+     * @param out Stream to write frames to.
+     */
+    public ControlCodec(InputStream in, OutputStream out) {
+        this.in = in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+        this.out = out;
+    }
+
+    /**
+     * @return true if a frame has started to arrive, so reading it won't block for long.
+     */
+    public boolean ready() throws IOException {
+        return in.available() > 0;
+    }
+
+    /**
+     * Write a request. Arguments are trimmed, and empty ones are dropped,
+     * as the text protocol does by splitting at runs of spaces.
+     */
+    public void writeRequest(String[] request) throws IOException {
+        begin(opRequest, 0);
+        for (String arg : request) {
+            arg = arg.trim();
+            if (arg.isEmpty()) continue;
+            int lengthAt = length;
+            length += 2;
+            int size = putString(arg);
+            buffer[lengthAt] = (byte) (size >> 8);
+            buffer[lengthAt + 1] = (byte) size;
+        }
+        send();
+    }
+
+    /**
+     * Read a request.
+     *
+     * @return Arguments of the request. Name of a command is at index 0.
+     * @throws IOException If failed reading, or the frame is not a request.
+     */
+    public String[] readRequest() throws IOException {
+        receive(opRequest);
+        int count = 0;
+        for (int i = frameHeaderSize; i < length; count++) {
+            if (i + 2 > length || i + 2 + readShort(i) > length) throw new IOException("Malformed request");
+            i += 2 + readShort(i);
+        }
+        String[] request = new String[Math.max(count, 1)];
+        request[0] = "";
+        for (int n = 0, i = frameHeaderSize; n < count; n++) {
+            int size = readShort(i);
+            request[n] = new String(buffer, i + 2, size, StandardCharsets.UTF_8);
+            i += 2 + size;
+        }
+        return request;
+    }
+
+    /**
+     * Write a response. Its message ends with a new line, as it does in the text protocol.
+     */
+    public void writeResponse(Response response) throws IOException {
+        begin(opResponse, response.returnCode.getCodeNum());
+        String message = response.message == null ? "" : response.message;
+        putString(message);
+        if (!message.endsWith("\n")) put((byte) '\n');
+        send();
+    }
+
+    /**
+     * Read a response.
+     *
+     * @throws IOException If failed reading, or the frame is not a response.
+     */
+    public Response readResponse() throws IOException {
+        receive(opResponse);
+        int codeNum = readShort(1);
+        ReturnCode returnCode = ReturnCode.UNKNOWN;
+        for (ReturnCode code : codes) {
+            if (code.getCodeNum() == codeNum) returnCode = code;
+        }
+        return new Response(returnCode,
+                new String(buffer, frameHeaderSize, length - frameHeaderSize, StandardCharsets.UTF_8));
+    }
+
+    protected void begin(byte opcode, int status) {
+        length = 4;         // Length is filled in on sending.
+        put(opcode);
+        put((byte) (status >> 8));
+        put((byte) status);
+    }
+
+    protected void send() throws IOException {
+        int size = length - 4;
+        buffer[0] = (byte) (size >> 24);
+        buffer[1] = (byte) (size >> 16);
+        buffer[2] = (byte) (size >> 8);
+        buffer[3] = (byte) size;
+        out.write(buffer, 0, length);
+        out.flush();
+    }
+
+    /**
+     * Read a frame into the buffer, without its length. Then {@code length} is size of the frame.
+     */
+    protected void receive(byte opcode) throws IOException {
+        int size;
+        try {
+            size = in.readInt();
+        } catch (EOFException e) {
+            throw new IOException("Command channel closed");
+        }
+        if (size < frameHeaderSize || size > maxFrameSize) throw new IOException("Malformed frame of size " + size);
+        ensureCapacity(size);
+        in.readFully(buffer, 0, size);
+        length = size;
+        if (buffer[0] != opcode) throw new IOException("Unexpected frame of opcode " + buffer[0]);
+    }
+
+    protected int readShort(int at) {
+        return ((buffer[at] & 0xff) << 8) | (buffer[at + 1] & 0xff);
+    }
+
+    protected void put(byte b) {
+        ensureCapacity(length + 1);
+        buffer[length++] = b;
+    }
+
+    /**
+     * Put a string in UTF-8. ASCII is encoded in place, and others through {@code getBytes}.
+     *
+     * @return Number of bytes put.
+     */
+    protected int putString(String s) {
+        int start = length;
+        int n = s.length();
+        ensureCapacity(length + n);
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                length = start;
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                ensureCapacity(length + bytes.length);
+                System.arraycopy(bytes, 0, buffer, length, bytes.length);
+                length += bytes.length;
+                return bytes.length;
+            }
+            buffer[length++] = (byte) c;
+        }
+        return n;
+    }
+
+    protected void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            byte[] grown = new byte[Math.max(capacity, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+    }
+
+}
@@ -1,8 +1,9 @@
 package ftp;
 
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.io.InputStream;
 
 /**
  * Client-to-Server data chunk.
@@ -12,19 +13,53 @@ public class DataChunkC2S {
     public static final int headerSize = 5;
     public static final int maxDataSize = 1000;
 
+    public static final byte endSeqNo = (byte) 0xff;     // Sequence number of end-of-transfer marker.
+
+    // Set in size field of a zero-run chunk, which stands for a run of zero bytes. Its data is the length, as a long.
+    public static final int zeroRunFlag = 0x8000;
+    public static final int zeroRunSize = 8;
+
     /* SR parameters */
     public static final int numSeqNo = 16;      // Sequence numbers are in range [0, numSeqNo).
     public static final int winSize = 5;
 
     /* Header values */
-    protected final byte seqNo;       // Sequence number.
-    protected short chkSum;     // If the value != 0x00, it is regarded that bit error has occurred.
-    protected final short size;       // Size of data.
-    public byte[] data;
+    protected byte seqNo;       // Sequence number.
+    protected short chkSum;     // If the value doesn't match checksum of the chunk, it is regarded that bit error has occurred.
+    protected short size;       // Size of data.
+    protected boolean zeroRun;  // Data is length of a run of zeros.
+    public byte[] data;         // Only first {@code size} bytes are valid.
 
     public byte getSeqNo() { return seqNo; }
     public short getSize() { return size; }
+    public boolean isParity() { return (seqNo & ParityCoder.parityFlag) != 0 && seqNo != endSeqNo; }
+    public boolean isEnd() { return seqNo == endSeqNo; }
+    public boolean isZeroRun() { return zeroRun; }
 
+    /**
+     * @return Length of the run of zeros, if this is a zero-run chunk.
+     */
+    public long getZeroRunLength() {
+        long length = 0;
+        for (int i = 0; i < zeroRunSize; i++) length = (length << 8) | (data[i] & 0xff);
+        return length;
+    }
+
+    /**
+     * Number of data chunks of {@code maxDataSize} bytes this chunk stands for.
+     */
+    public long numBlocks() {
+        return zeroRun ? (getZeroRunLength() + maxDataSize - 1) / maxDataSize : 1;
+    }
+
+
+    /**
+     * Create an empty chunk with a buffer of {@code maxDataSize} bytes, and room for a parity header.
+     * It is meant to be filled and recycled over and over, so that transfers don't allocate per chunk.
+     */
+    public DataChunkC2S() {
+        this.data = new byte[maxDataSize + ParityCoder.parityHeaderSize];
+    }
 
     public DataChunkC2S(
             byte seqNo,
@@ -33,30 +68,169 @@ public class DataChunkC2S {
         this.seqNo = seqNo;
         this.size = (short) data.length;
         this.data = data;
-        this.chkSum = 0x00;
+        this.chkSum = checksum();
     }
 
     public DataChunkC2S(byte[] header) {
-        ByteBuffer wrapped = ByteBuffer.wrap(header);
-        this.seqNo = wrapped.get();
-        this.chkSum = wrapped.getShort();
-        this.size = wrapped.getShort();
+        this.seqNo = header[0];
+        this.chkSum = (short) (((header[1] & 0xff) << 8) | (header[2] & 0xff));
+        int sizeField = ((header[3] & 0xff) << 8) | (header[4] & 0xff);
+        this.zeroRun = (sizeField & zeroRunFlag) != 0;
+        this.size = (short) (sizeField & ~zeroRunFlag);
+    }
+
+    /**
+     * Offset of {@code seqNo} from {@code firstSeqNo}, as seen by the sender.
+     *
+     * @return Offset in range of [0, numSeqNo).
+     */
+    public static int relativeSeqNo(int seqNo, int firstSeqNo) {
+        return (seqNo - firstSeqNo + numSeqNo) % numSeqNo;
+    }
+
+    /**
+     * Offset of {@code seqNo} from {@code firstSeqNo}, as seen by the receiver.
+     *
+     * @return Offset in range of [-winSize, numSeqNo - winSize). Negative if {@code seqNo} precedes the window.
+     */
+    public static int logicalSeqNo(int seqNo, int firstSeqNo) {
+        int offset = relativeSeqNo(seqNo, firstSeqNo);
+        return offset < numSeqNo - winSize ? offset : offset - numSeqNo;
+    }
+
+    /**
+     * Index of the window slot which is {@code offset} apart from {@code winBase}.
+     */
+    public static int windowIndex(int winBase, int offset) {
+        return (winBase + offset) % winSize;
+    }
+
+    /**
+     * Sequence number following {@code seqNo}.
+     */
+    public static byte nextSeqNo(int seqNo) {
+        return (byte) ((seqNo + 1) % numSeqNo);
+    }
+
+    /**
+     * Write an end-of-transfer marker. No chunk of the transfer follows it, so the receiver
+     * can tell where late resends of the transfer stop.
+     */
+    public static void writeEnd(DataOutputStream dataOutputStream) throws IOException {
+        new DataChunkC2S(endSeqNo, new byte[0]).writeBytes(dataOutputStream);
     }
 
     public void setData(byte[] data) {
         this.data = data;
     }
-    public void setErr(boolean bool) { this.chkSum = (short) (bool ? 0xffff : 0x0000); }
+    public void setErr(boolean bool) { this.chkSum = (short) (bool ? ~checksum() : checksum()); }
 
-    public void writeBytes(DataOutputStream dataOutputStream) throws IOException {
+    /**
+     * Fill the chunk with next data from a stream.
+     *
+     * @param seqNo Sequence number of the chunk.
+     * @param in    Stream to read data from.
+     * @return Size of data, which is 0 at the end of stream.
+     * @throws IOException If failed reading from the stream.
+     */
+    public synchronized int fill(byte seqNo, InputStream in) throws IOException {
+        this.seqNo = seqNo;
+        this.zeroRun = false;
+        this.size = (short) in.readNBytes(data, 0, maxDataSize);
+        this.chkSum = checksum();
+        return size;
+    }
+
+    /**
+     * Set header of the chunk, whose data is already in place.
+     *
+     * @param seqNo Sequence number of the chunk.
+     * @param size  Size of data.
+     */
+    public synchronized void set(byte seqNo, int size) {
+        this.seqNo = seqNo;
+        this.zeroRun = false;
+        this.size = (short) size;
+        this.chkSum = checksum();
+    }
+
+    /**
+     * Make the chunk a run of zero bytes.
+     *
+     * @param seqNo  Sequence number of the chunk.
+     * @param length Length of the run.
+     */
+    public synchronized void setZeroRun(byte seqNo, long length) {
+        for (int i = zeroRunSize - 1; i >= 0; i--, length >>>= 8) data[i] = (byte) length;
+        this.seqNo = seqNo;
+        this.zeroRun = true;
+        this.size = zeroRunSize;
+        this.chkSum = checksum();
+    }
+
+    /**
+     * Exchange the data buffer with another one of the same capacity, to hand data over without copying.
+     *
+     * @param other Buffer to take.
+     * @return Buffer given up.
+     */
+    public synchronized byte[] swapData(byte[] other) {
+        byte[] old = data;
+        data = other;
+        return old;
+    }
+
+    /**
+     * Read a chunk from a stream into this chunk.
+     *
+     * @param dataInputStream Stream to read from. It is better to be buffered.
+     * @throws IOException If failed reading from the stream, or the chunk is malformed.
+     */
+    public synchronized void readFrom(DataInputStream dataInputStream) throws IOException {
+        seqNo = dataInputStream.readByte();
+        chkSum = dataInputStream.readShort();
+        int sizeField = dataInputStream.readUnsignedShort();
+        zeroRun = (sizeField & zeroRunFlag) != 0;
+        size = (short) (sizeField & ~zeroRunFlag);
+        if (size > data.length || (zeroRun && size != zeroRunSize)) {
+            throw new IOException("Malformed chunk of size " + size);
+        }
+        dataInputStream.readFully(data, 0, size);
+    }
+
+    /**
+     * Write the chunk, and flush it. Each chunk is flushed separately,
+     * so that a layer below can tell chunks apart.
+     */
+    public synchronized void writeBytes(DataOutputStream dataOutputStream) throws IOException {
         dataOutputStream.writeByte(seqNo);
         dataOutputStream.writeShort(chkSum);
-        dataOutputStream.writeShort(size);
-        dataOutputStream.write(data,0, data.length);
+        dataOutputStream.writeShort(sizeField());
+        dataOutputStream.write(data, 0, size);
+        dataOutputStream.flush();
     }
 
     public boolean isError() {
-        return chkSum != 0x0000;
+        return chkSum != checksum();
+    }
+
+    protected int sizeField() {
+        return (size & 0xffff) | (zeroRun ? zeroRunFlag : 0);
+    }
+
+    /**
+     * Internet checksum (16-bit one's complement sum) of sequence number, size and data.
+     */
+    protected short checksum() {
+        int sum = (seqNo & 0xff) + sizeField();
+        int len = Math.min(size, data.length);
+        int i = 0;
+        for (; i + 1 < len; i += 2) {
+            sum += ((data[i] & 0xff) << 8) | (data[i + 1] & 0xff);
+        }
+        if (i < len) sum += (data[i] & 0xff) << 8;
+        while ((sum >>> 16) != 0) sum = (sum & 0xffff) + (sum >>> 16);
+        return (short) ~sum;
     }
 
 }
@@ -1,41 +1,164 @@
 package ftp;
 
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 
-// Server-to-Client data chunk.
+// Server-to-Client data chunk. A transfer is a series of data chunks, ended by an end chunk.
 public class DataChunkS2C {
 
+    public static final int headerSize = 6;
     public static final int maxDataSize = 1000;
-    public static final int maxChunkSize = maxDataSize + 3;
+    public static final int maxChunkSize = maxDataSize + headerSize;
 
-    protected final byte seqNo;
-    protected final short chkSum;
+    /* Types of chunks */
+    public static final byte typeData = 0;
+    public static final byte typeEnd = 1;      // End of transfer. No data.
+    public static final byte typeZero = 2;     // Run of zero bytes. Data is its length, as a long.
+
+    public static final int zeroRunSize = 8;   // Size of data of a zero-run chunk.
+
+    protected byte type;
+    protected byte seqNo;
+    protected short chkSum;
+    protected int size;             // Size of data. Only first {@code size} bytes of {@code data} are valid.
     public final byte[] data;
 
 
+    /**
+     * Create an empty chunk with a buffer of {@code maxDataSize} bytes.
+     * It is meant to be filled and recycled over and over, so that transfers don't allocate per chunk.
+     */
+    public DataChunkS2C() {
+        this.data = new byte[maxDataSize];
+    }
+
     public DataChunkS2C(
             byte seqNo,
             byte[] data
     ) {
+        this.type = typeData;
         this.seqNo = seqNo;
         this.chkSum = 0x0000;
         this.data = data;
+        this.size = Math.min(data.length, maxDataSize);
     }
 
     public DataChunkS2C(byte[] bytes) {
         ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+        this.type = wrapped.get();
         this.seqNo = wrapped.get();
         this.chkSum = wrapped.getShort();
-        this.data = new byte[wrapped.remaining()];
+        this.size = wrapped.getShort() & 0xffff;
+        this.data = new byte[size];
         wrapped.get(this.data);
     }
 
+    public int getSize() { return size; }
+    public void setSeqNo(byte seqNo) { this.seqNo = seqNo; }
+    public boolean isEnd() { return type == typeEnd; }
+    public boolean isZeroRun() { return type == typeZero; }
+
+    /**
+     * @return Length of the run of zeros, if this is a zero-run chunk.
+     */
+    public long getZeroRunLength() {
+        long length = 0;
+        for (int i = 0; i < zeroRunSize; i++) length = (length << 8) | (data[i] & 0xff);
+        return length;
+    }
+
+    /**
+     * Fill the chunk with next data from a stream.
+     *
+     * @param seqNo Sequence number of the chunk.
+     * @param in    Stream to read data from.
+     * @return Size of data, which is 0 at the end of stream.
+     * @throws IOException If failed reading from the stream.
+     */
+    public int fill(byte seqNo, InputStream in) throws IOException {
+        this.type = typeData;
+        this.seqNo = seqNo;
+        this.chkSum = 0x0000;
+        this.size = in.readNBytes(data, 0, maxDataSize);
+        return size;
+    }
+
+    /**
+     * Fill the chunk with next data from a buffer, like contents of a cached file.
+     *
+     * @param seqNo Sequence number of the chunk.
+     * @param src   Buffer to read data from. Its position advances by size of data.
+     * @return Size of data, which is 0 at the end of buffer.
+     */
+    public int fill(byte seqNo, ByteBuffer src) {
+        this.type = typeData;
+        this.seqNo = seqNo;
+        this.chkSum = 0x0000;
+        this.size = Math.min(src.remaining(), maxDataSize);
+        src.get(data, 0, size);
+        return size;
+    }
+
+    /**
+     * Make the chunk a run of zero bytes, which stands for as many data chunks.
+     *
+     * @param seqNo  Sequence number of the chunk.
+     * @param length Length of the run.
+     */
+    public void zeroRun(byte seqNo, long length) {
+        this.type = typeZero;
+        this.seqNo = seqNo;
+        this.chkSum = 0x0000;
+        this.size = zeroRunSize;
+        for (int i = zeroRunSize - 1; i >= 0; i--, length >>>= 8) data[i] = (byte) length;
+    }
+
+    /**
+     * Make the chunk an end of transfer.
+     *
+     * @param seqNo Sequence number following the last data chunk.
+     */
+    public void end(byte seqNo) {
+        this.type = typeEnd;
+        this.seqNo = seqNo;
+        this.chkSum = 0x0000;
+        this.size = 0;
+    }
+
+    /**
+     * Read a chunk from a stream into this chunk.
+     *
+     * @param dataInputStream Stream to read from.
+     * @throws IOException If failed reading from the stream, or the chunk is malformed.
+     */
+    public void readFrom(DataInputStream dataInputStream) throws IOException {
+        this.type = dataInputStream.readByte();
+        this.seqNo = dataInputStream.readByte();
+        this.chkSum = dataInputStream.readShort();
+        this.size = dataInputStream.readUnsignedShort();
+        boolean valid = type == typeData ? size <= maxDataSize
+                : type == typeEnd ? size == 0
+                : type == typeZero && size == zeroRunSize;
+        if (!valid) {
+            throw new IOException("Malformed chunk of type " + type + " and size " + size);
+        }
+        dataInputStream.readFully(data, 0, size);
+    }
+
+    /**
+     * Write the chunk, and flush it. Each chunk is flushed separately,
+     * so that a layer below can tell chunks apart.
+     */
     public void writeBytes(DataOutputStream dataOutputStream) throws IOException {
+        dataOutputStream.writeByte(type);
         dataOutputStream.writeByte(seqNo);
         dataOutputStream.writeShort(chkSum);
-        dataOutputStream.write(data, 0, Math.min(data.length, maxDataSize));
+        dataOutputStream.writeShort(size);
+        dataOutputStream.write(data, 0, size);
+        dataOutputStream.flush();
     }
 
     public boolean isError() {
@@ -0,0 +1,92 @@
+package ftp;
+
+import ftp.net.GatheringOutputStream;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Data connection kept open across transfers of a session, to save connection setup
+ * and TCP slow start per file. Each transfer ends with an explicit end-of-transfer marker,
+ * and the receiving side reads up to it, so the next transfer starts on a clean stream.
+ */
+public class DataConnection implements Closeable {
+
+    protected static final int bufferSize = 64 * 1024;
+
+    protected final Socket socket;
+    public final DataInputStream in;
+    public final DataOutputStream out;      // Buffered. Chunks are flushed one by one.
+    protected final GatheringOutputStream batched;  // Over the socket's channel, or null if it has none.
+
+
+    /**
+     * Wrap a connected socket.
+     *
+     * @param socket Connected socket.
+     * @throws IOException If failed getting streams of the socket.
+     */
+    public DataConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), bufferSize));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), bufferSize));
+        SocketChannel channel = socket.getChannel();
+        this.batched = channel == null || Settings.gatherChunks == 0 ? null
+                : new GatheringOutputStream(channel, DataChunkS2C.maxChunkSize, Settings.gatherChunks);
+    }
+
+    /**
+     * Connect to a server, through a channel, so that transfers can batch chunks with {@code openBatchedOutput}.
+     *
+     * @param host Host name of server.
+     * @param port Port number of data channel.
+     * @throws IOException If failed connecting.
+     */
+    public static DataConnection connect(String host, int port) throws IOException {
+        return new DataConnection(SocketChannel.open(new InetSocketAddress(host, port)).socket());
+    }
+
+    /**
+     * Output for a single transfer, to be wrapped by the transfer as it likes.
+     * Closing it only flushes, and leaves the connection open.
+     */
+    public OutputStream openOutput() {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+
+    /**
+     * Output for a single transfer which batches chunks, and writes many of them with a single gathering write
+     * when enough are batched, or when {@code send} is called. Flushing a chunk only ends it, so a layer
+     * which tells chunks apart by flushes can't be put below it.
+     * Closing it sends what is batched, and leaves the connection open.
+     *
+     * @return Batching output, or null if the socket has no channel, or batching is turned off.
+     * @throws IOException If failed flushing what was written to {@code out}.
+     */
+    public GatheringOutputStream openBatchedOutput() throws IOException {
+        out.flush();                        // Writes to the channel go past the buffer of out.
+        return batched;
+    }
+
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+}
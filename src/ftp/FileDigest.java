@@ -0,0 +1,138 @@
+package ftp;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Digest of a whole file, computed incrementally as it streams through a transfer, in file order.
+ * Sender and receiver compare their digests on the command channel when the transfer is over.
+ *
+ * The algorithm is {@code crc32c}, which is fast and catches accidental corruption, or the name of
+ * a {@code MessageDigest} like {@code SHA-256}, which also catches deliberate tampering.
+ */
+public class FileDigest {
+
+    public static final String crc32c = "crc32c";
+
+    protected final String algorithm;
+    protected final MessageDigest messageDigest;    // Either one of them is null.
+    protected final Checksum checksum;
+
+
+    /**
+     * Start a new digest.
+     *
+     * @param algorithm Name of algorithm.
+     * @throws IllegalArgumentException If the algorithm is not supported.
+     */
+    public FileDigest(String algorithm) {
+        this.algorithm = algorithm;
+        if (algorithm.equalsIgnoreCase(crc32c)) {
+            messageDigest = null;
+            checksum = new CRC32C();
+            return;
+        }
+        try {
+            messageDigest = MessageDigest.getInstance(algorithm);
+            checksum = null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unsupported digest: " + algorithm);
+        }
+    }
+
+    public String getAlgorithm() { return algorithm; }
+
+    public void update(byte[] b, int off, int len) {
+        if (checksum != null) {
+            checksum.update(b, off, len);
+        } else {
+            messageDigest.update(b, off, len);
+        }
+    }
+
+    /**
+     * Add a run of zeros, like one skipped as a hole.
+     */
+    public void updateZeros(long n) {
+        while (n > 0) {
+            int len = (int) Math.min(n, Sparse.zeros.length);
+            update(Sparse.zeros, 0, len);
+            n -= len;
+        }
+    }
+
+    /**
+     * Finish the digest.
+     *
+     * @return Digest in hex.
+     */
+    public String finish() {
+        if (checksum != null) return String.format("%08x", checksum.getValue());
+        return HexFormat.of().formatHex(messageDigest.digest());
+    }
+
+    /**
+     * Digest everything read from a stream.
+     */
+    public InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b != -1) update(new byte[]{(byte) b}, 0, 1);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = in.read(b, off, len);
+                if (n > 0) update(b, off, n);
+                return n;
+            }
+
+            @Override
+            public long skip(long n) {
+                return 0;       // Everything must be read to be digested.
+            }
+        };
+    }
+
+    /**
+     * Digest everything written to a stream, including zeros it skips.
+     */
+    public OutputStream wrap(OutputStream out) {
+        class DigestingOutputStream extends FilterOutputStream implements Sparse.Output {
+            DigestingOutputStream(OutputStream out) {
+                super(out);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                update(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                update(b, off, len);
+            }
+
+            @Override
+            public void skip(long n) throws IOException {
+                Sparse.skip(out, n);
+                updateZeros(n);
+            }
+        }
+        return new DigestingOutputStream(out);
+    }
+
+}
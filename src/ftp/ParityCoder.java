@@ -0,0 +1,202 @@
+package ftp;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Forward error correction with XOR parity chunks.
+ *
+ * The sender splits its data chunks into groups of N consecutive chunks, and sends K parity chunks
+ * after each group. Parity chunk j is XOR of members whose position in the group is j modulo K,
+ * so the receiver can rebuild one lost member per parity chunk, without waiting for retransmission.
+ * Since a group must fit in the receiver's window, N is at most {@code winSize}.
+ *
+ * A parity chunk has the parity flag set in its sequence number, along with sequence number
+ * of the first member. Its data starts with {@code parityHeaderSize} bytes of N, j, K and XOR of
+ * sizes of members, followed by XOR of data of members. Parity chunks are self-describing,
+ * so N and K can change from group to group as measured loss rate changes.
+ */
+public class ParityCoder {
+
+    public static final int parityFlag = 0x80;
+    public static final int parityHeaderSize = 5;
+    public static final int maxParities = DataChunkC2S.winSize;
+
+    protected final boolean adaptive;
+    protected final int fixedGroupSize;
+    protected final int fixedNumParities;
+
+    /* Current group */
+    protected final DataChunkC2S[] parities = new DataChunkC2S[maxParities];
+    protected final int[] sizes = new int[maxParities];     // XOR of sizes of members, per parity.
+    protected final int[] lengths = new int[maxParities];   // Longest data of members, per parity.
+    protected int groupSize = 0;
+    protected int numParities = 0;
+    protected int numMembers = 0;
+    protected int firstSeqNo = 0;
+
+
+    /**
+     * Create new coder from a specification, which is {@code auto} to adapt to loss rate,
+     * or {@code N/K} for fixed N data chunks and K parity chunks per group.
+     *
+     * @param spec Specification of FEC.
+     * @throws IllegalArgumentException If specification is malformed.
+     */
+    public ParityCoder(String spec) {
+        for (int i = 0; i < parities.length; i++) {
+            parities[i] = new DataChunkC2S();
+        }
+        if (spec.equalsIgnoreCase("auto")) {
+            adaptive = true;
+            fixedGroupSize = 0;
+            fixedNumParities = 0;
+            return;
+        }
+        String[] split = spec.split("/");
+        try {
+            adaptive = false;
+            fixedGroupSize = Integer.parseInt(split[0]);
+            fixedNumParities = split.length > 1 ? Integer.parseInt(split[1]) : 1;
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Expected auto or N/K: " + spec);
+        }
+        if (fixedGroupSize < 1 || fixedGroupSize > DataChunkC2S.winSize ||
+                fixedNumParities < 1 || fixedNumParities > fixedGroupSize) {
+            throw new IllegalArgumentException("Expected 1 <= K <= N <= " + DataChunkC2S.winSize);
+        }
+    }
+
+    /**
+     * Add a data chunk to the current group, starting a new group if there is none.
+     *
+     * @param chunk    Data chunk, sent for the first time.
+     * @param lossRate Measured loss rate, used to choose N and K of a new group.
+     */
+    public void add(DataChunkC2S chunk, double lossRate) {
+        if (numMembers == 0) startGroup(chunk.getSeqNo(), lossRate);
+        int j = numMembers % numParities;
+        DataChunkC2S parity = parities[j];
+        byte[] src = chunk.data;
+        byte[] dst = parity.data;
+        int size = chunk.getSize();
+        for (int i = lengths[j]; i < size; i++) dst[parityHeaderSize + i] = 0;   // Extend with zeros.
+        for (int i = 0; i < size; i++) dst[parityHeaderSize + i] ^= src[i];
+        lengths[j] = Math.max(lengths[j], size);
+        sizes[j] ^= size;
+        numMembers++;
+    }
+
+    /**
+     * @return true if the current group has all of its members.
+     */
+    public boolean isGroupFull() {
+        return numMembers > 0 && numMembers == groupSize;
+    }
+
+    /**
+     * Send parity chunks of the current group, even if it is not full, and end the group.
+     *
+     * @param dataOutputStream Stream to send to.
+     * @throws IOException If failed sending.
+     */
+    public void finishGroup(DataOutputStream dataOutputStream) throws IOException {
+        if (numMembers == 0) return;
+        int numSent = Math.min(numParities, numMembers);
+        for (int j = 0; j < numSent; j++) {
+            DataChunkC2S parity = parities[j];
+            byte[] data = parity.data;
+            data[0] = (byte) numMembers;
+            data[1] = (byte) j;
+            data[2] = (byte) numParities;
+            data[3] = (byte) (sizes[j] >> 8);
+            data[4] = (byte) sizes[j];
+            parity.set((byte) (parityFlag | firstSeqNo), parityHeaderSize + lengths[j]);
+            synchronized (dataOutputStream) {
+                parity.writeBytes(dataOutputStream);
+            }
+            if (Settings.logChunks) {
+                System.out.println("Sent:  parity " + j + "/" + numParities + " of " + firstSeqNo + "+" + numMembers);
+            }
+        }
+        numMembers = 0;
+    }
+
+    protected void startGroup(int seqNo, double lossRate) {
+        if (adaptive) {
+            if (lossRate < 0.02) {
+                groupSize = 5;
+                numParities = 1;
+            } else if (lossRate < 0.1) {
+                groupSize = 4;
+                numParities = 2;
+            } else {
+                groupSize = 2;
+                numParities = 2;
+            }
+            groupSize = Math.min(groupSize, DataChunkC2S.winSize);
+        } else {
+            groupSize = fixedGroupSize;
+            numParities = fixedNumParities;
+        }
+        firstSeqNo = seqNo;
+        for (int j = 0; j < numParities; j++) {
+            sizes[j] = 0;
+            lengths[j] = 0;
+        }
+    }
+
+    /**
+     * Rebuild a lost member of a group from its parity chunk, if it is the only member lost.
+     *
+     * @param parity  Parity chunk received.
+     * @param members Looks up members by sequence number. Returns null if the member is not received.
+     * @param rebuilt Chunk to rebuild the lost member into.
+     * @return true if a member is rebuilt.
+     */
+    public static boolean rebuild(DataChunkC2S parity, MemberLookup members, DataChunkC2S rebuilt) {
+        byte[] pData = parity.data;
+        if (parity.getSize() < parityHeaderSize) return false;
+        int n = pData[0];
+        int j = pData[1];
+        int k = pData[2];
+        int size = ((pData[3] & 0xff) << 8) | (pData[4] & 0xff);
+        if (n < 1 || n > DataChunkC2S.winSize || k < 1 || j < 0 || j >= k) return false;
+        int firstSeqNo = parity.getSeqNo() & ~parityFlag & 0xff;
+
+        // Find the lost member. Give up if there are more than one.
+        int lostSeqNo = -1;
+        for (int m = j; m < n; m += k) {
+            int seqNo = (firstSeqNo + m) % DataChunkC2S.numSeqNo;
+            if (members.lookUp(seqNo) == null) {
+                if (lostSeqNo != -1) return false;
+                lostSeqNo = seqNo;
+            }
+        }
+        if (lostSeqNo == -1) return false;
+
+        // XOR parity with the others.
+        int length = parity.getSize() - parityHeaderSize;
+        byte[] dst = rebuilt.data;
+        System.arraycopy(pData, parityHeaderSize, dst, 0, length);
+        for (int m = j; m < n; m += k) {
+            int seqNo = (firstSeqNo + m) % DataChunkC2S.numSeqNo;
+            if (seqNo == lostSeqNo) continue;
+            DataChunkC2S member = members.lookUp(seqNo);
+            byte[] src = member.data;
+            for (int i = 0; i < member.getSize(); i++) dst[i] ^= src[i];
+            size ^= member.getSize();
+        }
+        if (size < 0 || size > DataChunkC2S.maxDataSize) return false;
+        rebuilt.set((byte) lostSeqNo, size);
+        return true;
+    }
+
+    /**
+     * Looks up received members of a group.
+     */
+    public interface MemberLookup {
+        DataChunkC2S lookUp(int seqNo);
+    }
+
+}
@@ -0,0 +1,133 @@
+package ftp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Read-ahead stage in front of a slow source like a file. A separate thread reads large blocks
+ * from the source into a bounded queue, so that reading the source overlaps with sending
+ * what was read before. Blocks are allocated once, and recycled between the two threads.
+ */
+public class PrefetchInputStream extends InputStream implements Runnable {
+
+    /**
+     * A block read from the source.
+     */
+    protected static class Block {
+        final byte[] bytes;
+        int length;             // Number of valid bytes, or -1 at the end of stream.
+
+        Block(int size) {
+            bytes = new byte[size];
+        }
+    }
+
+    protected final InputStream source;
+    protected final BlockingQueue<Block> filledBlocks;      // Read ahead, in order of the source.
+    protected final BlockingQueue<Block> freeBlocks;        // To be filled.
+    protected final Thread reader;
+    protected Block current;                                // Block being consumed.
+    protected int position = 0;                             // Position in {@code current}.
+    protected volatile IOException exception = null;
+    protected volatile boolean closed = false;
+
+
+    /**
+     * Start reading ahead from a source.
+     *
+     * @param source    Stream to read from.
+     * @param depth     Maximum number of blocks read ahead.
+     * @param blockSize Size of a block, in bytes.
+     */
+    public PrefetchInputStream(InputStream source, int depth, int blockSize) {
+        this.source = source;
+        filledBlocks = new ArrayBlockingQueue<>(depth + 1);
+        freeBlocks = new ArrayBlockingQueue<>(depth + 1);
+        for (int i = 0; i < depth; i++) freeBlocks.add(new Block(blockSize));
+        current = new Block(blockSize);
+        current.length = 0;
+        reader = new Thread(this, "Prefetch");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Read ahead from a source with depth and block size from {@code Settings}.
+     *
+     * @param source Stream to read from.
+     * @return Read-ahead stream, or {@code source} itself if prefetching is turned off.
+     */
+    public static InputStream of(InputStream source) {
+        if (Settings.prefetchDepth <= 0) return source;
+        return new PrefetchInputStream(source, Settings.prefetchDepth, Settings.prefetchBlockSize);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                Block block = freeBlocks.take();
+                block.length = source.readNBytes(block.bytes, 0, block.bytes.length);
+                if (block.length == 0) block.length = -1;
+                filledBlocks.put(block);
+                if (block.length == -1) break;
+            }
+        } catch (IOException e) {
+            exception = e;
+            filledBlocks.offer(endOfStream());
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    protected Block endOfStream() {
+        Block block = new Block(0);
+        block.length = -1;
+        return block;
+    }
+
+    /**
+     * Move on to the next block, if the current one is consumed.
+     *
+     * @return false at the end of stream.
+     */
+    protected boolean nextBlock() throws IOException {
+        if (current.length == -1) return false;
+        if (position < current.length) return true;
+        try {
+            if (current.bytes.length > 0) freeBlocks.put(current);
+            current = filledBlocks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading ahead");
+        }
+        position = 0;
+        if (exception != null) throw new IOException(exception.getMessage(), exception);
+        return current.length != -1;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextBlock()) return -1;
+        return current.bytes[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!nextBlock()) return -1;
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current.bytes, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        reader.interrupt();
+        source.close();
+    }
+
+}
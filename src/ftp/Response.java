@@ -16,8 +16,17 @@ public class Response {
     public ReturnCode returnCode;
     public String message;
 
+    public static final String sessionPrefix = "Session ";
+
     protected static final Map<Integer, ReturnCode> int2code = new HashMap<>();
 
+    static {
+        // Built once, as responses are parsed from many threads.
+        for (ReturnCode code : ReturnCode.values()) {
+            int2code.put(code.getCodeNum(), code);
+        }
+    }
+
 
     public Response(ReturnCode returnCode) {
         this.returnCode = returnCode;
@@ -29,13 +38,6 @@ public class Response {
     }
 
     public Response(String responseStr) {
-        // Construct `int2code`.
-        if (int2code.isEmpty()) {
-            for (ReturnCode code : ReturnCode.values()) {
-                int2code.put(code.getCodeNum(), code);
-            }
-        }
-
         // Set `returnCode`.
         String returnCodeStr = responseStr.substring(0, responseStr.indexOf(' '));
         Integer returnCodeInt = Integer.valueOf(returnCodeStr);
@@ -48,6 +50,25 @@ public class Response {
         this.message = responseStr.substring(responseStr.indexOf(' ') + 1);
     }
 
+    /**
+     * Session id announced in a hello message. A client sends it first on each data connection,
+     * so that the server can tell which session the connection belongs to.
+     *
+     * @return Session id, or -1 if the message has none.
+     */
+    public long getSessionId() {
+        for (String line : message.split("\n")) {
+            if (line.startsWith(sessionPrefix)) {
+                try {
+                    return Long.parseLong(line.substring(sessionPrefix.length()).trim());
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
     public String toString() {
         String string = returnCode.getCodeNum() + " " + message + "\n";
         if (!message.endsWith("\n")) string += "\n";
@@ -9,9 +9,14 @@ public enum ReturnCode {
     // The requested action has been successfully completed.
     SUCCESS(200),               // Command okay.
     DIR_STATUS(212),            // Directory status.
+    NOT_MODIFIED(213),          // File status: unchanged since the client got it, so it isn't sent.
     SERVICE_READY(220),         // Service ready for new user.
     SERVICE_CLOSING(221),       // Service closing control connection.
 
+    // 400 Series
+    // The command was not accepted and the requested action did not take place, but the error is temporary.
+    LOCAL_ERROR(451),           // Requested action aborted. Local error in processing.
+
     // 500 Series
     // Syntax error, command unrecognized and the requested action did not take place.
     // This may include errors such as command line too long.
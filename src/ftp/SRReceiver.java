@@ -0,0 +1,247 @@
+package ftp;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * Selective Repeat receiver. Buffers chunks arriving out of order in the window, ACKs every chunk
+ * received without bit error, and delivers chunks in order as the window slides.
+ *
+ * ACKs are held and flushed together, once {@code ackEvery} of them are held, the oldest of them
+ * is {@code ackDelay} old, or reading the next chunk would block, as the sender may be waiting for
+ * them then. They are flushed at once when a chunk arrives out of order or is resent, so that
+ * the sender learns of a gap or a lost ACK without delay.
+ * A zero-run chunk is delivered by skipping over the run, which leaves a hole if the output can.
+ * Chunks are recycled between the window and a free list, so receiving doesn't allocate per chunk.
+ *
+ * Chunks delivered lately are kept in a history by sequence number, so that a parity chunk
+ * can rebuild a lost member of its group even if other members have already been delivered.
+ */
+public class SRReceiver {
+
+    protected final DataInputStream dataInputStream;
+    protected final OutputStream ackOutputStream;
+
+    /* Window */
+    protected final DataChunkC2S[] window = new DataChunkC2S[DataChunkC2S.winSize];  // Stores data chunk.
+    protected final ArrayDeque<DataChunkC2S> freeChunks = new ArrayDeque<>();       // Chunks not in the window.
+    protected final DataChunkC2S[] history = new DataChunkC2S[DataChunkC2S.numSeqNo];  // Last delivered per seqNo.
+    protected final ParityCoder.MemberLookup memberLookup = this::lookUpMember;
+    protected DataChunkC2S chunk = new DataChunkC2S();  // Chunk to receive into.
+    protected final byte[] ackBuffer = new byte[4];
+    protected final int ackEvery;
+    protected final long ackDelayNanos;
+    protected int numHeldACKs = 0;                      // Number of ACKs written but not flushed.
+    protected long heldSince = 0;                       // When the oldest of them was written.
+    protected int winBase = 0;                          // Index of firstly sent chunk in the window.
+    protected int numBuffered = 0;                      // Number of buffered chunks in the window.
+    protected int firstSeqNo = 0;                       // First sequence number in the window.
+    protected boolean ended = false;                    // End-of-transfer marker is received.
+
+
+    /**
+     * Create new receiver.
+     *
+     * @param dataInputStream Stream to receive chunks from. It is better to be buffered.
+     * @param ackOutputStream Stream to write ACKs to.
+     */
+    public SRReceiver(DataInputStream dataInputStream, OutputStream ackOutputStream) {
+        this(dataInputStream, ackOutputStream, Settings.ackEvery, Settings.ackDelay);
+    }
+
+    /**
+     * Create new receiver.
+     *
+     * @param dataInputStream Stream to receive chunks from. It is better to be buffered.
+     * @param ackOutputStream Stream to write ACKs to. It is better to be buffered.
+     * @param ackEvery        Number of ACKs to hold before flushing them, or 1 to flush each.
+     * @param ackDelayMillis  Longest time to hold an ACK while chunks keep arriving.
+     */
+    public SRReceiver(DataInputStream dataInputStream, OutputStream ackOutputStream,
+                      int ackEvery, int ackDelayMillis) {
+        this.dataInputStream = dataInputStream;
+        this.ackOutputStream = ackOutputStream;
+        this.ackEvery = Math.max(1, ackEvery);
+        this.ackDelayNanos = ackDelayMillis * 1_000_000L;
+        for (int i = 0; i < DataChunkC2S.winSize; i++) freeChunks.push(new DataChunkC2S());
+    }
+
+    /**
+     * Receive chunks until given number of chunks are delivered, or until the end-of-transfer marker
+     * if the number is not known. The sender only ends a transfer once all of it is ACKed,
+     * so everything is delivered by then.
+     *
+     * @param out       Stream to deliver data to, in order.
+     * @param numChunks Number of chunks to deliver, or -1 to deliver until the end-of-transfer marker.
+     * @throws IOException If failed receiving chunks, writing ACKs, or delivering data.
+     */
+    public void receive(OutputStream out, long numChunks) throws IOException {
+        long delivered = 0;
+        while (numChunks < 0 ? !ended : delivered < numChunks) {
+            delivered += receiveChunk(out);
+            if (ended && delivered < numChunks) throw new IOException("Transfer ended early");
+        }
+        flushACKs();                            // Sender is waiting for the last ones.
+    }
+
+    /**
+     * After all chunks are delivered, keep ACKing late resends until the end-of-transfer marker,
+     * so that nothing of this transfer is left on the data channel.
+     *
+     * @throws IOException If failed receiving chunks or writing ACKs.
+     */
+    public void awaitEnd() throws IOException {
+        while (!ended) receiveChunk(OutputStream.nullOutputStream());
+    }
+
+    /**
+     * @return true once the end-of-transfer marker is received.
+     */
+    public boolean isEnded() {
+        return ended;
+    }
+
+    /**
+     * Receive a single chunk, ACK it, and deliver chunks which became in order.
+     *
+     * @param out Stream to deliver data to, in order.
+     * @return Number of chunks delivered, counting a zero run as the data chunks it stands for.
+     * @throws IOException If failed receiving the chunk, writing ACK, or delivering data.
+     */
+    public long receiveChunk(OutputStream out) throws IOException {
+        // Read chunk, and check sequence number.
+        if (numHeldACKs > 0 && dataInputStream.available() == 0) flushACKs();
+        try {
+            chunk.readFrom(dataInputStream);    // Always consume data, to stay in sync with frames.
+        } catch (EOFException e) {
+            throw new IOException("Data channel closed");
+        }
+        if (chunk.isError()) return 0;          // If there is bit error, do nothing.
+        if (chunk.isEnd()) {
+            ended = true;
+            return 0;
+        }
+        if (chunk.isParity()) return recover(out);
+        int seqNo = chunk.getSeqNo();
+        int logicalSeqNo = DataChunkC2S.logicalSeqNo(seqNo, firstSeqNo);   // -winSize <= logicalSeqNo.
+
+        if (logicalSeqNo < 0) {
+            // Sender resent it possibly because of dropped ACK. Just ACK it back.
+            ack(seqNo, true);
+            return 0;
+
+        } else if (logicalSeqNo >= DataChunkC2S.winSize) {
+            return 0;
+        }
+
+        // Sequence number is in range. Buffer it, and ACK. A duplicate or a chunk beyond a gap is ACKed at once.
+        int idx = DataChunkC2S.windowIndex(winBase, logicalSeqNo);
+        boolean duplicate = window[idx] != null;
+        if (!duplicate) {                       // Duplicates are only ACKed.
+            window[idx] = chunk;
+            chunk = nextFreeChunk();
+            numBuffered++;
+        }
+        ack(seqNo, duplicate || logicalSeqNo > 0);
+        return slide(out);
+    }
+
+    /**
+     * Rebuild a lost chunk from the parity chunk just received, and handle it as if it is received.
+     * Parity chunks themselves are not ACKed. If more than one member is lost, the parity chunk is
+     * of no use, and lost members are left to retransmission.
+     *
+     * @return Number of chunks delivered.
+     */
+    protected long recover(OutputStream out) throws IOException {
+        DataChunkC2S rebuilt = nextFreeChunk();
+        if (!ParityCoder.rebuild(chunk, memberLookup, rebuilt)) {
+            freeChunks.push(rebuilt);
+            return 0;
+        }
+        int seqNo = rebuilt.getSeqNo();
+        int logicalSeqNo = DataChunkC2S.logicalSeqNo(seqNo, firstSeqNo);
+        if (logicalSeqNo < 0 || logicalSeqNo >= DataChunkC2S.winSize) {
+            freeChunks.push(rebuilt);
+            return 0;
+        }
+        if (Settings.logChunks) System.out.print("(rebuilt " + seqNo + ") ");
+        window[DataChunkC2S.windowIndex(winBase, logicalSeqNo)] = rebuilt;    // The slot is empty as it is lost.
+        numBuffered++;
+        ack(seqNo, logicalSeqNo > 0);
+        return slide(out);
+    }
+
+    /**
+     * Write an ACK, and flush held ACKs if it is urgent or it's time to.
+     *
+     * @param seqNo  Sequence number to ACK.
+     * @param urgent true to flush at once.
+     */
+    protected void ack(int seqNo, boolean urgent) throws IOException {
+        ACKListener.putACK(ackOutputStream, ackBuffer, seqNo);
+        if (numHeldACKs++ == 0) heldSince = System.nanoTime();
+        if (urgent || numHeldACKs >= ackEvery || System.nanoTime() - heldSince >= ackDelayNanos) flushACKs();
+    }
+
+    /**
+     * Flush ACKs held so far.
+     */
+    public void flushACKs() throws IOException {
+        if (numHeldACKs == 0) return;
+        numHeldACKs = 0;
+        ackOutputStream.flush();
+    }
+
+    /**
+     * A received member of a group, either buffered in the window or delivered lately.
+     *
+     * @return The member, or null if it is not received yet.
+     */
+    protected DataChunkC2S lookUpMember(int seqNo) {
+        int logicalSeqNo = DataChunkC2S.logicalSeqNo(seqNo, firstSeqNo);
+        if (logicalSeqNo < 0) return history[seqNo];
+        if (logicalSeqNo >= DataChunkC2S.winSize) return null;
+        return window[DataChunkC2S.windowIndex(winBase, logicalSeqNo)];
+    }
+
+    /**
+     * Deliver chunks in order from the beginning of the window, and slide it over them.
+     *
+     * @return Number of chunks delivered.
+     */
+    protected long slide(OutputStream out) throws IOException {
+        long delivered = 0;
+        while (window[winBase] != null && numBuffered > 0) {
+            // If the first sequence in window came, slide window.
+            if (Settings.logChunks) System.out.print(firstSeqNo + " ");
+            DataChunkC2S first = window[winBase];
+            if (first.isZeroRun()) {
+                Sparse.skip(out, first.getZeroRunLength());
+            } else {
+                out.write(first.data, 0, first.getSize());
+            }
+            DataChunkC2S old = history[firstSeqNo];
+            history[firstSeqNo] = first;
+            if (old != null) freeChunks.push(old);
+            window[winBase] = null;
+            firstSeqNo = DataChunkC2S.nextSeqNo(firstSeqNo);
+            winBase = DataChunkC2S.windowIndex(winBase, 1);
+            numBuffered--;
+            delivered += first.numBlocks();
+        }
+        return delivered;
+    }
+
+    /**
+     * Take a chunk from the free list. It only allocates until the history is filled up.
+     */
+    protected DataChunkC2S nextFreeChunk() {
+        DataChunkC2S free = freeChunks.poll();
+        return free != null ? free : new DataChunkC2S();
+    }
+
+}
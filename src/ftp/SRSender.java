@@ -0,0 +1,334 @@
+package ftp;
+
+import java.io.DataOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Event-driven Selective Repeat sender.
+ *
+ * The sending thread fills the window and parks while it is full. ACKs (posted by {@code ACKListener})
+ * and failures unpark it. A single timer thread parks until the earliest retransmission deadline,
+ * and resends chunks which are not yet ACKed. Window state is shared without locks:
+ * chunks in flight are tracked as a bitmap over sequence numbers, and the window itself
+ * as two monotonically increasing chunk indices.
+ */
+public class SRSender {
+
+    protected final DataOutputStream dataOutputStream;     // Also used as a lock to keep chunks whole.
+    protected final long timeOutNanos;
+
+    /* Window */
+    protected final DataChunkC2S[] window = new DataChunkC2S[DataChunkC2S.winSize];     // Recycled per slot.
+    protected final AtomicLongArray deadlines = new AtomicLongArray(DataChunkC2S.winSize);   // Next retransmission.
+    protected final AtomicLongArray lateSends = new AtomicLongArray(DataChunkC2S.winSize);   // Delayed first send.
+    protected final AtomicLong unACKed = new AtomicLong();  // Bit n is set if sequence number n is not yet ACKed.
+    protected volatile long baseIdx = 0;                    // Index of the first chunk in the window.
+    protected volatile long nextIdx = 0;                    // Index of the next chunk to be sent.
+
+    /* Fault injection */
+    protected final List<Integer> dropList;                 // Sequence numbers never sent at first.
+    protected final List<Integer> timeoutList;              // Sequence numbers sent too late at first.
+    protected final List<Integer> biterrList;               // Sequence numbers sent with bit error at first.
+
+    /* Zero runs */
+    protected byte[] ahead = new byte[DataChunkC2S.maxDataSize + ParityCoder.parityHeaderSize];  // Read past a run.
+    protected int aheadSize = 0;
+
+    /* Forward error correction */
+    protected ParityCoder parityCoder = null;               // Sends parity chunks, or null if FEC is off.
+    protected volatile long numSent = 0;                    // First transmissions, written by the sending thread.
+    protected volatile long numResent = 0;                  // Retransmissions, written by the timer thread.
+
+    protected Flushable idleAction = null;                  // Sends chunks batched below, before parking.
+
+    protected Thread senderThread;
+    protected Thread timerThread;
+    protected volatile boolean done = false;
+    protected volatile IOException exception = null;
+
+
+    /**
+     * Create new sender.
+     *
+     * @param dataOutputStream Stream to send chunks to.
+     * @param timeOutMillis    Time to wait for an ACK before resending a chunk.
+     * @param dropList         Sequence numbers whose first transmission is dropped.
+     * @param timeoutList      Sequence numbers whose first transmission is delayed past the time-out.
+     * @param biterrList       Sequence numbers whose first transmission has bit error.
+     */
+    public SRSender(DataOutputStream dataOutputStream, int timeOutMillis,
+                    List<Integer> dropList, List<Integer> timeoutList, List<Integer> biterrList) {
+        this.dataOutputStream = dataOutputStream;
+        this.timeOutNanos = timeOutMillis * 1_000_000L;
+        this.dropList = dropList;
+        this.timeoutList = timeoutList;
+        this.biterrList = biterrList;
+        for (int i = 0; i < window.length; i++) window[i] = new DataChunkC2S();
+    }
+
+    /**
+     * Send parity chunks along with data chunks, so that the receiver can rebuild lost chunks
+     * without waiting for retransmission.
+     *
+     * @param parityCoder Coder of parity chunks, or null to turn FEC off.
+     */
+    public void setParityCoder(ParityCoder parityCoder) {
+        this.parityCoder = parityCoder;
+    }
+
+    /**
+     * Set what to do before the sending thread or the timer parks, like sending chunks
+     * which a stream below batches until told to.
+     *
+     * @param idleAction Action, or null to do nothing.
+     */
+    public void setIdleAction(Flushable idleAction) {
+        this.idleAction = idleAction;
+    }
+
+    /**
+     * Ratio of retransmissions to first transmissions so far.
+     */
+    public double lossRate() {
+        long sent = numSent;
+        return sent == 0 ? 0 : (double) numResent / sent;
+    }
+
+    /**
+     * Send everything from a stream, and wait until all of it is ACKed.
+     *
+     * @param in Stream to send.
+     * @throws IOException If failed reading the stream, sending chunks, or receiving ACKs.
+     */
+    public void send(InputStream in) throws IOException {
+        senderThread = Thread.currentThread();
+        timerThread = new Thread(this::runTimer, "SRSender timer");
+        timerThread.setDaemon(true);
+        timerThread.start();
+
+        try {
+            boolean eof = false;
+            while (true) {
+                // Create data chunks, and fill window.
+                while (!eof && nextIdx - baseIdx < DataChunkC2S.winSize) {
+                    int slot = (int) (nextIdx % DataChunkC2S.winSize);
+                    byte seqNo = (byte) (nextIdx % DataChunkC2S.numSeqNo);
+                    DataChunkC2S chunk = window[slot];
+                    if (!fill(chunk, seqNo, in)) {
+                        eof = true;
+                        if (parityCoder != null) parityCoder.finishGroup(dataOutputStream);
+                        break;
+                    }
+                    deadlines.set(slot, System.nanoTime() + timeOutNanos);
+                    setUnACKed(seqNo);
+                    nextIdx++;
+                    transmit(chunk, slot);
+
+                    // A group never outgrows the window, so it completes before the window blocks on its member.
+                    // Groups are of data chunks only. A zero run ends the current group.
+                    if (parityCoder != null) {
+                        if (chunk.isZeroRun()) {
+                            parityCoder.finishGroup(dataOutputStream);
+                        } else {
+                            parityCoder.add(chunk, lossRate());
+                            if (parityCoder.isGroupFull()) parityCoder.finishGroup(dataOutputStream);
+                        }
+                    }
+                }
+
+                // Slide window over ACKed chunks. Failure is read first, so that ACKs
+                // posted before the failure are seen, and the last ACK wins over closing the channel.
+                IOException failure = exception;
+                long bits = unACKed.get();
+                long base = baseIdx;
+                while (base < nextIdx && (bits & (1L << (base % DataChunkC2S.numSeqNo))) == 0) base++;
+                baseIdx = base;
+
+                if (eof && base == nextIdx) break;
+                if (failure != null && base < nextIdx) throw new IOException(failure.getMessage(), failure);
+                if (eof || nextIdx - base == DataChunkC2S.winSize) {
+                    if (idleAction != null) idleAction.flush();
+                    LockSupport.park(this);     // Until an ACK or a failure arrives.
+                }
+            }
+        } finally {
+            done = true;
+            LockSupport.unpark(timerThread);
+            try {
+                timerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Fill a chunk with next data from a stream. If sending sparse, data which is all zeros is merged
+     * with the zeros following it into a zero-run chunk, and data read past the run is kept for the next chunk.
+     *
+     * @return false at the end of stream.
+     */
+    protected boolean fill(DataChunkC2S chunk, byte seqNo, InputStream in) throws IOException {
+        int size;
+        if (aheadSize > 0) {
+            ahead = chunk.swapData(ahead);
+            chunk.set(seqNo, aheadSize);
+            size = aheadSize;
+            aheadSize = 0;
+        } else {
+            size = chunk.fill(seqNo, in);
+        }
+        if (!Settings.sparse || size == 0 || !Sparse.isZero(chunk.data, 0, size)) return size > 0;
+
+        long run = 0;
+        while (size > 0 && Sparse.isZero(chunk.data, 0, size)) {
+            run += size;
+            size = size < DataChunkC2S.maxDataSize ? 0 : chunk.fill(seqNo, in);    // Short data is the last.
+        }
+        if (size > 0) {
+            ahead = chunk.swapData(ahead);
+            aheadSize = size;
+        }
+        chunk.setZeroRun(seqNo, run);
+        return true;
+    }
+
+    /**
+     * Event of an ACK arrival.
+     *
+     * @param seqNo Sequence number ACKed.
+     */
+    public void onACK(int seqNo) {
+        if (Settings.logChunks) System.out.println("ACKed: " + seqNo + " <-- Server");
+        long base = baseIdx;
+        int relative = DataChunkC2S.relativeSeqNo(seqNo, (int) (base % DataChunkC2S.numSeqNo));
+        if (relative >= nextIdx - base) return;         // Out of the window.
+
+        long bit = 1L << seqNo;
+        long bits;
+        do {
+            bits = unACKed.get();
+            if ((bits & bit) == 0) return;              // Duplicate.
+        } while (!unACKed.compareAndSet(bits, bits & ~bit));
+        LockSupport.unpark(senderThread);
+    }
+
+    /**
+     * Event of a failure in receiving ACKs.
+     *
+     * @param e Cause of the failure.
+     */
+    public void onFailure(IOException e) {
+        if (done) return;
+        exception = e;
+        LockSupport.unpark(senderThread);
+    }
+
+    protected void setUnACKed(int seqNo) {
+        long bit = 1L << seqNo;
+        long bits;
+        do {
+            bits = unACKed.get();
+        } while (!unACKed.compareAndSet(bits, bits | bit));
+    }
+
+    protected boolean isUnACKed(int seqNo) {
+        return (unACKed.get() & (1L << seqNo)) != 0;
+    }
+
+    /**
+     * First transmission of a chunk, with faults injected if requested.
+     */
+    protected void transmit(DataChunkC2S chunk, int slot) throws IOException {
+        int seqNo = chunk.getSeqNo();
+        if (dropList.contains(seqNo)) {
+            // Don't send it.
+            lateSends.set(slot, 0);
+
+        } else if (timeoutList.contains(seqNo)) {
+            // Let timer send it, after it is timed out.
+            lateSends.set(slot, System.nanoTime() + 2 * timeOutNanos);
+            LockSupport.unpark(timerThread);
+
+        } else {
+            lateSends.set(slot, 0);
+            synchronized (dataOutputStream) {
+                synchronized (chunk) {
+                    boolean biterr = biterrList.contains(seqNo);
+                    if (biterr) chunk.setErr(true);     // Make bit error, and send it.
+                    chunk.writeBytes(dataOutputStream);
+                    if (biterr) chunk.setErr(false);
+                }
+            }
+        }
+        numSent++;
+        if (Settings.logChunks) System.out.println("Sent:  " + seqNo + " --> Server");
+    }
+
+    /**
+     * Resend a chunk, if it is still in the window and not yet ACKed.
+     *
+     * @return true if resent.
+     */
+    protected boolean resend(DataChunkC2S chunk, long idx) throws IOException {
+        int seqNo = (int) (idx % DataChunkC2S.numSeqNo);
+        synchronized (dataOutputStream) {
+            synchronized (chunk) {
+                // The slot may have been refilled in the meantime.
+                if (idx < baseIdx || chunk.getSeqNo() != seqNo || !isUnACKed(seqNo)) return false;
+                chunk.writeBytes(dataOutputStream);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Body of the timer thread. Parks until the earliest deadline in the window,
+     * then resends timed out chunks.
+     */
+    protected void runTimer() {
+        try {
+            while (!done) {
+                long now = System.nanoTime();
+                long wakeUp = now + timeOutNanos;
+                long next = nextIdx;
+                for (long idx = baseIdx; idx < next; idx++) {
+                    int slot = (int) (idx % DataChunkC2S.winSize);
+                    DataChunkC2S chunk = window[slot];
+
+                    long lateSend = lateSends.get(slot);
+                    if (lateSend != 0) {
+                        if (lateSend <= now) {
+                            lateSends.set(slot, 0);
+                            synchronized (dataOutputStream) {
+                                chunk.writeBytes(dataOutputStream);
+                            }
+                        } else {
+                            wakeUp = Math.min(wakeUp, lateSend);
+                        }
+                    }
+
+                    long deadline = deadlines.get(slot);
+                    if (deadline <= now && resend(chunk, idx)) {
+                        deadline = now + timeOutNanos;
+                        deadlines.set(slot, deadline);
+                        numResent++;
+                        if (Settings.logChunks) System.out.println("Timeout, resent: " + chunk.getSeqNo());
+                    }
+                    if (deadline > now) wakeUp = Math.min(wakeUp, deadline);
+                }
+                if (idleAction != null) idleAction.flush();
+                LockSupport.parkNanos(this, wakeUp - now);
+            }
+        } catch (IOException e) {
+            onFailure(e);
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package ftp;
+
+/**
+ * Tunables of the protocol implementation.
+ * Each of them can be overridden with a system property, e.g. {@code -Dftp.logChunks=true}.
+ */
+public final class Settings {
+
+    // Log every chunk sent, resent, ACKed and received. Logging allocates per chunk, so it is off unless debugging.
+    public static final boolean logChunks = Boolean.getBoolean("ftp.logChunks");
+
+    // Number of blocks read ahead from a file being sent, or 0 to read it synchronously.
+    public static final int prefetchDepth = Integer.getInteger("ftp.prefetchDepth", 8);
+    // Size of a block read ahead, in bytes.
+    public static final int prefetchBlockSize = Integer.getInteger("ftp.prefetchBlockSize", 64 * 1024);
+
+    // Number of blocks waiting to be written to a file being received, or 0 to write it synchronously.
+    public static final int writeBehindDepth = Integer.getInteger("ftp.writeBehindDepth", 8);
+    // Size of a block written behind, in bytes.
+    public static final int writeBehindBlockSize = Integer.getInteger("ftp.writeBehindBlockSize", 256 * 1024);
+    // Forward error correction of uploads: "off", "auto" to adapt to loss rate, or "N/K" for K parity chunks per N.
+    public static final String fec = System.getProperty("ftp.fec", "off");
+    // Budget of the server's cache of files served by GET, in MB, or 0 to always read files from disk.
+    // A file is cached on its second request.
+    public static final long fileCacheSize = Long.getLong("ftp.fileCacheSize", 64) * 1024 * 1024;
+    // Size of the largest file the server caches, in MB.
+    public static final long fileCacheMaxFileSize = Long.getLong("ftp.fileCacheMaxFileSize", 16) * 1024 * 1024;
+    // Directory of the client's cache of downloaded files, or empty to download files every time.
+    public static final String clientCache = System.getProperty("ftp.clientCache", "");
+    // Budget of the client's cache of downloaded files, in MB.
+    public static final long clientCacheSize = Long.getLong("ftp.clientCacheSize", 1024) * 1024 * 1024;
+    // Number of sessions an AsyncClient opens to a server, so that as many operations run at a time.
+    public static final int asyncSessions = Integer.getInteger("ftp.asyncSessions", 4);
+    // How long a mirror caches listings of its upstream server, in seconds.
+    public static final int mirrorListTTL = Integer.getInteger("ftp.mirrorListTTL", 10);
+    // Rate limit of transfers of each session, in KB/s, or 0 for no limit. A session may lower its own.
+    public static final long sessionRate = Long.getLong("ftp.sessionRate", 0) * 1024;
+    // Rate limit of transfers of the whole server, shared fairly among them, in KB/s, or 0 for no limit.
+    public static final long serverRate = Long.getLong("ftp.serverRate", 0) * 1024;
+    // Bytes a transfer sends per turn while sharing the server's rate limit.
+    public static final int fairQuantum = Integer.getInteger("ftp.fairQuantum", 16 * 1024);
+    // Send runs of zero bytes as zero-run chunks, which the receiver leaves as holes. Receivers always understand them.
+    public static final boolean sparse = Boolean.parseBoolean(System.getProperty("ftp.sparse", "true"));
+    // Number of chunks a TCP transfer batches into a single gathering write, or 0 to write each chunk on its own.
+    // Uploads batch no more than their window of unACKed chunks.
+    public static final int gatherChunks = Integer.getInteger("ftp.gatherChunks", 32);
+    // Longest a followed file goes unchecked for appended data, in milliseconds, if no change is notified.
+    public static final int followPoll = Integer.getInteger("ftp.followPoll", 500);
+    // Number of ACKs an upload receiver holds to send together, or 1 to send each ACK at once.
+    public static final int ackEvery = Integer.getInteger("ftp.ackEvery", 4);
+    // Longest an upload receiver holds an ACK while chunks keep arriving, in milliseconds.
+    public static final int ackDelay = Integer.getInteger("ftp.ackDelay", 5);
+    // Size of socket buffers of UDP data channels, in bytes.
+    public static final int udpBufferSize = Integer.getInteger("ftp.udpBufferSize", 4 * 1024 * 1024);
+    // When to fsync a file being received: "none", "close", or a number of MB written between fsyncs.
+    public static final WriteBehindOutputStream.FsyncPolicy fsyncPolicy;
+    public static final long fsyncInterval;
+
+    static {
+        String fsync = System.getProperty("ftp.fsync", "none");
+        if (fsync.equalsIgnoreCase("none")) {
+            fsyncPolicy = WriteBehindOutputStream.FsyncPolicy.NONE;
+            fsyncInterval = 0;
+        } else if (fsync.equalsIgnoreCase("close")) {
+            fsyncPolicy = WriteBehindOutputStream.FsyncPolicy.ON_CLOSE;
+            fsyncInterval = 0;
+        } else {
+            long interval = 0;
+            try {
+                interval = Long.parseLong(fsync) * 1024 * 1024;
+            } catch (NumberFormatException ignored) {
+            }
+            if (interval > 0) {
+                fsyncPolicy = WriteBehindOutputStream.FsyncPolicy.EVERY_N_BYTES;
+                fsyncInterval = interval;
+            } else {
+                // A typo must not bring down the process on first use of settings.
+                System.err.println("Ignored -Dftp.fsync=" + fsync + ", expected none, close or a number of MB");
+                fsyncPolicy = WriteBehindOutputStream.FsyncPolicy.NONE;
+                fsyncInterval = 0;
+            }
+        }
+    }
+
+    private Settings() {
+    }
+
+}
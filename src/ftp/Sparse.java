@@ -0,0 +1,68 @@
+package ftp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Helpers for sparse files. Senders replace runs of zero bytes with a short zero-run chunk,
+ * and receivers recreate the run as a hole in the file, by seeking rather than writing.
+ *
+ * Java can't probe holes of a file being read (like {@code SEEK_DATA} does), so zeros are found
+ * by comparing the data itself. Holes read as zeros, so they are found all the same.
+ */
+public final class Sparse {
+
+    /**
+     * Output which can leave a hole in place of zeros.
+     */
+    public interface Output {
+        /**
+         * Advance by {@code n} bytes of zeros, without writing them.
+         *
+         * @param n Number of bytes.
+         * @throws IOException If failed.
+         */
+        void skip(long n) throws IOException;
+    }
+
+    protected static final byte[] zeros = new byte[8 * 1024];
+
+
+    private Sparse() {
+    }
+
+    /**
+     * @return true if all bytes in range are zero.
+     */
+    public static boolean isZero(byte[] b, int off, int len) {
+        while (len > 0) {
+            int n = Math.min(len, zeros.length);
+            if (Arrays.mismatch(b, off, off + n, zeros, 0, n) != -1) return false;
+            off += n;
+            len -= n;
+        }
+        return true;
+    }
+
+    /**
+     * Advance a stream by {@code n} bytes of zeros. It leaves a hole if the stream can,
+     * and writes zeros otherwise.
+     *
+     * @param out Stream to advance.
+     * @param n   Number of bytes.
+     * @throws IOException If failed writing.
+     */
+    public static void skip(OutputStream out, long n) throws IOException {
+        if (out instanceof Output) {
+            ((Output) out).skip(n);
+            return;
+        }
+        while (n > 0) {
+            int len = (int) Math.min(n, zeros.length);
+            out.write(zeros, 0, len);
+            n -= len;
+        }
+    }
+
+}
@@ -0,0 +1,255 @@
+package ftp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Write-behind stage in front of a file being received. Written bytes are collected into large blocks,
+ * and a separate thread writes them to the file, coalescing all blocks queued so far into a single
+ * gathering write. Writing blocks only when the queue is full, so a slow disk holds back the receiver
+ * (and ACKs) only after the queue is used up. Blocks are allocated once, and recycled.
+ *
+ * Skipped zeros are left as a hole: the writer thread seeks past them instead of writing.
+ * A stream which is given up is aborted, which stops the writer thread and closes the file without
+ * writing what is queued.
+ */
+public class WriteBehindOutputStream extends OutputStream implements Runnable, Sparse.Output, Abortable {
+
+    /**
+     * When to force written data to the disk.
+     */
+    public enum FsyncPolicy {
+        NONE,           // Leave it to the operating system.
+        ON_CLOSE,       // Once, when the stream is closed.
+        EVERY_N_BYTES   // Whenever {@code fsyncInterval} bytes are written, and on close.
+    }
+
+    protected final FileChannel channel;
+    protected final FsyncPolicy fsyncPolicy;
+    protected final long fsyncInterval;
+    protected final BlockingQueue<ByteBuffer> filledBlocks;     // To be written, in order.
+    protected final BlockingQueue<ByteBuffer> freeBlocks;       // To be filled.
+    protected final ByteBuffer[] batch;                         // Blocks written at once.
+    protected final ConcurrentLinkedQueue<Long> holes = new ConcurrentLinkedQueue<>();   // Lengths, per hole marker.
+    protected final Thread writer;
+    protected ByteBuffer current = null;                        // Block being filled.
+    protected long hole = 0;                                    // Zeros skipped after it, not yet handed over.
+    protected volatile IOException exception = null;
+    protected boolean closed = false;
+
+    protected static final ByteBuffer endOfStream = ByteBuffer.allocate(0);
+    protected static final ByteBuffer holeMarker = ByteBuffer.allocate(0);
+
+
+    /**
+     * Open a file, and start writing behind.
+     *
+     * @param file          File to write. It is truncated if exists.
+     * @param depth         Maximum number of blocks waiting to be written.
+     * @param blockSize     Size of a block, in bytes.
+     * @param fsyncPolicy   When to force written data to the disk.
+     * @param fsyncInterval Number of bytes between two fsyncs, for {@code EVERY_N_BYTES}.
+     * @throws IOException If failed opening the file.
+     */
+    public WriteBehindOutputStream(File file, int depth, int blockSize,
+                                   FsyncPolicy fsyncPolicy, long fsyncInterval) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncInterval = fsyncInterval;
+        filledBlocks = new ArrayBlockingQueue<>(depth + 1);
+        freeBlocks = new ArrayBlockingQueue<>(depth);
+        for (int i = 0; i < depth; i++) freeBlocks.add(ByteBuffer.allocateDirect(blockSize));
+        batch = new ByteBuffer[depth];
+        writer = new Thread(this, "WriteBehind");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Open a file for writing behind, with parameters from {@code Settings}.
+     *
+     * @param file File to write.
+     * @return Write-behind stream, or a plain {@code FileOutputStream} if writing behind is turned off.
+     * @throws IOException If failed opening the file.
+     */
+    public static OutputStream of(File file) throws IOException {
+        if (Settings.writeBehindDepth <= 0) return new FileOutputStream(file);
+        return new WriteBehindOutputStream(file, Settings.writeBehindDepth, Settings.writeBehindBlockSize,
+                Settings.fsyncPolicy, Settings.fsyncInterval);
+    }
+
+    @Override
+    public void run() {
+        long sinceFsync = 0;
+        try {
+            boolean end = false;
+            while (!end) {
+                // Take all blocks queued so far, up to a hole.
+                int n = 0;
+                long skip = 0;
+                ByteBuffer block = filledBlocks.take();
+                while (block != null) {
+                    if (block == endOfStream) {
+                        end = true;
+                        break;
+                    }
+                    if (block == holeMarker) {
+                        skip = holes.poll();
+                        break;
+                    }
+                    batch[n++] = block;
+                    block = n < batch.length ? filledBlocks.poll() : null;
+                }
+
+                // Write them at once.
+                long written = 0;
+                while (n > 0 && batch[n - 1].hasRemaining()) {
+                    written += channel.write(batch, 0, n);
+                }
+                for (int i = 0; i < n; i++) {
+                    batch[i].clear();
+                    freeBlocks.put(batch[i]);
+                    batch[i] = null;
+                }
+                if (skip > 0) channel.position(channel.position() + skip);
+
+                sinceFsync += written;
+                if (fsyncPolicy == FsyncPolicy.EVERY_N_BYTES && sinceFsync >= fsyncInterval) {
+                    channel.force(false);
+                    sinceFsync = 0;
+                }
+            }
+        } catch (IOException e) {
+            exception = e;
+            freeBlocks.offer(ByteBuffer.allocate(0));   // Wake up the producer, if it waits for a block.
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        nextBlock().put((byte) b);
+        if (!current.hasRemaining()) flush();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ByteBuffer block = nextBlock();
+            int n = Math.min(len, block.remaining());
+            block.put(b, off, n);
+            off += n;
+            len -= n;
+            if (!block.hasRemaining()) flush();
+        }
+    }
+
+    /**
+     * Leave a hole of {@code n} bytes. Consecutive holes are merged, and handed over before next data.
+     */
+    @Override
+    public void skip(long n) throws IOException {
+        flush();
+        hole += n;
+    }
+
+    /**
+     * Hand the block being filled over to the writer thread.
+     * Blocks if the queue is full.
+     */
+    @Override
+    public void flush() throws IOException {
+        checkException();
+        if (current == null || current.position() == 0) return;
+        current.flip();
+        try {
+            filledBlocks.put(current);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing behind");
+        }
+        current = null;
+    }
+
+    /**
+     * Write everything behind, force it to the disk as the policy says, and close the file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            flush();
+            handOverHole();
+            filledBlocks.put(endOfStream);
+            writer.join();
+            checkException();
+
+            // Seeking past the end doesn't extend the file, so a trailing hole needs its last byte written.
+            long end = channel.position();
+            if (channel.size() < end) channel.write(ByteBuffer.allocate(1), end - 1);
+            if (fsyncPolicy != FsyncPolicy.NONE) channel.force(false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing behind");
+        } finally {
+            writer.interrupt();
+            channel.close();
+        }
+    }
+
+    /**
+     * Stop writing behind, and close the file, dropping what is not written yet.
+     */
+    @Override
+    public void abort() {
+        if (closed) return;
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    protected ByteBuffer nextBlock() throws IOException {
+        if (current == null) {
+            checkException();
+            try {
+                handOverHole();
+                current = freeBlocks.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing behind");
+            }
+            checkException();
+        }
+        return current;
+    }
+
+    protected void handOverHole() throws InterruptedException {
+        if (hole == 0) return;
+        holes.add(hole);
+        filledBlocks.put(holeMarker);
+        hole = 0;
+    }
+
+    protected void checkException() throws IOException {
+        if (exception != null) throw new IOException(exception.getMessage(), exception);
+    }
+
+}
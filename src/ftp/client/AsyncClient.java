@@ -0,0 +1,357 @@
+package ftp.client;
+
+import ftp.Abortable;
+import ftp.Settings;
+import ftp.WriteBehindOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous client for programs embedding it. Each operation returns at once with a future,
+ * and many operations may be outstanding at a time.
+ *
+ * A session has a single command channel and data connection, so the client opens a few sessions
+ * to the server, and runs each operation on one which is idle. Transfers of a client overlap that way,
+ * and may complete in any order. {@code cd} and {@code digest} change every session, so they wait for
+ * operations issued before them, and operations issued after them wait for them in turn.
+ */
+public class AsyncClient implements AutoCloseable {
+
+    protected static final int publishedBufferSize = 64 * 1024;
+    protected static final AtomicInteger numThreads = new AtomicInteger();
+
+    /**
+     * An operation on a session, which only throws {@code IOException}.
+     */
+    protected interface SessionTask<T> {
+        T call(Session session) throws IOException;
+    }
+
+    protected final List<Session> sessions;
+    protected final BlockingQueue<Session> idleSessions;
+    protected final ExecutorService executor;      // A thread per session.
+    protected CompletableFuture<?> barrier = CompletableFuture.completedFuture(null);  // Last cd or digest done.
+    protected final List<CompletableFuture<?>> sinceBarrier = new ArrayList<>();        // Operations issued after it.
+    protected boolean closed = false;
+
+
+    protected AsyncClient(List<Session> sessions) {
+        this.sessions = sessions;
+        this.idleSessions = new LinkedBlockingQueue<>(sessions);
+        this.executor = Executors.newFixedThreadPool(sessions.size(), runnable -> {
+            Thread thread = new Thread(runnable, "AsyncClient " + numThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Connect to a server, with {@code -Dftp.asyncSessions} sessions.
+     *
+     * @param host     Host name of server.
+     * @param cmdPort  Port number of command channel.
+     * @param dataPort Port number of data channel.
+     * @return Future of connected client.
+     */
+    public static CompletableFuture<AsyncClient> connect(String host, int cmdPort, int dataPort) {
+        return connect(host, cmdPort, dataPort, Settings.asyncSessions);
+    }
+
+    /**
+     * Connect to a server.
+     *
+     * @param host        Host name of server.
+     * @param cmdPort     Port number of command channel.
+     * @param dataPort    Port number of data channel.
+     * @param numSessions Number of sessions to open, which is how many operations run at a time.
+     * @return Future of connected client.
+     */
+    public static CompletableFuture<AsyncClient> connect(String host, int cmdPort, int dataPort, int numSessions) {
+        return CompletableFuture.supplyAsync(() -> {
+            List<Session> sessions = new ArrayList<>();
+            try {
+                for (int i = 0; i < Math.max(1, numSessions); i++) sessions.add(new Session(host, cmdPort, dataPort));
+                return new AsyncClient(sessions);
+            } catch (IOException e) {
+                sessions.forEach(Session::close);
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * List a directory.
+     *
+     * @param path Path of the directory, relative to current directory on server.
+     * @return Future of entries, each of which is a name followed by its size, or {@code -} for a directory.
+     */
+    public CompletableFuture<List<String>> list(String path) {
+        return submit(session -> session.list(path));
+    }
+
+    /**
+     * Search a directory on server at any depth.
+     *
+     * @param path    Path of the directory, relative to current directory on server.
+     * @param filters Filters separated by spaces, like {@code name=*.tgz minsize=1m after=7d}, or empty for all.
+     * @return Future of matches, each of which is a path under the directory, size and modification time.
+     */
+    public CompletableFuture<List<String>> find(String path, String filters) {
+        return submit(session -> {
+            List<String> matches = new ArrayList<>();
+            session.find(path, filters, matches::add);
+            return matches;
+        });
+    }
+
+    /**
+     * Change current directory on server. Operations issued after it see the new directory.
+     *
+     * @param path Path of the directory, relative to current directory on server.
+     * @return Future of message of server, telling the new current directory.
+     */
+    public CompletableFuture<String> cd(String path) {
+        return submitToAll(session -> session.cd(path));
+    }
+
+    /**
+     * Verify files transferred by operations issued after it, or stop verifying.
+     *
+     * @param algorithm {@code crc32c}, name of a {@code MessageDigest} like {@code SHA-256}, or {@code off}.
+     * @return Future completed when server agreed. Transfers fail if digests differ.
+     */
+    public CompletableFuture<Void> digest(String algorithm) {
+        return submitToAll(session -> {
+            session.digest(algorithm);
+            return null;
+        });
+    }
+
+    /**
+     * Download a file into a local file.
+     *
+     * @param path Path of the file, relative to current directory on server.
+     * @param dst  Local file to write.
+     * @return Future of number of bytes received.
+     */
+    public CompletableFuture<Long> get(String path, File dst) {
+        return submit(session -> {
+            OutputStream fileOutputStream = WriteBehindOutputStream.of(dst);
+            try {
+                long received = session.get(path, fileOutputStream);
+                fileOutputStream.close();
+                return received;
+            } finally {
+                Abortable.abort(fileOutputStream);
+            }
+        });
+    }
+
+    /**
+     * Download a range of a file into memory, for random access into large files.
+     *
+     * @param path   Path of the file, relative to current directory on server.
+     * @param offset Offset of the range.
+     * @param length Length of the range. It is cut at the end of file.
+     * @return Future of contents of the range.
+     */
+    public CompletableFuture<ByteBuffer> getRange(String path, long offset, long length) {
+        return submit(session -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(length, 1024 * 1024));
+            session.getRange(path, offset, length, out);
+            return ByteBuffer.wrap(out.toByteArray());
+        });
+    }
+
+    /**
+     * Download a file as a stream of buffers. The download is queued on each subscription,
+     * and runs no faster than the subscriber requests buffers. A subscriber which cancels
+     * stops receiving, while the rest of the file is still drained off the data connection.
+     *
+     * @param path Path of the file, relative to current directory on server.
+     * @return Publisher of contents, in order.
+     */
+    public Flow.Publisher<ByteBuffer> get(String path) {
+        return subscriber -> {
+            SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<>();
+            publisher.subscribe(subscriber);
+            submit(session -> {
+                try (OutputStream out = new PublishingOutputStream(publisher)) {
+                    return session.get(path, out);
+                }
+            }).whenComplete((received, e) -> {
+                if (e != null) {
+                    publisher.closeExceptionally(e);
+                } else {
+                    publisher.close();
+                }
+            });
+        };
+    }
+
+    /**
+     * Upload a file, under its own name.
+     *
+     * @param file File to upload.
+     * @return Future completed when the server has received all of it.
+     */
+    public CompletableFuture<Void> put(File file) {
+        return put(file, file.getName());
+    }
+
+    /**
+     * Upload a file.
+     *
+     * @param file       File to upload.
+     * @param remoteName Name of the file on server, in its current directory.
+     * @return Future completed when the server has received all of it.
+     */
+    public CompletableFuture<Void> put(File file, String remoteName) {
+        return submit(session -> {
+            session.put(file, remoteName);
+            return null;
+        });
+    }
+
+    /**
+     * Upload contents of a stream of unknown length, like a pipe, until its end.
+     *
+     * @param in         Stream to upload. It is not closed.
+     * @param remoteName Name of the file on server, in its current directory.
+     * @return Future completed when the server has received all of it.
+     */
+    public CompletableFuture<Void> put(InputStream in, String remoteName) {
+        return submit(session -> {
+            session.put(in, remoteName);
+            return null;
+        });
+    }
+
+    /**
+     * Close the sessions after operations issued so far. Operations issued later fail.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        afterIssued().thenRunAsync(() -> sessions.forEach(Session::close), executor)
+                .whenComplete((ignored, e) -> executor.shutdown());
+    }
+
+    /**
+     * Run an operation on a session which is idle, once the last {@code cd} or {@code digest} is done.
+     */
+    protected synchronized <T> CompletableFuture<T> submit(SessionTask<T> task) {
+        if (closed) return CompletableFuture.failedFuture(new IOException("Client is closed"));
+        CompletableFuture<T> future = new CompletableFuture<>();
+        barrier.thenRunAsync(() -> {
+            T result = null;
+            Throwable failure = null;
+            Session session = null;
+            try {
+                session = idleSessions.take();
+                result = task.call(session);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new InterruptedIOException("Interrupted while waiting for a session");
+            } catch (Throwable e) {
+                failure = e;
+            } finally {
+                if (session != null) idleSessions.add(session);     // Before completing, so it is idle for those next.
+            }
+            if (failure == null) {
+                future.complete(result);
+            } else {
+                future.completeExceptionally(failure);
+            }
+        }, executor);
+        sinceBarrier.add(future);
+        return future;
+    }
+
+    /**
+     * Run an operation on every session, once operations issued before are done, and before those issued after.
+     * It stops at the first session which fails.
+     *
+     * @return Future of the result on the first session.
+     */
+    protected synchronized <T> CompletableFuture<T> submitToAll(SessionTask<T> task) {
+        if (closed) return CompletableFuture.failedFuture(new IOException("Client is closed"));
+        CompletableFuture<T> future = new CompletableFuture<>();
+        afterIssued().thenRunAsync(() -> {
+            try {
+                T result = task.call(sessions.get(0));
+                for (Session session : sessions.subList(1, sessions.size())) task.call(session);
+                future.complete(result);
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }, executor);
+        barrier = future.handle((result, e) -> null);       // Operations after it run even if it failed.
+        sinceBarrier.clear();
+        return future;
+    }
+
+    /**
+     * @return Future completed once all operations issued so far are done, whether they failed or not.
+     */
+    protected CompletableFuture<?> afterIssued() {
+        sinceBarrier.add(barrier);
+        CompletableFuture<?> all = CompletableFuture.allOf(sinceBarrier.toArray(new CompletableFuture<?>[0]));
+        sinceBarrier.clear();
+        return all.handle((result, e) -> null);
+    }
+
+    /**
+     * Collects bytes into buffers, and submits each one full to a publisher. Submitting blocks
+     * while subscribers lag, which stops reading the data connection, and in turn the server.
+     */
+    protected static class PublishingOutputStream extends OutputStream {
+
+        protected final SubmissionPublisher<ByteBuffer> publisher;
+        protected ByteBuffer buffer = ByteBuffer.allocate(publishedBufferSize);
+
+        PublishingOutputStream(SubmissionPublisher<ByteBuffer> publisher) {
+            this.publisher = publisher;
+        }
+
+        @Override
+        public void write(int b) {
+            if (!buffer.hasRemaining()) publish();
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                if (!buffer.hasRemaining()) publish();
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (buffer.position() > 0) publish();
+        }
+
+        protected void publish() {
+            buffer.flip();
+            publisher.submit(buffer);           // Handed over, so never reused.
+            buffer = ByteBuffer.allocate(publishedBufferSize);
+        }
+    }
+
+}
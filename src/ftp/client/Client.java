@@ -1,13 +1,22 @@
 package ftp.client;
 
 import ftp.*;
+import ftp.net.DatagramInputStream;
+import ftp.net.DatagramOutputStream;
+import ftp.net.GatheringOutputStream;
+import ftp.net.NetEmulator;
+import ftp.net.UDPTransport;
 
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantLock;
 
 import static java.lang.System.exit;
 
@@ -20,16 +29,28 @@ public class Client {
     /* Networking */
     protected String host;                      // Host name, or {@code null} for the loopback address.
     protected int dataPort;                     //
-    protected Socket cmdSocket;
     protected BufferedReader stdReader;
-    protected BufferedReader cmdReader;
-    protected DataOutputStream ctrlOutStream;
+    protected Connection connection;            // Command channel and data connection to server.
 
     /* Selective Repeat */
     protected final int senderTimeOut = 1;
     protected ArrayList<Integer> srDropList = new ArrayList<>();
     protected ArrayList<Integer> srTimeoutList = new ArrayList<>();
     protected ArrayList<Integer> srBiterrList = new ArrayList<>();
+    protected NetEmulator netEmulator = null;  // Impairs data channel, or null if not emulating network.
+    protected boolean useUDP = false;           // Transfer files over UDP instead of TCP, for PUT.
+    protected String fecSpec = Settings.fec;    // Forward error correction for PUT. See {@code ParityCoder}.
+    protected String digestAlgorithm = null;    // Digest of transferred files, or null if not verifying them.
+
+    /* Cache */
+    protected ContentCache contentCache = null; // Of downloaded files, or null if downloading them every time.
+    protected int cmdPort;
+    protected String serverPwd = "~";           // As last told by server, or "~" for where it starts sessions.
+
+    /* Single command */
+    protected String[] singleCommand = null;    // Run instead of reading commands from stdin, or null.
+    protected InputStream pipeIn = null;        // Uploaded by "put - <name>", or null if not a single command.
+    protected OutputStream pipeOut = null;      // Downloaded to by "get <name> -", or null if not a single command.
 
     // Maps request string to request handler.
     protected final Map<String, Method> requestHandlers;
@@ -42,10 +63,19 @@ public class Client {
         requestHandlers = new HashMap<>();
         try {
             requestHandlers.put("get", Client.class.getDeclaredMethod("handleGET", String[].class));
+            requestHandlers.put("rget", Client.class.getDeclaredMethod("handleRGET", String[].class));
             requestHandlers.put("put", Client.class.getDeclaredMethod("handlePUT", String[].class));
+            requestHandlers.put("follow", Client.class.getDeclaredMethod("handleFOLLOW", String[].class));
+            requestHandlers.put("cd", Client.class.getDeclaredMethod("handleCD", String[].class));
+            requestHandlers.put("find", Client.class.getDeclaredMethod("handleFIND", String[].class));
             requestHandlers.put("drop", Client.class.getDeclaredMethod("handleDROP", String[].class));
             requestHandlers.put("timeout", Client.class.getDeclaredMethod("handleTIMEOUT", String[].class));
             requestHandlers.put("biterror", Client.class.getDeclaredMethod("handleBITERR", String[].class));
+            requestHandlers.put("impair", Client.class.getDeclaredMethod("handleIMPAIR", String[].class));
+            requestHandlers.put("transport", Client.class.getDeclaredMethod("handleTRANSPORT", String[].class));
+            requestHandlers.put("fec", Client.class.getDeclaredMethod("handleFEC", String[].class));
+            requestHandlers.put("digest", Client.class.getDeclaredMethod("handleDIGEST", String[].class));
+            requestHandlers.put("binary", Client.class.getDeclaredMethod("handleBINARY", String[].class));
             requestHandlers.put("quit", Client.class.getDeclaredMethod("handleQUIT", String[].class));
 
         } catch (NoSuchMethodException e) {
@@ -56,55 +86,78 @@ public class Client {
 
     }
 
+    /**
+     * Make {@code start} run a single command, instead of reading commands from standard input, and quit.
+     * Then {@code put - <name>} uploads from {@code in}, and {@code get <name> -} downloads to {@code out},
+     * so that data can be piped through without staging it in a file.
+     *
+     * @param command Name of the command at index 0, and its arguments.
+     * @param in      Stream to upload from. It is read to its end.
+     * @param out     Stream to download to. It is flushed, but not closed.
+     */
+    public void setSingleCommand(String[] command, InputStream in, OutputStream out) {
+        this.singleCommand = command;
+        this.pipeIn = in;
+        this.pipeOut = out;
+    }
+
     /**
      * Start connection with server.
      *
      * @param host     Host name, or {@code null} for the loopback address.
      * @param cmdPort  Port number of command channel.
      * @param dataPort Port number of data channel.
+     * @return 0 in case of success, or 1 if the single command failed or the connection closed accidentally.
      * @throws IOException If IO exception occurred while initiating connection with server.
      */
-    public void start(String host, int cmdPort, int dataPort) throws IOException {
+    public int start(String host, int cmdPort, int dataPort) throws IOException {
         this.host = host;
+        this.cmdPort = cmdPort;
         this.dataPort = dataPort;
+        if (!Settings.clientCache.isEmpty() && contentCache == null) {
+            contentCache = new ContentCache(new File(Settings.clientCache), Settings.clientCacheSize);
+        }
         // Open IO stream.
-        cmdSocket = new Socket(host, cmdPort);
+        connection = new Connection(host, cmdPort, dataPort);
         stdReader = new BufferedReader(new InputStreamReader(System.in));
-        cmdReader = new BufferedReader(new InputStreamReader(cmdSocket.getInputStream()));
-        ctrlOutStream = new DataOutputStream(cmdSocket.getOutputStream());
 
+        int result = 0;
         try {
-            System.err.println("Connection established: " + cmdSocket.getInetAddress());
+            System.err.println("Connection established: " + connection.cmdSocket.getInetAddress());
             System.err.flush();
             // Hello!
-            readResponse();
+            System.out.print("Server responded: " + connection.hello().message);
 
-            int handleRequestReturnCode;
-            do {
-                // Get request, and process it.
-                String[] request = readRequest();
-                handleRequestReturnCode = handleRequest(request);
-            } while (handleRequestReturnCode != -1);
+            if (singleCommand != null) {
+                if (handleRequest(singleCommand) > 0) result = 1;
+            } else {
+                int handleRequestReturnCode;
+                do {
+                    // Get request, and process it.
+                    String[] request = readRequest();
+                    handleRequestReturnCode = handleRequest(request);
+                } while (handleRequestReturnCode != -1);
+            }
 
             // Connection closed normally.
-            System.err.println("Connection successfully closed: " + cmdSocket.getInetAddress());
+            System.err.println("Connection successfully closed: " + connection.cmdSocket.getInetAddress());
 
         } catch (IOException e) {
             // Connection accidentally closed because of IOException.
-            System.err.println("Connection accidentally closed: " + cmdSocket.getInetAddress());
+            System.err.println("Connection accidentally closed: " + connection.cmdSocket.getInetAddress());
             System.err.println("Details: " + e.getMessage());
+            result = 1;
 
         } finally {
             // Cleanup connection.
             try {
                 writeRequest(new String[]{"quit"});
                 stdReader.close();
-                cmdReader.close();
-                ctrlOutStream.close();
-                cmdSocket.close();
             } catch (IOException ignored) {
             }
+            connection.close();
         }
+        return result;
     }
 
     /**
@@ -115,15 +168,7 @@ public class Client {
      * @throws IOException If failed reading response from server.
      */
     protected Response readResponse() throws IOException {
-        StringBuilder responseStr = new StringBuilder();
-        String responseStrLine;
-        while (true) {
-            responseStrLine = cmdReader.readLine();
-            if (responseStrLine == null) throw new IOException("It seems server is down");
-            if (responseStrLine.isEmpty()) break;
-            responseStr.append(responseStrLine).append('\n');
-        }
-        Response response = new Response(responseStr.toString());
+        Response response = connection.readResponse();
         System.out.print("Server responded: " + response.message);
         return response;
     }
@@ -137,17 +182,7 @@ public class Client {
      * @throws IOException If failed to write request to server.
      */
     protected void writeRequest(String[] request) throws IOException {
-        for (String req : request) {
-            int i = req.indexOf('\n');
-            if (i != -1) {
-                req = req.substring(0, i);
-                ctrlOutStream.writeBytes(req);
-                break;
-            } else {
-                ctrlOutStream.writeBytes(req + ' ');
-            }
-        }
-        ctrlOutStream.write('\n');
+        connection.writeRequest(request);
     }
 
     /**
@@ -209,217 +244,437 @@ public class Client {
     /**
      * Handler for {@code GET} command. Receive requested file from server via data channel,
      * and save it to the path where client is running at. If name of file collides, TODO !!!!
+     * {@code get <name> -} writes it to standard output instead, as a single command.
+     * If the file is in the cache, server is asked whether it changed, and if not, it is taken from the cache.
      *
-     * @param request Name of file(s) starting at index 1.
+     * @param request Name of file(s) starting at index 1, and {@code -} at index 2 to write to standard output.
      *                Supports paths relative to current path on server.
      * @return 0 in case of success, non-zero value in case of failure.
      * @throws IOException If an IO exception occurred.
      */
     protected int handleGET(String[] request) throws IOException {
-        writeRequest(request);
+        boolean toPipe = request.length == 3 && request[2].equals("-");
+        if (toPipe && pipeOut == null) {
+            System.out.println("Writing to standard output only works as a single command, "
+                    + "like FTPClient <host> <cmdPort> <dataPort> get <name> -");
+            return 1;
+        }
+        File srcFile = new File(request[1]);
+        File dstFile = toPipe ? null : new File(srcFile.getName());
+
+        // Ask for it unless it is the same as the cached copy. A verified copy is checked by its digest too.
+        String cacheKey = contentCache == null ? null : cacheKey(request[1]);
+        ContentCache.Entry cached = cacheKey == null ? null : contentCache.lookup(cacheKey);
+        if (cached == null) {
+            writeRequest(new String[]{request[0], request[1]});
+        } else if (cached.digest == null) {
+            writeRequest(new String[]{
+                    request[0], request[1], Long.toString(cached.length), Long.toString(cached.lastModified)
+            });
+        } else {
+            writeRequest(new String[]{
+                    request[0], request[1], Long.toString(cached.length), Long.toString(cached.lastModified),
+                    cached.digest
+            });
+        }
 
         // Check for response.
         Response response = readResponse();
+        if (response.returnCode == ReturnCode.NOT_MODIFIED) {
+            if (copyFromCache(cached, dstFile)) return 0;
+            // Cached copy is gone or corrupt. Ask for the file itself.
+            writeRequest(new String[]{request[0], request[1]});
+            response = readResponse();
+        }
         if (response.returnCode != ReturnCode.SUCCESS) {
             return 1;
         }
 
         // Target info
-        int targetLength = Integer.parseInt(
+        String[] info = response.message.trim().split("[ ]+");
+        long targetLength = Long.parseLong(info[1]);
+        long lastModified = info.length > 6 ? Long.parseLong(info[6]) : -1;
+        return receiveFile(dstFile, targetLength, lastModified < 0 ? null : cacheKey, lastModified);
+    }
+
+    /**
+     * Take a file from the cache, after server told it didn't change. If the cached copy was verified
+     * when downloaded, and downloads are verified now, it is verified again.
+     *
+     * @param cached  Entry of the file.
+     * @param dstFile File to save to, or null to write to standard output.
+     * @return true in case of success, or false if the cached copy is gone or corrupt, and was dropped.
+     * @throws IOException If an IO exception occurred while writing the file.
+     */
+    protected boolean copyFromCache(ContentCache.Entry cached, File dstFile) throws IOException {
+        File contentFile = contentCache.contentFile(cached);
+        try {
+            if (digestAlgorithm != null && cached.digest != null
+                    && cached.digest.regionMatches(true, 0, digestAlgorithm + ":", 0, digestAlgorithm.length() + 1)) {
+                FileDigest digest = new FileDigest(digestAlgorithm);
+                try (InputStream in = digest.wrap(new FileInputStream(contentFile))) {
+                    in.transferTo(OutputStream.nullOutputStream());
+                }
+                String actual = digestAlgorithm + ":" + digest.finish();
+                if (!actual.equalsIgnoreCase(cached.digest)) {
+                    System.out.println("  Digest mismatch of cached copy, downloading again.");
+                    contentCache.remove(cached.key);
+                    return false;
+                }
+            }
+            if (dstFile == null) {
+                Files.copy(contentFile.toPath(), pipeOut);
+                pipeOut.flush();
+            } else {
+                Files.copy(contentFile.toPath(), dstFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            // Evicted meanwhile by another client sharing the cache.
+            contentCache.remove(cached.key);
+            return false;
+        }
+        System.out.println("  Done, from cache.");
+        return true;
+    }
+
+    /**
+     * @return Key of a file in the cache, which is the server and the path of the file on it.
+     */
+    protected String cacheKey(String path) {
+        return (host == null ? "localhost" : host) + ":" + cmdPort + " "
+                + (path.startsWith("/") ? path : serverPwd + "/" + path);
+    }
+
+    /**
+     * Handler for {@code RGET} command. Receive a range of requested file from server via data channel,
+     * and save it to the path where client is running at, named after the file and the range,
+     * like {@code big.iso.1048576-1114112}. {@code rget <name> <offset> <length> -} writes it to standard output
+     * instead, as a single command. The range is cut at the end of file.
+     *
+     * @param request Name of the file at index 1, offset and length of the range at index 2 and 3,
+     *                and {@code -} at index 4 to write to standard output.
+     * @return 0 in case of success, non-zero value in case of failure.
+     * @throws IOException If an IO exception occurred.
+     */
+    protected int handleRGET(String[] request) throws IOException {
+        boolean toPipe = request.length == 5 && request[4].equals("-");
+        if (toPipe && pipeOut == null) {
+            System.out.println("Writing to standard output only works as a single command, "
+                    + "like FTPClient <host> <cmdPort> <dataPort> rget <name> <offset> <length> -");
+            return 1;
+        }
+        writeRequest(toPipe ? Arrays.copyOf(request, 4) : request);
+
+        // Check for response.
+        Response response = readResponse();
+        if (response.returnCode != ReturnCode.SUCCESS) {
+            return 1;
+        }
+
+        // Range info
+        long targetLength = Long.parseLong(
                 response.message.trim().split("[ ]+")[1]
         );
+        long offset = Long.parseLong(request[2]);
         File srcFile = new File(request[1]);
-        File dstFile = new File(srcFile.getName());
-
-        // Setup IO streams.
-        Socket dataSocket = new Socket(host, dataPort);
-        DataInputStream dataInputStream = new DataInputStream(dataSocket.getInputStream());
-        FileOutputStream fileOutputStream = new FileOutputStream(dstFile);
+        return receiveFile(toPipe ? null : new File(srcFile.getName() + "." + offset + "-" + (offset + targetLength)),
+                targetLength, null, -1);
+    }
 
-        // Start receiving.
-        for (byte seqNo = 0; seqNo * DataChunkS2C.maxDataSize < targetLength; seqNo++) {
-            byte[] bytes = dataInputStream.readNBytes(DataChunkS2C.maxChunkSize);
-            System.out.print("#");
-            DataChunkS2C chunk = new DataChunkS2C(bytes);
-            fileOutputStream.write(chunk.data);
+    /**
+     * Receive a file from server via data channel, after server accepted a request for it.
+     *
+     * @param dstFile      File to save to, or null to write to standard output.
+     * @param targetLength Length told by server.
+     * @param cacheKey     Key to store the file under in the cache, or null not to store it.
+     * @param lastModified Modification time told by server, stored along with the file.
+     * @return 0 in case of success, non-zero value in case of failure.
+     * @throws IOException If an IO exception occurred.
+     */
+    protected int receiveFile(File dstFile, long targetLength, String cacheKey, long lastModified) throws IOException {
+        boolean toPipe = dstFile == null;
+
+        // Setup IO streams. Contents are stored in the cache along the way.
+        DataInputStream dataInputStream = connection.dataConnection().in;
+        FileDigest digest = digestAlgorithm == null ? null : new FileDigest(digestAlgorithm);
+        OutputStream fileOutputStream = toPipe ? pipeOut : WriteBehindOutputStream.of(dstFile);
+        ContentCache.Download download = cacheKey == null ? null
+                : contentCache.begin(cacheKey, targetLength, lastModified, fileOutputStream);
+        if (download != null) fileOutputStream = download;
+        if (digest != null) fileOutputStream = digest.wrap(fileOutputStream);
+        DataChunkS2C chunk = new DataChunkS2C();        // Recycled for every chunk.
+
+        // Start receiving, until end of transfer.
+        long received = 0;
+        try {
+            while (true) {
+                chunk.readFrom(dataInputStream);
+                if (chunk.isEnd()) break;
+                if (chunk.isZeroRun()) {
+                    if (Settings.logChunks) System.out.print("0");
+                    Sparse.skip(fileOutputStream, chunk.getZeroRunLength());
+                    received += chunk.getZeroRunLength();
+                    continue;
+                }
+                if (Settings.logChunks) System.out.print("#");
+                fileOutputStream.write(chunk.data, 0, chunk.getSize());
+                received += chunk.getSize();
+            }
+        } catch (IOException e) {
+            connection.closeDataConnection();
+            if (download != null) download.abort();
+            if (!toPipe) Abortable.abort(fileOutputStream);    // Keeps what is written, but writes no more.
+            throw e;
         }
-
+        if (toPipe) {
+            fileOutputStream.flush();
+        } else {
+            fileOutputStream.close();
+        }
+        String verified = null;
+        if (digest != null) {
+            // Server tells its digest after the transfer.
+            Response digestResponse = readResponse();
+            String expected = digestResponse.message.trim().split("[ ]+")[1];
+            String actual = digest.finish();
+            if (!actual.equalsIgnoreCase(expected)) {
+                if (dstFile != null) dstFile.delete();
+                if (download != null) download.abort();
+                System.out.println("  Digest mismatch, received " + actual + " instead of " + expected + ".");
+                return 1;
+            }
+            verified = digestAlgorithm + ":" + actual;
+        }
+        if (received != targetLength) {
+            if (download != null) download.abort();
+            System.out.println("  Received " + received + " bytes out of " + targetLength + ".");
+            return 1;
+        }
+        if (download != null) download.commit(verified);
         System.out.println("  Done.");
-        dataSocket.close();
-        dataInputStream.close();
-        fileOutputStream.close();
         return 0;
     }
 
+    /**
+     * Handler for {@code CD} command. Change current path on server, and keep track of it,
+     * so that files in the cache are told apart by their path on server.
+     *
+     * @param request Path at index 1.
+     * @return 0 in case of success, non-zero value in case of failure.
+     * @throws IOException If an IO exception occurred.
+     */
+    protected int handleCD(String[] request) throws IOException {
+        writeRequest(request);
+        Response response = readResponse();
+        if (response.returnCode != ReturnCode.SUCCESS) {
+            return 1;
+        }
+        String message = response.message.trim();
+        if (message.startsWith("Moved to ")) serverPwd = message.substring("Moved to ".length());
+        return 0;
+    }
+
+    /**
+     * Handler for {@code FIND} command. Search a directory on server at any depth, and print matches
+     * as server finds them, like {@code find . name=*.tgz minsize=1m after=7d}.
+     * As a single command, matches go to standard output.
+     *
+     * @param request Directory at index 1, and filters starting at index 2.
+     * @return 0 in case of success, non-zero value in case of failure.
+     * @throws IOException If an IO exception occurred.
+     */
+    protected int handleFIND(String[] request) throws IOException {
+        writeRequest(request);
+        if (readResponse().returnCode != ReturnCode.SUCCESS) {
+            return 1;
+        }
+        System.out.println();
+
+        // Print matches as they come, until end of transfer.
+        DataInputStream dataInputStream = connection.dataConnection().in;
+        FileDigest digest = digestAlgorithm == null ? null : new FileDigest(digestAlgorithm);
+        OutputStream out = pipeOut != null ? pipeOut : System.out;
+        DataChunkS2C chunk = new DataChunkS2C();        // Recycled for every chunk.
+        try {
+            while (true) {
+                chunk.readFrom(dataInputStream);
+                if (chunk.isEnd()) break;
+                out.write(chunk.data, 0, chunk.getSize());
+                if (digest != null) digest.update(chunk.data, 0, chunk.getSize());
+            }
+        } catch (IOException e) {
+            connection.closeDataConnection();
+            throw e;
+        } finally {
+            out.flush();
+        }
+        if (digest != null) {
+            String expected = readResponse().message.trim().split("[ ]+")[1];
+            if (!digest.finish().equalsIgnoreCase(expected)) {
+                System.out.println("  Digest mismatch of matches.");
+                return 1;
+            }
+        }
+        return readResponse().returnCode == ReturnCode.SUCCESS ? 0 : 1;
+    }
+
+    /**
+     * Handler for {@code FOLLOW} command. Write a file to standard output like {@code get <name> -},
+     * and keep writing what is appended to it on server, until it is deleted or truncated there,
+     * or the client is stopped. As a single command only.
+     *
+     * @param request Name of the file at index 1, and offset to start from at index 2. To resume,
+     *                give the number of bytes received so far, like size of the file written.
+     * @return 0 in case of success, non-zero value in case of failure.
+     * @throws IOException If an IO exception occurred.
+     */
+    protected int handleFOLLOW(String[] request) throws IOException {
+        if (pipeOut == null) {
+            System.out.println("Following only works as a single command, "
+                    + "like FTPClient <host> <cmdPort> <dataPort> follow <name> [offset]");
+            return 1;
+        }
+        writeRequest(request);
+        if (readResponse().returnCode != ReturnCode.SUCCESS) {
+            return 1;
+        }
+
+        // Write chunks as they come, until end of transfer. Empty chunks only tell that server is there.
+        DataInputStream dataInputStream = connection.dataConnection().in;
+        DataChunkS2C chunk = new DataChunkS2C();        // Recycled for every chunk.
+        try {
+            while (true) {
+                chunk.readFrom(dataInputStream);
+                if (chunk.isEnd()) break;
+                pipeOut.write(chunk.data, 0, chunk.getSize());
+                if (dataInputStream.available() == 0) pipeOut.flush();     // Caught up with the file.
+            }
+        } catch (IOException e) {
+            connection.closeDataConnection();
+            throw e;
+        } finally {
+            pipeOut.flush();
+        }
+        return readResponse().returnCode == ReturnCode.SUCCESS ? 0 : 1;
+    }
+
     /**
      * Handler for {@code PUT} command. Send requested file to server via data channel,
      * and save it to the current path on the server.
+     * {@code put - <name>} sends standard input instead, as a single command, until its end.
+     * Its length is not known in advance, so the server takes it until the end of transfer over TCP.
      *
-     * @param request Name of file(s) starting at index 1.
+     * @param request Name of file(s) starting at index 1, or {@code -} and name on server.
      *                Supports paths relative to where client is running at.
      * @return 0 in case of success, non-zero value in case of failure.
      * @throws IOException If an IO exception occurred.
      */
     protected int handlePUT(String[] request) throws IOException {
-        File file = new File(request[1]);
-        if (!file.isFile()) {
+        boolean fromPipe = request.length > 1 && request[1].equals("-");
+        File file = fromPipe ? null : new File(request[1]);
+        if (fromPipe && (request.length != 3 || pipeIn == null)) {
+            System.out.println("Reading standard input only works as a single command, "
+                    + "like FTPClient <host> <cmdPort> <dataPort> put - <name>");
+            return 1;
+        } else if (!fromPipe && !file.isFile()) {
             System.out.println("No such file in client side.");
             return 1;
         }
 
-        writeRequest(request);                      // PUT request & response
+        writeRequest(fromPipe ? new String[]{request[0], request[2]} : request);   // PUT request & response
         Response response = readResponse();
         if (response.returnCode != ReturnCode.SUCCESS) {
             return 1;
         }
-        writeRequest(new String[]{                  // Write metadata for sending file.
-                String.valueOf(file.length()),
-                " bytes"
+        // Over UDP, server tells transfers on its data port apart by where their datagrams come from,
+        // so the channel is opened first, and its port is sent with the metadata.
+        DatagramChannel dataChannel = null;
+        if (useUDP) {
+            dataChannel = UDPTransport.open();
+            dataChannel.connect(new InetSocketAddress(InetAddress.getByName(host), dataPort));
+        }
+        writeRequest(new String[]{                  // Write metadata for sending file. Its length is - if unknown.
+                fromPipe ? "-" : String.valueOf(file.length()),
+                " bytes",
+                useUDP ? "udp" : "",
+                useUDP ? String.valueOf(((InetSocketAddress) dataChannel.getLocalAddress()).getPort()) : ""
         });
 
-
         // Preparation
-        Socket dataSocket = new Socket(host, dataPort);
-        BufferedReader dataInputStream = new BufferedReader(new InputStreamReader(dataSocket.getInputStream()));
-        DataOutputStream dataOutputStream = new DataOutputStream(dataSocket.getOutputStream());
-        FileInputStream fileInputStream = new FileInputStream(file);
-        DataChunkC2S[] window = new DataChunkC2S[DataChunkC2S.winSize];  // Stores data chunk.
-        Timer[] timers = new Timer[DataChunkC2S.winSize];                // Each timer periodically retransmit chunks.
-        int remainingChunks = (int) (file.length() + DataChunkC2S.maxDataSize - 1)
-                / DataChunkC2S.maxDataSize;             // Number of chunks, not yet ACKed.
-        int[] winBase = {0};                            // Index of firstly sent chunk in the window.
-        int[] numBuffered = {0};                        // Number of buffered chunks in the window.
-        byte[] firstSeqNo = {0};                        // First sequence number in the window.
-        byte nextSeqNo = 0;                             // Next sequence number, in range of [0, maxSeqNo].
-        String[] exceptionMsg = {null};                 // Set message if a thread throws IOException.
-        ReentrantLock windowLock = new ReentrantLock(); // Locks window related values.
-        ReentrantLock logLock = new ReentrantLock();
-        Vector<Timer> timeOutTimers = new Vector<>();
+        DataConnection data = null;
+        DatagramOutputStream datagramOutputStream = null;
+        InputStream dataInputStream;
+        OutputStream dataSocketOutStream;
+        GatheringOutputStream batched = null;
+        if (useUDP) {
+            if (readResponse().returnCode != ReturnCode.SUCCESS) {      // Wait until server is ready.
+                dataChannel.close();
+                return 1;
+            }
+            dataInputStream = new DatagramInputStream(dataChannel, UDPTransport.maxDatagramSize);
+            datagramOutputStream = new DatagramOutputStream(dataChannel, null, UDPTransport.maxDatagramSize, true);
+            dataSocketOutStream = datagramOutputStream;
+        } else {
+            data = connection.dataConnection();
+            dataInputStream = data.in;
+            if (netEmulator == null) batched = data.openBatchedOutput();     // Emulator needs flushes.
+            dataSocketOutStream = batched != null ? batched : data.openOutput();
+        }
+        if (netEmulator != null) {
+            dataSocketOutStream = netEmulator.wrap(dataSocketOutStream, DataChunkC2S.headerSize);
+        }
+        DataOutputStream dataOutputStream = new DataOutputStream(dataSocketOutStream);
+        FileDigest digest = digestAlgorithm == null ? null : new FileDigest(digestAlgorithm);
+        InputStream fileInputStream = fromPipe ? pipeIn : PrefetchInputStream.of(new FileInputStream(file));
+        if (digest != null) fileInputStream = digest.wrap(fileInputStream);
+        SRSender sender = new SRSender(
+                dataOutputStream, senderTimeOut * 1000, srDropList, srTimeoutList, srBiterrList
+        );
+        if (!fecSpec.equalsIgnoreCase("off")) sender.setParityCoder(new ParityCoder(fecSpec));
+        if (batched != null) sender.setIdleAction(batched::send);
 
         // Run ACK Listener.
-        Thread ackListenerThread = new Thread(new ACKListener(
-                dataInputStream, exceptionMsg, winBase, numBuffered, firstSeqNo, windowLock, logLock, timers
-        ));
+        Thread ackListenerThread = new Thread(new ACKListener(dataInputStream, sender));
         ackListenerThread.start();
 
         try {
-            // Send file.
-            while (remainingChunks > 0) {
-                // Create data chunks, and fill window.
-                while (numBuffered[0] < DataChunkC2S.winSize && numBuffered[0] < remainingChunks) {
-                    int idx = (winBase[0] + numBuffered[0]) % DataChunkC2S.winSize;
-                    byte[] data = fileInputStream.readNBytes(DataChunkC2S.maxDataSize);
-                    window[idx] = new DataChunkC2S(nextSeqNo, data);    // Create data chunk.
-                    timers[idx] = new Timer();
-                    timers[idx].scheduleAtFixedRate(                    // Setup timer for retransmission, and start it.
-                            new TimerTask() {
-                                @Override
-                                public void run() {
-                                    try {
-                                        synchronized (dataOutputStream) {
-                                            logLock.lock();
-                                            window[idx].writeBytes(dataOutputStream);
-                                            System.out.println("Timeout, resent: " + window[idx].getSeqNo());
-                                        }
-                                    } catch (IOException e) {
-                                        exceptionMsg[0] = e.getMessage();
-                                    } finally {
-                                        logLock.unlock();
-                                    }
-                                }
-                            },
-                            senderTimeOut * 1000,
-                            senderTimeOut * 1000
-                    );
-                    windowLock.lock();
-                    numBuffered[0]++;
-                    windowLock.unlock();
-
-                    if (srDropList.contains((int) nextSeqNo)) {
-                        // Don't send it.
-                        System.out.println("Sent:  " + window[idx].getSeqNo() + " --> Server");
-
-                    } else if (srBiterrList.contains((int) nextSeqNo)) {
-                        // Make bit error, and send it.
-                        window[idx].setErr(true);
-                        synchronized (dataOutputStream) {
-                            try {
-                                logLock.lock();
-                                window[idx].writeBytes(dataOutputStream);
-                                System.out.println("Sent:  " + window[idx].getSeqNo() + " --> Server");
-                            } finally {
-                                logLock.unlock();
-                            }
-                        }
-                        window[idx].setErr(false);
-
-                    } else if (srTimeoutList.contains((int) nextSeqNo)) {
-                        // Add timer for sending.
-                        timeOutTimers.add(new Timer());
-                        timeOutTimers.lastElement().schedule(
-                                new TimerTask() {
-                                    final DataChunkC2S data = window[idx];
-
-                                    @Override
-                                    public void run() {
-                                        try {
-                                            synchronized (dataOutputStream) {
-                                                logLock.lock();
-                                                data.writeBytes(dataOutputStream);
-                                            }
-                                        } catch (IOException e) {
-                                            exceptionMsg[0] = e.getMessage();
-                                        } finally {
-                                            logLock.unlock();
-                                        }
-                                    }
-                                },
-                                2 * senderTimeOut * 1000
-                        );
-                        System.out.println("Sent:  " + window[idx].getSeqNo() + " --> Server");
-
-                    } else {
-                        try {
-                            synchronized (dataOutputStream) {
-                                logLock.lock();
-                                window[idx].writeBytes(dataOutputStream);
-                                System.out.println("Sent:  " + window[idx].getSeqNo() + " --> Server");
-                            }
-                        } finally {
-                            logLock.unlock();
-                        }
-                    }
-
-                    nextSeqNo = (byte) ((nextSeqNo + 1) % DataChunkC2S.numSeqNo);
-                }
-
-                if (exceptionMsg[0] != null) {                // Check for exception thrown in thread.
-                    throw new IOException(exceptionMsg[0]);
-                }
-
-                // Slide window.
-                timers[winBase[0]] = timers[winBase[0]];        // Reload, 'cause it bay be modified in ACKListener.
-                while (timers[winBase[0]] == null && numBuffered[0] > 0) {
-                    // If the first sequence in window is ACKed, slide window.
-                    try {
-                        windowLock.lock();
-                        firstSeqNo[0] = (byte) ((firstSeqNo[0] + 1) % DataChunkC2S.numSeqNo);
-                        winBase[0] = (winBase[0] + 1) % DataChunkC2S.winSize;
-                        numBuffered[0]--;
-                        remainingChunks--;
-                    } finally {
-                        windowLock.unlock();
-                    }
-                }
+            // Send file, then end the transfer. The end marker bypasses network emulator,
+            // as TCP doesn't lose it, and the server acknowledges it when all resends are drained.
+            // Over UDP, it only lets the server stop waiting for resends, and is sent a few times as datagrams get lost.
+            sender.send(fileInputStream);
+            dataOutputStream.close();
+            if (dataChannel == null) {
+                DataChunkC2S.writeEnd(data.out);
+                ackListenerThread.join();
+            } else {
+                DataOutputStream endOutputStream = new DataOutputStream(datagramOutputStream);
+                for (int i = 0; i < 3; i++) DataChunkC2S.writeEnd(endOutputStream);
             }
             System.out.println("  Done.");
 
+            // Let server verify what it received.
+            if (digest != null) {
+                writeRequest(new String[]{digest.finish()});
+                if (readResponse().returnCode != ReturnCode.SUCCESS) return 1;
+            }
+
+        } catch (IOException e) {
+            if (dataChannel == null) connection.closeDataConnection();
+            throw e;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            connection.closeDataConnection();
+            throw new IOException("Interrupted while ending transfer");
+
         } finally {
             ackListenerThread.interrupt();
-            fileInputStream.close();
+            if (!fromPipe) fileInputStream.close();
             dataOutputStream.close();
-            dataInputStream.close();
-            dataSocket.close();
+            if (dataChannel != null) {
+                dataInputStream.close();
+                dataChannel.close();
+            }
             srDropList.clear();
             srBiterrList.clear();
             srTimeoutList.clear();
@@ -488,6 +743,117 @@ public class Client {
         return 0;
     }
 
+    /**
+     * Handler for {@code IMPAIR} command. Emulate an impaired network under the data channel
+     * of following transfers, e.g. {@code impair loss=0.01 delay=40 jitter=10 seed=7}.
+     * {@code impair off} stops emulating.
+     *
+     * @param request Impairments starting at index 1. See {@code NetEmulator} for available keys.
+     * @return 0 in case of success, non-zero value in case of failure.
+     */
+    protected int handleIMPAIR(String[] request) {
+        if (request.length < 2 || request[1].equalsIgnoreCase("off")) {
+            netEmulator = null;
+            System.out.println("Not emulating network.");
+            return 0;
+        }
+
+        try {
+            netEmulator = new NetEmulator(String.join(" ", Arrays.copyOfRange(request, 1, request.length)));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Failed to parse. " + e.getMessage());
+            return 1;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Handler for {@code TRANSPORT} command. Select transport of data channel for following transfers,
+     * which is either {@code tcp} or {@code udp}. Selective Repeat only runs client to server,
+     * so {@code udp} applies to {@code PUT}, and {@code GET} always runs over TCP.
+     *
+     * @param request Name of transport at index 1.
+     * @return 0 in case of success, non-zero value in case of failure.
+     */
+    protected int handleTRANSPORT(String[] request) {
+        if (request.length != 2 ||
+                !(request[1].equalsIgnoreCase("tcp") || request[1].equalsIgnoreCase("udp"))) {
+            System.out.println("Usage: transport tcp|udp");
+            return 1;
+        }
+        useUDP = request[1].equalsIgnoreCase("udp");
+        return 0;
+    }
+
+    /**
+     * Handler for {@code FEC} command. Select forward error correction for following uploads,
+     * which is {@code off}, {@code auto} to adapt to measured loss rate, or {@code N/K}
+     * for K parity chunks per N data chunks.
+     *
+     * @param request Specification at index 1.
+     * @return 0 in case of success, non-zero value in case of failure.
+     */
+    protected int handleFEC(String[] request) {
+        if (request.length != 2) {
+            System.out.println("Usage: fec off|auto|N/K");
+            return 1;
+        }
+        if (!request[1].equalsIgnoreCase("off")) {
+            try {
+                new ParityCoder(request[1]);
+            } catch (IllegalArgumentException e) {
+                System.out.println("Failed to parse. " + e.getMessage());
+                return 1;
+            }
+        }
+        fecSpec = request[1];
+        return 0;
+    }
+
+    /**
+     * Handler for {@code DIGEST} command. Verify files transferred after it with a digest,
+     * computed along the transfer on both sides, e.g. {@code digest crc32c} or {@code digest SHA-256}.
+     * {@code digest off} stops verifying.
+     *
+     * @param request Name of algorithm at index 1.
+     * @return 0 in case of success, non-zero value in case of failure.
+     * @throws IOException If an IO exception occurred.
+     */
+    protected int handleDIGEST(String[] request) throws IOException {
+        if (request.length != 2) {
+            System.out.println("Usage: digest off|crc32c|SHA-256");
+            return 1;
+        }
+        writeRequest(request);
+        if (readResponse().returnCode != ReturnCode.SUCCESS) {
+            return 1;
+        }
+        digestAlgorithm = request[1].equalsIgnoreCase("off") ? null : request[1];
+        return 0;
+    }
+
+    /**
+     * Handler for {@code BINARY} command. Switch command channel to binary framing of {@code ControlCodec}
+     * for the rest of the session, which saves formatting and parsing text on both sides.
+     *
+     * @param request No arguments.
+     * @return 0 in case of success, non-zero value in case of failure.
+     * @throws IOException If an IO exception occurred.
+     */
+    protected int handleBINARY(String[] request) throws IOException {
+        if (connection.isBinary()) {
+            System.out.println("Already in binary.");
+            return 0;
+        }
+        writeRequest(request);
+        if (readResponse().returnCode != ReturnCode.SUCCESS) {
+            return 1;
+        }
+        connection.switchToBinary();
+        return 0;
+    }
+
     protected int handleQUIT(String[] request) {
         return -1;
     }
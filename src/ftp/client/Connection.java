@@ -0,0 +1,153 @@
+package ftp.client;
+
+import ftp.ControlCodec;
+import ftp.DataConnection;
+import ftp.Response;
+
+import java.io.*;
+import java.net.Socket;
+
+/**
+ * Command channel and data connection of a session with a server, as both {@code Client} and {@code Session}
+ * speak them: requests and responses in text or in binary framing, and a data connection which is opened
+ * on the first transfer, tagged with the session id, and reused afterwards.
+ */
+public class Connection implements Closeable {
+
+    protected final String host;
+    protected final int dataPort;
+    protected final Socket cmdSocket;
+    protected final BufferedReader cmdReader;
+    protected final DataOutputStream cmdOutStream;
+    protected ControlCodec controlCodec = null; // Binary framing of command channel, or null for text.
+    protected long sessionId = -1;              // Sent first on data connections, or -1 if server has no sessions.
+    protected DataConnection dataConnection;    // Kept open across transfers, or null if not yet connected.
+
+
+    /**
+     * Connect command channel to a server. The server's hello is left to be read with {@code hello}.
+     *
+     * @param host     Host name of server, or {@code null} for the loopback address.
+     * @param cmdPort  Port number of command channel.
+     * @param dataPort Port number of data channel.
+     * @throws IOException If failed connecting.
+     */
+    public Connection(String host, int cmdPort, int dataPort) throws IOException {
+        this.host = host;
+        this.dataPort = dataPort;
+        cmdSocket = new Socket(host, cmdPort);
+        cmdReader = new BufferedReader(new InputStreamReader(cmdSocket.getInputStream()));
+        cmdOutStream = new DataOutputStream(new BufferedOutputStream(cmdSocket.getOutputStream()));
+    }
+
+    /**
+     * Read the server's hello, which tells the session id.
+     *
+     * @return The hello.
+     * @throws IOException If failed reading it.
+     */
+    public Response hello() throws IOException {
+        Response response = readResponse();
+        sessionId = response.getSessionId();
+        return response;
+    }
+
+    /**
+     * Write a request. Each argument is written up to its first line break, and a line break
+     * ends the request, so that a request is always a single line.
+     *
+     * @param request Name of the command at index 0, and its arguments.
+     * @throws IOException If failed writing the request.
+     */
+    public void writeRequest(String[] request) throws IOException {
+        if (controlCodec != null) {
+            controlCodec.writeRequest(request);
+            return;
+        }
+        for (String req : request) {
+            int i = req.indexOf('\n');
+            if (i != -1) {
+                cmdOutStream.writeBytes(req.substring(0, i));
+                break;
+            }
+            cmdOutStream.writeBytes(req + ' ');
+        }
+        cmdOutStream.write('\n');
+        cmdOutStream.flush();       // In a single segment, so that Nagle doesn't hold back the rest of it.
+    }
+
+    /**
+     * Read a response, which ends with an empty line in text.
+     *
+     * @return Response of server.
+     * @throws IOException If failed reading it, or the server closed the channel.
+     */
+    public Response readResponse() throws IOException {
+        if (controlCodec != null) return controlCodec.readResponse();
+        StringBuilder responseStr = new StringBuilder();
+        while (true) {
+            String line = cmdReader.readLine();
+            if (line == null) throw new IOException("It seems server is down");
+            if (line.isEmpty()) break;
+            responseStr.append(line).append('\n');
+        }
+        return new Response(responseStr.toString());
+    }
+
+    /**
+     * Switch command channel to binary framing of {@code ControlCodec}, once the server agreed to.
+     *
+     * @throws IOException If failed getting the stream of the channel.
+     */
+    public void switchToBinary() throws IOException {
+        controlCodec = new ControlCodec(new BufferedInputStream(cmdSocket.getInputStream()), cmdOutStream);
+    }
+
+    public boolean isBinary() {
+        return controlCodec != null;
+    }
+
+    /**
+     * Data connection of the session. It is opened on the first transfer, and reused afterwards.
+     * On opening, it tells the server which session it belongs to.
+     *
+     * @return Open data connection.
+     * @throws IOException If failed connecting.
+     */
+    public DataConnection dataConnection() throws IOException {
+        if (dataConnection == null || dataConnection.isClosed()) {
+            dataConnection = DataConnection.connect(host, dataPort);
+            if (sessionId != -1) {
+                dataConnection.out.writeLong(sessionId);
+                dataConnection.out.flush();
+            }
+        }
+        return dataConnection;
+    }
+
+    /**
+     * Close the data connection after a failed transfer, as it may be out of sync.
+     * The next transfer opens a new one.
+     */
+    public void closeDataConnection() {
+        if (dataConnection == null) return;
+        try {
+            dataConnection.close();
+        } catch (IOException ignored) {
+        }
+        dataConnection = null;
+    }
+
+    /**
+     * Close data connection and command channel, without saying goodbye.
+     */
+    @Override
+    public void close() {
+        closeDataConnection();
+        try {
+            cmdSocket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+}
@@ -0,0 +1,315 @@
+package ftp.client;
+
+import ftp.Sparse;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Cache of files downloaded by {@code GET}, kept in a local directory across runs of the client,
+ * so that a file which didn't change on server is not downloaded again.
+ *
+ * Entries are keyed by server and path on it. Each remembers length and modification time of the file
+ * on server, which a conditional {@code GET} sends back for server to tell whether the file changed,
+ * and digest of the contents if they were verified. Entries are evicted in least recently used order
+ * to keep total size within a budget, and files larger than the budget are never cached.
+ *
+ * Clients running at the same time may share the directory, like jobs of a CI agent. The index is
+ * read and written under a file lock, and contents are moved into place only once complete.
+ */
+public class ContentCache {
+
+    public static class Entry {
+        public final String key;
+        public final long length;
+        public final long lastModified;     // Of the file on server, in milliseconds.
+        public final String digest;         // Like "SHA-256:<hex>", or null if contents were not verified.
+
+        Entry(String key, long length, long lastModified, String digest) {
+            this.key = key;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+    }
+
+    protected static final String indexName = "index";
+    protected static final String lockName = "lock";
+    protected static final String partSuffix = ".part";
+
+    protected final File dir;
+    protected final long capacity;
+    protected final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);  // In access order.
+    protected long size = 0;
+
+
+    /**
+     * Create new cache, or open the one in the directory.
+     *
+     * @param dir      Directory to keep files in. It is created if missing.
+     * @param capacity Budget of total size of cached files, in bytes.
+     * @throws IOException If failed creating the directory.
+     */
+    public ContentCache(File dir, long capacity) throws IOException {
+        this.dir = dir;
+        this.capacity = capacity;
+        Files.createDirectories(dir.toPath());
+    }
+
+    /**
+     * Look up a file, and mark it recently used.
+     *
+     * @param key Server and path of the file on it.
+     * @return Entry of the file, or null if not cached.
+     * @throws IOException If failed reading or writing the index.
+     */
+    public synchronized Entry lookup(String key) throws IOException {
+        try (FileChannel lockChannel = openLock()) {
+            FileLock lock = lockChannel.lock();
+            try {
+                load();
+                Entry entry = entries.get(key);
+                if (entry != null && contentFile(entry).length() != entry.length) {
+                    entries.remove(key);        // Lost, like by cleaning the directory by hand.
+                    size -= entry.length;
+                    entry = null;
+                }
+                save();
+                return entry;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Drop a file, like when its contents turned out to be corrupt.
+     *
+     * @param key Server and path of the file on it.
+     * @throws IOException If failed reading or writing the index.
+     */
+    public synchronized void remove(String key) throws IOException {
+        try (FileChannel lockChannel = openLock()) {
+            FileLock lock = lockChannel.lock();
+            try {
+                load();
+                Entry entry = entries.remove(key);
+                if (entry != null) {
+                    size -= entry.length;
+                    Files.deleteIfExists(contentFile(entry).toPath());
+                }
+                save();
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * @return Channel of the lock file. The index is read and written only while it is locked.
+     */
+    protected FileChannel openLock() throws IOException {
+        return FileChannel.open(new File(dir, lockName).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * @return File holding contents of an entry. It may be evicted by another client at any time.
+     */
+    public File contentFile(Entry entry) {
+        return new File(dir, fileName(entry.key));
+    }
+
+    /**
+     * Start storing a file being downloaded, along with writing it to {@code out}.
+     *
+     * @param key          Server and path of the file on it.
+     * @param length       Length of the file.
+     * @param lastModified Modification time of the file on server.
+     * @param out          Stream to write contents to, as they are stored.
+     * @return Stream writing to both, which is committed once the download succeeded, or aborted otherwise.
+     * Or null if the file is too large to be cached.
+     * @throws IOException If failed creating a file in the cache.
+     */
+    public Download begin(String key, long length, long lastModified, OutputStream out) throws IOException {
+        if (length > capacity) return null;
+        return new Download(key, length, lastModified, out);
+    }
+
+    /**
+     * Stream writing contents to a stream, and to a partial file in the cache, which is moved into place
+     * on commit. Zeros skipped are left as holes in both.
+     */
+    public class Download extends FilterOutputStream implements Sparse.Output {
+
+        protected final String key;
+        protected final long length;
+        protected final long lastModified;
+        protected final File partFile;
+        protected final FileChannel channel;
+        protected boolean finished = false;
+
+        protected Download(String key, long length, long lastModified, OutputStream out) throws IOException {
+            super(out);
+            this.key = key;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.partFile = File.createTempFile(fileName(key), partSuffix, dir);
+            this.channel = FileChannel.open(partFile.toPath(), StandardOpenOption.WRITE);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) b}));
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+
+        @Override
+        public void skip(long n) throws IOException {
+            Sparse.skip(out, n);
+            channel.position(channel.position() + n);
+        }
+
+        /**
+         * Store the file in the cache, evicting others as needed to stay within budget.
+         *
+         * @param digest Digest of contents, like "SHA-256:<hex>", or null if not verified.
+         * @throws IOException If failed storing it.
+         */
+        public void commit(String digest) throws IOException {
+            finish();
+            if (partFile.length() != length) {
+                abort();
+                return;
+            }
+            synchronized (ContentCache.this) {
+                try (FileChannel lockChannel = openLock()) {
+                    FileLock lock = lockChannel.lock();
+                    try {
+                        load();
+                        Entry entry = new Entry(key, length, lastModified, digest);
+                        Files.move(partFile.toPath(), contentFile(entry).toPath(),
+                                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        Entry old = entries.put(key, entry);
+                        if (old != null) size -= old.length;
+                        size += length;
+                        evict();
+                        save();
+                    } finally {
+                        lock.release();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Discard what was stored, like when the download failed.
+         */
+        public void abort() throws IOException {
+            finish();
+            Files.deleteIfExists(partFile.toPath());
+        }
+
+        /**
+         * Close the stream written to, but not the partial file. It is closed on commit or abort.
+         */
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        protected void finish() throws IOException {
+            if (finished) return;
+            finished = true;
+            if (channel.size() < channel.position()) {
+                // Ends with a hole, which needs a byte at its end to make it part of the file.
+                channel.write(ByteBuffer.wrap(new byte[1]), channel.position() - 1);
+            }
+            channel.close();
+        }
+    }
+
+    /**
+     * Evict least recently used files, until the total size is within budget.
+     */
+    protected void evict() throws IOException {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > capacity && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            size -= eldest.length;
+            Files.deleteIfExists(contentFile(eldest).toPath());
+        }
+    }
+
+    /**
+     * Read the index, which may have been changed by another client. It must be called under the lock.
+     * Each line is length, modification time, digest or {@code -}, and key, from least recently used.
+     */
+    protected void load() throws IOException {
+        entries.clear();
+        size = 0;
+        File index = new File(dir, indexName);
+        if (!index.exists()) return;
+        for (String line : Files.readAllLines(index.toPath(), StandardCharsets.UTF_8)) {
+            String[] fields = line.split(" ", 4);
+            if (fields.length != 4) continue;
+            try {
+                Entry entry = new Entry(fields[3], Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                        fields[2].equals("-") ? null : fields[2]);
+                entries.put(entry.key, entry);
+                size += entry.length;
+            } catch (NumberFormatException ignored) {
+                // Torn line. The file is found missing, or evicted, later.
+            }
+        }
+    }
+
+    /**
+     * Write the index in place at once. It must be called under the lock.
+     */
+    protected void save() throws IOException {
+        List<String> lines = new ArrayList<>(entries.size());
+        for (Entry entry : entries.values()) {
+            lines.add(entry.length + " " + entry.lastModified + " "
+                    + (entry.digest == null ? "-" : entry.digest) + " " + entry.key);
+        }
+        File temp = new File(dir, indexName + partSuffix);
+        Files.write(temp.toPath(), lines, StandardCharsets.UTF_8);
+        Files.move(temp.toPath(), new File(dir, indexName).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return Name of the file holding contents of a key, which is a hash of it, as keys are paths.
+     */
+    protected static String fileName(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < 16; i++) name.append(String.format("%02x", hash[i]));
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);        // Every JVM has SHA-256.
+        }
+    }
+
+}
@@ -0,0 +1,21 @@
+package ftp.client;
+
+import ftp.Response;
+
+import java.io.IOException;
+
+/**
+ * Thrown when server refuses a request.
+ */
+public class ResponseException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public final Response response;
+
+    public ResponseException(String request, Response response) {
+        super(request + ": " + response.returnCode + " " + response.message.trim());
+        this.response = response;
+    }
+
+}
@@ -0,0 +1,384 @@
+package ftp.client;
+
+import ftp.*;
+import ftp.net.GatheringOutputStream;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Session with a server, driven by a program rather than by a user. It speaks the same protocol
+ * as {@code Client}, over TCP and without fault injection. Operations block until done,
+ * and must not run concurrently, as a session has a single command channel and data connection.
+ */
+public class Session implements Closeable {
+
+    protected final Connection connection;
+    protected final Object followLock = new Object();
+    protected boolean following = false;        // In follow, and not yet asked to stop.
+    protected String digestAlgorithm = null;    // Digest of transferred files, or null if not verifying them.
+
+    /* Selective Repeat */
+    protected final int senderTimeOut = 1;
+
+
+    /**
+     * Connect to a server.
+     *
+     * @param host     Host name of server.
+     * @param cmdPort  Port number of command channel.
+     * @param dataPort Port number of data channel.
+     * @throws IOException If failed connecting.
+     */
+    public Session(String host, int cmdPort, int dataPort) throws IOException {
+        connection = new Connection(host, cmdPort, dataPort);
+        try {
+            connection.hello();
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Write a single-line request, and read its response.
+     *
+     * @param request Request, like {@code list .}.
+     * @return Response of server.
+     * @throws IOException If failed talking to server.
+     */
+    public Response request(String request) throws IOException {
+        writeLine(request);
+        return connection.readResponse();
+    }
+
+    /**
+     * Switch command channel to binary framing of {@code ControlCodec}, for the rest of the session.
+     *
+     * @throws ResponseException If server refused.
+     * @throws IOException       If failed talking to server.
+     */
+    public void binary() throws IOException {
+        if (connection.isBinary()) return;
+        expect("binary");
+        connection.switchToBinary();
+    }
+
+    /**
+     * List a directory.
+     *
+     * @param path Path of the directory, relative to current directory on server.
+     * @return Entries, each of which is a name followed by its size, or {@code -} for a directory.
+     * @throws ResponseException If server refused.
+     * @throws IOException       If failed talking to server.
+     */
+    public List<String> list(String path) throws IOException {
+        Response response = expect("list " + path);
+        String[] lines = response.message.split("\n");
+        return lines.length < 2 ? Collections.emptyList()
+                : new ArrayList<>(Arrays.asList(lines).subList(1, lines.length));
+    }
+
+    /**
+     * Search a directory on server at any depth, with the index server keeps.
+     *
+     * @param path    Path of the directory, relative to current directory on server.
+     * @param filters Filters separated by spaces, like {@code name=*.tgz minsize=1m after=7d}, or empty for all.
+     * @param matches Called with each match as it arrives, like {@code dir/a.tgz, 1024, 2026-10-01T12:00:00Z},
+     *                which is a path under the directory, size or {@code -} for a directory, and modification time.
+     * @return Number of matches.
+     * @throws ResponseException If server refused, like for a malformed filter.
+     * @throws IOException       If failed talking to server.
+     */
+    public long find(String path, String filters, Consumer<String> matches) throws IOException {
+        expect(filters.isBlank() ? "find " + path : "find " + path + " " + filters.trim());
+
+        DataInputStream dataInputStream = connection.dataConnection().in;
+        FileDigest digest = digestAlgorithm == null ? null : new FileDigest(digestAlgorithm);
+        DataChunkS2C chunk = new DataChunkS2C();        // Recycled for every chunk.
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        long count = 0;
+        try {
+            while (true) {
+                chunk.readFrom(dataInputStream);
+                if (chunk.isEnd()) break;
+                if (digest != null) digest.update(chunk.data, 0, chunk.getSize());
+                for (int i = 0; i < chunk.getSize(); i++) {
+                    if (chunk.data[i] != '\n') {
+                        line.write(chunk.data[i]);
+                        continue;
+                    }
+                    matches.accept(line.toString(StandardCharsets.UTF_8));
+                    line.reset();
+                    count++;
+                }
+            }
+        } catch (IOException e) {
+            connection.closeDataConnection();           // It may be left in the middle of a transfer.
+            throw e;
+        }
+        if (digest != null) {
+            String expected = connection.readResponse().message.trim().split("[ ]+")[1];
+            String actual = digest.finish();
+            if (!actual.equalsIgnoreCase(expected)) {
+                throw new IOException("Digest mismatch, received " + actual + " instead of " + expected);
+            }
+        }
+        Response response = connection.readResponse();
+        if (response.returnCode != ReturnCode.SUCCESS) throw new ResponseException("find " + path, response);
+        return count;
+    }
+
+    /**
+     * Change current directory on server.
+     *
+     * @param path Path of the directory, relative to current directory on server.
+     * @return Message of server, telling the new current directory.
+     * @throws ResponseException If server refused.
+     * @throws IOException       If failed talking to server.
+     */
+    public String cd(String path) throws IOException {
+        return expect("cd " + path).message.trim();
+    }
+
+    /**
+     * Verify files transferred after it with a digest computed along the transfer, or stop verifying.
+     *
+     * @param algorithm {@code crc32c}, name of a {@code MessageDigest} like {@code SHA-256}, or {@code off}.
+     * @throws ResponseException If server doesn't support the algorithm.
+     * @throws IOException       If failed talking to server.
+     */
+    public void digest(String algorithm) throws IOException {
+        expect("digest " + algorithm);
+        digestAlgorithm = algorithm.equalsIgnoreCase("off") ? null : algorithm;
+    }
+
+    /**
+     * Download a file.
+     *
+     * @param path Path of the file, relative to current directory on server.
+     * @param out  Stream to write contents to. It is not closed. Runs of zeros are skipped if it is {@code Sparse.Output}.
+     * @return Number of bytes received.
+     * @throws ResponseException If server refused.
+     * @throws IOException       If failed talking to server, or writing contents.
+     */
+    public long get(String path, OutputStream out) throws IOException {
+        return receive(expect("get " + path), out);
+    }
+
+    /**
+     * Download a range of a file. Only the range is read on server, so this is for random access into large files.
+     *
+     * @param path   Path of the file, relative to current directory on server.
+     * @param offset Offset of the range. It may be the length of the file, which gives an empty range.
+     * @param length Length of the range. It is cut at the end of file, and at 2 GB.
+     * @param out    Stream to write contents to. It is not closed.
+     * @return Number of bytes received, which is less than {@code length} if the range was cut.
+     * @throws ResponseException If server refused, like for an offset beyond the end of file.
+     * @throws IOException       If failed talking to server, or writing contents.
+     */
+    public long getRange(String path, long offset, long length, OutputStream out) throws IOException {
+        return receive(expect("rget " + path + " " + offset + " " + length), out);
+    }
+
+    /**
+     * Receive contents which server accepted to send.
+     *
+     * @param response Response of server, telling the length.
+     * @param out      Stream to write contents to. It is not closed.
+     * @return Number of bytes received.
+     */
+    protected long receive(Response response, OutputStream out) throws IOException {
+        long length = Long.parseLong(response.message.trim().split("[ ]+")[1]);
+
+        DataInputStream dataInputStream = connection.dataConnection().in;
+        FileDigest digest = digestAlgorithm == null ? null : new FileDigest(digestAlgorithm);
+        if (digest != null) out = digest.wrap(out);
+        DataChunkS2C chunk = new DataChunkS2C();        // Recycled for every chunk.
+        long received = 0;
+        try {
+            while (true) {
+                chunk.readFrom(dataInputStream);
+                if (chunk.isEnd()) break;
+                if (chunk.isZeroRun()) {
+                    Sparse.skip(out, chunk.getZeroRunLength());
+                    received += chunk.getZeroRunLength();
+                    continue;
+                }
+                out.write(chunk.data, 0, chunk.getSize());
+                received += chunk.getSize();
+            }
+        } catch (IOException e) {
+            connection.closeDataConnection();           // It may be left in the middle of a transfer.
+            throw e;
+        }
+        if (digest != null) {
+            String expected = connection.readResponse().message.trim().split("[ ]+")[1];
+            String actual = digest.finish();
+            if (!actual.equalsIgnoreCase(expected)) {
+                throw new IOException("Digest mismatch, received " + actual + " instead of " + expected);
+            }
+        }
+        if (received != length) throw new IOException("Received " + received + " bytes out of " + length);
+        return received;
+    }
+
+    /**
+     * Download a file, and keep downloading what is appended to it, until {@code stopFollowing} is called,
+     * or the file is deleted or truncated on server.
+     *
+     * @param path   Path of the file, relative to current directory on server.
+     * @param offset Offset to start from. To resume, give the number of bytes received so far.
+     * @param out    Stream to write contents to. It is flushed whenever it has caught up with the file.
+     * @return Number of bytes received.
+     * @throws ResponseException If server refused, or the file was deleted or truncated.
+     * @throws IOException       If failed talking to server, or writing contents.
+     */
+    public long follow(String path, long offset, OutputStream out) throws IOException {
+        String request = "follow " + path + " " + offset;
+        expect(request);
+        synchronized (followLock) {
+            following = true;
+        }
+
+        DataInputStream dataInputStream = connection.dataConnection().in;
+        DataChunkS2C chunk = new DataChunkS2C();        // Recycled for every chunk.
+        long received = 0;
+        try {
+            while (true) {
+                chunk.readFrom(dataInputStream);
+                if (chunk.isEnd()) break;
+                out.write(chunk.data, 0, chunk.getSize());
+                received += chunk.getSize();
+                if (dataInputStream.available() == 0) out.flush();
+            }
+        } catch (IOException e) {
+            connection.closeDataConnection();
+            throw e;
+        } finally {
+            synchronized (followLock) {
+                following = false;
+            }
+            out.flush();
+        }
+        Response response = connection.readResponse();
+        if (response.returnCode != ReturnCode.SUCCESS) throw new ResponseException(request, response);
+        return received;
+    }
+
+    /**
+     * Make {@code follow} running on another thread return, after what server has sent so far.
+     * Does nothing if it is not following.
+     *
+     * @throws IOException If failed talking to server.
+     */
+    public void stopFollowing() throws IOException {
+        synchronized (followLock) {
+            if (!following) return;
+            following = false;
+            writeLine("abort");
+        }
+    }
+
+    /**
+     * Upload a file.
+     *
+     * @param file       File to upload.
+     * @param remoteName Name of the file on server, in its current directory.
+     * @throws ResponseException If server refused, like when the name is taken.
+     * @throws IOException       If failed reading the file, or talking to server, or digests differ.
+     */
+    public void put(File file, String remoteName) throws IOException {
+        if (!file.isFile()) throw new FileNotFoundException(file.getPath());
+        try (InputStream fileInputStream = PrefetchInputStream.of(new FileInputStream(file))) {
+            upload(fileInputStream, String.valueOf(file.length()), remoteName);
+        }
+    }
+
+    /**
+     * Upload contents of a stream of unknown length, like a pipe, without staging it in a file.
+     * The server takes it until the end of transfer.
+     *
+     * @param in         Stream to upload. It is read to its end, but not closed.
+     * @param remoteName Name of the file on server, in its current directory.
+     * @throws ResponseException If server refused, like when the name is taken.
+     * @throws IOException       If failed reading the stream, or talking to server, or digests differ.
+     */
+    public void put(InputStream in, String remoteName) throws IOException {
+        upload(in, "-", remoteName);
+    }
+
+    /**
+     * Upload contents of a stream, announcing its length, or {@code -} if unknown.
+     */
+    protected void upload(InputStream in, String length, String remoteName) throws IOException {
+        expect("put " + remoteName);
+        writeLine(length + " bytes");
+
+        DataConnection data = connection.dataConnection();
+        GatheringOutputStream batched = data.openBatchedOutput();
+        DataOutputStream dataOutputStream = new DataOutputStream(batched != null ? batched : data.openOutput());
+        SRSender sender = new SRSender(
+                dataOutputStream, senderTimeOut * 1000,
+                Collections.emptyList(), Collections.emptyList(), Collections.emptyList()
+        );
+        if (!Settings.fec.equalsIgnoreCase("off")) sender.setParityCoder(new ParityCoder(Settings.fec));
+        if (batched != null) sender.setIdleAction(batched::send);
+        Thread ackListenerThread = new Thread(new ACKListener(data.in, sender), "ACK listener");
+        ackListenerThread.setDaemon(true);
+        ackListenerThread.start();
+
+        FileDigest digest = digestAlgorithm == null ? null : new FileDigest(digestAlgorithm);
+        try {
+            sender.send(digest == null ? in : digest.wrap(in));
+            dataOutputStream.close();
+            DataChunkC2S.writeEnd(data.out);
+            ackListenerThread.join();
+        } catch (IOException e) {
+            connection.closeDataConnection();
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            connection.closeDataConnection();
+            throw new InterruptedIOException("Interrupted while ending transfer");
+        }
+        if (digest != null) {
+            String request = digest.finish();
+            Response response = request(request);
+            if (response.returnCode != ReturnCode.SUCCESS) throw new ResponseException(request, response);
+        }
+    }
+
+    /**
+     * Make a request, and require it to succeed.
+     *
+     * @throws ResponseException If server didn't respond with {@code SUCCESS}.
+     */
+    protected Response expect(String request) throws IOException {
+        Response response = request(request);
+        if (response.returnCode != ReturnCode.SUCCESS) throw new ResponseException(request, response);
+        return response;
+    }
+
+    protected void writeLine(String line) throws IOException {
+        connection.writeRequest(line.split(" "));
+    }
+
+    /**
+     * Say goodbye, and close connections.
+     */
+    @Override
+    public void close() {
+        try {
+            writeLine("quit");
+        } catch (IOException ignored) {
+        }
+        connection.close();
+    }
+
+}
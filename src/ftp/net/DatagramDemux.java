@@ -0,0 +1,143 @@
+package ftp.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Channel shared by transfers with many peers at once, whose datagrams are told apart by their source.
+ * A thread receives every datagram, and queues it on the port opened for its source address and port.
+ * Datagrams of sources with no port open are discarded, like those of strangers, or stale ones of a transfer
+ * which is over. A port whose queue is full drops datagrams as a socket buffer would, so a transfer which
+ * is slow to read them doesn't hold up the others.
+ *
+ * Buffers of datagrams are recycled between the queue of a port and its free list,
+ * so receiving doesn't allocate per datagram.
+ */
+public class DatagramDemux {
+
+    protected static final int queueSize = 1024;    // Datagrams queued per port, which is a few windows.
+
+    protected final DatagramChannel channel;
+    protected final int maxDatagramSize;
+    protected final Map<SocketAddress, Port> ports = new ConcurrentHashMap<>();
+
+
+    /**
+     * Start receiving from a channel, on a thread of its own.
+     *
+     * @param channel         Bound channel, in blocking mode. Ports send through it too.
+     * @param maxDatagramSize Maximum size of a datagram.
+     */
+    public DatagramDemux(DatagramChannel channel, int maxDatagramSize) {
+        this.channel = channel;
+        this.maxDatagramSize = maxDatagramSize;
+        Thread receiver = new Thread(this::receive, "Datagram demux " + channel.socket().getLocalPort());
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    public DatagramChannel getChannel() { return channel; }
+
+    /**
+     * Open a port for datagrams of a peer.
+     *
+     * @param peer Address and port which the peer sends from.
+     * @return Opened port, which is to be closed once the transfer is over.
+     * @throws IOException If a port is already open for the peer.
+     */
+    public Port open(InetSocketAddress peer) throws IOException {
+        Port port = new Port(peer);
+        if (ports.putIfAbsent(peer, port) != null) throw new IOException("Already receiving from " + peer);
+        return port;
+    }
+
+    /**
+     * Receive datagrams, and queue each on the port of its source, until the channel is closed.
+     */
+    protected void receive() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(maxDatagramSize);
+        try {
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                buffer.clear();
+                Port port = ports.get(channel.receive(buffer));
+                if (port == null) continue;
+                buffer.flip();
+                port.offer(buffer);
+            }
+        } catch (ClosedChannelException ignored) {
+        } catch (IOException e) {
+            System.err.println("Failed receiving datagrams: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Datagrams of a peer, as they are queued by the demux.
+     */
+    public class Port implements Closeable {
+
+        protected final InetSocketAddress peer;
+        protected final ArrayBlockingQueue<ByteBuffer> queued = new ArrayBlockingQueue<>(queueSize);
+        protected final ArrayBlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(queueSize);
+
+        protected Port(InetSocketAddress peer) {
+            this.peer = peer;
+        }
+
+        protected void offer(ByteBuffer datagram) {
+            ByteBuffer copy = free.poll();
+            if (copy == null) copy = ByteBuffer.allocate(maxDatagramSize);     // At most queueSize of them.
+            copy.clear();
+            copy.put(datagram).flip();
+            if (!queued.offer(copy)) free.offer(copy);      // Dropped, as the queue is full.
+        }
+
+        /**
+         * Take the next datagram queued.
+         *
+         * @param dst           Buffer to put the datagram into.
+         * @param timeoutMillis Time to wait for a datagram, or 0 not to wait.
+         * @return The peer, or null if no datagram came in time.
+         * @throws InterruptedIOException If interrupted while waiting.
+         */
+        public SocketAddress receive(ByteBuffer dst, long timeoutMillis) throws InterruptedIOException {
+            ByteBuffer datagram;
+            try {
+                datagram = timeoutMillis == 0 ? queued.poll() : queued.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a datagram");
+            }
+            if (datagram == null) return null;
+            dst.put(datagram);
+            free.offer(datagram);
+            return peer;
+        }
+
+        /**
+         * Discard all datagrams queued so far.
+         */
+        public void drain() {
+            queued.drainTo(free);
+        }
+
+        /**
+         * Stop queueing datagrams of the peer. The channel is not closed, as it is shared.
+         */
+        @Override
+        public void close() {
+            ports.remove(peer, this);
+        }
+    }
+
+}
@@ -0,0 +1,198 @@
+package ftp.net;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Input stream which reads frames from datagrams, one datagram after another.
+ * Since datagrams hold whole frames, a lost datagram loses whole frames, and never breaks framing.
+ *
+ * On a non-blocking channel, all datagrams already queued are read without waiting, and an idle action
+ * runs only when it is about to wait. That lets a receiver batch its replies to everything queued.
+ *
+ * On an unconnected channel, datagrams can be limited to those of a peer, and others are discarded.
+ * The first datagram from the peer's address pins its port, so a transfer only reads from one sender.
+ * On a port of {@code DatagramDemux}, only the peer's datagrams are queued in the first place, and they are read
+ * like those of a non-blocking channel.
+ */
+public class DatagramInputStream extends InputStream {
+
+    protected static final int pollMillis = 10;        // How often idle action runs while waiting.
+
+    protected final DatagramChannel channel;            // Or null if reading a port.
+    protected final DatagramDemux.Port port;            // Or null if reading a channel.
+    protected final ByteBuffer buffer;
+    protected final Selector selector;                  // Only for non-blocking channels.
+    protected Flushable idleAction = null;
+    protected int timeoutMillis = 0;
+    protected volatile SocketAddress lastSource = null;
+    protected InetAddress peer = null;                  // Only datagrams from it are read, or any if null.
+
+
+    /**
+     * Create new stream.
+     *
+     * @param channel         Channel to receive from. If it is non-blocking, waiting is done with a selector.
+     * @param maxDatagramSize Maximum size of a datagram.
+     * @throws IOException If failed opening a selector.
+     */
+    public DatagramInputStream(DatagramChannel channel, int maxDatagramSize) throws IOException {
+        this.channel = channel;
+        this.port = null;
+        this.buffer = ByteBuffer.allocateDirect(maxDatagramSize);
+        buffer.flip();
+        if (channel.isBlocking()) {
+            selector = null;
+        } else {
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Create new stream of the datagrams a demux queues for a peer.
+     *
+     * @param port            Port of the peer. It is closed along with the stream.
+     * @param maxDatagramSize Maximum size of a datagram.
+     */
+    public DatagramInputStream(DatagramDemux.Port port, int maxDatagramSize) {
+        this.channel = null;
+        this.port = port;
+        this.buffer = ByteBuffer.allocateDirect(maxDatagramSize);
+        buffer.flip();
+        this.selector = null;
+    }
+
+    /**
+     * Set an action to run before waiting for datagrams, and periodically while waiting.
+     * Only for non-blocking channels and ports.
+     */
+    public void setIdleAction(Flushable idleAction) {
+        this.idleAction = idleAction;
+    }
+
+    /**
+     * Set time to wait for a datagram before throwing {@code SocketTimeoutException}, or 0 to wait forever.
+     * Only for non-blocking channels and ports.
+     */
+    public void setTimeout(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Read only datagrams from a host, like the client of a transfer, and discard others.
+     *
+     * @param peer Address of the host, or null to read datagrams from anywhere.
+     */
+    public void setPeer(InetAddress peer) {
+        this.peer = peer;
+    }
+
+    /**
+     * Source of the datagram read last.
+     */
+    public SocketAddress getLastSource() {
+        return lastSource;
+    }
+
+    /**
+     * Discard all datagrams queued so far, like stale ones from a previous transfer.
+     * Only for non-blocking channels and ports.
+     */
+    public void drain() throws IOException {
+        buffer.clear();
+        if (port != null) {
+            port.drain();
+        } else {
+            while (channel.receive(buffer) != null) buffer.clear();
+        }
+        buffer.flip();
+        buffer.limit(0);
+    }
+
+    protected void receive() throws IOException {
+        buffer.clear();
+        SocketAddress source = receiveFromPeer();
+        if (selector != null || port != null) {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (source == null) {
+                if (idleAction != null) idleAction.flush();
+                if (timeoutMillis > 0 && System.currentTimeMillis() >= deadline) {
+                    buffer.flip();
+                    buffer.limit(0);
+                    throw new SocketTimeoutException("No datagram in " + timeoutMillis + " ms");
+                }
+                if (port != null) {
+                    source = port.receive(buffer, pollMillis);
+                } else {
+                    selector.select(pollMillis);
+                    selector.selectedKeys().clear();
+                    source = receiveFromPeer();
+                }
+            }
+        }
+        buffer.flip();
+        lastSource = source;
+    }
+
+    /**
+     * Receive a datagram into buffer, discarding those which are not from the peer.
+     *
+     * @return Source of the datagram, or null if none is queued on a non-blocking channel or a port.
+     */
+    protected SocketAddress receiveFromPeer() throws IOException {
+        if (port != null) return port.receive(buffer, 0);
+        while (true) {
+            SocketAddress source = channel.receive(buffer);
+            if (source == null || isFromPeer(source)) return source;
+            buffer.clear();
+        }
+    }
+
+    protected boolean isFromPeer(SocketAddress source) {
+        if (peer == null) return true;
+        if (!(source instanceof InetSocketAddress) || !peer.equals(((InetSocketAddress) source).getAddress())) {
+            return false;
+        }
+        return lastSource == null || lastSource.equals(source);
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (!buffer.hasRemaining()) receive();
+        return buffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        while (!buffer.hasRemaining()) receive();
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    /**
+     * Close the selector, or the port. The channel is not closed, as it is shared with output.
+     */
+    @Override
+    public void close() throws IOException {
+        if (selector != null) selector.close();
+        if (port != null) port.close();
+    }
+
+}
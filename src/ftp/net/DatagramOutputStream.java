@@ -0,0 +1,99 @@
+package ftp.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Output stream which sends frames as datagrams. Bytes written are collected into a datagram,
+ * and sent either on every flush (a datagram per frame), or only when {@code send} is called
+ * (many small frames batched into a datagram). A single write is never split over two datagrams,
+ * so frames written in one call stay whole even if datagrams are lost.
+ *
+ * On a non-blocking channel, a full socket buffer is waited out with a selector, which is opened
+ * the first time it fills.
+ */
+public class DatagramOutputStream extends OutputStream {
+
+    protected final DatagramChannel channel;
+    protected final DatagramInputStream replyTo;   // Send to source of its last datagram, or to connected peer if null.
+    protected final boolean sendOnFlush;
+    protected final ByteBuffer buffer;
+    protected Selector writeSelector = null;       // Only once socket buffer was full on a non-blocking channel.
+
+
+    /**
+     * Create new stream.
+     *
+     * @param channel         Channel to send through.
+     * @param replyTo         If not null, datagrams are sent to the source of the last datagram received by it.
+     *                        Otherwise {@code channel} must be connected.
+     * @param maxDatagramSize Maximum size of a datagram.
+     * @param sendOnFlush     true to send a datagram on every flush, false to send only on {@code send}.
+     */
+    public DatagramOutputStream(DatagramChannel channel, DatagramInputStream replyTo,
+                                int maxDatagramSize, boolean sendOnFlush) {
+        this.channel = channel;
+        this.replyTo = replyTo;
+        this.sendOnFlush = sendOnFlush;
+        this.buffer = ByteBuffer.allocateDirect(maxDatagramSize);
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) send();
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (len > buffer.capacity()) throw new IOException("Frame of " + len + " bytes doesn't fit a datagram");
+        if (len > buffer.remaining()) send();
+        buffer.put(b, off, len);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (sendOnFlush) send();
+    }
+
+    /**
+     * Send bytes collected so far as a datagram.
+     */
+    public synchronized void send() throws IOException {
+        if (buffer.position() == 0) return;
+        buffer.flip();
+        SocketAddress target = replyTo == null ? null : replyTo.getLastSource();
+        while (buffer.hasRemaining()) {
+            int sent = target == null ? channel.write(buffer) : channel.send(buffer, target);
+            if (sent == 0) awaitWritable();     // Socket buffer is full on a non-blocking channel.
+        }
+        buffer.clear();
+    }
+
+    protected void awaitWritable() throws IOException {
+        if (writeSelector == null) {
+            writeSelector = Selector.open();
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+        }
+        writeSelector.select(DatagramInputStream.pollMillis);
+        writeSelector.selectedKeys().clear();
+    }
+
+    /**
+     * Send what is left, and close the selector if any. The channel is not closed, as it is shared with input.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            send();
+        } finally {
+            if (writeSelector != null) writeSelector.close();
+        }
+    }
+
+}
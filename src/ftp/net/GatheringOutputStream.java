@@ -0,0 +1,93 @@
+package ftp.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Output stream which batches frames, and writes many of them to a channel with a single gathering write.
+ * Bytes written are collected into direct buffers reused across frames, a frame per buffer, and a flush ends
+ * the frame. Frames are written out only when {@code send} is called, or when all buffers are filled.
+ * A frame larger than a buffer spills over into the next one. Like {@code DatagramOutputStream} batching
+ * small frames into a datagram, this saves a system call per frame.
+ */
+public class GatheringOutputStream extends OutputStream {
+
+    protected final GatheringByteChannel channel;
+    protected final ByteBuffer[] buffers;
+    protected int current = 0;          // Index of the buffer being filled.
+
+
+    /**
+     * Create new stream.
+     *
+     * @param channel    Channel to write to. It must be in blocking mode.
+     * @param bufferSize Size of a buffer, which is better to fit the largest frame.
+     * @param numBuffers Number of buffers, which is the number of frames written at once.
+     */
+    public GatheringOutputStream(GatheringByteChannel channel, int bufferSize, int numBuffers) {
+        this.channel = channel;
+        this.buffers = new ByteBuffer[numBuffers];
+        for (int i = 0; i < numBuffers; i++) buffers[i] = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        if (!buffers[current].hasRemaining()) next();
+        buffers[current].put((byte) b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ByteBuffer buffer = buffers[current];
+            if (!buffer.hasRemaining()) {
+                next();
+                continue;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * End the frame. It is not written until {@code send} is called, or buffers are filled.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (buffers[current].position() > 0) next();
+    }
+
+    /**
+     * Write frames collected so far, with a single gathering write unless the channel takes them in part.
+     */
+    public synchronized void send() throws IOException {
+        int count = buffers[current].position() > 0 ? current + 1 : current;
+        if (count == 0) return;
+        for (int i = 0; i < count; i++) buffers[i].flip();
+        ByteBuffer last = buffers[count - 1];
+        while (last.hasRemaining()) channel.write(buffers, 0, count);
+        for (int i = 0; i < count; i++) buffers[i].clear();
+        current = 0;
+    }
+
+    protected void next() throws IOException {
+        if (current + 1 == buffers.length) {
+            send();
+        } else {
+            current++;
+        }
+    }
+
+    /**
+     * Send what is left. The channel is not closed, as it is shared with input.
+     */
+    @Override
+    public void close() throws IOException {
+        send();
+    }
+
+}
@@ -0,0 +1,170 @@
+package ftp.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Output stream impaired by {@code NetEmulator}. Bytes written are collected until flush,
+ * and then impaired as a single frame. Surviving frames are delivered to the underlying stream
+ * by a separate thread when they are due. A reliable stream only delays frames, and delivers
+ * each of them once and in order, like TCP does over a lossy link.
+ */
+class ImpairedOutputStream extends OutputStream implements Runnable {
+
+    /**
+     * A frame waiting for delivery.
+     */
+    protected static class Frame implements Comparable<Frame> {
+        final byte[] bytes;
+        final long due;         // Time of delivery, in nanoseconds.
+        final long order;       // Breaks ties between frames due at the same time.
+
+        Frame(byte[] bytes, long due, long order) {
+            this.bytes = bytes;
+            this.due = due;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Frame other) {
+            if (due != other.due) return Long.compare(due, other.due);
+            return Long.compare(order, other.order);
+        }
+    }
+
+    protected final NetEmulator emulator;
+    protected final OutputStream out;
+    protected final Random random;
+    protected final int protectedBytes;        // Leading bytes of a frame which are never corrupted.
+    protected final boolean reliable;           // Frames are only delayed, neither lost, duplicated nor corrupted.
+    protected final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    protected final PriorityQueue<Frame> queue = new PriorityQueue<>();
+    protected final Thread deliverer;
+    protected long linkFreeAt = 0;              // Time when the emulated link finishes sending queued frames.
+    protected long lastDue = 0;                 // Time of delivery of the last frame submitted.
+    protected long numSubmitted = 0;
+    protected boolean closed = false;
+    protected volatile IOException exception = null;
+
+
+    ImpairedOutputStream(NetEmulator emulator, OutputStream out, Random random, int protectedBytes, boolean reliable) {
+        this.emulator = emulator;
+        this.out = out;
+        this.random = random;
+        this.protectedBytes = protectedBytes;
+        this.reliable = reliable;
+        deliverer = new Thread(this, "NetEmulator");
+        deliverer.setDaemon(true);
+        deliverer.start();
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        checkException();
+        pending.write(b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        checkException();
+        pending.write(b, off, len);
+    }
+
+    /**
+     * Ends the current frame, and submits it to the emulated link.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        checkException();
+        if (pending.size() == 0) return;
+        byte[] frame = pending.toByteArray();
+        pending.reset();
+
+        // Draw the same amount of random numbers for every frame, to keep runs reproducible.
+        boolean drop = random.nextDouble() < emulator.lossRate && !reliable;
+        boolean duplicate = random.nextDouble() < emulator.dupRate && !reliable;
+        boolean reorder = random.nextDouble() < emulator.reorderRate && !reliable;
+        boolean corrupt = random.nextDouble() < emulator.corruptRate && frame.length > protectedBytes && !reliable;
+        long jitter = emulator.jitterMillis > 0 ? random.nextInt(emulator.jitterMillis + 1) : 0;
+        int bit = random.nextInt(Integer.MAX_VALUE);
+        emulator.count(drop, duplicate, reorder, corrupt);
+
+        // Serialization on the emulated link.
+        long now = System.nanoTime();
+        linkFreeAt = Math.max(now, linkFreeAt);
+        if (emulator.bandwidth > 0) {
+            linkFreeAt += frame.length * 1_000_000_000L / emulator.bandwidth;
+        }
+        if (drop) return;
+
+        if (corrupt) {
+            int bitIdx = protectedBytes * 8 + bit % ((frame.length - protectedBytes) * 8);
+            frame[bitIdx / 8] ^= (byte) (1 << (bitIdx % 8));
+        }
+        long delayMillis = emulator.delayMillis + jitter;
+        if (reorder) delayMillis += Math.max(1, emulator.delayMillis + emulator.jitterMillis);
+        long due = linkFreeAt + delayMillis * 1_000_000;
+        if (reliable) due = Math.max(due, lastDue);     // Jitter doesn't let a frame overtake another.
+        lastDue = due;
+
+        queue.add(new Frame(frame, due, numSubmitted++));
+        if (duplicate) queue.add(new Frame(frame, due, numSubmitted++));
+        notifyAll();
+    }
+
+    /**
+     * Delivers pending frames, and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            flush();
+            closed = true;
+            notifyAll();
+        }
+        try {
+            deliverer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        out.close();
+        checkException();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Frame frame;
+                synchronized (this) {
+                    while (true) {
+                        frame = queue.peek();
+                        if (frame == null) {
+                            if (closed) return;
+                            wait();
+                            continue;
+                        }
+                        long remaining = frame.due - System.nanoTime();
+                        if (remaining <= 0) break;
+                        wait(remaining / 1_000_000, (int) (remaining % 1_000_000));
+                    }
+                    queue.poll();
+                }
+                out.write(frame.bytes);
+                out.flush();
+            }
+        } catch (IOException e) {
+            exception = e;
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    protected void checkException() throws IOException {
+        if (exception != null) throw new IOException(exception.getMessage(), exception);
+    }
+
+}
@@ -0,0 +1,108 @@
+package ftp.net;
+
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Deterministic network impairment emulator. Wraps output streams of data channels,
+ * and impairs each frame written to them with seeded random loss, delay, jitter, reordering,
+ * duplication, bandwidth limit and bit flips. A frame is everything written between two flushes,
+ * which is a single data chunk or a single ACK.
+ *
+ * Since it only wraps streams, it works over loopback sockets as well as over in-process pipes.
+ * Given the same seed, the same sequence of frames is impaired in the same way.
+ */
+public class NetEmulator {
+
+    /* Impairment parameters */
+    protected long seed = 0;
+    protected double lossRate = 0;          // Probability that a frame is dropped.
+    protected double dupRate = 0;           // Probability that a frame is delivered twice.
+    protected double reorderRate = 0;       // Probability that a frame is held back behind later frames.
+    protected double corruptRate = 0;       // Probability that a bit of a frame is flipped.
+    protected int delayMillis = 0;          // One-way delay.
+    protected int jitterMillis = 0;         // Maximum random deviation added to the delay.
+    protected long bandwidth = 0;           // Bytes per second, or 0 for unlimited.
+
+    /* Statistics */
+    protected long numFrames = 0;
+    protected long numDropped = 0;
+    protected long numDuplicated = 0;
+    protected long numReordered = 0;
+    protected long numCorrupted = 0;
+
+    protected int numStreams = 0;           // Number of wrapped streams, used to derive their seeds.
+
+
+    /**
+     * Create new emulator from a specification like {@code "loss=0.01 delay=40 jitter=10 seed=7"}.
+     * Keys are {@code seed}, {@code loss}, {@code dup}, {@code reorder}, {@code corrupt}, {@code delay},
+     * {@code jitter} and {@code bandwidth}. Rates are probabilities, times are in milliseconds,
+     * and bandwidth is in bytes per second. Entries are separated by spaces or commas.
+     *
+     * @param spec Specification of impairments.
+     * @throws IllegalArgumentException If specification is malformed.
+     */
+    public NetEmulator(String spec) {
+        for (String entry : spec.trim().split("[ ,]+")) {
+            if (entry.isEmpty()) continue;
+            int i = entry.indexOf('=');
+            if (i == -1) throw new IllegalArgumentException("Expected key=value: " + entry);
+            String key = entry.substring(0, i).toLowerCase();
+            String value = entry.substring(i + 1);
+            try {
+                switch (key) {
+                    case "seed": seed = Long.parseLong(value); break;
+                    case "loss": lossRate = Double.parseDouble(value); break;
+                    case "dup": dupRate = Double.parseDouble(value); break;
+                    case "reorder": reorderRate = Double.parseDouble(value); break;
+                    case "corrupt": corruptRate = Double.parseDouble(value); break;
+                    case "delay": delayMillis = Integer.parseInt(value); break;
+                    case "jitter": jitterMillis = Integer.parseInt(value); break;
+                    case "bandwidth": bandwidth = Long.parseLong(value); break;
+                    default: throw new IllegalArgumentException("Unknown impairment: " + key);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed value: " + entry);
+            }
+        }
+    }
+
+    /**
+     * Wrap a stream so that frames written to it are impaired.
+     * Each wrapped stream draws from its own random sequence, derived from the seed.
+     *
+     * @param out            Stream to deliver impaired frames to.
+     * @param protectedBytes Number of leading bytes of each frame which are never corrupted.
+     *                       Headers are protected this way, so that corruption can't break framing.
+     * @return Impaired stream. Closing it delivers pending frames, then closes {@code out}.
+     */
+    public synchronized OutputStream wrap(OutputStream out, int protectedBytes) {
+        return new ImpairedOutputStream(this, out, new Random(seed + numStreams++), protectedBytes, false);
+    }
+
+    /**
+     * Wrap a stream of a transfer which can't recover lost or corrupt frames, so that frames written to it
+     * are only delayed, by delay, jitter and bandwidth, and delivered once and in order, like TCP does.
+     *
+     * @param out Stream to deliver delayed frames to.
+     * @return Delayed stream. Closing it delivers pending frames, then closes {@code out}.
+     */
+    public synchronized OutputStream wrapReliable(OutputStream out) {
+        return new ImpairedOutputStream(this, out, new Random(seed + numStreams++), 0, true);
+    }
+
+    synchronized void count(boolean dropped, boolean duplicated, boolean reordered, boolean corrupted) {
+        numFrames++;
+        if (dropped) numDropped++;
+        if (duplicated) numDuplicated++;
+        if (reordered) numReordered++;
+        if (corrupted) numCorrupted++;
+    }
+
+    public synchronized String toString() {
+        return numFrames + " frames, " + numDropped + " dropped, " + numDuplicated + " duplicated, " +
+                numReordered + " reordered, " + numCorrupted + " corrupted";
+    }
+
+}
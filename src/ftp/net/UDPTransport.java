@@ -0,0 +1,33 @@
+package ftp.net;
+
+import ftp.Settings;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Common setup of UDP data channels. Chunks and ACKs are sent as datagrams, one chunk per datagram
+ * so that a datagram fits a typical MTU, and ACKs batched as many as fit.
+ */
+public final class UDPTransport {
+
+    public static final int maxDatagramSize = 2048;     // Fits the largest chunk with its header.
+
+    private UDPTransport() {
+    }
+
+    /**
+     * Open a datagram channel with socket buffers sized for a full window in flight and bursts of ACKs.
+     *
+     * @return Opened channel, in blocking mode.
+     * @throws IOException If failed opening the channel.
+     */
+    public static DatagramChannel open() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, Settings.udpBufferSize);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, Settings.udpBufferSize);
+        return channel;
+    }
+
+}
@@ -0,0 +1,18 @@
+package ftp.server;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a stored file can't be read back whole, like one whose manifest is malformed,
+ * or lists a chunk which is missing from the store. It is a fault of the file, not of the session,
+ * so a client asking for the file is told it is unavailable.
+ */
+public class CorruptFileException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CorruptFileException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,436 @@
+package ftp.server;
+
+import ftp.Abortable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Storage which keeps each distinct piece of contents once, however many files have it.
+ *
+ * Received contents are cut into chunks at boundaries found by the contents themselves, with a rolling
+ * gear hash, so that an insertion only changes the chunks around it, and the rest of a file still matches
+ * an earlier version of it. Each chunk is stored in the chunk store under its SHA-256, and a file is stored
+ * as a manifest listing its chunks. A chunk already in the store is not written again, which is looked up
+ * as the chunk is received. New chunks are written by a separate thread, as a file per chunk costs more than
+ * receiving it. Files which are not manifests, like those put in place by hand, are read as they are.
+ *
+ * Chunks are never removed, even when no manifest refers to them any more, nor those of an upload given up.
+ */
+public class DedupStorage extends PlainStorage {
+
+    protected static final String magic = "ftp-manifest ";
+    // Chunks are large enough for a file per chunk not to cost more than the chunk itself.
+    protected static final int minChunkSize = 16 * 1024;
+    protected static final int maxChunkSize = 256 * 1024;
+    protected static final long boundaryMask = 0xffff000000000000L;     // 16 bits, for chunks of 64 KB on average.
+    protected static final long[] gear = new long[256];                 // Random value per byte value.
+    protected static final int writeBehindDepth = 16;                   // Chunks waiting to be written, at most.
+
+    static {
+        Random random = new Random(0x5eed);         // Fixed, so that boundaries stay the same across runs.
+        for (int i = 0; i < gear.length; i++) gear[i] = random.nextLong();
+    }
+
+    protected final File store;
+    protected final String partSuffix = "." + ProcessHandle.current().pid() + ".part";
+    protected final AtomicLong numParts = new AtomicLong();  // Tells apart chunks being written at the same time.
+
+
+    /**
+     * Create new storage.
+     *
+     * @param store Directory of the chunk store. It is created if missing.
+     * @throws IOException If failed creating the directory.
+     */
+    public DedupStorage(File store) throws IOException {
+        this.store = store;
+        for (int i = 0; i < 256; i++) Files.createDirectories(new File(store, String.format("%02x", i)).toPath());
+    }
+
+    @Override
+    public OutputStream create(File file) throws IOException {
+        return new ChunkingOutputStream(file);
+    }
+
+    @Override
+    public InputStream open(File file, long offset, long length) throws IOException {
+        Manifest manifest = Manifest.read(file);
+        if (manifest == null) return super.open(file, offset, length);
+        ManifestInputStream in = new ManifestInputStream(manifest, file, offset);
+        in.checkChunks(length);
+        return new RangeInputStream(in, length);
+    }
+
+    @Override
+    public long length(File file) throws IOException {
+        long length = Manifest.readLength(file);
+        return length == -1 ? file.length() : length;
+    }
+
+    @Override
+    public boolean isPlain(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return !Arrays.equals(in.readNBytes(magic.length()), magic.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * @return File of a chunk in the store, under a directory named by the first byte of its hash,
+     * so that no directory grows too large.
+     */
+    protected File chunkFile(String hash) {
+        return new File(new File(store, hash.substring(0, 2)), hash);
+    }
+
+    /**
+     * List of chunks of a file, in order. It is stored as text, a line per chunk after a header.
+     * <pre>
+     * ftp-manifest &lt;length&gt;
+     * &lt;sha-256&gt; &lt;size&gt;
+     * ...
+     * </pre>
+     */
+    protected static class Manifest {
+        long length = 0;
+        final List<String> hashes = new ArrayList<>();
+        final List<Integer> sizes = new ArrayList<>();
+
+        void add(String hash, int size) {
+            hashes.add(hash);
+            sizes.add(size);
+            length += size;
+        }
+
+        /**
+         * @return Manifest stored in a file, or null if the file is not a manifest.
+         * @throws IOException If failed reading the file, or it is not a well-formed manifest.
+         */
+        static Manifest read(File file) throws IOException {
+            try (BufferedReader reader = openReader(file)) {
+                long length = readHeader(reader, file);
+                if (length == -1) return null;
+                Manifest manifest = new Manifest();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int space = line.indexOf(' ');
+                    String hash = space == -1 ? "" : line.substring(0, space);
+                    if (hash.length() != 64 || !hash.chars().allMatch(HexFormat::isHexDigit)) {
+                        throw new CorruptFileException("Malformed line in manifest " + file + ": " + line);
+                    }
+                    manifest.add(hash, parseSize(line.substring(space + 1), file));
+                }
+                if (manifest.length != length) {
+                    throw new CorruptFileException("Manifest " + file + " lists " + manifest.length + " bytes of " + length);
+                }
+                return manifest;
+            }
+        }
+
+        /**
+         * Read only the header, which is all that telling the length takes.
+         *
+         * @return Length of contents listed by a manifest, or -1 if the file is not a manifest.
+         * @throws IOException If failed reading the file, or its header is malformed.
+         */
+        static long readLength(File file) throws IOException {
+            try (BufferedReader reader = openReader(file)) {
+                return readHeader(reader, file);
+            }
+        }
+
+        static BufferedReader openReader(File file) throws IOException {
+            return new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.US_ASCII));
+        }
+
+        /**
+         * Read the magic first, so that a plain file without line breaks is not read through.
+         */
+        static long readHeader(BufferedReader reader, File file) throws IOException {
+            char[] header = new char[magic.length()];
+            if (reader.read(header) != header.length || !new String(header).equals(magic)) return -1;
+            String length = reader.readLine();
+            try {
+                return Long.parseLong(length == null ? "" : length);
+            } catch (NumberFormatException e) {
+                throw new CorruptFileException("Malformed header of manifest " + file);
+            }
+        }
+
+        static int parseSize(String size, File file) throws IOException {
+            try {
+                int value = Integer.parseInt(size);
+                if (value < 0 || value > maxChunkSize) throw new NumberFormatException();
+                return value;
+            } catch (NumberFormatException e) {
+                throw new CorruptFileException("Malformed chunk size in manifest " + file + ": " + size);
+            }
+        }
+
+        /**
+         * Write to a file at once, so that the file never holds a partial manifest.
+         */
+        void write(File file) throws IOException {
+            StringBuilder text = new StringBuilder(magic).append(length).append('\n');
+            for (int i = 0; i < hashes.size(); i++) text.append(hashes.get(i)).append(' ').append(sizes.get(i)).append('\n');
+            Path temp = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(),
+                    "." + file.getName() + ".", ".manifest");
+            Files.write(temp, text.toString().getBytes(StandardCharsets.US_ASCII));
+            Files.move(temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Stream which cuts contents into chunks, and stores those not yet in the store.
+     * The manifest is written when it is closed, after all of its chunks. One which is aborted
+     * stops its writer, and writes no manifest.
+     */
+    protected class ChunkingOutputStream extends OutputStream implements Runnable, Abortable {
+
+        protected final File file;
+        protected final Manifest manifest = new Manifest();
+        protected final MessageDigest sha256;
+        protected final Set<String> queued = new HashSet<>();  // New chunks, which may repeat in the file.
+        protected final BlockingQueue<Chunk> newChunks = new ArrayBlockingQueue<>(writeBehindDepth + 1);
+        protected final BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<>(writeBehindDepth);
+        protected final Thread writer;
+        protected byte[] chunk;                 // Being filled. Handed over with its buffer once cut.
+        protected int size = 0;
+        protected long hash = 0;                // Rolling gear hash of the last 64 bytes.
+        protected volatile IOException exception = null;
+        protected boolean closed = false;
+
+        protected ChunkingOutputStream(File file) {
+            this.file = file;
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError(e);    // Every JVM has SHA-256.
+            }
+            for (int i = 0; i < writeBehindDepth; i++) freeBuffers.add(new byte[maxChunkSize]);
+            chunk = freeBuffers.remove();
+            writer = new Thread(this, "ChunkWriter");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                // No boundary is taken before the minimum size, so bytes which can't reach the hash there are copied.
+                int skipTo = minChunkSize - Long.SIZE;
+                if (size < skipTo) {
+                    int n = Math.min(len, skipTo - size);
+                    System.arraycopy(b, off, chunk, size, n);
+                    size += n;
+                    off += n;
+                    len -= n;
+                    continue;
+                }
+                byte value = b[off++];
+                len--;
+                chunk[size++] = value;
+                hash = (hash << 1) + gear[value & 0xff];
+                if ((hash & boundaryMask) == 0 && size >= minChunkSize || size == maxChunkSize) cut();
+            }
+        }
+
+        /**
+         * End the chunk, and hand it over to the writer unless the store has it already.
+         */
+        protected void cut() throws IOException {
+            if (exception != null) throw exception;
+            sha256.update(chunk, 0, size);
+            String name = HexFormat.of().formatHex(sha256.digest());
+            if (!queued.contains(name) && !chunkFile(name).exists()) {
+                queued.add(name);
+                try {
+                    newChunks.put(new Chunk(name, chunk, size));
+                    chunk = freeBuffers.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while storing chunks");
+                }
+            }
+            manifest.add(name, size);
+            size = 0;
+            hash = 0;
+        }
+
+        /**
+         * Write chunks handed over, each to a file of its own, moved into place once complete.
+         * Another upload may store the same chunk meanwhile, just as well.
+         */
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Chunk next = newChunks.take();
+                    if (next.data == null) break;
+                    try {
+                        if (exception == null) {
+                            File chunkFile = chunkFile(next.name);
+                            File temp = new File(chunkFile.getParentFile(),
+                                    next.name + "." + numParts.incrementAndGet() + partSuffix);
+                            try (OutputStream out = new FileOutputStream(temp)) {
+                                out.write(next.data, 0, next.size);
+                            }
+                            Files.move(temp.toPath(), chunkFile.toPath(),
+                                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        }
+                    } catch (IOException e) {
+                        exception = e;          // Chunks after it are dropped, and the file is never stored.
+                    }
+                    freeBuffers.add(next.data);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                if (size > 0) cut();
+                newChunks.put(new Chunk(null, null, 0));
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while storing chunks");
+            } finally {
+                writer.interrupt();     // Once failed, so that the writer doesn't wait for chunks forever.
+            }
+            if (exception != null) throw exception;
+            manifest.write(file);
+            System.out.println("  Stored " + queued.size() + " new of " + manifest.hashes.size() + " chunks.");
+        }
+
+        /**
+         * Stop the writer, and drop the chunks waiting for it. Chunks written already stay in the store.
+         */
+        @Override
+        public void abort() {
+            if (closed) return;
+            closed = true;
+            writer.interrupt();
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            newChunks.clear();
+            freeBuffers.clear();
+            chunk = null;
+        }
+    }
+
+    /**
+     * Chunk waiting to be written, or the end of them if {@code data} is null.
+     */
+    protected static class Chunk {
+        final String name;
+        final byte[] data;
+        final int size;
+
+        Chunk(String name, byte[] data, int size) {
+            this.name = name;
+            this.data = data;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Stream of contents of a file, read from the chunks its manifest lists.
+     * A chunk missing from the store is told as a corrupt file, whether before reading or on the way.
+     */
+    protected class ManifestInputStream extends InputStream {
+
+        protected final Manifest manifest;
+        protected final File file;              // Of the manifest, to tell which file is corrupt.
+        protected int index = 0;                // Of the chunk being read.
+        protected InputStream current = null;   // Chunk being read, or null if none is open.
+        protected long skip;                    // Bytes to skip in the first chunk read.
+
+        protected ManifestInputStream(Manifest manifest, File file, long offset) {
+            this.manifest = manifest;
+            this.file = file;
+            while (index < manifest.sizes.size() && offset >= manifest.sizes.get(index)) {
+                offset -= manifest.sizes.get(index++);
+            }
+            this.skip = offset;
+        }
+
+        /**
+         * Check that the chunks of a range are in the store with their sizes, so that a corrupt file
+         * is told before any of it is sent, rather than partway.
+         *
+         * @param length Number of bytes to be read from the offset on.
+         * @throws CorruptFileException If a chunk is missing, or its size is not what the manifest lists.
+         */
+        protected void checkChunks(long length) throws CorruptFileException {
+            long end = length > Long.MAX_VALUE - skip ? Long.MAX_VALUE : skip + length;    // From the first chunk on.
+            for (int i = index; i < manifest.hashes.size() && end > 0; i++) {
+                File chunk = chunkFile(manifest.hashes.get(i));
+                int size = manifest.sizes.get(i);
+                if (!chunk.isFile()) {
+                    throw new CorruptFileException("Missing chunk " + manifest.hashes.get(i) + " of " + file);
+                } else if (chunk.length() != size) {
+                    throw new CorruptFileException("Chunk " + manifest.hashes.get(i) + " of " + file + " is "
+                            + chunk.length() + " bytes, not " + size);
+                }
+                end -= size;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (true) {
+                if (current == null) {
+                    if (index == manifest.hashes.size()) return -1;
+                    String hash = manifest.hashes.get(index++);
+                    try {
+                        current = new FileInputStream(chunkFile(hash));
+                    } catch (FileNotFoundException e) {
+                        throw new CorruptFileException("Missing chunk " + hash + " of " + file);
+                    }
+                    current.skipNBytes(skip);
+                    skip = 0;
+                }
+                int n = current.read(b, off, len);
+                if (n > 0) return n;
+                current.close();
+                current = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) current.close();
+            current = null;
+        }
+    }
+
+}
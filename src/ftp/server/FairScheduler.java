@@ -0,0 +1,178 @@
+package ftp.server;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shares a rate-limited link among concurrent transfers with deficit round robin.
+ *
+ * Transfers take turns in a ring. On its turn, a transfer earns a quantum of bytes, and sends
+ * chunks as long as it has earned enough. Then it goes to the back of the ring, keeping what is left
+ * for its next turn. So a bulk transfer can't hold the link for more than a quantum while others wait,
+ * and a small transfer starting amid bulk ones waits for at most a turn of each.
+ *
+ * Only transfers which keep sending stay in the ring. One which stops for a while, like when it waits
+ * for the disk or for a slow client, is taken out by those waiting for their turn, and loses what it has
+ * earned, as deficit round robin does with a queue which runs empty. It joins at the back when it sends again.
+ *
+ * Without a rate limit there is no link to share, and transfers never wait.
+ */
+public class FairScheduler {
+
+    /**
+     * A transfer scheduled on the link. It joins the ring when it first sends,
+     * and must be closed when the transfer is over, so that it leaves the ring.
+     */
+    public class Flow implements Closeable {
+        protected long deficit = 0;         // Bytes earned but not yet sent.
+        protected boolean queued = false;   // In the ring.
+        protected boolean earned = false;   // Earned a quantum on the current turn.
+        protected volatile boolean sending = false;     // In send, waiting for its turn or for the link.
+        protected volatile long sentAt = 0;             // When it last returned from send, by the clock of the link.
+
+        /**
+         * Wait for the turn of this transfer, then for the link to carry a chunk.
+         *
+         * @param bytes Size of the chunk.
+         * @throws InterruptedIOException If interrupted while waiting.
+         */
+        public void send(int bytes) throws IOException {
+            send(bytes, null);
+        }
+
+        /**
+         * Wait for the turn of this transfer, then for the link to carry a chunk. If it has to wait,
+         * an action runs first, like sending what a stream below batches.
+         *
+         * @param bytes      Size of the chunk.
+         * @param beforeWait Action to run before waiting, or null.
+         * @throws InterruptedIOException If interrupted while waiting.
+         * @throws IOException            If the action failed.
+         */
+        public void send(int bytes, Flushable beforeWait) throws IOException {
+            if (link.getRate() == 0) return;
+            lock.lock();
+            try {
+                sending = true;
+                if (!queued) {
+                    ring.addLast(this);
+                    queued = true;
+                }
+                while (true) {
+                    Flow head = ring.peekFirst();
+                    if (head == this) {
+                        if (deficit >= bytes) break;
+                        if (!earned) {
+                            deficit += quantum;
+                            earned = true;
+                            continue;
+                        }
+                        // Turn is over. Let the next one go.
+                        earned = false;
+                        ring.addLast(ring.pollFirst());
+                        turnChanged.signalAll();
+                        continue;           // It may be the next one again.
+                    }
+                    if (head.isIdle()) {
+                        head.leave();       // Its turn would hold up the ring for nothing.
+                        continue;
+                    }
+                    if (beforeWait != null) {
+                        // Not under the lock, as it may block on the network.
+                        Flushable action = beforeWait;
+                        beforeWait = null;
+                        lock.unlock();
+                        try {
+                            action.flush();
+                        } finally {
+                            lock.lock();
+                        }
+                        continue;
+                    }
+                    turnChanged.await(idleNanos, TimeUnit.NANOSECONDS);
+                }
+                deficit -= bytes;
+            } catch (InterruptedException e) {
+                sending = false;
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for turn");
+            } catch (IOException e) {
+                sending = false;
+                throw e;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                link.acquire(bytes, beforeWait);    // Only the one on its turn gets here.
+            } finally {
+                sentAt = link.now();
+                sending = false;
+            }
+        }
+
+        /**
+         * @return true if it hasn't been sending for a while.
+         */
+        protected boolean isIdle() {
+            return !sending && link.now() - sentAt > idleNanos;
+        }
+
+        /**
+         * Leave the ring, with nothing earned kept. Called with the lock held.
+         */
+        protected void leave() {
+            ring.remove(this);
+            queued = false;
+            earned = false;
+            deficit = 0;
+            turnChanged.signalAll();
+        }
+
+        /**
+         * Leave the ring.
+         */
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                if (queued) leave();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    protected static final long idleNanos = TimeUnit.MILLISECONDS.toNanos(10);    // Pause after which a flow leaves.
+
+    protected final TokenBucket link;
+    protected final int quantum;
+    protected final ArrayDeque<Flow> ring = new ArrayDeque<>();     // Head is on its turn.
+    protected final ReentrantLock lock = new ReentrantLock();
+    protected final Condition turnChanged = lock.newCondition();
+
+
+    /**
+     * Create new scheduler.
+     *
+     * @param link    Rate limit of the link.
+     * @param quantum Bytes a transfer earns per turn. It should be at least a chunk.
+     */
+    public FairScheduler(TokenBucket link, int quantum) {
+        this.link = link;
+        this.quantum = quantum;
+    }
+
+    /**
+     * Start scheduling a transfer.
+     */
+    public Flow open() {
+        return new Flow();
+    }
+
+}
@@ -0,0 +1,160 @@
+package ftp.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of contents of files served by {@code GET}, kept off-heap in direct buffers.
+ *
+ * Entries are evicted in least recently used order to keep total size within a budget,
+ * and files larger than a limit are never cached. Each lookup checks modification time and
+ * length of the file, so a file modified after it was cached is read again.
+ *
+ * A file is only admitted on its second request since it dropped out, so a scan through many files
+ * read once doesn't evict the ones read over and over. Files requested once are remembered in a bounded
+ * list of candidates, which holds names only.
+ *
+ * It is thread-safe. Files are read outside of the lock, so a slow read doesn't block hits.
+ * Evicted buffers are never freed explicitly, as transfers may still be reading them,
+ * and direct memory is reclaimed once they become unreachable.
+ */
+public class FileCache {
+
+    protected static class Entry {
+        final ByteBuffer content;       // Read-only. Hand out duplicates only.
+        final long lastModified;
+        final long length;
+
+        Entry(ByteBuffer content, long lastModified, long length) {
+            this.content = content;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+
+    protected final long capacity;
+    protected final long maxFileSize;
+    protected static final int maxCandidates = 4096;
+
+    protected final LinkedHashMap<File, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);  // In access order.
+    protected final LinkedHashMap<File, Boolean> candidates = new LinkedHashMap<>(16, 0.75f, true);  // Requested once.
+    protected long size = 0;
+    protected long hits = 0;
+    protected long misses = 0;
+
+
+    /**
+     * Create new cache.
+     *
+     * @param capacity    Budget of total size of cached contents, in bytes.
+     * @param maxFileSize Size of the largest file to cache, in bytes.
+     */
+    public FileCache(long capacity, long maxFileSize) {
+        this.capacity = capacity;
+        this.maxFileSize = Math.min(maxFileSize, Math.min(capacity, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Get contents of a file, reading it into the cache if it is not cached or is outdated.
+     *
+     * @param file File to get. It must be a canonical path, so that each file has a single entry.
+     * @return Contents positioned at 0, private to the caller. Or null if the file is too large
+     * to be cached, is requested for the first time, or was modified while being read.
+     * Then the caller should read the file itself.
+     * @throws IOException If failed reading the file.
+     */
+    public ByteBuffer get(File file) throws IOException {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        synchronized (this) {
+            Entry entry = entries.get(file);
+            if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+                hits++;
+                return entry.content.duplicate();
+            }
+            misses++;
+            if (entry != null) {
+                remove(file);           // Outdated, but it was requested before, so it is read again.
+            } else if (length > maxFileSize || !admit(file)) {
+                return null;
+            }
+        }
+        if (length > maxFileSize) return null;
+
+        ByteBuffer content = read(file, (int) length);
+        if (content == null || file.lastModified() != lastModified) return null;
+        Entry entry = new Entry(content.asReadOnlyBuffer(), lastModified, length);
+
+        synchronized (this) {
+            Entry old = entries.put(file, entry);      // Another thread may have read it at the same time.
+            if (old != null) size -= old.length;
+            size += length;
+            evict();
+        }
+        return entry.content.duplicate();
+    }
+
+    /**
+     * Drop a file from the cache, like when it is about to be overwritten.
+     */
+    public synchronized void invalidate(File file) {
+        remove(file);
+    }
+
+    /**
+     * Admit a file requested for the second time, or remember it as a candidate if it is the first time.
+     */
+    protected boolean admit(File file) {
+        if (candidates.remove(file) != null) return true;
+        candidates.put(file, Boolean.TRUE);
+        if (candidates.size() > maxCandidates) {
+            Iterator<File> iterator = candidates.keySet().iterator();
+            iterator.next();
+            iterator.remove();
+        }
+        return false;
+    }
+
+    /**
+     * Read whole contents of a file into a direct buffer.
+     *
+     * @return Contents, or null if the file turned out not to be {@code length} bytes long.
+     */
+    protected ByteBuffer read(File file, int length) throws IOException {
+        ByteBuffer content = ByteBuffer.allocateDirect(length);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (content.hasRemaining()) {
+                if (channel.read(content) < 0) return null;
+            }
+            if (channel.size() != length) return null;
+        }
+        content.flip();
+        return content;
+    }
+
+    protected void remove(File file) {
+        Entry entry = entries.remove(file);
+        if (entry != null) size -= entry.length;
+    }
+
+    protected void evict() {
+        Iterator<Map.Entry<File, Entry>> iterator = entries.entrySet().iterator();
+        while (size > capacity && iterator.hasNext()) {
+            size -= iterator.next().getValue().length;
+            iterator.remove();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FileCache{" + entries.size() + " files, " + size + "/" + capacity + " bytes, " +
+                hits + " hits, " + misses + " misses}";
+    }
+
+}
@@ -0,0 +1,211 @@
+package ftp.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * Filters of {@code FIND}, like {@code name=*.tgz minsize=1m after=7d type=f}.
+ *
+ * {@code name} is a glob matched against the name of an entry, or against its path under the directory
+ * searched if the glob has a {@code /}. {@code minsize} and {@code maxsize} take sizes like {@code 512},
+ * {@code 64k}, {@code 10m} or {@code 1g}. {@code after} and {@code before} take a date like {@code 2026-10-01},
+ * an instant like {@code 2026-10-01T12:00:00Z}, or an age like {@code 30m}, {@code 12h} or {@code 7d}.
+ * {@code type} is {@code f} for files or {@code d} for directories. All filters given must match.
+ */
+public class FindQuery {
+
+    protected PathMatcher nameMatcher = null;
+    protected boolean matchPath = false;        // Glob is matched against the path, rather than the name.
+    protected long minSize = 0;
+    protected long maxSize = Long.MAX_VALUE;
+    protected long after = Long.MIN_VALUE;      // Modification times, in milliseconds.
+    protected long before = Long.MAX_VALUE;
+    protected Boolean directories = null;       // Whether to match directories only, files only, or both if null.
+
+
+    /**
+     * Parse filters.
+     *
+     * @param filters Filters, each of which is a name and a value, like {@code name=*.tgz}.
+     * @throws IllegalArgumentException If a filter is malformed.
+     */
+    public FindQuery(String[] filters) {
+        for (String filter : filters) {
+            int equals = filter.indexOf('=');
+            if (equals < 1) throw new IllegalArgumentException("Expected filter like name=*.tgz: " + filter);
+            String value = filter.substring(equals + 1);
+            switch (filter.substring(0, equals).toLowerCase()) {
+                case "name":
+                    nameMatcher = FileSystems.getDefault().getPathMatcher("glob:" + value);
+                    matchPath = value.contains("/");
+                    break;
+                case "minsize":
+                    minSize = parseSize(value);
+                    break;
+                case "maxsize":
+                    maxSize = parseSize(value);
+                    break;
+                case "after":
+                    after = parseTime(value);
+                    break;
+                case "before":
+                    before = parseTime(value);
+                    break;
+                case "type":
+                    if (!value.equals("f") && !value.equals("d")) {
+                        throw new IllegalArgumentException("Expected type=f or type=d: " + filter);
+                    }
+                    directories = value.equals("d");
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown filter: " + filter);
+            }
+        }
+    }
+
+    /**
+     * @param path  Path under the directory searched.
+     * @param entry Entry of the path.
+     * @return true if it matches all filters. Sizes filter out directories.
+     */
+    public boolean matches(String path, MetadataIndex.Entry entry) {
+        if (directories != null && directories != entry.isDirectory()) return false;
+        if ((minSize > 0 || maxSize < Long.MAX_VALUE)
+                && (entry.isDirectory() || entry.size < minSize || entry.size > maxSize)) return false;
+        if (entry.lastModified < after || entry.lastModified > before) return false;
+        if (nameMatcher != null) {
+            String name = matchPath ? path : path.substring(path.lastIndexOf('/') + 1);
+            return nameMatcher.matches(Paths.get(name));
+        }
+        return true;
+    }
+
+    /**
+     * Stream of matching entries, found as it is read, a line per entry, like {@code dir/a.tgz, 1024, <instant>},
+     * or {@code -} in place of size for a directory.
+     *
+     * @param entries Entries under the directory searched, by relative path.
+     * @param prefix  Relative path of the directory, with a trailing {@code /}, or the empty path for the root.
+     * @return Stream of matches.
+     */
+    public Results results(NavigableMap<String, MetadataIndex.Entry> entries, String prefix) {
+        return new Results(entries.entrySet().iterator(), prefix);
+    }
+
+    /**
+     * Stream of matching entries. The index may change while it is read, and then it may or may not see changes.
+     */
+    public class Results extends InputStream {
+
+        protected final Iterator<Map.Entry<String, MetadataIndex.Entry>> iterator;
+        protected final String prefix;
+        protected byte[] line = new byte[0];
+        protected int position = 0;
+        protected long count = 0;
+
+        protected Results(Iterator<Map.Entry<String, MetadataIndex.Entry>> iterator, String prefix) {
+            this.iterator = iterator;
+            this.prefix = prefix;
+        }
+
+        /**
+         * @return Number of matches read so far.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!next()) return -1;
+            return line[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = 0;
+            while (n < len && next()) {
+                int size = Math.min(len - n, line.length - position);
+                System.arraycopy(line, position, b, off + n, size);
+                position += size;
+                n += size;
+            }
+            return n == 0 && len > 0 ? -1 : n;
+        }
+
+        /**
+         * Find the next match unless the current line has bytes left.
+         *
+         * @return false if no match is left.
+         */
+        protected boolean next() {
+            while (position == line.length) {
+                if (!iterator.hasNext()) return false;
+                Map.Entry<String, MetadataIndex.Entry> next = iterator.next();
+                String path = next.getKey().substring(prefix.length());
+                MetadataIndex.Entry entry = next.getValue();
+                if (!matches(path, entry)) continue;
+                line = (path + ", " + (entry.isDirectory() ? "-" : Long.toString(entry.size)) + ", "
+                        + Instant.ofEpochMilli(entry.lastModified) + "\n").getBytes(StandardCharsets.UTF_8);
+                position = 0;
+                count++;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Parse a size like {@code 512}, {@code 64k}, {@code 10m} or {@code 1g}.
+     */
+    protected static long parseSize(String size) {
+        String lower = size.toLowerCase();
+        long unit = 1;
+        switch (lower.isEmpty() ? ' ' : lower.charAt(lower.length() - 1)) {
+            case 'k': unit = 1024; break;
+            case 'm': unit = 1024 * 1024; break;
+            case 'g': unit = 1024 * 1024 * 1024; break;
+        }
+        try {
+            return Math.multiplyExact(Long.parseLong(unit == 1 ? lower : lower.substring(0, lower.length() - 1)), unit);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected size like 64k: " + size);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Size too large: " + size);
+        }
+    }
+
+    /**
+     * Parse a time like {@code 2026-10-01}, {@code 2026-10-01T12:00:00Z}, or an age like {@code 7d}.
+     *
+     * @return Time in milliseconds.
+     */
+    protected static long parseTime(String time) {
+        try {
+            if (time.contains("T")) return Instant.parse(time).toEpochMilli();
+            if (time.contains("-")) return LocalDate.parse(time).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+            long unit;
+            switch (time.isEmpty() ? ' ' : time.charAt(time.length() - 1)) {
+                case 's': unit = 1000; break;
+                case 'm': unit = 60 * 1000; break;
+                case 'h': unit = 60 * 60 * 1000; break;
+                case 'd': unit = 24 * 60 * 60 * 1000; break;
+                default: throw new IllegalArgumentException("Expected time like 2026-10-01 or 7d: " + time);
+            }
+            return System.currentTimeMillis() - Long.parseLong(time.substring(0, time.length() - 1)) * unit;
+        } catch (DateTimeParseException | NumberFormatException e) {
+            throw new IllegalArgumentException("Expected time like 2026-10-01 or 7d: " + time);
+        }
+    }
+
+}
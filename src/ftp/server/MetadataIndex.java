@@ -0,0 +1,343 @@
+package ftp.server;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Index of names, sizes and modification times of everything under the served directory, for {@code FIND}.
+ *
+ * It is built at startup by walking the tree in parallel, and kept up to date by watching each directory
+ * with {@code WatchService}. Entries are sorted by path, so that everything under a directory is a range.
+ * If given a file, the index is saved to it, and loaded from it at startup, so that it answers at once,
+ * while the walk catches up with what changed since. Entries the walk doesn't find are dropped once it is over.
+ *
+ * The file holds a snapshot of the index, and changes since are appended to a log next to it, so that
+ * a change costs a line rather than the whole index. The log is compacted into a new snapshot after
+ * a walk, and once it grows larger than the snapshot. Changes not yet appended when the server goes down
+ * are lost, which the walk at the next startup finds again.
+ *
+ * It is thread-safe.
+ */
+public class MetadataIndex {
+
+    public static class Entry {
+        public final long size;             // Length of contents, or -1 for a directory.
+        public final long lastModified;     // In milliseconds.
+        final long generation;              // Of the walk, or the change, which found it.
+
+        Entry(long size, long lastModified, long generation) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.generation = generation;
+        }
+
+        public boolean isDirectory() {
+            return size < 0;
+        }
+    }
+
+    protected static final int saveInterval = 1;                // Seconds between appends to the log.
+    protected static final long minCompactSize = 1024 * 1024;   // Of the log, below which it is never compacted.
+    protected static final int walkThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    protected final Path root;
+    protected final File indexFile;
+    protected final File logFile;
+    protected final Storage storage;
+    protected final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<>();  // By relative path.
+    protected final Queue<String> changes = new ConcurrentLinkedQueue<>();   // Lines not yet appended to the log.
+    protected final Map<WatchKey, Path> watchedDirs = new ConcurrentHashMap<>();
+    protected WatchService watcher;
+    protected volatile long generation = 0;
+    protected volatile boolean compactRequested = false;
+
+
+    /**
+     * Create new index.
+     *
+     * @param root      Directory to index.
+     * @param indexFile File to save the index to, or null to keep it in memory only.
+     * @param storage   Storage of the files, which tells their sizes.
+     * @throws IOException If failed resolving the canonical path of the root.
+     */
+    public MetadataIndex(File root, File indexFile, Storage storage) throws IOException {
+        this.root = root.getCanonicalFile().toPath();
+        this.indexFile = indexFile;
+        this.logFile = indexFile == null ? null : new File(indexFile.getPath() + ".log");
+        this.storage = storage;
+    }
+
+    /**
+     * Load the saved index if any, and start walking the tree and watching it, each on its own thread.
+     *
+     * @throws IOException If failed starting to watch.
+     */
+    public void start() throws IOException {
+        if (indexFile != null && (indexFile.exists() || logFile.exists())) {
+            try {
+                load();
+            } catch (IOException e) {
+                entries.clear();        // The walk builds it anew.
+                System.err.println("Failed loading index: " + e.getMessage());
+            }
+        }
+        watcher = root.getFileSystem().newWatchService();
+
+        Thread walker = new Thread(() -> {
+            long begin = System.nanoTime();
+            long walk = ++generation;
+            ForkJoinPool pool = new ForkJoinPool(walkThreads);     // Threads mostly wait for the disk.
+            pool.invoke(new Walk(root));
+            pool.shutdown();
+            entries.values().removeIf(entry -> entry.generation < walk);
+            compactRequested = true;        // Most of the index changed, and what was dropped is not in the log.
+            System.out.println("Indexed " + entries.size() + " entries in "
+                    + (System.nanoTime() - begin) / 1_000_000 + " ms");
+        }, "Index walker");
+        walker.setDaemon(true);
+        walker.start();
+
+        Thread watch = new Thread(this::watch, "Index watcher");
+        watch.setDaemon(true);
+        watch.start();
+
+        if (indexFile != null) {
+            Thread saver = new Thread(() -> {
+                try {
+                    //noinspection InfiniteLoopStatement
+                    while (true) {
+                        TimeUnit.SECONDS.sleep(saveInterval);
+                        if (compactRequested || logFile.length() > Math.max(minCompactSize, indexFile.length())) {
+                            compact();
+                        } else {
+                            appendChanges();
+                        }
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            }, "Index saver");
+            saver.setDaemon(true);
+            saver.start();
+        }
+    }
+
+    /**
+     * @return Relative path of a file under the root, with {@code /} as separator, or null if out of the root.
+     * The root itself is the empty path. Both are compared by their canonical paths, as the walk lists them.
+     * @throws IOException If failed resolving the canonical path of the file.
+     */
+    public String relativePath(File file) throws IOException {
+        Path path = file.getCanonicalFile().toPath();
+        if (!path.startsWith(root)) return null;
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Entries under a directory, in order of path, which is a live view of the index.
+     *
+     * @param dir Relative path of the directory, or the empty path for the root.
+     * @return Entries keyed by relative path.
+     */
+    public NavigableMap<String, Entry> under(String dir) {
+        return dir.isEmpty() ? entries : entries.subMap(dir + "/", dir + "0");    // '0' comes right after '/'.
+    }
+
+    /**
+     * Walk of a directory, which lists it, indexes its entries, and walks directories among them in parallel.
+     */
+    protected class Walk extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final Path dir;
+
+        protected Walk(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            List<Walk> subdirs = new ArrayList<>();
+            try {
+                watchedDirs.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                    for (Path path : stream) {
+                        if (update(path)) subdirs.add(new Walk(path));
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Failed indexing " + dir + ": " + e.getMessage());
+            }
+            invokeAll(subdirs);
+        }
+    }
+
+    /**
+     * Index a path as it is now, or drop it if it is gone.
+     *
+     * @return true if it is a directory.
+     */
+    protected boolean update(Path path) throws IOException {
+        if (isIndexFile(path)) return false;
+        String key = root.relativize(path).toString().replace(File.separatorChar, '/');
+        BasicFileAttributes attributes;
+        long size;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            size = attributes.isDirectory() ? -1 : attributes.size();
+            if (attributes.isRegularFile() && !storage.isPlain(path.toFile())) size = storage.length(path.toFile());
+        } catch (NoSuchFileException | FileNotFoundException e) {
+            remove(key);
+            return false;
+        }
+        Entry entry = new Entry(size, attributes.lastModifiedTime().toMillis(), generation);
+        entries.put(key, entry);
+        if (indexFile != null) changes.add("+ " + line(key, entry));   // After the change, so that a snapshot has it.
+        return attributes.isDirectory();
+    }
+
+    /**
+     * @return true if a path is the saved index, or a temporary file of it, which are not indexed.
+     */
+    protected boolean isIndexFile(Path path) {
+        if (indexFile == null) return false;
+        Path indexPath = indexFile.toPath().toAbsolutePath().normalize();
+        return path.getParent().equals(indexPath.getParent())
+                && path.getFileName().toString().startsWith(indexPath.getFileName().toString());
+    }
+
+    /**
+     * Drop a path, and everything under it.
+     */
+    protected void remove(String key) {
+        entries.remove(key);
+        under(key).clear();
+        if (indexFile != null) changes.add("- " + key);
+    }
+
+    /**
+     * Apply changes notified by the watcher, until the server goes down. A directory created is walked,
+     * and if notifications were lost, the directory is walked again.
+     */
+    protected void watch() {
+        try {
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                WatchKey key = watcher.take();
+                Path dir = watchedDirs.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (dir == null) break;
+                    try {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            ForkJoinPool.commonPool().invoke(new Walk(dir));
+                        } else {
+                            Path path = dir.resolve((Path) event.context());
+                            if (update(path) && event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                                ForkJoinPool.commonPool().invoke(new Walk(path));
+                            }
+                        }
+                    } catch (IOException e) {
+                        System.err.println("Failed indexing " + dir + ": " + e.getMessage());
+                    }
+                }
+                if (!key.reset()) watchedDirs.remove(key);      // Directory is gone.
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignored) {
+        }
+    }
+
+    /**
+     * Read the saved snapshot, then replay the log of changes since. Each line of the snapshot is
+     * size or {@code -} for a directory, modification time, and path. Each line of the log is such a line
+     * after {@code +} for a path indexed, or a path after {@code -} for one dropped.
+     */
+    protected void load() throws IOException {
+        if (indexFile.exists()) {
+            for (String line : Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8)) put(line);
+        }
+        if (logFile.exists()) {
+            for (String line : Files.readAllLines(logFile.toPath(), StandardCharsets.UTF_8)) {
+                if (line.startsWith("+ ")) {
+                    put(line.substring(2));
+                } else if (line.startsWith("- ")) {
+                    String key = line.substring(2);
+                    entries.remove(key);
+                    under(key).clear();
+                }
+            }
+        }
+        System.out.println("Loaded " + entries.size() + " index entries from " + indexFile);
+    }
+
+    protected void put(String line) {
+        String[] fields = line.split(" ", 3);
+        if (fields.length != 3) return;
+        try {
+            entries.put(fields[2], new Entry(fields[0].equals("-") ? -1 : Long.parseLong(fields[0]),
+                    Long.parseLong(fields[1]), 0));
+        } catch (NumberFormatException ignored) {
+            // Skipped, like a line torn by going down. The walk finds it again.
+        }
+    }
+
+    protected static String line(String key, Entry entry) {
+        return (entry.isDirectory() ? "-" : Long.toString(entry.size)) + " " + entry.lastModified + " " + key;
+    }
+
+    /**
+     * Append changes made since the last append to the log.
+     */
+    protected void appendChanges() {
+        StringBuilder text = new StringBuilder();
+        String change;
+        while ((change = changes.poll()) != null) text.append(change).append('\n');
+        if (text.length() == 0) return;
+        try {
+            Files.write(logFile.toPath(), text.toString().getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Failed appending to index log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write a snapshot of the index to its file at once, so that it never holds a partial index,
+     * and start the log anew. Changes made before the snapshot is taken are in it, so they are dropped.
+     * Those made while it is taken may be in it too, which replaying them again after it doesn't change.
+     */
+    protected void compact() {
+        compactRequested = false;
+        for (int n = changes.size(); n > 0; n--) changes.poll();
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            text.append(line(entry.getKey(), entry.getValue())).append('\n');
+        }
+        try {
+            Path temp = Files.createTempFile(indexFile.getAbsoluteFile().getParentFile().toPath(),
+                    indexFile.getName(), ".part");
+            Files.write(temp, text.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(logFile.toPath());
+        } catch (IOException e) {
+            compactRequested = true;
+            System.err.println("Failed saving index: " + e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+package ftp.server;
+
+import ftp.WriteBehindOutputStream;
+
+import java.io.*;
+
+/**
+ * Storage which keeps each file as it is, with a full copy per file.
+ */
+public class PlainStorage implements Storage {
+
+    @Override
+    public OutputStream create(File file) throws IOException {
+        return WriteBehindOutputStream.of(file);
+    }
+
+    @Override
+    public InputStream open(File file, long offset, long length) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        in.getChannel().position(offset);
+        return new RangeInputStream(in, length);
+    }
+
+    @Override
+    public long length(File file) throws IOException {
+        return file.length();
+    }
+
+    @Override
+    public boolean isPlain(File file) throws IOException {
+        return true;
+    }
+
+    /**
+     * Stream which ends after a number of bytes, before the stream it reads does.
+     */
+    protected static class RangeInputStream extends FilterInputStream {
+
+        protected long remaining;
+
+        protected RangeInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = in.read();
+            if (b != -1) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+    }
+
+}
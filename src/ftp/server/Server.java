@@ -1,17 +1,49 @@
 package ftp.server;
 
+import ftp.Abortable;
 import ftp.DataChunkC2S;
+import ftp.ACKListener;
+import ftp.ControlCodec;
 import ftp.DataChunkS2C;
+import ftp.DataConnection;
+import ftp.FileDigest;
+import ftp.PrefetchInputStream;
 import ftp.Response;
 import ftp.ReturnCode;
+import ftp.SRReceiver;
+import ftp.Settings;
+import ftp.Sparse;
+import ftp.net.DatagramDemux;
+import ftp.net.DatagramInputStream;
+import ftp.net.DatagramOutputStream;
+import ftp.net.GatheringOutputStream;
+import ftp.net.NetEmulator;
+import ftp.net.UDPTransport;
 
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static java.lang.System.exit;
 
@@ -19,7 +51,11 @@ import static java.lang.System.exit;
 /**
  * Provides FTP server functionalities,
  * such as opening up new connection and executing some file-related commands from remote clients.
- * Indeed, it is not yet implemented via multi-thread, so it cannot serve multiple clients in parallel.
+ * Each client is served by its own thread. Data connections share a port, so a client sends
+ * its session id first on each data connection, and the server hands the connection to that session.
+ *
+ * With an upstream server, it runs as a mirror: files and directories missing locally are
+ * read through from the upstream server, and stored locally to be served from disk afterwards.
  */
 public class Server {
 
@@ -29,9 +65,15 @@ public class Server {
      */
     protected class ClientHandler {
 
+        protected Socket cmdSocket;
         protected BufferedReader cmdReader;
         protected DataOutputStream cmdOutStream;
-        protected ServerSocket serverDataSocket;
+        protected ControlCodec controlCodec = null;     // Binary framing of command channel, or null for text.
+        protected final long sessionId = sessionIds.nextLong() & Long.MAX_VALUE;
+        protected final BlockingQueue<Socket> dataSockets = new LinkedBlockingQueue<>();   // Data connections.
+        protected DataConnection dataConnection;    // Kept open across transfers, or null if not yet connected.
+        protected final TokenBucket sessionBucket = new TokenBucket(Settings.sessionRate);  // Rate limit of the session.
+        protected String digestAlgorithm = null;    // Digest of transferred files, or null if not verifying them.
 
         /* Client status */
         protected File pwd = defaultPath;
@@ -41,22 +83,21 @@ public class Server {
          *
          * @param   cmdSocket
          *          Opened socket for command channel.
-         * @param   serverDataSocket
-         *          Opened server socket for data channel.
          *
          * @throws  IOException
          *          If IO exception occurred while initiating connection with client.
          */
-        public void start(Socket cmdSocket, ServerSocket serverDataSocket) throws IOException {
-            this.serverDataSocket = serverDataSocket;
+        public void start(Socket cmdSocket) throws IOException {
             // Open IO stream.
+            this.cmdSocket = cmdSocket;
             cmdReader = new BufferedReader(new InputStreamReader(cmdSocket.getInputStream()));
-            cmdOutStream = new DataOutputStream(cmdSocket.getOutputStream());
+            cmdOutStream = new DataOutputStream(new BufferedOutputStream(cmdSocket.getOutputStream()));
+            sessions.put(sessionId, this);
 
             try {
                 System.err.println("Connection established: " + cmdSocket.getInetAddress());
                 // Say hello!
-                writeResponse(new Response(ReturnCode.SERVICE_READY, "Hello\n"));
+                writeResponse(new Response(ReturnCode.SERVICE_READY, "Hello\n" + Response.sessionPrefix + sessionId));
 
                 int handleRequestReturnCode;
                 do {
@@ -75,6 +116,8 @@ public class Server {
 
             } finally {
                 // Cleanup connection.
+                sessions.remove(sessionId);
+                closeDataConnections();
                 try {
                     writeResponse(new Response(ReturnCode.SERVICE_CLOSING, "Closing service"));
                     cmdOutStream.close();
@@ -96,6 +139,11 @@ public class Server {
          *          If failed reading request from client.
          */
         protected String[] getRequest() throws IOException {
+            if (controlCodec != null) {
+                String[] request = controlCodec.readRequest();
+                System.out.println("Request: " + String.join(" ", request));
+                return request;
+            }
             String str = cmdReader.readLine();
             if (str == null) throw new IOException("Client seems down");
             System.out.println("Request: " + str);
@@ -113,11 +161,29 @@ public class Server {
          *          If IO exception occurred.
          */
         protected void writeResponse(Response response) throws IOException {
+            if (controlCodec != null) {
+                controlCodec.writeResponse(response);
+                int end = response.message.indexOf('\n');
+                System.out.println("Response: " + response.returnCode.getCodeNum() + " "
+                        + (end == -1 ? response.message : response.message.substring(0, end)));
+                return;
+            }
             String responseStr = response.toString();
             cmdOutStream.writeBytes(responseStr);
+            cmdOutStream.flush();       // In a single segment, so that Nagle doesn't hold back the rest of it.
             System.out.println("Response: " + responseStr.substring(0, responseStr.indexOf('\n')));
         }
 
+        /**
+         * @return  true if a request has started to arrive from client.
+         *
+         * @throws  IOException
+         *          If IO exception occurred.
+         */
+        protected boolean requestReady() throws IOException {
+            return controlCodec != null ? controlCodec.ready() : cmdReader.ready();
+        }
+
         /**
          * Handles a request from client, and write response to the client.
          * Instead of handling request directly here, it finds an appropriate handler in
@@ -129,7 +195,8 @@ public class Server {
          * @return  0 if request is successfully handled, and -1 if client wants to quit.
          *
          * @throws  IOException
-         *          If an IO exception occurred while writing the response.
+         *          If an IO exception occurred while writing the response, or the handler failed otherwise.
+         *          Either way, only the session of this client is closed.
          */
         protected int handleRequest(String[] request) throws IOException {
             // Quit request?
@@ -146,24 +213,26 @@ public class Server {
                 return 0;
             }
 
+            Throwable failure;
             try {
                 // Call handler
                 handler.invoke(this, (Object) request);
+                return 0;
 
-            } catch (IllegalAccessException e) {    // This exception must not be thrown. Server goes down.
-                e.printStackTrace();
-                exit(1);
+            } catch (IllegalAccessException e) {        // This exception must not be thrown.
+                failure = e;
 
             } catch (InvocationTargetException e) {     // Callee has thrown an exception.
-                if (e.getCause().getClass().equals(IOException.class)) {    // Is it because of IOException?
+                if (e.getCause() instanceof IOException) {      // Is it because of IOException?
                     throw (IOException) e.getCause();
-                } else {                                                    // .. or something else happened?
-                    e.printStackTrace();                                    // If so, server goes down.
-                    exit(1);
                 }
+                failure = e.getCause();                         // .. or something else happened?
             }
 
-            return 0;
+            // A bug in a handler. Other clients are served on, but this session may be out of sync, so it is closed.
+            failure.printStackTrace();
+            writeResponse(new Response(ReturnCode.LOCAL_ERROR, "Failed handling " + request[0] + "\n"));
+            throw new IOException("Failed handling " + request[0] + ": " + failure, failure);
         }
 
         /**
@@ -224,8 +293,17 @@ public class Server {
                 return 1;
             }
 
-            // Resolve target path.
+            // Resolve target path. A mirror lists upstream, and falls back to local if it is unavailable.
             File targetPath = pwd.toPath().resolve(request[1]).toFile();
+            String upstreamPath = upstreamPath(targetPath);
+            if (upstreamPath != null) {
+                try {
+                    writeResponse(upstream.list(upstreamPath));
+                    return 0;
+                } catch (IOException e) {
+                    System.err.println("Upstream unavailable: " + e.getMessage());
+                }
+            }
             if (isBadDir(targetPath)) {
                 return 1;
             }
@@ -244,7 +322,7 @@ public class Server {
                     if (file.isDirectory())
                         messageBuilder.append("-\n");
                     else
-                        messageBuilder.append(file.length()).append("\n");
+                        messageBuilder.append(storage.length(file)).append("\n");
                 }
                 response.message += messageBuilder;
                 writeResponse(response);
@@ -260,13 +338,79 @@ public class Server {
             }
         }
 
+        /**
+         * Handler for {@code FIND} command.
+         * Search the index for entries under requested directory, at any depth, which match all filters
+         * given, like {@code find . name=*.tgz minsize=1m after=7d}. See {@code FindQuery} for filters.
+         * Matches are sent via data channel as they are found, a line per entry like {@code LIST} has,
+         * with path under the directory, size and modification time. Then their number is told.
+         *
+         * @param   request
+         *          Name of the directory at index 1, and filters starting at index 2.
+         *
+         * @return  0 in case of success, non-zero value in case of failure.
+         *
+         * @throws  IOException
+         *          If an IO exception occurred.
+         */
+        protected int handleFIND(String[] request) throws IOException {
+            // Check arguments.
+            if (request.length < 2) {
+                writeResponse(new Response(
+                        ReturnCode.ARGUMENT_ERR,
+                        "Directory required, optionally followed by filters like name=*.tgz minsize=1m after=7d\n"
+                ));
+                return 1;
+            }
+            File targetPath = pwd.toPath().resolve(request[1]).toFile();
+            if (isBadDir(targetPath)) {
+                return 1;
+            }
+            String dir = index.relativePath(targetPath);
+            if (dir == null) {
+                writeResponse(new Response(
+                        ReturnCode.FILE_UNAVAILABLE,
+                        "Not under the served directory, so not indexed"
+                ));
+                return 1;
+            }
+            FindQuery query;
+            try {
+                query = new FindQuery(Arrays.copyOfRange(request, 2, request.length));
+            } catch (IllegalArgumentException e) {
+                writeResponse(new Response(
+                        ReturnCode.ARGUMENT_ERR,
+                        e.getMessage()
+                ));
+                return 1;
+            }
+
+            // Success. Stream matches, then tell how many.
+            writeResponse(new Response(
+                    ReturnCode.SUCCESS,
+                    "Searching " + (dir.isEmpty() ? "/" : dir)
+            ));
+            FindQuery.Results results = query.results(index.under(dir), dir.isEmpty() ? "" : dir + "/");
+            sendChunks(null, results);
+            writeResponse(new Response(
+                    ReturnCode.SUCCESS,
+                    "Found " + results.getCount() + (results.getCount() == 1 ? " entry" : " entries")
+            ));
+            return 0;
+        }
+
         /**
          * Handler for {@code GET} command.
-         * Send requested file to client via data channel.
+         * Send requested file to client via data channel, and tell its modification time.
          * Supports paths relative to {@code pwd}.
+         * A client which has the file already can give its length and modification time, and then it is told
+         * {@code NOT_MODIFIED} instead if they are still the same, with no transfer. It can give the digest
+         * of its copy too, which then has to match the contents as well, as a file rewritten within the
+         * resolution of modification times, or with its time set back, looks the same otherwise.
          *
          * @param   request
-         *          Name of file(s) starting at index 1.
+         *          Name of file at index 1, and optionally length and modification time of the copy
+         *          of the client at index 2 and 3, and its digest like {@code SHA-256:<hex>} at index 4.
          *
          * @return  0 in case of success, non-zero value in case of failure.
          *
@@ -275,16 +419,174 @@ public class Server {
          */
         protected int handleGET(String[] request) throws IOException {
             // Check arguments.
-            if (request.length != 2) {
+            long knownLength = -1;
+            long knownLastModified = -1;
+            String knownDigest = request.length == 5 ? request[4] : null;
+            if (request.length == 4 || request.length == 5) {
+                try {
+                    knownLength = Long.parseLong(request[2]);
+                    knownLastModified = Long.parseLong(request[3]);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            if (request.length != 2 && knownLength < 0) {
                 writeResponse(new Response(
                         ReturnCode.ARGUMENT_ERR,
-                        "Single argument required\n"
+                        "File name required, optionally followed by length, modification time and digest of a copy\n"
                 ));
                 return 1;
             }
+            File targetFile = fileToRead(request[1]);
+            if (targetFile == null) return 1;
 
-            // Resolve target path.
-            File targetFile = pwd.toPath().resolve(request[1]).toFile();
+            // Taken before contents, so that a file modified meanwhile is told older, and is sent again next time.
+            long lastModified = targetFile.lastModified();
+            long length;
+            ByteBuffer cached;
+            InputStream fileInputStream;
+            try {
+                boolean plain = storage.isPlain(targetFile);
+                length = storage.length(targetFile);
+                if (knownLength == length && knownLastModified == lastModified
+                        && (knownDigest == null || digestMatches(targetFile, knownDigest))) {
+                    writeResponse(new Response(
+                            ReturnCode.NOT_MODIFIED,
+                            "Not modified"
+                    ));
+                    return 0;
+                }
+
+                // Serve from cache if possible. Then length is of the cached contents, which stay as they are.
+                cached = fileCache == null || !plain ? null : fileCache.get(targetFile.getCanonicalFile());
+                fileInputStream = cached != null ? null
+                        : PrefetchInputStream.of(storage.open(targetFile, 0, Long.MAX_VALUE));
+            } catch (CorruptFileException e) {
+                return fileCorrupt(e);
+            }
+
+            // Success.
+            writeResponse(new Response(
+                    ReturnCode.SUCCESS,
+                    "Containing " + (cached != null ? cached.remaining() : length) + " bytes in total, "
+                            + "modified " + lastModified
+            ));
+            try {
+                sendChunks(cached, fileInputStream);
+            } finally {
+                if (fileInputStream != null) fileInputStream.close();
+            }
+            return 0;
+        }
+
+        /**
+         * Handler for {@code RGET} command.
+         * Send a range of requested file to client via data channel, like {@code GET} does a whole file.
+         * The range is read from the cache if the file is cached, or else mapped from the file,
+         * so that only the range is read, with no copy through a read buffer. A file which is not stored
+         * as it is, is read from the range on.
+         * A range is cut at the end of file, and at 2 GB, which a mapping can span at most.
+         *
+         * @param   request
+         *          Name of the file at index 1, offset of the range at index 2, and its length at index 3.
+         *
+         * @return  0 in case of success, non-zero value in case of failure.
+         *
+         * @throws  IOException
+         *          If an IO exception occurred.
+         */
+        protected int handleRGET(String[] request) throws IOException {
+            // Check arguments.
+            long offset = -1;
+            long length = -1;
+            if (request.length == 4) {
+                try {
+                    offset = Long.parseLong(request[2]);
+                    length = Long.parseLong(request[3]);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            if (offset < 0 || length < 0) {
+                writeResponse(new Response(
+                        ReturnCode.ARGUMENT_ERR,
+                        "File name, offset and length required\n"
+                ));
+                return 1;
+            }
+            File targetFile = fileToRead(request[1]);
+            if (targetFile == null) return 1;
+
+            ByteBuffer range;
+            int rangeLength;
+            InputStream rangeInputStream = null;
+            try {
+                boolean plain = storage.isPlain(targetFile);
+                range = fileCache == null || !plain ? null : fileCache.get(targetFile.getCanonicalFile());
+                long fileLength = range != null ? range.remaining() : storage.length(targetFile);
+                if (offset > fileLength) {
+                    writeResponse(new Response(
+                            ReturnCode.ARGUMENT_ERR,
+                            "Offset beyond end of file of " + fileLength + " bytes"
+                    ));
+                    return 1;
+                }
+
+                // Cut the range, and take it from cache or map it.
+                rangeLength = (int) Math.min(Math.min(length, Integer.MAX_VALUE), fileLength - offset);
+                if (range != null) {
+                    range.position((int) offset).limit((int) offset + rangeLength);
+                } else if (plain) {
+                    try (FileChannel fileChannel = FileChannel.open(targetFile.toPath(), StandardOpenOption.READ)) {
+                        range = fileChannel.map(FileChannel.MapMode.READ_ONLY, offset, rangeLength);
+                    }
+                } else {
+                    rangeInputStream = storage.open(targetFile, offset, rangeLength);
+                }
+            } catch (CorruptFileException e) {
+                return fileCorrupt(e);
+            }
+
+            // Success.
+            writeResponse(new Response(
+                    ReturnCode.SUCCESS,
+                    "Containing " + rangeLength + " bytes in total"
+            ));
+            try {
+                sendChunks(range, rangeInputStream);
+            } finally {
+                if (rangeInputStream != null) rangeInputStream.close();
+            }
+            return 0;
+        }
+
+        /**
+         * Resolve path of a file to send. If it is missing on a mirror, fetch it from upstream.
+         * If it can't be sent, respond so.
+         *
+         * @param   path
+         *          Path of the file, relative to {@code pwd}.
+         *
+         * @return  The file, or null if it can't be sent, and the client is told so.
+         *
+         * @throws  IOException
+         *          If an IO exception occurred while writing the response.
+         */
+        protected File fileToRead(String path) throws IOException {
+            File targetFile = pwd.toPath().resolve(path).toFile();
+            String upstreamPath = upstreamPath(targetFile);
+            if (upstreamPath != null && !targetFile.exists()) {
+                try {
+                    upstream.fetch(upstreamPath, targetFile, storage);
+                    invalidateCached(targetFile);
+                } catch (FileNotFoundException ignored) {
+                    // Upstream doesn't have it either.
+                } catch (IOException e) {
+                    writeResponse(new Response(
+                            ReturnCode.FILE_UNAVAILABLE,
+                            "Upstream unavailable: " + e.getMessage()
+                    ));
+                    return null;
+                }
+            }
 
             // Check availability of the file.
             if (!targetFile.exists()) {
@@ -293,7 +595,7 @@ public class Server {
                         ReturnCode.FILE_UNAVAILABLE,
                         "File doesn't exist"
                 ));
-                return 1;
+                return null;
 
             } else if (!targetFile.isFile()) {
                 // Target is not a file.
@@ -301,33 +603,241 @@ public class Server {
                         ReturnCode.FILE_UNAVAILABLE,
                         "Not a file"
                 ));
+                return null;
+            }
+            return targetFile;
+        }
+
+        /**
+         * Tell client a file can't be sent, as its storage is corrupt. Only the file is at fault,
+         * so the session goes on.
+         *
+         * @param   e
+         *          Why the file is corrupt.
+         *
+         * @return  1, as the request failed.
+         *
+         * @throws  IOException
+         *          If an IO exception occurred while writing the response.
+         */
+        protected int fileCorrupt(CorruptFileException e) throws IOException {
+            System.err.println("Corrupt file: " + e.getMessage());
+            writeResponse(new Response(
+                    ReturnCode.FILE_UNAVAILABLE,
+                    "File is corrupt"
+            ));
+            return 1;
+        }
+
+        /**
+         * Send contents as data chunks via data channel, then end the transfer, and tell the digest of
+         * the contents if the client verifies transfers. Runs of zeros are sent as zero-run chunks.
+         *
+         * @param   buffer
+         *          Contents to send from its position to its limit, or null to send {@code in}.
+         * @param   in
+         *          Contents to send to its end, if {@code buffer} is null.
+         *
+         * @throws  IOException
+         *          If an IO exception occurred.
+         */
+        protected void sendChunks(ByteBuffer buffer, InputStream in) throws IOException {
+            // Setup IO streams. Chunks are batched into gathering writes, unless network emulator
+            // has to tell them apart by flushes. Client can't recover lost or corrupt chunks, so they are only delayed.
+            // Batched chunks are sent before waiting for rate limits, so that they are not held back into a burst.
+            DataConnection data = dataConnection();
+            GatheringOutputStream batched = netEmulator == null ? data.openBatchedOutput() : null;
+            DataOutputStream dataOutputStream = new DataOutputStream(
+                    batched != null ? batched : delay(data.openOutput())
+            );
+            Flushable beforeWait = batched != null ? batched::send : null;
+
+            // Start sending, then end the transfer. The end bypasses network emulator, as TCP doesn't lose it.
+            // Chunks of zeros are held back, and sent as a single zero run before the next data.
+            DataChunkS2C chunk = new DataChunkS2C();    // Recycled for every chunk.
+            DataChunkS2C zeroRun = new DataChunkS2C();
+            FileDigest digest = digestAlgorithm == null ? null : new FileDigest(digestAlgorithm);
+            long zeros = 0;
+            byte seqNo = 0;
+            try (FairScheduler.Flow flow = scheduler.open()) {
+                while (true) {
+                    int size = buffer != null ? chunk.fill(seqNo, buffer) : chunk.fill(seqNo, in);
+                    if (digest != null) digest.update(chunk.data, 0, size);
+                    if (size > 0 && Settings.sparse && Sparse.isZero(chunk.data, 0, size)) {
+                        zeros += size;
+                        continue;
+                    }
+                    if (zeros > 0) {
+                        zeroRun.zeroRun(seqNo++, zeros);
+                        zeroRun.writeBytes(dataOutputStream);
+                        zeros = 0;
+                        if (Settings.logChunks) System.out.print("0");
+                        chunk.setSeqNo(seqNo);
+                    }
+                    if (size == 0) break;
+                    sessionBucket.acquire(size, beforeWait);
+                    flow.send(size, beforeWait);
+                    chunk.writeBytes(dataOutputStream);
+                    seqNo++;
+                    if (Settings.logChunks) System.out.print("#");
+                }
+                dataOutputStream.close();
+                chunk.end(seqNo);
+                chunk.writeBytes(data.out);
+            }
+
+            // Let client verify what it received.
+            if (digest != null) {
+                writeResponse(new Response(
+                        ReturnCode.SUCCESS,
+                        "Digest " + digest.finish()
+                ));
+            }
+
+            System.out.println("  Done.");
+        }
+
+        /**
+         * Handler for {@code FOLLOW} command.
+         * Send requested file to client via data channel like {@code GET}, and keep sending what is appended
+         * to it, until client sends any request, like {@code abort}, or the file is deleted or truncated.
+         * Directory of the file is watched with {@code WatchService}, and the file is also polled every
+         * {@code Settings.followPoll} milliseconds, as not every file system notifies of changes.
+         * While nothing is appended, an empty chunk is sent every {@code followHeartbeat} seconds,
+         * so that a client which is gone is noticed.
+         *
+         * @param   request
+         *          Name of the file at index 1, and offset to start from at index 2, which is 0 by default.
+         *          A client resumes with the number of bytes it has received so far.
+         *
+         * @return  0 in case of success, non-zero value in case of failure.
+         *
+         * @throws  IOException
+         *          If an IO exception occurred.
+         */
+        protected int handleFOLLOW(String[] request) throws IOException {
+            // Check arguments.
+            if (request.length < 2 || request.length > 3) {
+                writeResponse(new Response(
+                        ReturnCode.ARGUMENT_ERR,
+                        "File name and optional offset required\n"
+                ));
+                return 1;
+            }
+            File targetFile = pwd.toPath().resolve(request[1]).toFile();
+            if (!targetFile.isFile()) {
+                writeResponse(new Response(
+                        ReturnCode.FILE_UNAVAILABLE,
+                        "Not a file"
+                ));
+                return 1;
+            } else if (!storage.isPlain(targetFile)) {
+                // Stored by a deduplicating storage, so it is complete, and never grows.
+                writeResponse(new Response(
+                        ReturnCode.FILE_UNAVAILABLE,
+                        "Stored deduplicated, so it can't be followed"
+                ));
+                return 1;
+            }
+            long offset;
+            try {
+                offset = request.length == 3 ? Long.parseLong(request[2]) : 0;
+            } catch (NumberFormatException e) {
+                offset = -1;
+            }
+            if (offset < 0 || offset > targetFile.length()) {
+                writeResponse(new Response(
+                        ReturnCode.ARGUMENT_ERR,
+                        "Offset out of the file"
+                ));
                 return 1;
             }
 
             // Success.
             writeResponse(new Response(
                     ReturnCode.SUCCESS,
-                    "Containing " + targetFile.length() + " bytes in total"
+                    "Following from byte " + offset
             ));
 
-            // Setup IO streams.
-            Socket dataSocket = serverDataSocket.accept();
-            DataOutputStream dataOutputStream = new DataOutputStream(dataSocket.getOutputStream());
-            FileInputStream fileInputStream = new FileInputStream(targetFile);
+            // Setup IO streams. Chunks are batched, and sent whenever it catches up with the file,
+            // or before waiting for rate limits.
+            DataConnection data = dataConnection();
+            GatheringOutputStream batched = netEmulator == null ? data.openBatchedOutput() : null;
+            DataOutputStream dataOutputStream = new DataOutputStream(
+                    batched != null ? batched : delay(data.openOutput())
+            );
+            Flushable beforeWait = batched != null ? batched::send : null;
+
+            DataChunkS2C chunk = new DataChunkS2C();    // Recycled for every chunk.
+            byte seqNo = 0;
+            long position = offset;
+            String ending = null;                       // Why it has ended, or null if client ended it.
+            Path dir = targetFile.toPath().toAbsolutePath().getParent();
+            try (FileInputStream fileInputStream = new FileInputStream(targetFile);
+                 WatchService watcher = dir.getFileSystem().newWatchService()) {
+                dir.register(watcher, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                fileInputStream.getChannel().position(offset);
+                long lastSent = System.currentTimeMillis();
+                while (true) {
+                    // Send what is appended so far. Reading at the end of file gives nothing, until it grows.
+                    // Each burst is a flow of its own, so that the turn is given up while waiting for more.
+                    int size;
+                    try (FairScheduler.Flow flow = scheduler.open()) {
+                        while ((size = chunk.fill(seqNo, fileInputStream)) > 0) {
+                            sessionBucket.acquire(size, beforeWait);
+                            flow.send(size, beforeWait);
+                            chunk.writeBytes(dataOutputStream);
+                            seqNo++;
+                            position += size;
+                            lastSent = System.currentTimeMillis();
+                        }
+                    }
+                    if (System.currentTimeMillis() - lastSent >= followHeartbeat * 1000L) {
+                        chunk.writeBytes(dataOutputStream);     // Empty, as nothing is appended.
+                        seqNo++;
+                        lastSent = System.currentTimeMillis();
+                    }
+                    if (batched != null) batched.send();
+
+                    // Stop at any request, or when the file is gone or cut short.
+                    if (requestReady()) {
+                        getRequest();
+                        break;
+                    } else if (!targetFile.isFile()) {
+                        ending = "File was deleted";
+                        break;
+                    } else if (fileInputStream.getChannel().size() < position) {
+                        ending = "File was truncated";
+                        break;
+                    }
 
-            // Start sending.
-            for (byte seqNo = 0; ; seqNo++) {
-                byte[] data = fileInputStream.readNBytes(DataChunkS2C.maxDataSize);
-                if (data.length == 0) break;
-                DataChunkS2C chunk = new DataChunkS2C(seqNo, data);
-                chunk.writeBytes(dataOutputStream);
-                System.out.print("#");
+                    // Wait for the file to change.
+                    WatchKey key = watcher.poll(Settings.followPoll, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        key.pollEvents();
+                        key.reset();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while following");
             }
+            dataOutputStream.close();
+            chunk.end(seqNo);
+            chunk.writeBytes(data.out);
 
             System.out.println("  Done.");
-            dataSocket.close();
-            dataOutputStream.close();
-            fileInputStream.close();
+            if (ending != null) {
+                writeResponse(new Response(
+                        ReturnCode.FILE_UNAVAILABLE,
+                        ending + " after " + (position - offset) + " bytes"
+                ));
+                return 1;
+            }
+            writeResponse(new Response(
+                    ReturnCode.SUCCESS,
+                    "Followed " + (position - offset) + " bytes"
+            ));
             return 0;
         }
 
@@ -370,63 +880,486 @@ public class Server {
                     ReturnCode.SUCCESS,
                     "Ready to receive"
             ));
-            int targetLength = Integer.parseInt(getRequest()[0]);
-            int remainingChunks = (targetLength + DataChunkC2S.maxDataSize - 1)
-                    / DataChunkC2S.maxDataSize;                 // Total number of chunks to be received.
+            // Length is - if client streams something of unknown length, like a pipe. Then it is received
+            // until the end-of-transfer marker, which only TCP has.
+            // Over UDP, client tells the port it sends from, which its datagrams are told apart by.
+            String[] metadata = getRequest();
+            boolean udp = metadata.length > 2 && metadata[2].equalsIgnoreCase("udp");
+            InetSocketAddress udpPeer = null;
+            if (udp) {
+                try {
+                    udpPeer = new InetSocketAddress(cmdSocket.getInetAddress(), Integer.parseInt(metadata[3]));
+                } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                    writeResponse(new Response(
+                            ReturnCode.ARGUMENT_ERR,
+                            "UDP needs the port client sends from"
+                    ));
+                    return 1;
+                }
+            }
+            long numChunks = -1;                                // Total number of chunks to be received.
+            if (!metadata[0].equals("-")) {
+                long targetLength = -1;
+                try {
+                    targetLength = Long.parseLong(metadata[0]);
+                } catch (NumberFormatException ignored) {
+                }
+                if (targetLength < 0) {
+                    // Chunks the client may have started sending over TCP are dropped with the data connection.
+                    closeDataConnections();
+                    writeResponse(new Response(
+                            ReturnCode.ARGUMENT_ERR,
+                            "Length must be - or a non-negative number of bytes"
+                    ));
+                    return 1;
+                }
+                numChunks = (targetLength + DataChunkC2S.maxDataSize - 1) / DataChunkC2S.maxDataSize;
+            } else if (udp) {
+                writeResponse(new Response(
+                        ReturnCode.ARGUMENT_ERR,
+                        "Streaming of unknown length needs TCP"
+                ));
+                return 1;
+            }
+
+            return receiveFile(file, numChunks, udpPeer);
+        }
 
+        /**
+         * Receive a file from client via data channel, with Selective Repeat.
+         *
+         * @param   file
+         *          File to write.
+         * @param   numChunks
+         *          Number of chunks to receive, or -1 to receive until the end-of-transfer marker.
+         * @param   udpPeer
+         *          Address and port client sends datagrams from to receive over UDP, or null to receive over TCP.
+         *
+         * @return  0 in case of success, non-zero value in case of failure.
+         *
+         * @throws  IOException
+         *          If an IO exception occurred.
+         */
+        protected int receiveFile(File file, long numChunks, InetSocketAddress udpPeer) throws IOException {
             // Preparation
-            Socket dataSocket = serverDataSocket.accept();
-            DataInputStream dataInputStream = new DataInputStream(dataSocket.getInputStream());
-            DataOutputStream dataOutputStream = new DataOutputStream(dataSocket.getOutputStream());
-            FileOutputStream fileOutputStream = new FileOutputStream(file);
-            DataChunkC2S[] window = new DataChunkC2S[DataChunkC2S.winSize];  // Stores data chunk.
-            int winBase = 0;                                    // Index of firstly sent chunk in the window.
-            int numBuffered = 0;                                // Number of buffered chunks in the window.
-            int firstSeqNo = 0;                                 // First sequence number in the window.
-
-            // Receive file.
-            while (remainingChunks > 0) {
-                // Read header, and check sequence number.
-                byte[] header = dataInputStream.readNBytes(DataChunkC2S.headerSize);
-                DataChunkC2S chunk = new DataChunkC2S(header);
-                int seqNo = chunk.getSeqNo();
-                int logicalSeqNo = seqNo - firstSeqNo +     // Offset relative to firstSeqNo. -winSize <= logicalSeqNo.
-                        ((seqNo - firstSeqNo < -DataChunkC2S.winSize) ? DataChunkC2S.numSeqNo : 0);
-
-                if (logicalSeqNo < 0) {
-                    // Sender resent it possibly because of dropped ACK. Just ACK it back.
-                    dataOutputStream.writeBytes(Integer.toString(seqNo) + '\n');
-
-                } else if (logicalSeqNo < DataChunkC2S.winSize) {
-                    // Sequence number is in range. Buffer it, and ACK.
-                    chunk.setData(
-                            dataInputStream.readNBytes(chunk.getSize())
-                    );
-                    if (chunk.isError()) continue;      // If there is bit error, do nothing.
-                    int idx = (winBase + logicalSeqNo) % DataChunkC2S.winSize;
-                    window[idx] = chunk;
-                    numBuffered++;
-                    dataOutputStream.writeBytes(Integer.toString(seqNo) + '\n');
-                    while (window[winBase] != null && numBuffered > 0) {
-                        // If the first sequence in window came, slide window.
-                        System.out.print(firstSeqNo + " ");
-                        fileOutputStream.write(window[winBase].data);
-                        window[winBase] = null;
-                        firstSeqNo = (byte) ((firstSeqNo + 1) % DataChunkC2S.numSeqNo);
-                        winBase = (winBase + 1) % DataChunkC2S.winSize;
-                        numBuffered--;
-                        remainingChunks--;
+            boolean udp = udpPeer != null;
+            DataConnection data = null;
+            DatagramInputStream datagramInputStream = null;
+            DataInputStream dataInputStream;
+            OutputStream dataOutputStream;
+            if (udp) {
+                // Only datagrams of client are queued for this transfer, as others share the channel,
+                // and anyone can send to it. Then let client start sending.
+                DatagramDemux.Port port;
+                try {
+                    port = udpDemux.open(udpPeer);
+                } catch (IOException e) {
+                    writeResponse(new Response(
+                            ReturnCode.FILE_UNAVAILABLE,
+                            e.getMessage()
+                    ));
+                    return 1;
+                }
+                datagramInputStream = new DatagramInputStream(port, UDPTransport.maxDatagramSize);
+                datagramInputStream.setTimeout(udpReceiveTimeOut * 1000);    // Client may vanish without a word.
+                DatagramOutputStream ackOutputStream = new DatagramOutputStream(
+                        udpDemux.getChannel(), datagramInputStream, UDPTransport.maxDatagramSize, false
+                );
+                datagramInputStream.setIdleAction(ackOutputStream::send);  // Batch ACKs to all queued chunks.
+                dataInputStream = new DataInputStream(datagramInputStream);
+                dataOutputStream = impair(ackOutputStream, Integer.MAX_VALUE);
+                writeResponse(new Response(
+                        ReturnCode.SUCCESS,
+                        "Ready to receive over UDP"
+                ));
+            } else {
+                data = dataConnection();
+                dataInputStream = data.in;
+                dataOutputStream = impair(data.openOutput(), Integer.MAX_VALUE);
+            }
+            SRReceiver receiver = new SRReceiver(dataInputStream, dataOutputStream);
+
+            // Receive file, digesting it as delivered in order. Over TCP, delivering slower also reads slower,
+            // so shaping pushes back on client. Over UDP, it would only make datagrams overflow, so they are not shaped.
+            // A failed transfer aborts the stream of the storage, which stops what it runs, like writer threads,
+            // and leaves no file behind.
+            FileDigest digest = digestAlgorithm == null ? null : new FileDigest(digestAlgorithm);
+            OutputStream fileOutputStream = storage.create(file);
+            boolean stored = false;
+            try {
+                OutputStream deliveredStream = digest == null ? fileOutputStream : digest.wrap(fileOutputStream);
+                try (FairScheduler.Flow flow = scheduler.open()) {
+                    receiver.receive(udp ? deliveredStream : shape(deliveredStream, flow), numChunks);
+                }
+                fileOutputStream.close();
+                stored = true;
+                invalidateCached(file);
+                System.out.println("  Done.");
+
+                if (udp) {
+                    // Last ACKs may be lost, so keep ACKing resent chunks until client ends the transfer.
+                    // Its end markers may be lost too, so give up after a while, or once client moves on.
+                    datagramInputStream.setTimeout(100);
+                    long lingerUntil = System.currentTimeMillis() + 10 * senderTimeOut * 1000;
+                    while (!receiver.isEnded() && !requestReady() && System.currentTimeMillis() < lingerUntil) {
+                        try {
+                            receiver.receiveChunk(OutputStream.nullOutputStream());
+                        } catch (SocketTimeoutException ignored) {
+                        }
                     }
+                } else {
+                    // Drain late resends until client ends the transfer, then end ACKs in turn.
+                    receiver.awaitEnd();
+                    dataOutputStream.close();
+                    ACKListener.writeEnd(data.out);
+                }
+            } finally {
+                if (!stored) {
+                    Abortable.abort(fileOutputStream);
+                    file.delete();
+                }
+                if (udp) {
+                    dataOutputStream.close();
+                    datagramInputStream.close();
                 }
             }
+            return digest == null ? 0 : verify(file, digest);
+        }
 
-            System.out.println("  Done.");
-            dataSocket.close();
-            dataInputStream.close();
-            fileOutputStream.close();
+        /**
+         * Check the digest of a copy a client has against the contents of a file.
+         *
+         * @param   file
+         *          File to check.
+         * @param   known
+         *          Digest of the copy, like {@code SHA-256:<hex>}.
+         *
+         * @return  true if they match, or false if not, or the digest can't be checked here.
+         *
+         * @throws  IOException
+         *          If failed reading the file.
+         */
+        protected boolean digestMatches(File file, String known) throws IOException {
+            int colon = known.indexOf(':');
+            if (colon == -1) return false;
+            FileDigest digest;
+            try {
+                digest = new FileDigest(known.substring(0, colon));
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+            try (InputStream in = digest.wrap(storage.open(file, 0, Long.MAX_VALUE))) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            return digest.finish().equalsIgnoreCase(known.substring(colon + 1));
+        }
+
+        /**
+         * Compare digest of a received file with the one client computed while sending it,
+         * and delete the file if they differ.
+         *
+         * @param   file
+         *          File received.
+         * @param   digest
+         *          Digest of the file, as received.
+         *
+         * @return  0 if they match, non-zero value otherwise.
+         *
+         * @throws  IOException
+         *          If an IO exception occurred while reading client's digest, or writing the response.
+         */
+        protected int verify(File file, FileDigest digest) throws IOException {
+            String expected = getRequest()[0];
+            String actual = digest.finish();
+            if (!actual.equalsIgnoreCase(expected)) {
+                file.delete();
+                writeResponse(new Response(
+                        ReturnCode.FILE_UNAVAILABLE,
+                        "Digest mismatch, received " + actual + " instead of " + expected
+                ));
+                return 1;
+            }
+            writeResponse(new Response(
+                    ReturnCode.SUCCESS,
+                    "Digest matches"
+            ));
+            return 0;
+        }
+
+        /**
+         * Data connection of this session. The one from the last transfer is reused,
+         * unless the client has opened a new one in the meantime.
+         *
+         * @return  Open data connection.
+         *
+         * @throws  IOException
+         *          If the client doesn't connect in time.
+         */
+        protected DataConnection dataConnection() throws IOException {
+            Socket fresh = dataSockets.poll();
+            if (fresh == null && (dataConnection == null || dataConnection.isClosed())) fresh = acceptData();
+            if (fresh != null) {
+                if (dataConnection != null) dataConnection.close();
+                dataConnection = new DataConnection(fresh);
+            }
+            return dataConnection;
+        }
+
+        /**
+         * Close the data connection, and those opened but not yet used. The next transfer waits for a new one.
+         */
+        protected void closeDataConnections() {
+            Socket dataSocket;
+            while ((dataSocket = dataSockets.poll()) != null) {
+                try {
+                    dataSocket.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (dataConnection != null) {
+                try {
+                    dataConnection.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        /**
+         * Wait for the client to open a data connection of this session.
+         *
+         * @return  Connected socket.
+         *
+         * @throws  IOException
+         *          If the client doesn't connect in time.
+         */
+        protected Socket acceptData() throws IOException {
+            try {
+                Socket dataSocket = dataSockets.poll(dataConnectTimeOut, TimeUnit.SECONDS);
+                if (dataSocket == null) throw new IOException("Data connection timed out");
+                return dataSocket;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for data connection");
+            }
+        }
+
+        /**
+         * Path of a local file on upstream server, if running as a mirror.
+         *
+         * @param   file
+         *          Local file.
+         *
+         * @return  Path relative to root, or null if not a mirror or the file is out of root.
+         */
+        protected String upstreamPath(File file) {
+            if (upstream == null) return null;
+            Path root = defaultPath.toPath().toAbsolutePath().normalize();
+            Path path = file.toPath().toAbsolutePath().normalize();
+            if (!path.startsWith(root)) return null;
+            String relative = root.relativize(path).toString().replace(File.separatorChar, '/');
+            return relative.isEmpty() ? "." : relative;
+        }
+
+        /**
+         * Limit the rate of writing to a stream, by rate limits of the session and of the server.
+         *
+         * @param   out
+         *          Stream to write to. It is not closed along with the returned stream.
+         * @param   flow
+         *          Transfer scheduled on the server's rate limit.
+         *
+         * @return  Rate-limited stream.
+         */
+        protected OutputStream shape(OutputStream out, FairScheduler.Flow flow) {
+            class ShapedOutputStream extends OutputStream implements Sparse.Output {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    sessionBucket.acquire(len);
+                    flow.send(len);
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void skip(long n) throws IOException {
+                    Sparse.skip(out, n);        // Zero runs hardly take the network, so they aren't shaped.
+                }
+            }
+            return new ShapedOutputStream();
+        }
+
+        /**
+         * Handler for {@code RATE} command.
+         * Limit the rate of transfers of this session, or show the limit. It can't exceed the limit
+         * the server sets for every session.
+         *
+         * @param   request
+         *          Rate in KB/s in {@code request[1]}, or 0 for the server's limit. None to show the limit.
+         *
+         * @return  0 in case of success, non-zero value in case of failure.
+         *
+         * @throws  IOException
+         *          If an IO exception occurred while writing the response.
+         */
+        protected int handleRATE(String[] request) throws IOException {
+            if (request.length > 2) {
+                writeResponse(new Response(
+                        ReturnCode.ARGUMENT_ERR,
+                        "Too many arguments\n"
+                ));
+                return 1;
+            }
+
+            if (request.length == 2) {
+                long rate;
+                try {
+                    rate = Long.parseLong(request[1]) * 1024;
+                } catch (NumberFormatException e) {
+                    writeResponse(new Response(
+                            ReturnCode.ARGUMENT_ERR,
+                            "Rate must be a number of KB/s\n"
+                    ));
+                    return 1;
+                }
+                if (rate <= 0 || (Settings.sessionRate > 0 && rate > Settings.sessionRate)) {
+                    rate = Settings.sessionRate;
+                }
+                sessionBucket.setRate(rate);
+            }
+
+            long rate = sessionBucket.getRate();
+            writeResponse(new Response(
+                    ReturnCode.SUCCESS,
+                    rate == 0 ? "Not rate limited" : "Rate limited to " + rate / 1024 + " KB/s"
+            ));
+            return 0;
+        }
+
+        /**
+         * Handler for {@code BINARY} command.
+         * Switch command channel to binary framing of {@code ControlCodec}. The response is the last
+         * in text. Client waits for it before sending anything else, so nothing is left read ahead
+         * by the text reader.
+         *
+         * @param   request
+         *          No arguments.
+         *
+         * @return  0 in case of success, non-zero value in case of failure.
+         *
+         * @throws  IOException
+         *          If an IO exception occurred while writing the response.
+         */
+        protected int handleBINARY(String[] request) throws IOException {
+            if (controlCodec != null) {
+                writeResponse(new Response(
+                        ReturnCode.SUCCESS,
+                        "Already in binary"
+                ));
+                return 0;
+            }
+            writeResponse(new Response(
+                    ReturnCode.SUCCESS,
+                    "Switching to binary"
+            ));
+            controlCodec = new ControlCodec(new BufferedInputStream(cmdSocket.getInputStream()), cmdOutStream);
+            return 0;
+        }
+
+        /**
+         * Handler for {@code DIGEST} command.
+         * Verify files transferred after it with a digest computed along the transfer, or stop verifying.
+         * After a transfer, the sender of the file writes its digest on the command channel, and
+         * the receiver compares it with its own.
+         *
+         * @param   request
+         *          Name of algorithm in {@code request[1]}, like {@code crc32c} or {@code SHA-256},
+         *          or {@code off}.
+         *
+         * @return  0 in case of success, non-zero value in case of failure.
+         *
+         * @throws  IOException
+         *          If an IO exception occurred while writing the response.
+         */
+        protected int handleDIGEST(String[] request) throws IOException {
+            if (request.length != 2) {
+                writeResponse(new Response(
+                        ReturnCode.ARGUMENT_ERR,
+                        "Single argument required\n"
+                ));
+                return 1;
+            }
+
+            if (request[1].equalsIgnoreCase("off")) {
+                digestAlgorithm = null;
+                writeResponse(new Response(
+                        ReturnCode.SUCCESS,
+                        "Not verifying transfers"
+                ));
+                return 0;
+            }
+
+            try {
+                new FileDigest(request[1]);
+            } catch (IllegalArgumentException e) {
+                writeResponse(new Response(
+                        ReturnCode.ARGUMENT_ERR,
+                        e.getMessage()
+                ));
+                return 1;
+            }
+            digestAlgorithm = request[1];
+            writeResponse(new Response(
+                    ReturnCode.SUCCESS,
+                    "Verifying transfers with " + digestAlgorithm
+            ));
             return 0;
         }
 
+        /**
+         * Wrap an output stream of data channel with network emulator, if there is one.
+         *
+         * @param   out
+         *          Output stream of data channel.
+         * @param   protectedBytes
+         *          Number of leading bytes of each frame which must not be corrupted.
+         *
+         * @return  Impaired stream, or {@code out} itself if there is no emulator.
+         */
+        protected OutputStream impair(OutputStream out, int protectedBytes) {
+            return netEmulator == null ? out : netEmulator.wrap(out, protectedBytes);
+        }
+
+        /**
+         * Wrap an output stream of data channel with network emulator, if there is one, so that it is only delayed.
+         * Used for chunks sent to client, which has neither retransmission nor checksums to recover them.
+         *
+         * @param   out
+         *          Output stream of data channel.
+         *
+         * @return  Delayed stream, or {@code out} itself if there is no emulator.
+         */
+        protected OutputStream delay(OutputStream out) {
+            return netEmulator == null ? out : netEmulator.wrapReliable(out);
+        }
+
+        /**
+         * Drop a file from the file cache, once it is written anew. Its length and modification time
+         * may happen to be the same as of the contents cached before.
+         *
+         * @param   file
+         *          File written.
+         *
+         * @throws  IOException
+         *          If failed resolving its canonical path.
+         */
+        protected void invalidateCached(File file) throws IOException {
+            if (fileCache != null) fileCache.invalidate(file.getCanonicalFile());
+        }
+
         /**
          * Handler for {@code CD} command.
          * Change directory by updating the value of {@code pwd}.
@@ -458,8 +1391,16 @@ public class Server {
                 ));
 
             } else {
-                // Resolve target path.
+                // Resolve target path. On a mirror, create a directory which exists upstream.
                 File targetPath = pwd.toPath().resolve(request[1]).toFile();
+                String upstreamPath = upstreamPath(targetPath);
+                if (upstreamPath != null && !targetPath.exists()) {
+                    try {
+                        if (upstream.list(upstreamPath).returnCode == ReturnCode.SUCCESS) targetPath.mkdirs();
+                    } catch (IOException e) {
+                        System.err.println("Upstream unavailable: " + e.getMessage());
+                    }
+                }
                 if (isBadDir(targetPath)) {
                     return 1;
                 }
@@ -485,21 +1426,72 @@ public class Server {
     /* SR Parameters */
     protected final int senderTimeOut = 1;
 
+    /* Sessions */
+    protected final int dataConnectTimeOut = 10;    // Seconds to wait for a client to open a data connection.
+    protected final int udpReceiveTimeOut = 30;     // Seconds to wait for a datagram before giving up on a client.
+    protected final int followHeartbeat = 5;        // Seconds between empty chunks while a followed file is idle.
+    protected final SecureRandom sessionIds = new SecureRandom();
+    protected final Map<Long, ClientHandler> sessions = new ConcurrentHashMap<>();
+
+    // Shares the server's rate limit fairly among concurrent transfers.
+    protected final FairScheduler scheduler = new FairScheduler(
+            new TokenBucket(Settings.serverRate), Settings.fairQuantum
+    );
+
+    // Upstream server if running as a mirror, or null.
+    protected Upstream upstream = null;
+
+    // Impairs data channels, or null if not emulating network.
+    protected NetEmulator netEmulator = null;
+
+    // Stores received files, and reads them back.
+    protected final Storage storage;
+
+    // Index of the served directory, searched by FIND, and where it is saved, or null to keep it in memory only.
+    protected MetadataIndex index;
+    protected File indexFile = null;
+
+    // Contents of files served lately, or null if caching is turned off.
+    protected final FileCache fileCache = Settings.fileCacheSize > 0
+            ? new FileCache(Settings.fileCacheSize, Settings.fileCacheMaxFileSize) : null;
+
+    // Data channel for transfers over UDP, shared by them all. Bound to the same port number as TCP data channel.
+    protected DatagramDemux udpDemux;
+
 
     /**
-     * Create new server on specific path (not yet started).
+     * Create new server on specific path (not yet started), which stores files as they are.
      *
      * @param   path
      *          Default path for new users.
      */
     public Server(String path) {
+        this(path, new PlainStorage());
+    }
+
+    /**
+     * Create new server on specific path (not yet started).
+     *
+     * @param   path
+     *          Default path for new users.
+     * @param   storage
+     *          How to store received files.
+     */
+    public Server(String path, Storage storage) {
         defaultPath = new File(path);
+        this.storage = storage;
         requestHandlers = new HashMap<>();
         try {
             requestHandlers.put("list", ClientHandler.class.getDeclaredMethod("handleLIST", String[].class));
             requestHandlers.put("get", ClientHandler.class.getDeclaredMethod("handleGET", String[].class));
+            requestHandlers.put("rget", ClientHandler.class.getDeclaredMethod("handleRGET", String[].class));
+            requestHandlers.put("follow", ClientHandler.class.getDeclaredMethod("handleFOLLOW", String[].class));
             requestHandlers.put("put", ClientHandler.class.getDeclaredMethod("handlePUT", String[].class));
             requestHandlers.put("cd", ClientHandler.class.getDeclaredMethod("handleCD", String[].class));
+            requestHandlers.put("find", ClientHandler.class.getDeclaredMethod("handleFIND", String[].class));
+            requestHandlers.put("rate", ClientHandler.class.getDeclaredMethod("handleRATE", String[].class));
+            requestHandlers.put("digest", ClientHandler.class.getDeclaredMethod("handleDIGEST", String[].class));
+            requestHandlers.put("binary", ClientHandler.class.getDeclaredMethod("handleBINARY", String[].class));
 
         } catch (NoSuchMethodException e) {
             // This exception must not be thrown. Server goes down.
@@ -508,6 +1500,38 @@ public class Server {
         }
     }
 
+    /**
+     * Emulate an impaired network under data channels of the server.
+     * Chunks sent to clients are only delayed, as they can't be recovered; ACKs of uploads are fully impaired.
+     *
+     * @param   netEmulator
+     *          Network emulator, or {@code null} to stop emulating.
+     */
+    public void setNetEmulator(NetEmulator netEmulator) {
+        this.netEmulator = netEmulator;
+    }
+
+    /**
+     * Run as a mirror of an upstream server.
+     *
+     * @param   upstream
+     *          Upstream server, or {@code null} to serve local files only.
+     */
+    public void setUpstream(Upstream upstream) {
+        this.upstream = upstream;
+    }
+
+    /**
+     * Save the index searched by {@code FIND} to a file, and load it from there when started,
+     * so that it answers at once while the served directory is walked again.
+     *
+     * @param   indexFile
+     *          File of the index, or {@code null} to keep it in memory only.
+     */
+    public void setIndexFile(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
     /**
      * Starts up server.
      *
@@ -521,13 +1545,74 @@ public class Server {
      */
     public void start(int cmdPort, int dataPort) throws IOException {
         ServerSocket serverCmdSocket = new ServerSocket(cmdPort);
-        ServerSocket serverDataSocket = new ServerSocket(dataPort);
+        ServerSocket serverDataSocket = ServerSocketChannel.open()     // Through a channel, so that data connections
+                .bind(new InetSocketAddress(dataPort)).socket();        // can batch chunks into gathering writes.
+        DatagramChannel udpDataChannel = UDPTransport.open();
+        udpDataChannel.bind(new InetSocketAddress(dataPort));
+        udpDemux = new DatagramDemux(udpDataChannel, UDPTransport.maxDatagramSize);
+        Thread dataAcceptor = new Thread(() -> acceptData(serverDataSocket), "Data acceptor");
+        dataAcceptor.setDaemon(true);
+        dataAcceptor.start();
+        index = new MetadataIndex(defaultPath, indexFile, storage);
+        index.start();
         System.out.println("Running.. ");
         //noinspection InfiniteLoopStatement
         while (true) {
             Socket cmdSocket = serverCmdSocket.accept();
             ClientHandler manager = new ClientHandler();
-            manager.start(cmdSocket, serverDataSocket);
+            new Thread(() -> {
+                try {
+                    manager.start(cmdSocket);
+                } catch (IOException e) {
+                    System.err.println("Failed serving " + cmdSocket.getInetAddress() + ": " + e.getMessage());
+                }
+            }, "Client " + cmdSocket.getRemoteSocketAddress()).start();
+        }
+    }
+
+    /**
+     * Accept data connections, and hand each over to the session whose id comes first on it.
+     * Each connection waits for its id on a thread of its own, so that a client which is slow to send it,
+     * or never does, doesn't hold up data connections of other sessions.
+     *
+     * @param   serverDataSocket
+     *          Opened server socket for data channel.
+     */
+    protected void acceptData(ServerSocket serverDataSocket) {
+        while (!serverDataSocket.isClosed()) {
+            try {
+                Socket dataSocket = serverDataSocket.accept();
+                Thread identifier = new Thread(() -> identifyData(dataSocket),
+                        "Data connection " + dataSocket.getRemoteSocketAddress());
+                identifier.setDaemon(true);
+                identifier.start();
+            } catch (IOException e) {
+                System.err.println("Failed accepting data connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Read the session id on a data connection, and hand the connection over to the session.
+     * Connections of unknown sessions, and those which don't send an id in time, are closed.
+     *
+     * @param   dataSocket
+     *          Accepted data connection.
+     */
+    protected void identifyData(Socket dataSocket) {
+        try {
+            dataSocket.setSoTimeout(dataConnectTimeOut * 1000);
+            long sessionId = new DataInputStream(dataSocket.getInputStream()).readLong();
+            dataSocket.setSoTimeout(0);
+            ClientHandler session = sessions.get(sessionId);
+            if (session == null) throw new IOException("Unknown session " + sessionId);
+            session.dataSockets.add(dataSocket);
+        } catch (IOException e) {
+            System.err.println("Data connection refused: " + e.getMessage());
+            try {
+                dataSocket.close();
+            } catch (IOException ignored) {
+            }
         }
     }
 
@@ -0,0 +1,47 @@
+package ftp.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * How the server stores files it receives, and reads them back. Files are named by their path under
+ * the served directory either way, but their contents may be stored elsewhere, like by {@code DedupStorage}.
+ */
+public interface Storage {
+
+    /**
+     * Open a new file to write received contents to. The file exists once the stream is closed.
+     *
+     * @param file File to write.
+     * @return Stream to write contents to.
+     * @throws IOException If failed creating the file.
+     */
+    OutputStream create(File file) throws IOException;
+
+    /**
+     * Open a file to read its contents, or a range of them.
+     *
+     * @param file   File to read.
+     * @param offset Offset to start from.
+     * @param length Number of bytes to read at most.
+     * @return Stream of contents.
+     * @throws IOException If failed opening the file.
+     */
+    InputStream open(File file, long offset, long length) throws IOException;
+
+    /**
+     * @return Length of contents of a file.
+     * @throws IOException If failed reading how the file is stored.
+     */
+    long length(File file) throws IOException;
+
+    /**
+     * @return true if a file holds its contents as they are, so that they can be mapped,
+     * cached or followed as the file itself.
+     * @throws IOException If failed reading how the file is stored.
+     */
+    boolean isPlain(File file) throws IOException;
+
+}
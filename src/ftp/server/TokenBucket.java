@@ -0,0 +1,111 @@
+package ftp.server;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiter. Tokens are bytes, refilled at a fixed rate up to a burst size.
+ * A caller takes tokens first and then waits off its debt, so concurrent callers are served
+ * in the order they came, and waiting is done outside of the lock.
+ */
+public class TokenBucket {
+
+    protected static final long minBurst = 8 * 1024;
+
+    protected long rate;            // Bytes per second, or 0 for no limit.
+    protected long burst;           // Most tokens to save up while idle.
+    protected double tokens;
+    protected long lastRefill;      // Set by the first refill, on setting the rate.
+
+
+    /**
+     * Create new bucket, which is full. Burst size is 100 ms worth of tokens.
+     *
+     * @param rate Bytes per second, or 0 for no limit.
+     */
+    public TokenBucket(long rate) {
+        setRate(rate);
+        tokens = burst;
+    }
+
+    /**
+     * Change rate. Tokens saved so far are kept, up to the new burst size.
+     *
+     * @param rate Bytes per second, or 0 for no limit.
+     */
+    public synchronized void setRate(long rate) {
+        refill();
+        this.rate = Math.max(rate, 0);
+        this.burst = Math.max(this.rate / 10, minBurst);
+        tokens = Math.min(tokens, burst);
+    }
+
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * Take tokens, and wait until the bucket pays them back.
+     *
+     * @param bytes Number of tokens to take.
+     * @throws InterruptedIOException If interrupted while waiting.
+     */
+    public void acquire(int bytes) throws InterruptedIOException {
+        await(take(bytes));
+    }
+
+    /**
+     * Take tokens, and wait until the bucket pays them back. If it has to wait, an action runs first,
+     * like sending what a stream below batches, so that batching doesn't turn a steady rate into bursts.
+     *
+     * @param bytes      Number of tokens to take.
+     * @param beforeWait Action to run before waiting, or null.
+     * @throws InterruptedIOException If interrupted while waiting.
+     * @throws IOException            If the action failed.
+     */
+    public void acquire(int bytes, Flushable beforeWait) throws IOException {
+        long waitNanos = take(bytes);
+        if (waitNanos > 0 && beforeWait != null) beforeWait.flush();
+        await(waitNanos);
+    }
+
+    /**
+     * @return Time to wait until the tokens taken are paid back, in nanoseconds.
+     */
+    protected synchronized long take(int bytes) {
+        if (rate == 0) return 0;
+        refill();
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+    }
+
+    /**
+     * Wait for a time, measured by {@code now}.
+     */
+    protected void await(long waitNanos) throws InterruptedIOException {
+        if (waitNanos == 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while rate limited");
+        }
+    }
+
+    /**
+     * @return Time in nanoseconds, which tokens are refilled by, and transfers sharing the bucket are idle by.
+     * Overridden along with {@code await} to run on a clock of another kind, like a simulated one.
+     */
+    protected long now() {
+        return System.nanoTime();
+    }
+
+    protected void refill() {
+        long now = now();
+        if (rate > 0) tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+        lastRefill = now;
+    }
+
+}
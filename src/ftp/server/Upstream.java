@@ -0,0 +1,244 @@
+package ftp.server;
+
+import ftp.Abortable;
+import ftp.Response;
+import ftp.ReturnCode;
+import ftp.Settings;
+import ftp.client.ResponseException;
+import ftp.client.Session;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Upstream server which a mirror reads files and listings through.
+ *
+ * It talks to upstream over a pool of client sessions.
+ * Sessions never change directory, so paths are relative to root of the upstream server.
+ * Concurrent requests for the same file or listing are coalesced into a single upstream request,
+ * and successful listings are cached for a while.
+ */
+public class Upstream {
+
+    /**
+     * A listing, and when it expires.
+     */
+    protected static class Listing {
+        final Response response;
+        final long expiresAt;
+
+        Listing(Response response, long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Like {@code Callable}, but only throws {@code IOException}.
+     */
+    protected interface IOTask<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * Task on a session.
+     */
+    protected interface SessionTask<T> {
+        T run(Session session) throws IOException;
+    }
+
+    protected final String host;
+    protected final int cmdPort;
+    protected final int dataPort;
+    protected final ArrayDeque<Session> idleSessions = new ArrayDeque<>();
+    protected final Map<String, CompletableFuture<File>> fetches = new ConcurrentHashMap<>();
+    protected final Map<String, CompletableFuture<Response>> lists = new ConcurrentHashMap<>();
+    protected final Map<String, Listing> listings = new ConcurrentHashMap<>();
+
+
+    /**
+     * Create new upstream. Sessions are opened on demand.
+     *
+     * @param host     Host name of upstream server.
+     * @param cmdPort  Port number of its command channel.
+     * @param dataPort Port number of its data channel.
+     */
+    public Upstream(String host, int cmdPort, int dataPort) {
+        this.host = host;
+        this.cmdPort = cmdPort;
+        this.dataPort = dataPort;
+    }
+
+    /**
+     * Parse an upstream from {@code host:cmdPort:dataPort}.
+     *
+     * @throws IllegalArgumentException If it is malformed.
+     */
+    public static Upstream parse(String spec) {
+        String[] split = spec.split(":");
+        try {
+            return new Upstream(split[0], Integer.parseInt(split[1]), Integer.parseInt(split[2]));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Expected host:cmdPort:dataPort: " + spec);
+        }
+    }
+
+    /**
+     * Download a file from upstream, unless it is already there. The file appears atomically,
+     * so readers never see it half written.
+     *
+     * @param path    Path of the file on upstream server, relative to its root.
+     * @param dst     Local file to store it to.
+     * @param storage Storage of the mirror, which the file is written through, like files uploaded to it.
+     * @throws FileNotFoundException If upstream server doesn't have the file.
+     * @throws IOException           If failed downloading.
+     */
+    public void fetch(String path, File dst, Storage storage) throws IOException {
+        coalesce(fetches, dst.getPath(), () -> {
+            if (!dst.isFile()) download(path, dst, storage);    // May have been fetched just before.
+            return dst;
+        });
+    }
+
+    /**
+     * List a directory on upstream server. Successful listings are cached
+     * for {@code Settings.mirrorListTTL} seconds.
+     *
+     * @param path Path of the directory on upstream server, relative to its root.
+     * @return Response of upstream server.
+     * @throws IOException If failed talking to upstream server.
+     */
+    public Response list(String path) throws IOException {
+        Listing listing = listings.get(path);
+        if (listing != null && listing.expiresAt > System.currentTimeMillis()) return listing.response;
+
+        return coalesce(lists, path, () -> {
+            Response response;
+            try (Lease lease = new Lease()) {
+                response = lease.run(session -> session.request("list " + path));
+                lease.keep();
+            }
+            if (response.returnCode == ReturnCode.SUCCESS) {
+                listings.put(path, new Listing(response, System.currentTimeMillis() + Settings.mirrorListTTL * 1000L));
+            }
+            return response;
+        });
+    }
+
+    /**
+     * Download to a partial file through the storage, and move it into place once stored.
+     * A storage which keeps contents elsewhere, like {@code DedupStorage}, stores only what it refers to them by.
+     */
+    protected void download(String path, File dst, Storage storage) throws IOException {
+        File dir = dst.getAbsoluteFile().getParentFile();
+        boolean madeDir = !dir.isDirectory();
+        if (madeDir && !dir.mkdirs()) throw new IOException("Unable to create " + dir);
+        File part = File.createTempFile("." + dst.getName(), ".part", dir);
+        try (Lease lease = new Lease()) {
+            lease.run(session -> {
+                OutputStream fileOutputStream = storage.create(part);
+                try {
+                    long received = session.get(path, fileOutputStream);
+                    fileOutputStream.close();
+                    return received;
+                } finally {
+                    Abortable.abort(fileOutputStream);
+                }
+            });
+            lease.keep();
+            Files.move(part.toPath(), dst.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (ResponseException e) {
+            throw new FileNotFoundException(e.response.message.trim());
+        } finally {
+            Files.deleteIfExists(part.toPath());
+            if (madeDir && !dst.exists()) dir.delete();     // Only if left empty.
+        }
+    }
+
+    /**
+     * Run a task, unless the same task is already running. Then wait for it, and share its result.
+     */
+    protected <T> T coalesce(Map<String, CompletableFuture<T>> running, String key, IOTask<T> task)
+            throws IOException {
+        CompletableFuture<T> mine = new CompletableFuture<>();
+        CompletableFuture<T> theirs = running.putIfAbsent(key, mine);
+        if (theirs != null) {
+            try {
+                return theirs.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw e;
+            }
+        }
+        try {
+            T result = task.call();
+            mine.complete(result);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            running.remove(key, mine);
+        }
+    }
+
+    /**
+     * A session borrowed from the pool. It returns to the pool on close if it is kept,
+     * or it is closed as it may be out of sync.
+     */
+    protected class Lease implements Closeable {
+        Session session;
+        boolean reused;
+        boolean kept = false;
+
+        Lease() throws IOException {
+            Session idle;
+            synchronized (idleSessions) {
+                idle = idleSessions.poll();
+            }
+            reused = idle != null;
+            session = reused ? idle : new Session(host, cmdPort, dataPort);
+        }
+
+        /**
+         * Run a task on the session. If a pooled session turns out to be closed by upstream,
+         * retry on a new one. A refusal of upstream server is not retried, and keeps the session.
+         */
+        <T> T run(SessionTask<T> task) throws IOException {
+            try {
+                return task.run(session);
+            } catch (ResponseException e) {
+                kept = true;
+                throw e;
+            } catch (IOException e) {
+                if (!reused) throw e;
+                session.close();
+                session = new Session(host, cmdPort, dataPort);
+                reused = false;
+                return task.run(session);
+            }
+        }
+
+        void keep() {
+            kept = true;
+        }
+
+        @Override
+        public void close() {
+            if (kept) {
+                synchronized (idleSessions) {
+                    idleSessions.push(session);
+                }
+            } else {
+                session.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+import ftp.AckTest;
+import ftp.Check;
+import ftp.ControlCodecTest;
+import ftp.DigestTest;
+import ftp.FindTest;
+import ftp.FollowTest;
+import ftp.MirrorTest;
+import ftp.ParityCoderTest;
+import ftp.RangeTest;
+import ftp.SRTest;
+import ftp.SparseTest;
+import ftp.StreamingTest;
+import ftp.client.AsyncClientTest;
+import ftp.client.ContentCacheTest;
+import ftp.client.UDPTest;
+import ftp.net.DatagramStreamTest;
+import ftp.net.GatheringOutputStreamTest;
+import ftp.server.DedupStorageTest;
+import ftp.server.FairSchedulerTest;
+import ftp.server.FileCacheTest;
+import ftp.server.MetadataIndexTest;
+
+public class FTPTest {
+
+    public static void main(String[] args) {
+        SRTest.runAll();
+        ParityCoderTest.runAll();
+        SparseTest.runAll();
+        ControlCodecTest.runAll();
+        DatagramStreamTest.runAll();
+        DedupStorageTest.runAll();
+        FileCacheTest.runAll();
+        FairSchedulerTest.runAll();
+        AsyncClientTest.runAll();
+        StreamingTest.runAll();
+        MirrorTest.runAll();
+        FindTest.runAll();
+        MetadataIndexTest.runAll();
+        ContentCacheTest.runAll();
+        RangeTest.runAll();
+        FollowTest.runAll();
+        DigestTest.runAll();
+        AckTest.runAll();
+        GatheringOutputStreamTest.runAll();
+        UDPTest.runAll();
+        System.out.println(Check.failures() == 0 ? "All tests passed." : Check.failures() + " test(s) failed.");
+        System.exit(Check.failures() == 0 ? 0 : 1);
+    }
+
+}
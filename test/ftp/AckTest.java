@@ -0,0 +1,106 @@
+package ftp;
+
+import ftp.client.Session;
+import ftp.net.NetEmulator;
+import ftp.server.Server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static ftp.Check.*;
+import static ftp.StreamingTest.contents;
+
+/**
+ * ACKs of the upload receiver, held and flushed together: after {@code ackEvery} of them, at once
+ * for a gap or a resend, after {@code ackDelay}, and before a read which would block.
+ * Then an upload through a server on loopback which loses ACKs.
+ */
+public class AckTest {
+
+    /**
+     * Stream of ACKs, which keeps what each flush sent, like {@code 0 1 2 3}.
+     */
+    static class Flushes extends OutputStream {
+        final List<String> flushes = new ArrayList<>();
+        final StringBuilder held = new StringBuilder();
+
+        @Override
+        public void write(int b) {
+            held.append(b == '\n' ? ' ' : (char) b);
+        }
+
+        @Override
+        public void flush() {
+            if (held.length() > 0) flushes.add(held.toString().trim());
+            held.setLength(0);
+        }
+    }
+
+    public static void runAll() {
+        run("ACK.heldUntilEvery", () -> equal(List.of("0 1 2 3", "4 5 6 7"),
+                receive(chunks(0, 1, 2, 3, 4, 5, 6, 7), 4, 60_000), "flushes"));
+        run("ACK.urgentOnGapAndResend", () -> equal(List.of("0 2", "1 1", "3 4 5 6"),
+                receive(chunks(0, 2, 1, 1, 3, 4, 5, 6), 4, 60_000), "flushes"));
+        run("ACK.afterDelay", () -> equal(List.of("0", "1", "2", "3"),
+                receive(chunks(0, 1, 2, 3), 100, 0), "flushes"));
+        run("ACK.beforeBlocking", () -> {
+            // Nothing is ever available ahead, as if the sender waits after each chunk.
+            InputStream trickle = new FilterInputStream(new ByteArrayInputStream(chunks(0, 1, 2, 3, 4))) {
+                @Override
+                public int available() {
+                    return 0;
+                }
+            };
+            Flushes acks = new Flushes();
+            new SRReceiver(new DataInputStream(trickle), acks, 4, 60_000).receive(new ByteArrayOutputStream(), -1);
+            equal(List.of("0", "1", "2", "3", "4"), acks.flushes, "flushes");
+        });
+        run("ACK.coalescedUnderLoss", () -> {
+            NetEmulator emulator = new NetEmulator("loss=0.1 seed=4");
+            TestServer.with(root -> {
+                Server server = new Server(root.getPath());
+                server.setNetEmulator(emulator);
+                return server;
+            }, server -> {
+                byte[] contents = contents(60_000, 1);
+                try (Session session = server.session()) {
+                    session.put(new ByteArrayInputStream(contents), "a.bin");
+                }
+                equal(contents, Files.readAllBytes(server.file("a.bin").toPath()), "contents on server");
+                that(SRTest.count(emulator, "dropped") > 0, "ACKs should be lost: " + emulator);
+            });
+        });
+    }
+
+    /**
+     * @return Chunks of 10 bytes each with sequence numbers given, followed by the end of transfer.
+     */
+    static byte[] chunks(int... seqNos) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int seqNo : seqNos) new DataChunkC2S((byte) seqNo, new byte[10]).writeBytes(out);
+        DataChunkC2S.writeEnd(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Receive chunks all available at once, and tell what each flush of ACKs sent.
+     */
+    static List<String> receive(byte[] chunks, int ackEvery, int ackDelay) throws Exception {
+        Flushes acks = new Flushes();
+        SRReceiver receiver = new SRReceiver(
+                new DataInputStream(new ByteArrayInputStream(chunks)), acks, ackEvery, ackDelay);
+        receiver.receive(new ByteArrayOutputStream(), -1);
+        return acks.flushes;
+    }
+
+}
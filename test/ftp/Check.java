@@ -0,0 +1,82 @@
+package ftp;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Minimal test harness. Runs each test body, reports it as passed or failed on standard output,
+ * and counts failures, so that a runner can exit with a non-zero status if any failed.
+ */
+public final class Check {
+
+    /**
+     * A test body. It fails by throwing, like {@code fail} does.
+     */
+    public interface Body {
+        void run() throws Exception;
+    }
+
+    private static int numFailures = 0;
+
+    private Check() {
+    }
+
+    /**
+     * Run a test, and print its result to standard output.
+     *
+     * @param name Name of the test.
+     * @param body Test body.
+     */
+    public static void run(String name, Body body) {
+        long start = System.nanoTime();
+        try {
+            body.run();
+            System.out.printf("ok   %-50s %6d ms%n", name, (System.nanoTime() - start) / 1_000_000);
+        } catch (Throwable e) {
+            numFailures++;
+            System.out.printf("FAIL %-50s %s%n", name, e);
+            e.printStackTrace(System.out);
+        }
+    }
+
+    /**
+     * @return Number of tests failed so far.
+     */
+    public static int failures() {
+        return numFailures;
+    }
+
+    public static void fail(String message) {
+        throw new AssertionError(message);
+    }
+
+    public static void that(boolean condition, String message) {
+        if (!condition) fail(message);
+    }
+
+    public static void equal(Object expected, Object actual, String what) {
+        if (!Objects.equals(expected, actual)) fail(what + ": expected " + expected + ", got " + actual);
+    }
+
+    public static void equal(byte[] expected, byte[] actual, String what) {
+        if (expected.length != actual.length) {
+            fail(what + ": expected " + expected.length + " bytes, got " + actual.length);
+        }
+        int at = Arrays.mismatch(expected, actual);
+        if (at != -1) fail(what + ": differs at byte " + at);
+    }
+
+    /**
+     * Require a body to throw an exception of a type.
+     */
+    public static void throwsA(Class<? extends Throwable> type, Body body, String what) {
+        try {
+            body.run();
+        } catch (Throwable e) {
+            if (type.isInstance(e)) return;
+            fail(what + ": expected " + type.getSimpleName() + ", got " + e);
+        }
+        fail(what + ": expected " + type.getSimpleName() + ", but nothing was thrown");
+    }
+
+}
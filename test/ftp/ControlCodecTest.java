@@ -0,0 +1,77 @@
+package ftp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static ftp.Check.*;
+
+/**
+ * Binary framing of the command channel: requests and responses written by one codec and read by another.
+ */
+public class ControlCodecTest {
+
+    public static void runAll() {
+        run("ControlCodec.request", () -> {
+            String[] read = roundTrip(new String[]{"put", " a b ", "", "\u00fcn\u00efc\u00f8d\u00e9.txt"});
+            equal(Arrays.asList("put", "a b", "\u00fcn\u00efc\u00f8d\u00e9.txt"), Arrays.asList(read), "arguments");
+        });
+        run("ControlCodec.emptyRequest", () -> equal(Arrays.asList(""), Arrays.asList(roundTrip(new String[0])),
+                "arguments"));
+        run("ControlCodec.largeRequest", () -> {
+            char[] name = new char[60_000];
+            Arrays.fill(name, 'x');
+            String[] read = roundTrip(new String[]{"get", new String(name)});
+            equal(60_000, read[1].length(), "length of argument");
+        });
+        run("ControlCodec.response", () -> {
+            for (ReturnCode code : ReturnCode.values()) {
+                if (code == ReturnCode.UNKNOWN) continue;
+                Response read = roundTrip(new Response(code, "Comprising 2 entries\na, 10\nb, -\n"));
+                equal(code, read.returnCode, "return code");
+                equal("Comprising 2 entries\na, 10\nb, -\n", read.message, "message");
+            }
+            equal("Hello\n", roundTrip(new Response(ReturnCode.SERVICE_READY, "Hello")).message, "ended message");
+        });
+        run("ControlCodec.framesInARow", () -> {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ControlCodec writer = new ControlCodec(new ByteArrayInputStream(new byte[0]), bytes);
+            writer.writeRequest(new String[]{"cd", ".."});
+            writer.writeResponse(new Response(ReturnCode.SUCCESS, "Moved to /"));
+            writer.writeRequest(new String[]{"list", "."});
+            ControlCodec reader = new ControlCodec(new ByteArrayInputStream(bytes.toByteArray()), bytes);
+            that(reader.ready(), "a frame is ready");
+            equal("..", reader.readRequest()[1], "first request");
+            equal("Moved to /\n", reader.readResponse().message, "response");
+            equal("list", reader.readRequest()[0], "second request");
+            that(!reader.ready(), "nothing left");
+        });
+        run("ControlCodec.malformed", () -> {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new ControlCodec(new ByteArrayInputStream(new byte[0]), bytes).writeRequest(new String[]{"list"});
+            throwsA(IOException.class, () -> reader(bytes.toByteArray()).readResponse(), "request read as response");
+            throwsA(IOException.class, () -> reader(new byte[]{0x7f, 0, 0, 0}).readRequest(), "oversized frame");
+            throwsA(IOException.class, () -> reader(new byte[]{0, 0, 0, 5, 1, 0, 0, 0, 9}).readRequest(),
+                    "argument longer than frame");
+            throwsA(IOException.class, () -> reader(new byte[0]).readRequest(), "closed channel");
+        });
+    }
+
+    static ControlCodec reader(byte[] bytes) {
+        return new ControlCodec(new ByteArrayInputStream(bytes), new ByteArrayOutputStream());
+    }
+
+    static String[] roundTrip(String[] request) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new ControlCodec(new ByteArrayInputStream(new byte[0]), bytes).writeRequest(request);
+        return reader(bytes.toByteArray()).readRequest();
+    }
+
+    static Response roundTrip(Response response) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new ControlCodec(new ByteArrayInputStream(new byte[0]), bytes).writeResponse(response);
+        return reader(bytes.toByteArray()).readResponse();
+    }
+
+}
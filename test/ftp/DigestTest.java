@@ -0,0 +1,163 @@
+package ftp;
+
+import ftp.client.ResponseException;
+import ftp.client.Session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static ftp.Check.*;
+import static ftp.StreamingTest.contents;
+
+/**
+ * Transfers verified with a whole-file digest through a server on loopback: verified both ways,
+ * a download corrupted on the way failing its digest, and an upload whose digest differs refused.
+ */
+public class DigestTest {
+
+    /**
+     * Proxy of data connections, which flips a byte of what server sends on each connection.
+     * Data chunks carry no checksum of their own, so nothing but the digest notices.
+     */
+    static class CorruptingProxy implements AutoCloseable {
+        final ServerSocket listener;
+
+        CorruptingProxy(int dataPort, long flipAt) throws IOException {
+            listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket client = listener.accept();
+                        Socket server = new Socket(InetAddress.getLoopbackAddress(), dataPort);
+                        pump(client.getInputStream(), server.getOutputStream(), -1);
+                        pump(server.getInputStream(), client.getOutputStream(), flipAt);
+                    }
+                } catch (IOException ignored) {
+                    // Closed.
+                }
+            }, "Corrupting proxy");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int port() {
+            return listener.getLocalPort();
+        }
+
+        static void pump(InputStream in, OutputStream out, long flipAt) {
+            Thread pump = new Thread(() -> {
+                byte[] buffer = new byte[8192];
+                long position = 0;
+                try (in; out) {
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        if (flipAt >= position && flipAt < position + n) buffer[(int) (flipAt - position)] ^= 1;
+                        position += n;
+                        out.write(buffer, 0, n);
+                    }
+                } catch (IOException ignored) {
+                    // Either end closed.
+                }
+            }, "Proxy pump");
+            pump.setDaemon(true);
+            pump.start();
+        }
+
+        @Override
+        public void close() throws IOException {
+            listener.close();
+        }
+    }
+
+    /**
+     * Session which can change the digest it tells server after an upload, like a transfer corrupted unnoticed.
+     */
+    static class TamperingSession extends Session {
+        boolean tamper = false;
+
+        TamperingSession(TestServer server) throws IOException {
+            super("127.0.0.1", server.cmdPort, server.dataPort);
+        }
+
+        @Override
+        public Response request(String request) throws IOException {
+            if (tamper && request.matches("[0-9a-fA-F]{8,}")) {
+                char last = request.charAt(request.length() - 1);
+                request = request.substring(0, request.length() - 1) + (last == '0' ? '1' : '0');
+            }
+            return super.request(request);
+        }
+    }
+
+    public static void runAll() {
+        run("Digest.verifiedBothWays", () -> TestServer.with(server -> {
+            byte[] contents = contents(500_000, 1);
+            try (Session session = server.session()) {
+                for (String algorithm : new String[]{"crc32c", "SHA-256"}) {
+                    session.digest(algorithm);
+                    session.put(new ByteArrayInputStream(contents), algorithm + ".bin");
+                    equal(contents, Files.readAllBytes(server.file(algorithm + ".bin").toPath()), "uploaded");
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    session.get(algorithm + ".bin", out);
+                    equal(contents, out.toByteArray(), "downloaded with " + algorithm);
+                }
+                equal(ReturnCode.ARGUMENT_ERR, session.request("digest nonsense").returnCode, "unknown algorithm");
+            }
+        }));
+        run("Digest.corruptDownloadFails", () -> TestServer.with(server -> {
+            byte[] contents = contents(200_000, 2);
+            Files.write(server.file("c.bin").toPath(), contents);
+            long flipAt = DataChunkS2C.headerSize + 500;       // Inside the data of the first chunk.
+            try (CorruptingProxy proxy = new CorruptingProxy(server.dataPort, flipAt)) {
+                // Unverified, the corruption goes through.
+                try (Session session = new Session("127.0.0.1", server.cmdPort, proxy.port())) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    session.get("c.bin", out);
+                    that(!Arrays.equals(contents, out.toByteArray()), "corrupted on the way");
+                }
+
+                try (Session session = new Session("127.0.0.1", server.cmdPort, proxy.port())) {
+                    session.digest("crc32c");
+                    try {
+                        session.get("c.bin", new ByteArrayOutputStream());
+                        fail("corrupt download should fail its digest");
+                    } catch (IOException e) {
+                        that(e.getMessage().contains("Digest mismatch"), "failed by " + e.getMessage());
+                    }
+                    // Only the first transfer on a connection is corrupted.
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    session.get("c.bin", out);
+                    equal(contents, out.toByteArray(), "contents downloaded again");
+                }
+            }
+        }));
+        run("Digest.mismatchedUploadRefused", () -> TestServer.with(server -> {
+            byte[] contents = contents(100_000, 3);
+            try (TamperingSession session = new TamperingSession(server)) {
+                session.digest("SHA-256");
+                session.tamper = true;
+                try {
+                    session.put(new ByteArrayInputStream(contents), "t.bin");
+                    fail("upload with a different digest should be refused");
+                } catch (ResponseException e) {
+                    equal(ReturnCode.FILE_UNAVAILABLE, e.response.returnCode, "return code");
+                    that(e.response.message.contains("Digest mismatch"), "refused by " + e.response.message);
+                }
+                that(!server.file("t.bin").exists(), "no file should be left");
+
+                session.tamper = false;
+                session.put(new ByteArrayInputStream(contents), "t.bin");
+                equal(contents, Files.readAllBytes(server.file("t.bin").toPath()), "contents after a good upload");
+            }
+        }));
+    }
+
+}
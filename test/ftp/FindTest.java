@@ -0,0 +1,70 @@
+package ftp;
+
+import ftp.client.ResponseException;
+import ftp.client.Session;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static ftp.Check.*;
+
+/**
+ * {@code FIND} through a server on loopback: matches at any depth, and filters refused.
+ */
+public class FindTest {
+
+    public static void runAll() {
+        run("Find.throughServer", () -> TestServer.with(server -> {
+            Files.createDirectories(server.file("a/b").toPath());
+            Files.write(server.file("a/b/deep.txt").toPath(), new byte[3000]);
+            Files.write(server.file("a/small.txt").toPath(), new byte[10]);
+            Files.write(server.file("top.bin").toPath(), new byte[5000]);
+            try (Session session = server.session()) {
+                List<String> all = awaitMatches(session, ".", "", 5);
+                equal(List.of("a", "a/b", "a/b/deep.txt", "a/small.txt", "top.bin"), paths(all), "everything");
+                equal(List.of("b/deep.txt", "small.txt"), paths(find(session, "a", "name=*.txt")), "text files under a");
+                equal(List.of("a/b/deep.txt", "top.bin"), paths(find(session, ".", "minsize=1k")), "over 1k");
+                equal(List.of("a", "a/b"), paths(find(session, ".", "type=d")), "directories");
+
+                for (String filter : new String[]{"minsize=99999999999g", "minsize=big", "color=red"}) {
+                    try {
+                        find(session, ".", filter);
+                        fail("filter " + filter + " should be refused");
+                    } catch (ResponseException e) {
+                        equal(ReturnCode.ARGUMENT_ERR, e.response.returnCode, "refusal of " + filter);
+                    }
+                }
+                equal(1, find(session, ".", "name=top.bin").size(), "session goes on after refusals");
+            }
+        }));
+    }
+
+    static List<String> find(Session session, String path, String filters) throws Exception {
+        List<String> matches = new ArrayList<>();
+        session.find(path, filters, matches::add);
+        return matches;
+    }
+
+    /**
+     * Search until the walk at startup has indexed as many entries.
+     */
+    static List<String> awaitMatches(Session session, String path, String filters, int count) throws Exception {
+        List<String> matches = find(session, path, filters);
+        for (int i = 0; i < 100 && matches.size() < count; i++) {
+            Thread.sleep(50);
+            matches = find(session, path, filters);
+        }
+        return matches;
+    }
+
+    /**
+     * @return Paths of matches, which are each a path, a size and a modification time.
+     */
+    static List<String> paths(List<String> matches) {
+        List<String> paths = new ArrayList<>();
+        for (String match : matches) paths.add(match.split(", ")[0]);
+        return paths;
+    }
+
+}
@@ -0,0 +1,111 @@
+package ftp;
+
+import ftp.client.ResponseException;
+import ftp.client.Session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static ftp.Check.*;
+import static ftp.StreamingTest.contents;
+
+/**
+ * Following a growing file through a server on loopback: appends arrive until the client stops,
+ * resuming from an offset, and the end when the file is truncated or deleted.
+ */
+public class FollowTest {
+
+    /**
+     * What a follow received so far, which the test reads while it goes on.
+     */
+    static class Received extends ByteArrayOutputStream {
+        synchronized byte[] await(int length) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (count < length && System.currentTimeMillis() < deadline) wait(50);
+            return toByteArray();
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            super.write(b, off, len);
+            notifyAll();
+        }
+    }
+
+    public static void runAll() {
+        run("Follow.appendsUntilStopped", () -> TestServer.with(server -> {
+            Path file = server.file("log.bin").toPath();
+            byte[] contents = contents(300_000, 1);
+            Files.write(file, Arrays.copyOf(contents, 100_000));
+            try (Session session = server.session()) {
+                Received received = new Received();
+                CompletableFuture<Long> follow = follow(session, 0, received);
+                equal(Arrays.copyOf(contents, 100_000), received.await(100_000), "contents at first");
+                for (int from = 100_000; from < contents.length; from += 50_000) {
+                    Files.write(file, Arrays.copyOfRange(contents, from, from + 50_000), StandardOpenOption.APPEND);
+                    equal(Arrays.copyOf(contents, from + 50_000), received.await(from + 50_000),
+                            "contents after appending up to " + (from + 50_000));
+                }
+                session.stopFollowing();
+                equal((long) contents.length, follow.get(), "bytes followed");
+                equal(contents, received.toByteArray(), "contents followed");
+                equal(1, session.list(".").size(), "session goes on");
+            }
+        }));
+        run("Follow.resume", () -> TestServer.with(server -> {
+            byte[] contents = contents(80_000, 2);
+            Files.write(server.file("log.bin").toPath(), contents);
+            try (Session session = server.session()) {
+                Received received = new Received();
+                CompletableFuture<Long> follow = follow(session, 30_000, received);
+                equal(Arrays.copyOfRange(contents, 30_000, 80_000), received.await(50_000), "contents from the offset");
+                session.stopFollowing();
+                equal(50_000L, follow.get(), "bytes followed");
+                equal(ReturnCode.ARGUMENT_ERR, session.request("follow log.bin 80001").returnCode, "offset beyond");
+                equal(ReturnCode.FILE_UNAVAILABLE, session.request("follow missing.bin").returnCode, "missing file");
+            }
+        }));
+        run("Follow.truncatedOrDeleted", () -> TestServer.with(server -> {
+            Path file = server.file("log.bin").toPath();
+            for (boolean delete : new boolean[]{false, true}) {
+                Files.write(file, new byte[20_000]);
+                try (Session session = server.session()) {
+                    Received received = new Received();
+                    CompletableFuture<Long> follow = follow(session, 0, received);
+                    received.await(20_000);
+                    if (delete) {
+                        Files.delete(file);
+                    } else {
+                        Files.write(file, new byte[10]);
+                    }
+                    try {
+                        follow.join();
+                        fail("follow should end with a refusal when the file is " + (delete ? "deleted" : "truncated"));
+                    } catch (CompletionException e) {
+                        that(e.getCause() instanceof ResponseException, "ended by " + e.getCause());
+                        equal(ReturnCode.FILE_UNAVAILABLE, ((ResponseException) e.getCause()).response.returnCode,
+                                "return code");
+                    }
+                    session.list(".");
+                }
+            }
+        }));
+    }
+
+    static CompletableFuture<Long> follow(Session session, long offset, Received received) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return session.follow("log.bin", offset, received);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,31 @@
+package ftp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Data connection over loopback, as seen from both ends.
+ */
+class Loopback implements AutoCloseable {
+
+    final DataConnection client;
+    final DataConnection server;
+
+    Loopback() throws IOException {
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            client = new DataConnection(SocketChannel.open(listener.getLocalAddress()).socket());
+            server = new DataConnection(listener.accept().socket());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+        server.close();
+    }
+
+}
@@ -0,0 +1,157 @@
+package ftp;
+
+import ftp.client.Session;
+import ftp.server.DedupStorage;
+import ftp.server.Server;
+import ftp.server.Storage;
+import ftp.server.Upstream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ftp.Check.*;
+import static ftp.StreamingTest.contents;
+
+/**
+ * A mirror and its upstream, both servers on loopback: files read through and kept,
+ * a file fetched once for sessions asking at the same time, listings cached,
+ * and local files served while upstream is down.
+ */
+public class MirrorTest {
+
+    /**
+     * Upstream which counts downloads, and takes its time, so that sessions asking meanwhile overlap.
+     */
+    static class CountingUpstream extends Upstream {
+        final AtomicInteger downloads = new AtomicInteger();
+
+        CountingUpstream(TestServer upstream) {
+            super("127.0.0.1", upstream.cmdPort, upstream.dataPort);
+        }
+
+        @Override
+        protected void download(String path, File dst, Storage storage) throws IOException {
+            downloads.incrementAndGet();
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            super.download(path, dst, storage);
+        }
+    }
+
+    public static void runAll() {
+        run("Mirror.readThrough", () -> TestServer.with(up -> {
+            byte[] contents = contents(400_000, 1);
+            Files.createDirectories(up.file("sub").toPath());
+            Files.write(up.file("sub/a.bin").toPath(), contents);
+            CountingUpstream upstream = new CountingUpstream(up);
+            TestServer.with(mirrorOf(upstream), mirror -> {
+                try (Session session = mirror.session()) {
+                    equal(contents, get(session, "sub/a.bin"), "contents read through");
+                    equal(contents, Files.readAllBytes(mirror.file("sub/a.bin").toPath()), "contents kept on mirror");
+                    equal(contents, get(session, "sub/a.bin"), "contents served again");
+                    equal(1, upstream.downloads.get(), "downloads");
+                    equal(ReturnCode.FILE_UNAVAILABLE, session.request("get sub/missing.bin").returnCode, "missing upstream too");
+                    that(!mirror.file("sub/missing.bin").exists(), "nothing kept for a missing file");
+                }
+            });
+        }));
+        run("Mirror.concurrentFetchCoalesced", () -> TestServer.with(up -> {
+            byte[] contents = contents(600_000, 2);
+            Files.write(up.file("c.bin").toPath(), contents);
+            CountingUpstream upstream = new CountingUpstream(up);
+            TestServer.with(mirrorOf(upstream), mirror -> {
+                ExecutorService executor = Executors.newFixedThreadPool(4);
+                try {
+                    List<Future<byte[]>> results = new ArrayList<>();
+                    for (int i = 0; i < 4; i++) {
+                        results.add(executor.submit(() -> {
+                            try (Session session = mirror.session()) {
+                                return get(session, "c.bin");
+                            }
+                        }));
+                    }
+                    for (Future<byte[]> result : results) equal(contents, result.get(), "contents of each session");
+                } finally {
+                    executor.shutdownNow();
+                }
+                equal(1, upstream.downloads.get(), "downloads");
+            });
+        }));
+        run("Mirror.listCachedWithinTTL", () -> TestServer.with(up -> {
+            Files.write(up.file("old.txt").toPath(), new byte[10]);
+            TestServer.with(mirrorOf(new Upstream("127.0.0.1", up.cmdPort, up.dataPort)), mirror -> {
+                try (Session session = mirror.session()) {
+                    equal(List.of("old.txt, 10"), session.list("."), "listing of upstream");
+                    Files.write(up.file("new.txt").toPath(), new byte[20]);
+                    equal(List.of("old.txt, 10"), session.list("."), "listing within TTL");
+                }
+                try (Session session = up.session()) {
+                    equal(2, session.list(".").size(), "entries upstream");
+                }
+            });
+        }));
+        run("Mirror.upstreamDown", () -> {
+            Upstream down = new Upstream("127.0.0.1", TestServer.freePort(), TestServer.freePort());
+            TestServer.with(mirrorOf(down), mirror -> {
+                byte[] contents = contents(50_000, 3);
+                Files.write(mirror.file("local.bin").toPath(), contents);
+                try (Session session = mirror.session()) {
+                    equal(contents, get(session, "local.bin"), "local file served");
+                    equal(List.of("local.bin, 50000"), session.list("."), "local listing");
+                    equal(ReturnCode.FILE_UNAVAILABLE, session.request("get remote.bin").returnCode, "missing file");
+                    equal(contents, get(session, "local.bin"), "session goes on");
+                }
+            });
+        });
+        run("Mirror.throughStorage", () -> TestServer.with(up -> {
+            byte[] contents = contents(1_200_000, 4);
+            Files.write(up.file("d.bin").toPath(), contents);
+            Path store = Files.createTempDirectory("ftpstore");
+            try {
+                DedupStorage storage = new DedupStorage(store.toFile());
+                Upstream upstream = new Upstream("127.0.0.1", up.cmdPort, up.dataPort);
+                TestServer.with(root -> {
+                    Server server = new Server(root.getPath(), storage);
+                    server.setUpstream(upstream);
+                    return server;
+                }, mirror -> {
+                    try (Session session = mirror.session()) {
+                        equal(contents, get(session, "d.bin"), "contents read through");
+                        equal(contents, get(session, "d.bin"), "contents served from storage");
+                    }
+                    that(!storage.isPlain(mirror.file("d.bin")), "kept as a manifest");
+                    equal((long) contents.length, storage.length(mirror.file("d.bin")), "length");
+                });
+            } finally {
+                TestServer.delete(store);
+            }
+        }));
+    }
+
+    static TestServer.Factory mirrorOf(Upstream upstream) {
+        return root -> {
+            Server server = new Server(root.getPath());
+            server.setUpstream(upstream);
+            return server;
+        };
+    }
+
+    static byte[] get(Session session, String path) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        session.get(path, out);
+        return out.toByteArray();
+    }
+
+}
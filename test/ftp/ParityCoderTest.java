@@ -0,0 +1,119 @@
+package ftp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static ftp.Check.*;
+
+/**
+ * Rebuilding lost members of a group from its parity chunks, as sent and received.
+ */
+public class ParityCoderTest {
+
+    public static void runAll() {
+        run("ParityCoder.rebuildEachMember", () -> {
+            DataChunkC2S[] members = members(5, 3, 437);
+            List<DataChunkC2S> parities = encode("5/1", members);
+            equal(1, parities.size(), "number of parity chunks");
+            for (int lost = 0; lost < members.length; lost++) {
+                DataChunkC2S rebuilt = new DataChunkC2S();
+                that(ParityCoder.rebuild(parities.get(0), lookUp(members, lost), rebuilt), "should rebuild " + lost);
+                same(members[lost], rebuilt);
+            }
+        });
+        run("ParityCoder.twoLostOfOneParity", () -> {
+            DataChunkC2S[] members = members(5, 3, 1000);
+            List<DataChunkC2S> parities = encode("5/1", members);
+            that(!ParityCoder.rebuild(parities.get(0), lookUp(members, 1, 3), new DataChunkC2S()),
+                    "one parity chunk can't rebuild two members");
+        });
+        run("ParityCoder.twoLostOfTwoParities", () -> {
+            DataChunkC2S[] members = members(4, 14, 1);      // Sequence numbers wrap around.
+            List<DataChunkC2S> parities = encode("4/2", members);
+            equal(2, parities.size(), "number of parity chunks");
+            for (int j = 0; j < 2; j++) {
+                DataChunkC2S rebuilt = new DataChunkC2S();
+                that(ParityCoder.rebuild(parities.get(j), lookUp(members, 0, 1), rebuilt), "should rebuild " + j);
+                same(members[j], rebuilt);
+            }
+        });
+        run("ParityCoder.partialGroup", () -> {
+            DataChunkC2S[] members = members(2, 7, 999);
+            List<DataChunkC2S> parities = encode("5/1", members);
+            DataChunkC2S rebuilt = new DataChunkC2S();
+            that(ParityCoder.rebuild(parities.get(0), lookUp(members, 1), rebuilt), "should rebuild");
+            same(members[1], rebuilt);
+        });
+        run("ParityCoder.nothingLost", () -> {
+            DataChunkC2S[] members = members(5, 0, 1000);
+            List<DataChunkC2S> parities = encode("5/1", members);
+            that(!ParityCoder.rebuild(parities.get(0), lookUp(members), new DataChunkC2S()), "nothing to rebuild");
+        });
+        run("ParityCoder.spec", () -> {
+            throwsA(IllegalArgumentException.class, () -> new ParityCoder("6/1"), "group larger than window");
+            throwsA(IllegalArgumentException.class, () -> new ParityCoder("2/3"), "more parities than members");
+            throwsA(IllegalArgumentException.class, () -> new ParityCoder("x"), "malformed");
+        });
+    }
+
+    /**
+     * Members of a group with consecutive sequence numbers and random data, all full but the last.
+     */
+    static DataChunkC2S[] members(int n, int firstSeqNo, int lastSize) throws IOException {
+        Random random = new Random(n * 31L + firstSeqNo);
+        DataChunkC2S[] members = new DataChunkC2S[n];
+        for (int m = 0; m < n; m++) {
+            byte[] data = new byte[m == n - 1 ? lastSize : DataChunkC2S.maxDataSize];
+            random.nextBytes(data);
+            members[m] = new DataChunkC2S();
+            members[m].fill((byte) ((firstSeqNo + m) % DataChunkC2S.numSeqNo), new ByteArrayInputStream(data));
+        }
+        return members;
+    }
+
+    /**
+     * Send members through a coder, and read back parity chunks it sent, as the receiver does.
+     */
+    static List<DataChunkC2S> encode(String spec, DataChunkC2S[] members) throws Exception {
+        ParityCoder coder = new ParityCoder(spec);
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(sent);
+        for (DataChunkC2S member : members) coder.add(member, 0);
+        coder.finishGroup(out);
+        List<DataChunkC2S> parities = new ArrayList<>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(sent.toByteArray()));
+        while (in.available() > 0) {
+            DataChunkC2S parity = new DataChunkC2S();
+            parity.readFrom(in);
+            that(parity.isParity() && !parity.isError(), "parity chunk should arrive intact");
+            parities.add(parity);
+        }
+        return parities;
+    }
+
+    static ParityCoder.MemberLookup lookUp(DataChunkC2S[] members, int... lost) {
+        return seqNo -> {
+            for (DataChunkC2S member : members) {
+                if (member.getSeqNo() != seqNo) continue;
+                for (int m : lost) if (members[m] == member) return null;
+                return member;
+            }
+            return null;
+        };
+    }
+
+    static void same(DataChunkC2S expected, DataChunkC2S actual) {
+        equal(expected.getSeqNo(), actual.getSeqNo(), "sequence number");
+        equal(expected.getSize(), actual.getSize(), "size");
+        equal(Arrays.copyOf(expected.data, expected.getSize()), Arrays.copyOf(actual.data, actual.getSize()), "data");
+        that(!actual.isError(), "rebuilt chunk should pass its checksum");
+    }
+
+}
@@ -0,0 +1,90 @@
+package ftp;
+
+import ftp.client.Client;
+import ftp.client.Session;
+import ftp.server.DedupStorage;
+import ftp.server.Server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static ftp.Check.*;
+import static ftp.StreamingTest.contents;
+
+/**
+ * Ranges of files through a server on loopback: inside the file, cut at its end, empty at its end,
+ * and refused beyond it, for files stored as they are and deduplicated.
+ */
+public class RangeTest {
+
+    public static void runAll() {
+        run("Range.plain", () -> TestServer.with(RangeTest::checkRanges));
+        run("Range.deduplicated", () -> {
+            Path store = Files.createTempDirectory("ftpstore");
+            try {
+                DedupStorage storage = new DedupStorage(store.toFile());
+                TestServer.with(root -> new Server(root.getPath(), storage), server -> {
+                    byte[] contents = contents(1_000_000, 1);
+                    try (Session session = server.session()) {
+                        session.put(new ByteArrayInputStream(contents), "r.bin");
+                    }
+                    that(!storage.isPlain(server.file("r.bin")), "stored as a manifest");
+                    checkRanges(server, contents);
+                });
+            } finally {
+                TestServer.delete(store);
+            }
+        });
+        run("Range.pipedThroughClient", () -> TestServer.with(server -> {
+            byte[] contents = contents(100_000, 2);
+            Files.write(server.file("r.bin").toPath(), contents);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Client client = new Client();
+            client.setSingleCommand(new String[]{"rget", "r.bin", "40000", "20000", "-"}, null, out);
+            equal(0, client.start("127.0.0.1", server.cmdPort, server.dataPort), "result of rget -");
+            equal(Arrays.copyOfRange(contents, 40_000, 60_000), out.toByteArray(), "range written to the pipe");
+
+            Client beyond = new Client();
+            beyond.setSingleCommand(new String[]{"rget", "r.bin", "100001", "10", "-"}, null, new ByteArrayOutputStream());
+            equal(1, beyond.start("127.0.0.1", server.cmdPort, server.dataPort), "result of rget beyond the end");
+        }));
+    }
+
+    static void checkRanges(TestServer server) throws Exception {
+        byte[] contents = contents(1_000_000, 3);
+        Files.write(server.file("r.bin").toPath(), contents);
+        checkRanges(server, contents);
+    }
+
+    static void checkRanges(TestServer server, byte[] contents) throws Exception {
+        try (Session session = server.session()) {
+            Random random = new Random(4);
+            for (int i = 0; i < 20; i++) {
+                int offset = random.nextInt(contents.length);
+                int length = random.nextInt(200_000);
+                int end = Math.min(contents.length, offset + length);
+                equal(Arrays.copyOfRange(contents, offset, end), range(session, offset, length),
+                        "range " + offset + "+" + length);
+            }
+            equal(Arrays.copyOfRange(contents, 990_000, contents.length), range(session, 990_000, 50_000),
+                    "range across the end");
+            equal(0, range(session, contents.length, 10).length, "range at the end");
+            equal(ReturnCode.ARGUMENT_ERR, session.request("rget r.bin " + (contents.length + 1) + " 10").returnCode,
+                    "range beyond the end");
+            equal(ReturnCode.ARGUMENT_ERR, session.request("rget r.bin -1 10").returnCode, "negative offset");
+            equal(ReturnCode.FILE_UNAVAILABLE, session.request("rget missing.bin 0 10").returnCode, "missing file");
+            equal(Arrays.copyOfRange(contents, 0, 10), range(session, 0, 10), "session goes on");
+        }
+    }
+
+    static byte[] range(Session session, long offset, long length) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        session.getRange("r.bin", offset, length, out);
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,131 @@
+package ftp;
+
+import ftp.net.NetEmulator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static ftp.Check.*;
+
+/**
+ * Round trips of uploads from {@code SRSender} to {@code SRReceiver} over a loopback data connection,
+ * clean and through an impaired network, with and without parity chunks, and with runs of zeros.
+ */
+public class SRTest {
+
+    protected static final String impairment = "loss=0.05 dup=0.05 reorder=0.05 corrupt=0.05 delay=1 jitter=2";
+
+    public static void runAll() {
+        byte[] contents = contents(300_000, 1);
+        run("SR.clean", () -> equal(contents, upload(contents, null, "off"), "contents"));
+        for (int seed = 1; seed <= 3; seed++) {
+            NetEmulator emulator = new NetEmulator(impairment + " seed=" + seed);
+            run("SR.impaired.seed" + seed, () -> {
+                equal(contents, upload(contents, emulator, "off"), "contents");
+                that(count(emulator, "dropped") > 0 && count(emulator, "corrupted") > 0
+                        && count(emulator, "reordered") > 0 && count(emulator, "duplicated") > 0,
+                        "every impairment should happen at least once: " + emulator);
+            });
+        }
+        for (String fec : new String[]{"5/1", "4/2", "auto"}) {
+            NetEmulator emulator = new NetEmulator("loss=0.1 seed=4");
+            run("SR.impaired.fec" + fec, () -> equal(contents, upload(contents, emulator, fec), "contents"));
+        }
+        run("SR.empty", () -> equal(new byte[0], upload(new byte[0], null, "off"), "contents"));
+        run("SR.shortLastChunk", () -> {
+            byte[] odd = contents(DataChunkC2S.maxDataSize * 7 + 13, 5);
+            equal(odd, upload(odd, new NetEmulator(impairment + " seed=5"), "off"), "contents");
+        });
+        run("SR.zeroRunsToFile", () -> {
+            File file = File.createTempFile("srtest", ".bin");
+            try {
+                OutputStream out = new WriteBehindOutputStream(file, 4, 64 * 1024,
+                        WriteBehindOutputStream.FsyncPolicy.NONE, 0);
+                upload(new ByteArrayInputStream(contents), out, new NetEmulator(impairment + " seed=6"), "off");
+                out.close();
+                equal(contents, Files.readAllBytes(file.toPath()), "contents of file");
+            } finally {
+                file.delete();
+            }
+        });
+    }
+
+    /**
+     * Random bytes with runs of zeros: one in the middle, spanning many chunks and not aligned to them,
+     * and one at the end.
+     */
+    static byte[] contents(int length, long seed) {
+        byte[] contents = new byte[length];
+        new Random(seed).nextBytes(contents);
+        if (length >= 300_000) {
+            java.util.Arrays.fill(contents, 50_123, 120_456, (byte) 0);
+            java.util.Arrays.fill(contents, length - 20_000, length, (byte) 0);
+        }
+        return contents;
+    }
+
+    static byte[] upload(byte[] contents, NetEmulator emulator, String fec) throws Exception {
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        upload(new ByteArrayInputStream(contents), received, emulator, fec);
+        return received.toByteArray();
+    }
+
+    /**
+     * Upload a stream the way a session does, and deliver it as the server does.
+     * Chunks and ACKs go through the emulator if given, but ACKs are not corrupted, as they have no checksum.
+     */
+    static void upload(InputStream in, OutputStream out, NetEmulator emulator, String fec) throws Exception {
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        try (Loopback loopback = new Loopback()) {
+            Thread receiverThread = new Thread(() -> {
+                try {
+                    OutputStream ackStream = emulator == null ? loopback.server.openOutput()
+                            : emulator.wrap(loopback.server.openOutput(), Integer.MAX_VALUE);
+                    SRReceiver receiver = new SRReceiver(loopback.server.in, ackStream);
+                    receiver.receive(out, -1);
+                    ackStream.close();
+                    ACKListener.writeEnd(loopback.server.out);
+                } catch (IOException e) {
+                    failure.set(e);
+                }
+            }, "Test receiver");
+            receiverThread.start();
+
+            DataOutputStream dataOutputStream = new DataOutputStream(emulator == null ? loopback.client.openOutput()
+                    : emulator.wrap(loopback.client.openOutput(), DataChunkC2S.headerSize));
+            SRSender sender = new SRSender(dataOutputStream, 50,
+                    Collections.emptyList(), Collections.emptyList(), Collections.emptyList());
+            if (!fec.equals("off")) sender.setParityCoder(new ParityCoder(fec));
+            Thread ackListenerThread = new Thread(new ACKListener(loopback.client.in, sender), "Test ACK listener");
+            ackListenerThread.start();
+
+            sender.send(in);
+            dataOutputStream.close();
+            DataChunkC2S.writeEnd(loopback.client.out);
+            ackListenerThread.join(10_000);
+            receiverThread.join(10_000);
+            that(!receiverThread.isAlive() && !ackListenerThread.isAlive(), "transfer should end");
+        }
+        if (failure.get() != null) throw failure.get();
+    }
+
+    /**
+     * @return Number of frames impaired in a way, as the emulator counted them.
+     */
+    static long count(NetEmulator emulator, String impairment) {
+        Matcher matcher = Pattern.compile("(\\d+) " + impairment).matcher(emulator.toString());
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : 0;
+    }
+
+}
@@ -0,0 +1,95 @@
+package ftp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static ftp.Check.*;
+
+/**
+ * Runs of zeros: zero-run chunks of both directions, and holes left by receivers.
+ */
+public class SparseTest {
+
+    public static void runAll() {
+        run("Sparse.isZero", () -> {
+            byte[] b = new byte[20_000];
+            that(Sparse.isZero(b, 0, b.length), "all zeros");
+            b[19_999] = 1;
+            that(!Sparse.isZero(b, 0, b.length), "last byte is not zero");
+            that(Sparse.isZero(b, 0, 19_999), "zeros before it");
+        });
+        run("Sparse.skipWritesZeros", () -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(7);
+            Sparse.skip(out, 20_000);
+            out.write(8);
+            byte[] expected = new byte[20_002];
+            expected[0] = 7;
+            expected[20_001] = 8;
+            equal(expected, out.toByteArray(), "contents");
+        });
+        run("Sparse.writeBehindHoles", () -> {
+            File file = File.createTempFile("sparsetest", ".bin");
+            try {
+                byte[] head = new byte[5000];
+                byte[] middle = new byte[10];
+                new Random(1).nextBytes(head);
+                Arrays.fill(middle, (byte) 9);
+                WriteBehindOutputStream out = new WriteBehindOutputStream(file, 2, 4096,
+                        WriteBehindOutputStream.FsyncPolicy.NONE, 0);
+                out.write(head);
+                Sparse.skip(out, 100_000);
+                Sparse.skip(out, 23);           // Merged with the one before.
+                out.write(middle);
+                Sparse.skip(out, 50_000);       // Trailing hole.
+                out.close();
+
+                byte[] expected = new byte[5000 + 100_023 + 10 + 50_000];
+                System.arraycopy(head, 0, expected, 0, head.length);
+                System.arraycopy(middle, 0, expected, 105_023, middle.length);
+                equal(expected, Files.readAllBytes(file.toPath()), "contents of file");
+            } finally {
+                file.delete();
+            }
+        });
+        run("Sparse.zeroRunS2C", () -> {
+            DataChunkS2C chunk = new DataChunkS2C();
+            chunk.zeroRun((byte) 3, (1L << 40) + 5);
+            DataChunkS2C read = roundTrip(chunk);
+            that(read.isZeroRun() && !read.isEnd(), "zero run");
+            equal((1L << 40) + 5, read.getZeroRunLength(), "length of run");
+            chunk.end((byte) 4);
+            that(roundTrip(chunk).isEnd(), "end of transfer");
+        });
+        run("Sparse.zeroRunC2S", () -> {
+            DataChunkC2S chunk = new DataChunkC2S();
+            chunk.setZeroRun((byte) 9, 2500);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            chunk.writeBytes(new DataOutputStream(bytes));
+            DataChunkC2S read = new DataChunkC2S();
+            read.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            that(read.isZeroRun() && !read.isError(), "intact zero run");
+            equal(2500L, read.getZeroRunLength(), "length of run");
+            equal(3L, read.numBlocks(), "data chunks it stands for");
+        });
+        run("Sparse.onlyZeros", () -> {
+            byte[] zeros = new byte[DataChunkC2S.maxDataSize * 40];
+            equal(zeros, SRTest.upload(zeros, null, "off"), "contents");
+        });
+    }
+
+    static DataChunkS2C roundTrip(DataChunkS2C chunk) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        chunk.writeBytes(new DataOutputStream(bytes));
+        DataChunkS2C read = new DataChunkS2C();
+        read.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        return read;
+    }
+
+}
@@ -0,0 +1,63 @@
+package ftp;
+
+import ftp.client.Client;
+import ftp.client.Session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static ftp.Check.*;
+
+/**
+ * Uploads of unknown length and downloads to a pipe, through a server on loopback,
+ * and lengths of uploads which are refused without disturbing other sessions.
+ */
+public class StreamingTest {
+
+    public static void runAll() {
+        run("Streaming.putOfUnknownLength", () -> TestServer.with(server -> {
+            byte[] contents = contents(700_000, 1);
+            try (Session session = server.session()) {
+                session.put(new ByteArrayInputStream(contents), "s.bin");
+            }
+            equal(contents, Files.readAllBytes(server.file("s.bin").toPath()), "contents on server");
+        }));
+        run("Streaming.pipedThroughClient", () -> TestServer.with(server -> {
+            byte[] contents = contents(300_000, 2);
+            Client uploader = new Client();
+            uploader.setSingleCommand(new String[]{"put", "-", "p.bin"}, new ByteArrayInputStream(contents), null);
+            equal(0, uploader.start("127.0.0.1", server.cmdPort, server.dataPort), "result of put -");
+            equal(contents, Files.readAllBytes(server.file("p.bin").toPath()), "contents on server");
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Client downloader = new Client();
+            downloader.setSingleCommand(new String[]{"get", "p.bin", "-"}, null, out);
+            equal(0, downloader.start("127.0.0.1", server.cmdPort, server.dataPort), "result of get -");
+            equal(contents, out.toByteArray(), "contents written to the pipe");
+        }));
+        run("Streaming.badLengthRefused", () -> TestServer.with(server -> {
+            try (Session bystander = server.session(); Session session = server.session()) {
+                for (String length : new String[]{"abc", "-2000", "99999999999999999999"}) {
+                    equal(ReturnCode.SUCCESS, session.request("put bad.bin").returnCode, "put before " + length);
+                    equal(ReturnCode.ARGUMENT_ERR, session.request(length + " bytes").returnCode, "length " + length);
+                    that(!server.file("bad.bin").exists(), "no file should be left for length " + length);
+                }
+                // Both sessions go on, and so does the server.
+                session.list(".");
+                bystander.list(".");
+                byte[] contents = contents(10_000, 3);
+                session.put(new ByteArrayInputStream(contents), "good.bin");
+                equal(contents, Files.readAllBytes(server.file("good.bin").toPath()), "contents after refusals");
+            }
+        }));
+    }
+
+    static byte[] contents(int length, long seed) {
+        byte[] contents = new byte[length];
+        new Random(seed).nextBytes(contents);
+        return contents;
+    }
+
+}
@@ -0,0 +1,125 @@
+package ftp;
+
+import ftp.client.Session;
+import ftp.server.Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static ftp.Check.fail;
+
+/**
+ * Server on loopback, serving a temporary directory on free ports, for tests of whole transfers.
+ * There is no stopping a server, so it runs on a daemon thread for the rest of the test run,
+ * and only its directory is deleted once the test is over. What it prints is discarded meanwhile.
+ */
+public class TestServer {
+
+    /**
+     * A test body, given the running server.
+     */
+    public interface Body {
+        void run(TestServer server) throws Exception;
+    }
+
+    /**
+     * Makes the server for a directory, like one with another storage or an upstream.
+     */
+    public interface Factory {
+        Server create(File root) throws IOException;
+    }
+
+    public final File root;
+    public final Server server;
+    public final int cmdPort;
+    public final int dataPort;
+
+    protected TestServer(File root, Server server, int cmdPort, int dataPort) {
+        this.root = root;
+        this.server = server;
+        this.cmdPort = cmdPort;
+        this.dataPort = dataPort;
+    }
+
+    /**
+     * Run a body with a server which stores files as they are.
+     */
+    public static void with(Body body) throws Exception {
+        with(root -> new Server(root.getPath()), body);
+    }
+
+    /**
+     * Run a body with a server made by a factory. Bodies may nest, like for a mirror and its upstream.
+     */
+    public static void with(Factory factory, Body body) throws Exception {
+        Path root = Files.createTempDirectory("ftptest").toRealPath();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Server server = factory.create(root.toFile());
+            int cmdPort = freePort();
+            int dataPort = freePort();
+            Thread serverThread = new Thread(() -> {
+                try {
+                    server.start(cmdPort, dataPort);
+                } catch (IOException e) {
+                    System.err.println("Test server failed: " + e.getMessage());
+                }
+            }, "Test server " + cmdPort);
+            serverThread.setDaemon(true);
+            serverThread.start();
+            awaitListening(cmdPort);
+            body.run(new TestServer(root.toFile(), server, cmdPort, dataPort));
+        } finally {
+            System.setOut(out);
+            delete(root);
+        }
+    }
+
+    /**
+     * @return New session with the server.
+     */
+    public Session session() throws IOException {
+        return new Session("127.0.0.1", cmdPort, dataPort);
+    }
+
+    /**
+     * @return File in the served directory.
+     */
+    public File file(String name) {
+        return new File(root, name);
+    }
+
+    public static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    static void awaitListening(int port) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        fail("server didn't start listening on " + port);
+    }
+
+    public static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+}
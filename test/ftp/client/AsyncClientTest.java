@@ -0,0 +1,64 @@
+package ftp.client;
+
+import ftp.TestServer;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import static ftp.Check.*;
+
+/**
+ * Operations of an asynchronous client outstanding at once, over sessions with a server on loopback,
+ * and {@code cd} ordered with the operations around it.
+ */
+public class AsyncClientTest {
+
+    public static void runAll() {
+        run("AsyncClient.overlappingTransfers", () -> TestServer.with(server -> {
+            File sub = server.file("sub");
+            sub.mkdir();
+            byte[][] contents = new byte[8][];
+            for (int i = 0; i < contents.length; i++) {
+                contents[i] = new byte[200_000 + i];
+                new Random(i).nextBytes(contents[i]);
+                Files.write(new File(sub, "f" + i).toPath(), contents[i]);
+            }
+            Path local = Files.createTempDirectory("asyncclienttest");
+            try (AsyncClient client = AsyncClient.connect("127.0.0.1", server.cmdPort, server.dataPort, 3).join()) {
+                // Gets issued after cd see the new directory on every session.
+                CompletableFuture<String> cd = client.cd("sub");
+                List<CompletableFuture<Long>> gets = new ArrayList<>();
+                for (int i = 0; i < contents.length; i++) {
+                    gets.add(client.get("f" + i, local.resolve("f" + i).toFile()));
+                }
+                that(cd.join().contains("sub"), "cd should tell the new directory: " + cd.join());
+                for (int i = 0; i < contents.length; i++) {
+                    equal((long) contents[i].length, gets.get(i).join(), "bytes received of f" + i);
+                    equal(contents[i], Files.readAllBytes(local.resolve("f" + i)), "contents of f" + i);
+                }
+
+                // Puts overlap too, and a failed one doesn't hold up the rest.
+                List<CompletableFuture<Void>> puts = new ArrayList<>();
+                for (int i = 0; i < 4; i++) puts.add(client.put(local.resolve("f" + i).toFile(), "up" + i));
+                CompletableFuture<Void> taken = client.put(local.resolve("f0").toFile(), "f1");
+                for (int i = 0; i < 4; i++) {
+                    puts.get(i).join();
+                    equal(contents[i], Files.readAllBytes(new File(sub, "up" + i).toPath()), "contents of up" + i);
+                }
+                that(taken.handle((v, e) -> e != null).join(), "put to a name taken should fail");
+
+                client.cd("..");
+                that(client.list(".").join().stream().anyMatch(entry -> entry.startsWith("sub")),
+                        "list after cd .. should show sub");
+            } finally {
+                TestServer.delete(local);
+            }
+        }));
+    }
+
+}
@@ -0,0 +1,110 @@
+package ftp.client;
+
+import ftp.ReturnCode;
+import ftp.TestServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static ftp.Check.*;
+
+/**
+ * Downloads of a client with a cache, from a server on loopback: a file which didn't change is taken
+ * from the cache, one which changed is downloaded again, and a cached copy which doesn't match its digest
+ * is dropped and downloaded again.
+ */
+public class ContentCacheTest {
+
+    public static void runAll() {
+        run("ContentCache.notModified", () -> withCache((server, cache) -> {
+            byte[] contents = contents(300_000, 1);
+            Files.write(server.file("f.bin").toPath(), contents);
+
+            ScriptedClient first = new ScriptedClient(cache, "get f.bin -");
+            equal(0, first.run(server), "result of first get");
+            equal(contents, first.got.toByteArray(), "contents downloaded");
+            ContentCache.Entry entry = cache.lookup(first.cacheKey("f.bin"));
+            that(entry != null, "file should be cached");
+
+            // Server tells the copy is the same.
+            try (Session session = server.session()) {
+                equal(ReturnCode.NOT_MODIFIED,
+                        session.request("get f.bin " + entry.length + " " + entry.lastModified).returnCode,
+                        "response to a conditional get");
+            }
+            ScriptedClient second = new ScriptedClient(cache, "get f.bin -", "get f.bin -");
+            equal(0, second.run(server), "result of gets again");
+            equal(2, second.fromCache(), "gets taken from the cache");
+            equal(concat(contents, contents), second.got.toByteArray(), "contents from the cache");
+        }));
+        run("ContentCache.modified", () -> withCache((server, cache) -> {
+            Path file = server.file("f.bin").toPath();
+            byte[] contents = contents(200_000, 2);
+            Files.write(file, contents);
+            ScriptedClient first = new ScriptedClient(cache, "get f.bin -");
+            equal(0, first.run(server), "result of first get");
+
+            byte[] changed = contents(250_000, 3);
+            Files.write(file, changed);
+            file.toFile().setLastModified(file.toFile().lastModified() + 10_000);
+            ScriptedClient second = new ScriptedClient(cache, "get f.bin -", "get f.bin -");
+            equal(0, second.run(server), "result of gets after a change");
+            equal(1, second.fromCache(), "gets taken from the cache");
+            equal(concat(changed, changed), second.got.toByteArray(), "contents downloaded again, then cached");
+            equal((long) changed.length, cache.lookup(second.cacheKey("f.bin")).length, "length of cached copy");
+        }));
+        run("ContentCache.digestMismatch", () -> withCache((server, cache) -> {
+            byte[] contents = contents(200_000, 4);
+            Files.write(server.file("f.bin").toPath(), contents);
+            ScriptedClient first = new ScriptedClient(cache, "digest SHA-256", "get f.bin -");
+            equal(0, first.run(server), "result of first get");
+            ContentCache.Entry entry = cache.lookup(first.cacheKey("f.bin"));
+            that(entry.digest != null && entry.digest.startsWith("SHA-256:"), "cached copy should be verified");
+
+            // Corrupt the cached copy, keeping its length.
+            byte[] corrupt = contents.clone();
+            corrupt[100_000] ^= 1;
+            Files.write(cache.contentFile(entry).toPath(), corrupt);
+
+            ScriptedClient second = new ScriptedClient(cache, "digest SHA-256", "get f.bin -", "get f.bin -");
+            equal(0, second.run(server), "result of gets after corruption");
+            that(second.printed.toString().contains("Digest mismatch of cached copy"), "mismatch should be told");
+            equal(1, second.fromCache(), "gets taken from the cache");
+            equal(concat(contents, contents), second.got.toByteArray(), "contents downloaded again, then cached");
+            equal(contents, Files.readAllBytes(cache.contentFile(cache.lookup(second.cacheKey("f.bin"))).toPath()),
+                    "cached copy replaced");
+        }));
+    }
+
+    interface CacheBody {
+        void run(TestServer server, ContentCache cache) throws Exception;
+    }
+
+    static void withCache(CacheBody body) throws Exception {
+        TestServer.with(server -> {
+            Path dir = Files.createTempDirectory("cachetest");
+            try {
+                body.run(server, new ContentCache(new File(dir.toFile(), "cache"), 1 << 30));
+            } finally {
+                TestServer.delete(dir);
+            }
+        });
+    }
+
+    static byte[] contents(int length, long seed) {
+        byte[] contents = new byte[length];
+        new Random(seed).nextBytes(contents);
+        return contents;
+    }
+
+    static byte[] concat(byte[] a, byte[] b) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(a);
+        out.write(b);
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,52 @@
+package ftp.client;
+
+import ftp.TestServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+/**
+ * Client which runs a script of commands, rather than reading them from standard input,
+ * and writes files got with {@code get <name> -} to a buffer.
+ */
+class ScriptedClient extends Client {
+    final Queue<String> script;
+    final ByteArrayOutputStream got = new ByteArrayOutputStream();
+    final ByteArrayOutputStream printed = new ByteArrayOutputStream();
+
+    ScriptedClient(ContentCache cache, String... script) {
+        this.contentCache = cache;
+        this.script = new ArrayDeque<>(Arrays.asList(script));
+        this.script.add("quit");
+        this.pipeOut = got;
+    }
+
+    @Override
+    protected String[] readRequest() {
+        return script.remove().split(" ");
+    }
+
+    /**
+     * Run the script, and keep what it printed. Standard output is taken over meanwhile,
+     * so only one client at a time can run like this.
+     */
+    int run(TestServer server) throws Exception {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(printed, true));
+        try {
+            return start("127.0.0.1", server.cmdPort, server.dataPort);
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    /**
+     * @return Number of downloads taken from the cache.
+     */
+    int fromCache() {
+        return printed.toString().split("Done, from cache\\.", -1).length - 1;
+    }
+}
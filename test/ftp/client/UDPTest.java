@@ -0,0 +1,94 @@
+package ftp.client;
+
+import ftp.ReturnCode;
+import ftp.TestServer;
+import ftp.net.NetEmulator;
+import ftp.server.Server;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static ftp.Check.*;
+import static ftp.client.ContentCacheTest.contents;
+
+/**
+ * Uploads of clients over UDP to a server on loopback: several at once through its one data port,
+ * one whose ACKs are lost on the way, and one which doesn't tell the port it sends from.
+ */
+public class UDPTest {
+
+    public static void runAll() {
+        run("UDP.concurrentUploads", () -> withFiles((server, dir) -> {
+            int clients = 3;
+            byte[][] contents = new byte[clients][];
+            int[] results = new int[clients];
+            Thread[] threads = new Thread[clients];
+            for (int i = 0; i < clients; i++) {
+                contents[i] = contents(400_000 + i * 1000, i);
+                Path file = dir.resolve(i + ".bin");
+                Files.write(file, contents[i]);
+                ScriptedClient client = new ScriptedClient(null, "transport udp", "put " + file);
+                int n = i;
+                threads[i] = new Thread(() -> {
+                    try {
+                        results[n] = client.start("127.0.0.1", server.cmdPort, server.dataPort);
+                    } catch (Exception e) {
+                        results[n] = -1;
+                    }
+                }, "Test client " + i);
+                threads[i].start();
+            }
+            for (int i = 0; i < clients; i++) {
+                threads[i].join();
+                equal(0, results[i], "result of upload " + i);
+                equal(contents[i], Files.readAllBytes(server.file(i + ".bin").toPath()), "contents of upload " + i);
+            }
+        }));
+        run("UDP.underLoss", () -> {
+            NetEmulator emulator = new NetEmulator("loss=0.1 seed=4");
+            withFiles(root -> {
+                Server server = new Server(root.getPath());
+                server.setNetEmulator(emulator);
+                return server;
+            }, (server, dir) -> {
+                byte[] contents = contents(20_000, 5);
+                Path file = dir.resolve("l.bin");
+                Files.write(file, contents);
+                ScriptedClient client = new ScriptedClient(null, "transport udp", "put " + file);
+                equal(0, client.run(server), "result of upload");
+                equal(contents, Files.readAllBytes(server.file("l.bin").toPath()), "contents on server");
+                that(emulator.toString().matches("(?s).*\\b[1-9]\\d* dropped.*"), "ACKs should be lost: " + emulator);
+            });
+        });
+        run("UDP.portMissing", () -> TestServer.with(server -> {
+            try (Session session = server.session()) {
+                equal(ReturnCode.SUCCESS, session.request("put m.bin").returnCode, "response to put");
+                equal(ReturnCode.ARGUMENT_ERR, session.request("10 bytes udp").returnCode, "response to metadata");
+            }
+            that(!server.file("m.bin").exists(), "no file should be left");
+        }));
+    }
+
+    interface FilesBody {
+        void run(TestServer server, Path dir) throws Exception;
+    }
+
+    static void withFiles(FilesBody body) throws Exception {
+        withFiles(root -> new Server(root.getPath()), body);
+    }
+
+    /**
+     * Run a body with a server, and a directory of files for clients to upload.
+     */
+    static void withFiles(TestServer.Factory factory, FilesBody body) throws Exception {
+        TestServer.with(factory, server -> {
+            Path dir = Files.createTempDirectory("udptest");
+            try {
+                body.run(server, dir);
+            } finally {
+                TestServer.delete(dir);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,105 @@
+package ftp.net;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.DatagramChannel;
+
+import static ftp.Check.*;
+
+/**
+ * Frames sent as datagrams and read back, and datagrams of strangers discarded by a receiver.
+ * Then peers sending to one channel at once, each read on its own port of a demux.
+ */
+public class DatagramStreamTest {
+
+    public static void runAll() {
+        run("Datagram.framesOfOnePeer", () -> {
+            InetAddress loopback = InetAddress.getLoopbackAddress();
+            try (DatagramChannel receiving = UDPTransport.open();
+                 DatagramChannel peer = UDPTransport.open();
+                 DatagramChannel stranger = UDPTransport.open()) {
+                receiving.bind(new InetSocketAddress(loopback, 0));
+                receiving.configureBlocking(false);
+                peer.connect(receiving.getLocalAddress());
+                stranger.connect(receiving.getLocalAddress());
+
+                DatagramInputStream in = new DatagramInputStream(receiving, UDPTransport.maxDatagramSize);
+                in.setPeer(loopback);
+                in.setTimeout(1000);
+                DataOutputStream fromPeer = new DataOutputStream(
+                        new DatagramOutputStream(peer, null, UDPTransport.maxDatagramSize, true));
+                DataOutputStream fromStranger = new DataOutputStream(
+                        new DatagramOutputStream(stranger, null, UDPTransport.maxDatagramSize, true));
+
+                // The first datagram pins the peer's port, so the stranger on the same host is not read.
+                fromPeer.writeInt(1);
+                fromPeer.flush();
+                fromStranger.writeInt(-1);
+                fromStranger.flush();
+                fromPeer.writeInt(2);
+                fromPeer.flush();
+                DataInputStream frames = new DataInputStream(in);
+                equal(1, frames.readInt(), "first frame");
+                equal(2, frames.readInt(), "second frame");
+                equal(peer.getLocalAddress(), in.getLastSource(), "source");
+                in.close();
+            }
+        });
+        run("Datagram.demuxedByPeer", () -> {
+            InetAddress loopback = InetAddress.getLoopbackAddress();
+            try (DatagramChannel receiving = UDPTransport.open();
+                 DatagramChannel first = UDPTransport.open();
+                 DatagramChannel second = UDPTransport.open();
+                 DatagramChannel stranger = UDPTransport.open()) {
+                receiving.bind(new InetSocketAddress(loopback, 0));
+                DatagramDemux demux = new DatagramDemux(receiving, UDPTransport.maxDatagramSize);
+                first.connect(receiving.getLocalAddress());
+                second.connect(receiving.getLocalAddress());
+                stranger.connect(receiving.getLocalAddress());
+
+                DatagramInputStream fromFirst = new DatagramInputStream(
+                        demux.open((InetSocketAddress) first.getLocalAddress()), UDPTransport.maxDatagramSize);
+                DatagramInputStream fromSecond = new DatagramInputStream(
+                        demux.open((InetSocketAddress) second.getLocalAddress()), UDPTransport.maxDatagramSize);
+                fromFirst.setTimeout(1000);
+                fromSecond.setTimeout(1000);
+                throwsA(IOException.class, () -> demux.open((InetSocketAddress) first.getLocalAddress()),
+                        "second port for a peer");
+
+                // Interleaved, each reads only its own, and the stranger's are dropped.
+                DataOutputStream toFirst = new DataOutputStream(
+                        new DatagramOutputStream(first, null, UDPTransport.maxDatagramSize, true));
+                DataOutputStream toSecond = new DataOutputStream(
+                        new DatagramOutputStream(second, null, UDPTransport.maxDatagramSize, true));
+                DataOutputStream toStranger = new DataOutputStream(
+                        new DatagramOutputStream(stranger, null, UDPTransport.maxDatagramSize, true));
+                for (int i = 0; i < 10; i++) {
+                    toFirst.writeInt(i);
+                    toFirst.flush();
+                    toStranger.writeInt(-1);
+                    toStranger.flush();
+                    toSecond.writeInt(100 + i);
+                    toSecond.flush();
+                }
+                DataInputStream firstFrames = new DataInputStream(fromFirst);
+                DataInputStream secondFrames = new DataInputStream(fromSecond);
+                for (int i = 0; i < 10; i++) {
+                    equal(100 + i, secondFrames.readInt(), "frame of second");
+                    equal(i, firstFrames.readInt(), "frame of first");
+                }
+                equal(first.getLocalAddress(), fromFirst.getLastSource(), "source of first");
+                throwsA(SocketTimeoutException.class, firstFrames::readInt, "read past the last frame");
+
+                // Once closed, the port can be opened again for a next transfer.
+                fromFirst.close();
+                demux.open((InetSocketAddress) first.getLocalAddress()).close();
+                fromSecond.close();
+            }
+        });
+    }
+
+}
@@ -0,0 +1,177 @@
+package ftp.net;
+
+import ftp.DataChunkS2C;
+import ftp.DataConnection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static ftp.Check.*;
+
+/**
+ * Frames batched into gathering writes: held until sent or until buffers are filled, spilling over
+ * buffers, written in part by the channel, and chunks read back in order over a loopback data connection.
+ */
+public class GatheringOutputStreamTest {
+
+    /**
+     * Channel which keeps what it is written, and how many frames each write gathered.
+     * It takes at most {@code maxPerWrite} bytes a write, like a socket with a full send buffer.
+     */
+    static class RecordingChannel implements GatheringByteChannel {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        final List<Integer> buffersPerWrite = new ArrayList<>();
+        final int maxPerWrite;
+
+        RecordingChannel(int maxPerWrite) {
+            this.maxPerWrite = maxPerWrite;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            int buffers = 0;
+            long total = 0;
+            for (int i = offset; i < offset + length && total < maxPerWrite; i++) {
+                if (srcs[i].hasRemaining()) buffers++;
+                while (srcs[i].hasRemaining() && total < maxPerWrite) {
+                    written.write(srcs[i].get());
+                    total++;
+                }
+            }
+            buffersPerWrite.add(buffers);
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[]{src}, 0, 1);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public static void runAll() {
+        run("Gathering.batchesFrames", () -> {
+            RecordingChannel channel = new RecordingChannel(Integer.MAX_VALUE);
+            GatheringOutputStream out = new GatheringOutputStream(channel, 128, 4);
+            byte[] expected = writeFrames(out, 10, 100);
+            equal(List.of(4, 4), channel.buffersPerWrite, "frames gathered before send");
+            out.send();
+            equal(List.of(4, 4, 2), channel.buffersPerWrite, "frames gathered");
+            equal(expected, channel.written.toByteArray(), "bytes written");
+            out.send();
+            equal(3, channel.buffersPerWrite.size(), "nothing left to send");
+        });
+        run("Gathering.heldUntilSent", () -> {
+            RecordingChannel channel = new RecordingChannel(Integer.MAX_VALUE);
+            GatheringOutputStream out = new GatheringOutputStream(channel, 128, 8);
+            byte[] expected = writeFrames(out, 3, 50);
+            out.write(7);                   // A frame not ended yet is sent too.
+            equal(0, channel.buffersPerWrite.size(), "writes before send");
+            out.close();
+            equal(List.of(4), channel.buffersPerWrite, "frames gathered");
+            equal(concat(expected, new byte[]{7}), channel.written.toByteArray(), "bytes written");
+        });
+        run("Gathering.spillsAndPartialWrites", () -> {
+            RecordingChannel channel = new RecordingChannel(50);
+            GatheringOutputStream out = new GatheringOutputStream(channel, 128, 4);
+            byte[] expected = writeFrames(out, 5, 300);     // Each frame spills over three buffers.
+            out.send();
+            equal(expected, channel.written.toByteArray(), "bytes written");
+            that(channel.buffersPerWrite.size() >= expected.length / 50,
+                    "writes taken in part should be retried: " + channel.buffersPerWrite.size() + " writes");
+        });
+        run("Gathering.chunksOverLoopback", () -> {
+            try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+                listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                SocketChannel connecting = SocketChannel.open(listener.getLocalAddress());
+                try (DataConnection sending = new DataConnection(connecting.socket());
+                     DataConnection receiving = new DataConnection(listener.accept().socket())) {
+                    byte[] contents = new byte[100_500];
+                    new Random(1).nextBytes(contents);
+                    GatheringOutputStream batched = sending.openBatchedOutput();
+                    that(batched != null, "a connection over a channel should batch");
+
+                    // Sent like a download: chunks batched, then the end past the batch.
+                    Thread sender = new Thread(() -> {
+                        try {
+                            DataOutputStream chunks = new DataOutputStream(batched);
+                            ByteArrayInputStream in = new ByteArrayInputStream(contents);
+                            DataChunkS2C chunk = new DataChunkS2C();
+                            byte seqNo = 0;
+                            while (chunk.fill(seqNo, in) > 0) {
+                                chunk.writeBytes(chunks);
+                                seqNo++;
+                            }
+                            chunks.close();
+                            chunk.end(seqNo);
+                            chunk.writeBytes(sending.out);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }, "Test sender");
+                    sender.start();
+
+                    ByteArrayOutputStream received = new ByteArrayOutputStream();
+                    DataChunkS2C chunk = new DataChunkS2C();
+                    while (true) {
+                        chunk.readFrom(receiving.in);
+                        if (chunk.isEnd()) break;
+                        received.write(chunk.data, 0, chunk.getSize());
+                    }
+                    sender.join();
+                    equal(contents, received.toByteArray(), "contents");
+                }
+            }
+        });
+    }
+
+    /**
+     * Write frames of random bytes, each ended by a flush.
+     *
+     * @return Bytes of all frames.
+     */
+    static byte[] writeFrames(GatheringOutputStream out, int count, int size) throws IOException {
+        Random random = new Random(count * 1000L + size);
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            byte[] frame = new byte[size];
+            random.nextBytes(frame);
+            out.write(frame, 0, size);
+            out.flush();
+            all.write(frame, 0, size);
+        }
+        return all.toByteArray();
+    }
+
+    static byte[] concat(byte[] a, byte[] b) {
+        byte[] both = new byte[a.length + b.length];
+        System.arraycopy(a, 0, both, 0, a.length);
+        System.arraycopy(b, 0, both, a.length, b.length);
+        return both;
+    }
+
+}
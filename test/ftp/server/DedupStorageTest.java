@@ -0,0 +1,198 @@
+package ftp.server;
+
+import ftp.ReturnCode;
+import ftp.TestServer;
+import ftp.client.Session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static ftp.Check.*;
+
+/**
+ * Files written to a deduplicating storage and read back, whole and in ranges, and chunks shared between versions.
+ * Then files whose chunks are missing from the store, told as corrupt, and as unavailable by a server.
+ */
+public class DedupStorageTest {
+
+    public static void runAll() {
+        run("DedupStorage.roundTrip", () -> withStorage((dir, storage) -> {
+            byte[] contents = contents(1_500_000, 1);
+            File file = new File(dir, "a.bin");
+            write(storage, file, contents);
+            that(!storage.isPlain(file), "stored as a manifest");
+            equal((long) contents.length, storage.length(file), "length");
+            equal(contents, read(storage, file, 0, contents.length), "contents");
+        }));
+        run("DedupStorage.ranges", () -> withStorage((dir, storage) -> {
+            byte[] contents = contents(1_000_000, 2);
+            File file = new File(dir, "a.bin");
+            write(storage, file, contents);
+            Random random = new Random(3);
+            for (int i = 0; i < 50; i++) {
+                int offset = random.nextInt(contents.length);
+                int length = random.nextInt(300_000);
+                int end = Math.min(contents.length, offset + length);
+                equal(Arrays.copyOfRange(contents, offset, end), read(storage, file, offset, length),
+                        "range " + offset + "+" + length);
+            }
+            equal(0, read(storage, file, contents.length, 10).length, "range at the end");
+        }));
+        run("DedupStorage.sharesChunks", () -> withStorage((dir, storage) -> {
+            byte[] contents = contents(2_000_000, 4);
+            write(storage, new File(dir, "v1.bin"), contents);
+            long chunks = countChunks(storage.store);
+
+            // An insertion only changes chunks around it.
+            byte[] edited = new byte[contents.length + 100];
+            System.arraycopy(contents, 0, edited, 0, 1_000_000);
+            Arrays.fill(edited, 1_000_000, 1_000_100, (byte) 0x55);
+            System.arraycopy(contents, 1_000_000, edited, 1_000_100, contents.length - 1_000_000);
+            write(storage, new File(dir, "v2.bin"), edited);
+            long added = countChunks(storage.store) - chunks;
+            that(added >= 1 && added <= 3, "edit should add 1 to 3 chunks, added " + added + " of " + chunks);
+            equal(edited, read(storage, new File(dir, "v2.bin"), 0, edited.length), "contents of v2");
+
+            // The same contents again add nothing.
+            write(storage, new File(dir, "v3.bin"), contents);
+            equal(chunks + added, countChunks(storage.store), "chunks after writing v1 again");
+            equal(contents, read(storage, new File(dir, "v3.bin"), 0, contents.length), "contents of v3");
+        }));
+        run("DedupStorage.empty", () -> withStorage((dir, storage) -> {
+            File file = new File(dir, "e");         // Shorter than prefixes of temporary files may be.
+            write(storage, file, new byte[0]);
+            equal(0L, storage.length(file), "length");
+            equal(0, read(storage, file, 0, 10).length, "contents");
+        }));
+        run("DedupStorage.plainFile", () -> withStorage((dir, storage) -> {
+            byte[] contents = contents(100_000, 5);
+            File file = new File(dir, "plain.bin");
+            Files.write(file.toPath(), contents);
+            that(storage.isPlain(file), "put in place by hand");
+            equal((long) contents.length, storage.length(file), "length");
+            equal(Arrays.copyOfRange(contents, 10, 5010), read(storage, file, 10, 5000), "range");
+        }));
+        run("DedupStorage.abort", () -> withStorage((dir, storage) -> {
+            File file = new File(dir, "a.bin");
+            DedupStorage.ChunkingOutputStream out = (DedupStorage.ChunkingOutputStream) storage.create(file);
+            byte[] contents = contents(1_000_000, 6);
+            out.write(contents, 0, contents.length);
+            out.abort();
+            that(!out.writer.isAlive(), "writer should be stopped");
+            that(!file.exists(), "no manifest should be written");
+            out.close();
+            that(!file.exists(), "closing after abort should write nothing");
+        }));
+        run("DedupStorage.malformedManifest", () -> withStorage((dir, storage) -> {
+            File file = new File(dir, "bad");
+            String hash = "ab".repeat(32);
+            Files.writeString(file.toPath(), "ftp-manifest 10\n" + hash + "\n");
+            throwsA(IOException.class, () -> storage.open(file, 0, 10), "line without size");
+            Files.writeString(file.toPath(), "ftp-manifest 10\n../../x 10\n");
+            throwsA(IOException.class, () -> storage.open(file, 0, 10), "name which is not a hash");
+            Files.writeString(file.toPath(), "ftp-manifest 11\n" + hash + " 10\n");
+            throwsA(IOException.class, () -> storage.open(file, 0, 10), "sizes not adding up to length");
+            Files.writeString(file.toPath(), "ftp-manifest ten\n");
+            throwsA(IOException.class, () -> storage.length(file), "length which is not a number");
+            Files.writeString(file.toPath(), "ftp-manifest 10\n" + hash + " 10\n");
+            equal(10L, storage.length(file), "length from header");
+        }));
+        run("DedupStorage.missingChunk", () -> withStorage((dir, storage) -> {
+            byte[] contents = contents(1_500_000, 6);
+            File file = new File(dir, "a.bin");
+            write(storage, file, contents);
+            DedupStorage.Manifest manifest = DedupStorage.Manifest.read(file);
+            that(manifest.sizes.size() > 3, "several chunks: " + manifest.sizes.size());
+            int first = manifest.sizes.get(0);
+            int second = manifest.sizes.get(1);
+            storage.chunkFile(manifest.hashes.get(1)).delete();
+
+            throwsA(CorruptFileException.class, () -> storage.open(file, 0, contents.length), "whole file");
+            throwsA(CorruptFileException.class, () -> storage.open(file, first - 1, 2), "range over the chunk");
+            equal(Arrays.copyOfRange(contents, 0, first), read(storage, file, 0, first), "range before the chunk");
+            equal(Arrays.copyOfRange(contents, first + second, contents.length),
+                    read(storage, file, first + second, contents.length), "range after the chunk");
+
+            // A chunk cut short is told as well.
+            File third = storage.chunkFile(manifest.hashes.get(2));
+            Files.write(third.toPath(), Arrays.copyOf(Files.readAllBytes(third.toPath()), 1000));
+            throwsA(CorruptFileException.class, () -> storage.open(file, first + second, 10), "chunk cut short");
+        }));
+        run("DedupStorage.corruptThroughServer", () -> withStorage((dir, storage) -> {
+            TestServer.with(root -> new Server(root.getPath(), storage), server -> {
+                byte[] contents = contents(800_000, 7);
+                try (Session session = server.session()) {
+                    session.put(new ByteArrayInputStream(contents), "c.bin");
+                    session.put(new ByteArrayInputStream(contents(100_000, 8)), "d.bin");
+                    DedupStorage.Manifest manifest = DedupStorage.Manifest.read(server.file("c.bin"));
+                    storage.chunkFile(manifest.hashes.get(manifest.hashes.size() - 1)).delete();
+
+                    equal(ReturnCode.FILE_UNAVAILABLE, session.request("get c.bin").returnCode, "response to get");
+                    equal(ReturnCode.FILE_UNAVAILABLE, session.request("rget c.bin 0 800000").returnCode,
+                            "response to rget");
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    session.getRange("c.bin", 0, 1000, out);
+                    equal(Arrays.copyOf(contents, 1000), out.toByteArray(), "range of chunks in the store");
+                    out.reset();
+                    session.get("d.bin", out);
+                    equal(contents(100_000, 8), out.toByteArray(), "another file in the same session");
+                }
+            });
+        }));
+    }
+
+    interface StorageBody {
+        void run(File dir, DedupStorage storage) throws Exception;
+    }
+
+    static void withStorage(StorageBody body) throws Exception {
+        Path dir = Files.createTempDirectory("deduptest");
+        try {
+            body.run(dir.toFile(), new DedupStorage(dir.resolve("store").toFile()));
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    static byte[] contents(int length, long seed) {
+        byte[] contents = new byte[length];
+        new Random(seed).nextBytes(contents);
+        return contents;
+    }
+
+    /**
+     * Write in pieces of odd sizes, as they arrive from a transfer.
+     */
+    static void write(DedupStorage storage, File file, byte[] contents) throws IOException {
+        try (OutputStream out = storage.create(file)) {
+            for (int off = 0; off < contents.length; off += 777) {
+                out.write(contents, off, Math.min(777, contents.length - off));
+            }
+        }
+    }
+
+    static byte[] read(DedupStorage storage, File file, long offset, long length) throws IOException {
+        try (InputStream in = storage.open(file, offset, length)) {
+            return in.readAllBytes();
+        }
+    }
+
+    static long countChunks(File store) throws IOException {
+        try (Stream<Path> paths = Files.walk(store.toPath())) {
+            return paths.filter(Files::isRegularFile).count();
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+package ftp.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static ftp.Check.*;
+
+/**
+ * Turns of transfers sharing a rate-limited link: shares in bytes of those which keep sending chunks
+ * of different sizes, and a transfer which stops sending amid its turn.
+ */
+public class FairSchedulerTest {
+
+    /**
+     * Link on a simulated clock, which waiting for tokens moves on rather than sleeping.
+     * So flows are never idle by the clock unless the link stands still, however their threads are run.
+     * It keeps which flow sent what in turn, as only the flow on its turn takes tokens.
+     * The first one to send waits until both are in the ring, so that neither has the link to itself for a while.
+     */
+    static class SimulatedLink extends TokenBucket {
+        final AtomicLong clock = new AtomicLong();
+        final List<Turn> turns = new ArrayList<>();
+        FairScheduler scheduler;
+        volatile boolean failed = false;
+
+        SimulatedLink(long rate) {
+            super(rate);
+        }
+
+        @Override
+        protected long take(int bytes) {
+            if (turns.isEmpty()) awaitRing(2);     // Not holding the bucket, which the other needs to join.
+            synchronized (this) {
+                String flow = Thread.currentThread().getName();
+                Turn last = turns.isEmpty() ? null : turns.get(turns.size() - 1);
+                if (last != null && last.flow.equals(flow)) {
+                    last.bytes += bytes;
+                } else {
+                    turns.add(new Turn(flow, bytes));
+                }
+                return super.take(bytes);
+            }
+        }
+
+        void awaitRing(int flows) {
+            while (true) {
+                scheduler.lock.lock();
+                try {
+                    if (scheduler.ring.size() == flows) return;
+                } finally {
+                    scheduler.lock.unlock();
+                }
+                Thread.onSpinWait();
+            }
+        }
+
+        @Override
+        protected void await(long waitNanos) {
+            clock.addAndGet(waitNanos);
+        }
+
+        @Override
+        protected long now() {
+            return clock == null ? 0 : clock.get();     // Called by the constructor before the clock is set.
+        }
+    }
+
+    static class Turn {
+        final String flow;
+        int bytes;
+
+        Turn(String flow, int bytes) {
+            this.flow = flow;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String toString() {
+            return flow.substring(flow.length() - 1) + ":" + bytes;
+        }
+    }
+
+    public static void runAll() {
+        run("FairScheduler.idleHeadLeaves", () -> {
+            FairScheduler scheduler = new FairScheduler(new TokenBucket(10 * 1024 * 1024), 16 * 1024);
+            try (FairScheduler.Flow idle = scheduler.open(); FairScheduler.Flow busy = scheduler.open()) {
+                idle.send(1024);                // Takes the turn, and keeps it without sending any more.
+                long start = System.nanoTime();
+                for (int i = 0; i < 100; i++) busy.send(1024);
+                long millis = (System.nanoTime() - start) / 1_000_000;
+                that(millis < 1000, "other transfer should go on while one is idle, took " + millis + " ms");
+                idle.send(1024);                // Joins again.
+            }
+        });
+        run("FairScheduler.fairShares", () -> {
+            int quantum = 16 * 1024;
+            int turns = 20;
+            SimulatedLink link = new SimulatedLink(4 * 1024 * 1024);
+            FairScheduler scheduler = new FairScheduler(link, quantum);
+            link.scheduler = scheduler;
+            Thread[] threads = new Thread[2];
+            for (int t = 0; t < 2; t++) {
+                int chunkSize = t == 0 ? 1024 : 8 * 1024;   // Taking turns by chunks would give the second 8 times more.
+                threads[t] = new Thread(() -> {
+                    try (FairScheduler.Flow flow = scheduler.open()) {
+                        for (int i = 0; i < turns * quantum / chunkSize; i++) flow.send(chunkSize);
+                    } catch (Exception e) {
+                        link.failed = true;
+                    }
+                }, "Test flow " + t);
+                threads[t].start();
+            }
+            for (Thread thread : threads) thread.join();
+            that(!link.failed, "flows should send all their chunks");
+
+            // Each turn is a quantum of one flow, taking turns with the other until both are done.
+            equal(2 * turns, link.turns.size(), "number of turns: " + link.turns);
+            for (int i = 0; i < link.turns.size(); i++) {
+                equal(quantum, link.turns.get(i).bytes, "bytes sent on turn " + i + ": " + link.turns);
+                if (i > 0) that(!link.turns.get(i).flow.equals(link.turns.get(i - 1).flow),
+                        "turns should alternate: " + link.turns);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,56 @@
+package ftp.server;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static ftp.Check.*;
+
+/**
+ * Admission of files to the server's file cache on their second request, and dropping them when written anew.
+ */
+public class FileCacheTest {
+
+    public static void runAll() {
+        run("FileCache.admitsOnSecondRequest", () -> withFile(new byte[]{1, 2, 3}, file -> {
+            FileCache cache = new FileCache(1024, 1024);
+            that(cache.get(file) == null, "first request is read from disk");
+            ByteBuffer content = cache.get(file);
+            that(content != null, "second request is cached");
+            equal(3, content.remaining(), "length");
+            that(cache.get(file) != null && cache.toString().contains("1 hits"), "third request hits");
+        }));
+        run("FileCache.invalidate", () -> withFile(new byte[]{1, 2, 3}, file -> {
+            FileCache cache = new FileCache(1024, 1024);
+            cache.get(file);
+            cache.get(file);
+            long lastModified = file.lastModified();
+            Files.write(file.toPath(), new byte[]{4, 5, 6});
+            file.setLastModified(lastModified);         // Looks the same as what is cached.
+            cache.invalidate(file);
+            cache.get(file);
+            ByteBuffer content = cache.get(file);
+            equal(4, (int) content.get(0), "first byte of new contents");
+        }));
+        run("FileCache.tooLarge", () -> withFile(new byte[2000], file -> {
+            FileCache cache = new FileCache(1024, 1024);
+            cache.get(file);
+            that(cache.get(file) == null, "larger than the limit");
+        }));
+    }
+
+    interface FileBody {
+        void run(File file) throws Exception;
+    }
+
+    static void withFile(byte[] contents, FileBody body) throws Exception {
+        File file = File.createTempFile("filecachetest", ".bin").getCanonicalFile();
+        try {
+            Files.write(file.toPath(), contents);
+            body.run(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+package ftp.server;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static ftp.Check.*;
+
+/**
+ * The index of {@code FIND}: a snapshot and the log of changes since loaded back, the log compacted
+ * into a snapshot, changes the watcher finds, and filters parsed.
+ */
+public class MetadataIndexTest {
+
+    public static void runAll() {
+        run("MetadataIndex.snapshotAndLogReplay", () -> withDirs((root, saved) -> {
+            File indexFile = new File(saved, "index");
+            Files.write(indexFile.toPath(), List.of(
+                    "- 1000 a", "10 1000 a/x.txt", "20 1000 a/y.txt", "- 1000 b", "30 1000 b/z.txt", "40 1000 c.txt"));
+            Files.write(new File(saved, "index.log").toPath(), List.of(
+                    "+ 15 2000 a/x.txt", "- b", "+ 50 2000 d.txt", "+ 60 20"));     // The last one is torn.
+            MetadataIndex index = new MetadataIndex(root, indexFile, new PlainStorage());
+            index.load();
+            equal(List.of("a", "a/x.txt", "a/y.txt", "c.txt", "d.txt"), List.copyOf(index.entries.keySet()), "paths");
+            that(index.entries.get("a").isDirectory(), "a is a directory");
+            equal(15L, index.entries.get("a/x.txt").size, "size changed in the log");
+            equal(2000L, index.entries.get("a/x.txt").lastModified, "time changed in the log");
+            equal(List.of("a/x.txt", "a/y.txt"), List.copyOf(index.under("a").keySet()), "paths under a");
+        }));
+        run("MetadataIndex.changesAppendedAndCompacted", () -> withDirs((root, saved) -> {
+            File indexFile = new File(saved, "index");
+            File logFile = new File(saved, "index.log");
+            Files.createDirectories(root.toPath().resolve("a"));
+            Files.write(root.toPath().resolve("a/x.txt"), new byte[10]);
+            Files.write(root.toPath().resolve("y.txt"), new byte[20]);
+
+            MetadataIndex index = new MetadataIndex(root, indexFile, new PlainStorage());
+            for (String path : new String[]{"a", "a/x.txt", "y.txt"}) index.update(index.root.resolve(path));
+            index.appendChanges();
+            that(logFile.isFile() && !indexFile.exists(), "changes appended to the log only");
+            equal(List.of("a", "a/x.txt", "y.txt"), List.copyOf(reload(root, indexFile).entries.keySet()),
+                    "paths from the log");
+
+            Files.delete(root.toPath().resolve("a/x.txt"));
+            index.update(index.root.resolve("a/x.txt"));
+            index.appendChanges();
+            equal(List.of("a", "y.txt"), List.copyOf(reload(root, indexFile).entries.keySet()),
+                    "paths after a removal in the log");
+
+            index.compact();
+            that(indexFile.isFile() && !logFile.exists(), "log compacted into the snapshot");
+            equal(List.of("- ", "20 "), Files.readAllLines(indexFile.toPath()).stream()
+                    .map(line -> line.substring(0, line.indexOf(' ') + 1))
+                    .collect(Collectors.toList()), "sizes in the snapshot");
+            MetadataIndex reloaded = reload(root, indexFile);
+            equal(List.of("a", "y.txt"), List.copyOf(reloaded.entries.keySet()), "paths from the snapshot");
+            equal(20L, reloaded.entries.get("y.txt").size, "size from the snapshot");
+        }));
+        run("MetadataIndex.watcherUpdates", () -> withDirs((root, saved) -> {
+            Path dir = root.toPath();
+            Files.write(dir.resolve("old.txt"), new byte[5]);
+            MetadataIndex index = new MetadataIndex(root, null, new PlainStorage());
+            index.start();
+            await(() -> index.entries.containsKey("old.txt"), "walk should index old.txt");
+
+            Files.write(dir.resolve("new.txt"), new byte[7]);
+            await(() -> has(index, "new.txt", 7), "created file should be indexed");
+            Files.write(dir.resolve("new.txt"), new byte[70]);
+            await(() -> has(index, "new.txt", 70), "modified file should be indexed anew");
+            Files.delete(dir.resolve("old.txt"));
+            await(() -> !index.entries.containsKey("old.txt"), "deleted file should be dropped");
+
+            Files.createDirectories(dir.resolve("sub"));
+            Files.write(dir.resolve("sub/in.txt"), new byte[3]);
+            await(() -> has(index, "sub/in.txt", 3), "file in a created directory should be indexed");
+            Files.delete(dir.resolve("sub/in.txt"));
+            Files.delete(dir.resolve("sub"));
+            await(() -> !index.entries.containsKey("sub") && index.under("sub").isEmpty(),
+                    "deleted directory should be dropped");
+            index.watcher.close();
+        }));
+        run("MetadataIndex.filters", () -> {
+            FindQuery query = new FindQuery(new String[]{"name=*.txt", "minsize=1k", "maxsize=1m", "type=f"});
+            equal(1024L, query.minSize, "minsize");
+            equal(1024L * 1024, query.maxSize, "maxsize");
+            equal(8L * 1024 * 1024 * 1024, FindQuery.parseSize("8G"), "size in gigabytes");
+            for (String filter : new String[]{"minsize=99999999999g", "maxsize=9223372036854775807k",
+                    "minsize=99999999999999999999", "minsize=1x", "type=x", "size=1", "name"}) {
+                throwsA(IllegalArgumentException.class, () -> new FindQuery(new String[]{filter}), filter);
+            }
+        });
+    }
+
+    interface DirsBody {
+        void run(File root, File saved) throws Exception;
+    }
+
+    /**
+     * Run a body with a directory to index, and another one to save the index in.
+     */
+    static void withDirs(DirsBody body) throws Exception {
+        Path dir = Files.createTempDirectory("indextest").toRealPath();
+        try {
+            Files.createDirectories(dir.resolve("root"));
+            Files.createDirectories(dir.resolve("saved"));
+            body.run(dir.resolve("root").toFile(), dir.resolve("saved").toFile());
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    static MetadataIndex reload(File root, File indexFile) throws Exception {
+        MetadataIndex index = new MetadataIndex(root, indexFile, new PlainStorage());
+        index.load();
+        return index;
+    }
+
+    static boolean has(MetadataIndex index, String path, long size) {
+        MetadataIndex.Entry entry = index.entries.get(path);
+        return entry != null && entry.size == size;
+    }
+
+    static void await(BooleanSupplier condition, String message) throws InterruptedException {
+        for (int i = 0; i < 200 && !condition.getAsBoolean(); i++) Thread.sleep(50);
+        that(condition.getAsBoolean(), message);
+    }
+
+}